@@ -0,0 +1,424 @@
+package com.panxoloto.sharepoint.rest;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.json.JSONObject;
+import org.reactivestreams.Publisher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.MultiValueMap;
+
+import com.panxoloto.sharepoint.rest.helper.AsyncHttpExecutor;
+import com.panxoloto.sharepoint.rest.helper.MoveCopyOptions;
+import com.panxoloto.sharepoint.rest.helper.ODataMetadata;
+import com.panxoloto.sharepoint.rest.helper.ODataQuery;
+
+/**
+ * Operations of the async clients, the subclasses provide the headers and urls of each flavour.
+ */
+abstract class AbstractPLGSharepointAsyncClient implements PLGSharepointAsyncClient {
+
+	private static final Logger LOG = LoggerFactory.getLogger(AbstractPLGSharepointAsyncClient.class);
+
+	protected final AsyncHttpExecutor executor;
+
+	protected AbstractPLGSharepointAsyncClient(AsyncHttpExecutor executor) {
+		this.executor = executor;
+	}
+
+	protected abstract MultiValueMap<String, String> getGetHeaders(boolean includeAuthHeader) throws Exception;
+
+	protected abstract MultiValueMap<String, String> getPostHeaders(String payload) throws Exception;
+
+	protected abstract MultiValueMap<String, String> getUpdateHeaders(String payload) throws Exception;
+
+	protected abstract MultiValueMap<String, String> getDeleteHeaders() throws Exception;
+
+	protected abstract URI getSharepointSiteUrl(String apiPath) throws Exception;
+
+	protected abstract URI getSharepointSiteUrl(String apiPath, String query) throws Exception;
+
+	/**
+	 * @param fileServerRelativeUrl - url as accepted by the blocking client.
+	 * @return the url to use in GetFileByServerRelativeUrl.
+	 */
+	protected abstract String getFileUrl(String fileServerRelativeUrl);
+
+	/**
+	 * @return the executor sending the requests, to read its in flight and queued counters.
+	 */
+	public AsyncHttpExecutor getExecutor() {
+		return executor;
+	}
+
+	@Override
+	public CompletableFuture<JSONObject> getAllLists() {
+		return getJson("/_api/web/lists", ODataMetadata::toVerboseCollection);
+	}
+
+	@Override
+	public CompletableFuture<JSONObject> getListByTitle(String title) {
+		return getJson("/_api/web/lists/GetByTitle('" + title + "')", ODataMetadata::toVerboseEntity);
+	}
+
+	@Override
+	public CompletableFuture<JSONObject> getListFields(String title) {
+		return getJson("/_api/web/lists/GetByTitle('" + title + "')/Fields", ODataMetadata::toVerboseCollection);
+	}
+
+	@Override
+	public CompletableFuture<JSONObject> getListItems(String title, String filter) {
+		String apiPath = "/_api/lists/GetByTitle('" + title + "')/items";
+		return json(() -> {
+			URI uri = filter == null || filter.isEmpty() ? getSharepointSiteUrl(apiPath) : getSharepointSiteUrl(apiPath, filter);
+			return request(new HttpGet(uri), getGetHeaders(true), null);
+		}, ODataMetadata::toVerboseCollection);
+	}
+
+	@Override
+	public CompletableFuture<JSONObject> getListItems(String title, ODataQuery query) {
+		return getJson("/_api/lists/GetByTitle('" + title + "')/items", query);
+	}
+
+	@Override
+	public CompletableFuture<JSONObject> getNextPage(String nextPageUrl) {
+		return json(() -> request(new HttpGet(new URI(nextPageUrl)), getGetHeaders(true), null), ODataMetadata::toVerboseCollection);
+	}
+
+	@Override
+	public CompletableFuture<JSONObject> checkFolderExist(String folder) {
+		return getJson("/_api/web/GetFolderByServerRelativeUrl('" + folder + "')/Exists",
+				json -> ODataMetadata.toVerboseProperty(json, "Exists"));
+	}
+
+	@Override
+	public CompletableFuture<JSONObject> getFolderByRelativeUrl(String folder) {
+		return getJson("/_api/web/GetFolderByServerRelativeUrl('" + folder + "')", ODataMetadata::toVerboseEntity);
+	}
+
+	@Override
+	public CompletableFuture<JSONObject> getFolderFoldersByRelativeUrl(String folder) {
+		return getJson("/_api/web/GetFolderByServerRelativeUrl('" + folder + "')/Folders", ODataMetadata::toVerboseCollection);
+	}
+
+	@Override
+	public CompletableFuture<JSONObject> getFolderFilesByRelativeUrl(String folder) {
+		return getJson("/_api/web/GetFolderByServerRelativeUrl('" + folder + "')/Files", ODataMetadata::toVerboseCollection);
+	}
+
+	@Override
+	public CompletableFuture<JSONObject> getFolderFoldersByRelativeUrl(String folder, ODataQuery query) {
+		return getJson("/_api/web/GetFolderByServerRelativeUrl('" + folder + "')/Folders", query);
+	}
+
+	@Override
+	public CompletableFuture<JSONObject> getFolderFilesByRelativeUrl(String folder, ODataQuery query) {
+		return getJson("/_api/web/GetFolderByServerRelativeUrl('" + folder + "')/Files", query);
+	}
+
+	@Override
+	public CompletableFuture<JSONObject> getFileInfo(String fileServerRelativeUrl) {
+		return json(() -> request(new HttpGet(getSharepointSiteUrl("/_api/web/GetFileByServerRelativeUrl('"
+				+ getFileUrl(fileServerRelativeUrl) + "')")), getGetHeaders(true), null), ODataMetadata::toVerboseEntity);
+	}
+
+	@Override
+	public CompletableFuture<JSONObject> getFileSpecificInfo(String fileServerRelativeUrl, String info) {
+		return json(() -> request(new HttpGet(getSharepointSiteUrl("/_api/web/GetFileByServerRelativeUrl('"
+				+ getFileUrl(fileServerRelativeUrl) + "')/" + info)), getGetHeaders(true), null),
+				json -> ODataMetadata.toVerboseProperty(json, info));
+	}
+
+	@Override
+	public CompletableFuture<byte[]> downloadFile(String fileServerRelativeUrl) {
+		return map(send(() -> request(new HttpGet(getSharepointSiteUrl("/_api/web/GetFileByServerRelativeUrl('"
+				+ getFileUrl(fileServerRelativeUrl) + "')/$value")), getGetHeaders(true), null)), ResponseEntity::getBody);
+	}
+
+	@Override
+	public CompletableFuture<JSONObject> uploadFile(String folder, byte[] content, String fileName, JSONObject jsonMetadata) {
+		CompletableFuture<JSONObject> upload = json(() -> request(new HttpPost(getSharepointSiteUrl(
+				"/_api/web/GetFolderByServerRelativeUrl('" + folder + "')/Files/add(url='" + fileName + "',overwrite=true)")),
+				getPostHeaders(""), content), ODataMetadata::toVerboseEntity);
+		if (jsonMetadata == null) {
+			return upload;
+		}
+		// Completed on a callback thread of the executor, the digest refresh of getUpdateHeaders may block there.
+		return upload.thenCompose(fileInfo -> {
+			JSONObject meta = new JSONObject();
+			meta.put("type", jsonMetadata.has("type") ? jsonMetadata.get("type") : "SP.ListItem");
+			jsonMetadata.put("__metadata", meta);
+			String serverRelFileUrl = fileInfo.getJSONObject("d").getString("ServerRelativeUrl");
+			return merge("/_api/web/GetFileByServerRelativeUrl('" + serverRelFileUrl + "')/listitemallfields", jsonMetadata)
+					.thenApply(response -> fileInfo);
+		});
+	}
+
+	@Override
+	public CompletableFuture<Boolean> deleteFile(String fileServerRelativeUrl) {
+		return map(send(() -> request(new HttpPost(getSharepointSiteUrl("/_api/web/GetFileByServerRelativeUrl('"
+				+ getFileUrl(fileServerRelativeUrl) + "')")), getDeleteHeaders(), null)), response -> Boolean.TRUE);
+	}
+
+	@Override
+	public CompletableFuture<JSONObject> updateFileMetadata(String fileServerRelativeUrl, JSONObject jsonMetadata) {
+		JSONObject meta = new JSONObject();
+		meta.put("type", jsonMetadata.has("type") ? jsonMetadata.get("type") : "SP.File");
+		jsonMetadata.put("__metadata", meta);
+		return merge("/_api/web/GetFileByServerRelativeUrl('" + fileServerRelativeUrl + "')/listitemallfields", jsonMetadata);
+	}
+
+	@Override
+	public CompletableFuture<JSONObject> updateFolderMetadata(String folderServerRelativeUrl, JSONObject jsonMetadata) {
+		JSONObject meta = new JSONObject();
+		meta.put("type", jsonMetadata.has("type") ? jsonMetadata.get("type") : "SP.Folder");
+		jsonMetadata.put("__metadata", meta);
+		return merge("/_api/web/GetFolderByServerRelativeUrl('" + folderServerRelativeUrl + "')/listitemallfields", jsonMetadata);
+	}
+
+	@Override
+	public CompletableFuture<JSONObject> createFolder(String baseFolderRemoteRelativeUrl, String folder, JSONObject payload) {
+		JSONObject body = payload == null ? new JSONObject() : payload;
+		JSONObject meta = new JSONObject();
+		meta.put("type", body.has("type") ? body.get("type") : "SP.Folder");
+		body.put("__metadata", meta);
+		body.put("ServerRelativeUrl", folder);
+		return post("/_api/web/GetFolderByServerRelativeUrl('" + baseFolderRemoteRelativeUrl + "')/folders", body.toString());
+	}
+
+	@Override
+	public CompletableFuture<JSONObject> moveFolder(String sourceRelativeServerUrl, String destinyRelativeServerUrl) {
+		return post("/_api/web/GetFolderByServerRelativeUrl('" + sourceRelativeServerUrl
+				+ "')/moveto(newUrl='" + destinyRelativeServerUrl + "',flags=1)", "");
+	}
+
+	@Override
+	public CompletableFuture<JSONObject> moveFile(String sourceRelativeServerUrl, String destinyRelativeServerUrl) {
+		return post("/_api/web/GetFileByServerRelativeUrl('" + getFileUrl(sourceRelativeServerUrl)
+				+ "')/moveto(newUrl='" + getFileUrl(destinyRelativeServerUrl) + "',flags=1)", "");
+	}
+
+	@Override
+	public CompletableFuture<Boolean> removeFolder(String folderRemoteRelativeUrl) {
+		return map(send(() -> request(new HttpPost(getSharepointSiteUrl("/_api/web/GetFolderByServerRelativeUrl('"
+				+ folderRemoteRelativeUrl + "')")), getDeleteHeaders(), null)), response -> Boolean.TRUE);
+	}
+
+	@Override
+	public CompletableFuture<JSONObject> copyFileByPath(String sourceUrl, String destinationUrl, boolean overwrite, MoveCopyOptions options) {
+		return moveCopy("CopyFileByPath", sourceUrl, destinationUrl, overwrite, options);
+	}
+
+	@Override
+	public CompletableFuture<JSONObject> moveFileByPath(String sourceUrl, String destinationUrl, boolean overwrite, MoveCopyOptions options) {
+		return moveCopy("MoveFileByPath", sourceUrl, destinationUrl, overwrite, options);
+	}
+
+	@Override
+	public CompletableFuture<JSONObject> copyFolderByPath(String sourceUrl, String destinationUrl, MoveCopyOptions options) {
+		return moveCopy("CopyFolderByPath", sourceUrl, destinationUrl, null, options);
+	}
+
+	@Override
+	public CompletableFuture<JSONObject> moveFolderByPath(String sourceUrl, String destinationUrl, MoveCopyOptions options) {
+		return moveCopy("MoveFolderByPath", sourceUrl, destinationUrl, null, options);
+	}
+
+	private CompletableFuture<JSONObject> moveCopy(String method, String sourceUrl, String destinationUrl, Boolean overwrite,
+			MoveCopyOptions options) {
+		MoveCopyOptions moveCopyOptions = options == null ? MoveCopyOptions.create() : options;
+		return postJson("/_api/SP.MoveCopyUtil." + method, uri -> moveCopyOptions.toMoveCopyPayload(
+				MoveCopyOptions.toAbsoluteUrl(uri, sourceUrl), MoveCopyOptions.toAbsoluteUrl(uri, destinationUrl), overwrite),
+				ODataMetadata::toVerboseEntity);
+	}
+
+	@Override
+	public CompletableFuture<JSONObject> createCopyJobs(List<String> sourceUrls, String destinationUrl, boolean move, MoveCopyOptions options) {
+		MoveCopyOptions copyOptions = options == null ? MoveCopyOptions.create() : options;
+		return postJson("/_api/site/CreateCopyJobs", uri -> {
+			List<String> absoluteUrls = new ArrayList<>(sourceUrls.size());
+			for (String sourceUrl : sourceUrls) {
+				absoluteUrls.add(MoveCopyOptions.toAbsoluteUrl(uri, sourceUrl));
+			}
+			return copyOptions.toCopyJobsPayload(absoluteUrls, MoveCopyOptions.toAbsoluteUrl(uri, destinationUrl), move);
+		}, ODataMetadata::toVerboseCollection);
+	}
+
+	@Override
+	public CompletableFuture<JSONObject> getCopyJobProgress(JSONObject copyJobInfo) {
+		return post("/_api/site/GetCopyJobProgress", MoveCopyOptions.toCopyJobProgressPayload(copyJobInfo));
+	}
+
+	@Override
+	public CompletableFuture<JSONObject> getFolderPermissions(String folder) {
+		return getJson("/_api/web/GetFolderByServerRelativeUrl('" + folder + "')/ListItemAllFields/roleAssignments",
+				ODataMetadata::toVerboseCollection);
+	}
+
+	@Override
+	public Publisher<JSONObject> getListItemsPublisher(String title, String filter) {
+		return pagePublisher(() -> getListItems(title, filter));
+	}
+
+	@Override
+	public Publisher<JSONObject> getFolderFilesPublisher(String folder) {
+		return pagePublisher(() -> getFolderFilesByRelativeUrl(folder));
+	}
+
+	@Override
+	public Publisher<JSONObject> getFolderFoldersPublisher(String folder) {
+		return pagePublisher(() -> getFolderFoldersByRelativeUrl(folder));
+	}
+
+	@Override
+	public Publisher<JSONObject> getListItemsPublisher(String title, ODataQuery query) {
+		return pagePublisher(() -> getListItems(title, query));
+	}
+
+	@Override
+	public Publisher<JSONObject> getFolderFilesPublisher(String folder, ODataQuery query) {
+		checkNotPaged(query);
+		return pagePublisher(() -> getFolderFilesByRelativeUrl(folder, query));
+	}
+
+	@Override
+	public Publisher<JSONObject> getFolderFoldersPublisher(String folder, ODataQuery query) {
+		checkNotPaged(query);
+		return pagePublisher(() -> getFolderFoldersByRelativeUrl(folder, query));
+	}
+
+	/**
+	 * Folder/Files and Folder/Folders come in a single response without __next, so a top would
+	 * silently cut the publisher short instead of setting a page size.
+	 */
+	private static void checkNotPaged(ODataQuery query) {
+		if (query != null && query.getTop() != null) {
+			throw new IllegalArgumentException("Folder files and folders aren't paged, top " + query.getTop()
+					+ " would only publish the first ones");
+		}
+	}
+
+	private Publisher<JSONObject> pagePublisher(Supplier<CompletableFuture<JSONObject>> firstPage) {
+		return new PagePublisher<>(link -> map(link == null ? firstPage.get() : getNextPage(link), PageIterator::fromODataPage));
+	}
+
+	private CompletableFuture<JSONObject> getJson(String apiPath, UnaryOperator<JSONObject> shape) {
+		return json(() -> request(new HttpGet(getSharepointSiteUrl(apiPath)), getGetHeaders(false), null), shape);
+	}
+
+	private CompletableFuture<JSONObject> getJson(String apiPath, ODataQuery query) {
+		return json(() -> request(new HttpGet(query == null ? getSharepointSiteUrl(apiPath) : query.appendTo(getSharepointSiteUrl(apiPath))),
+				getGetHeaders(true), null), ODataMetadata::toVerboseCollection);
+	}
+
+	private CompletableFuture<JSONObject> post(String apiPath, String payload) {
+		return json(() -> request(new HttpPost(getSharepointSiteUrl(apiPath)), getPostHeaders(payload),
+				payload.getBytes(StandardCharsets.UTF_8)), ODataMetadata::toVerboseEntity);
+	}
+
+	/**
+	 * Post with a payload built from the request url, like the absolute urls of MoveCopyUtil.
+	 */
+	private CompletableFuture<JSONObject> postJson(String apiPath, Function<URI, String> payload, UnaryOperator<JSONObject> shape) {
+		return json(() -> {
+			URI uri = getSharepointSiteUrl(apiPath);
+			String body = payload.apply(uri);
+			return request(new HttpPost(uri), getPostHeaders(body), body.getBytes(StandardCharsets.UTF_8));
+		}, shape);
+	}
+
+	private CompletableFuture<JSONObject> merge(String apiPath, JSONObject jsonMetadata) {
+		String payload = jsonMetadata.toString();
+		return json(() -> request(new HttpPost(getSharepointSiteUrl(apiPath)), getUpdateHeaders(payload),
+				payload.getBytes(StandardCharsets.UTF_8)), ODataMetadata::toVerboseEntity);
+	}
+
+	/**
+	 * Builds the request in the calling thread and hands it to the executor, errors building it
+	 * complete the future instead of being thrown.
+	 */
+	protected CompletableFuture<ResponseEntity<byte[]>> send(RequestBuilder builder) {
+		try {
+			HttpRequestBase request = builder.build();
+			LOG.debug("Sending async {} {}", request.getMethod(), request.getURI());
+			return executor.execute(request);
+		} catch (Exception e) {
+			CompletableFuture<ResponseEntity<byte[]>> failed = new CompletableFuture<>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+	}
+
+	/**
+	 * Like thenApply, but cancelling the returned future also cancels the request, a plain
+	 * CompletableFuture doesn't propagate the cancellation to the stage it depends on.
+	 */
+	protected <S, T> CompletableFuture<T> map(CompletableFuture<S> source, Function<? super S, ? extends T> mapper) {
+		CompletableFuture<T> result = source.thenApply(mapper);
+		result.whenComplete((value, e) -> {
+			if (result.isCancelled()) {
+				source.cancel(true);
+			}
+		});
+		return result;
+	}
+
+	protected HttpRequestBase request(HttpRequestBase request, MultiValueMap<String, String> headers, byte[] body) {
+		for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+			// The content length is set from the entity.
+			if ("Content-Length".equalsIgnoreCase(header.getKey())) {
+				continue;
+			}
+			for (String value : header.getValue()) {
+				request.addHeader(header.getKey(), value);
+			}
+		}
+		if (request instanceof HttpPost) {
+			((HttpPost) request).setEntity(new ByteArrayEntity(body != null ? body : new byte[0]));
+		}
+		return request;
+	}
+
+	/**
+	 * Sends the request and parses the response, returned in the verbose shape whatever the metadata level.
+	 *
+	 * @param shape - conversion of ODataMetadata matching what the request returns: entity, collection or property.
+	 */
+	protected CompletableFuture<JSONObject> json(RequestBuilder builder, UnaryOperator<JSONObject> shape) {
+		return map(send(builder), response -> toJson(response, shape));
+	}
+
+	protected JSONObject toJson(ResponseEntity<byte[]> response, UnaryOperator<JSONObject> shape) {
+		byte[] body = response.getBody();
+		if (body == null || body.length == 0) {
+			return new JSONObject();
+		}
+		return shape.apply(new JSONObject(new String(body, StandardCharsets.UTF_8)));
+	}
+
+	@Override
+	public void close() throws IOException {
+		executor.close();
+	}
+
+	/**
+	 * Builds a request, may throw while getting the auth headers.
+	 */
+	protected interface RequestBuilder {
+		HttpRequestBase build() throws Exception;
+	}
+}
@@ -0,0 +1,14 @@
+package com.panxoloto.sharepoint.rest;
+
+/**
+ * Thrown when the response of a $batch request isn't a multipart/mixed body the operation
+ * responses can be read from, like a missing boundary or a malformed status line.
+ */
+public class BatchParseException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	public BatchParseException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,60 @@
+package com.panxoloto.sharepoint.rest;
+
+import org.json.JSONObject;
+import org.springframework.http.HttpHeaders;
+
+/**
+ * Response of a single operation inside a $batch request.
+ */
+public class BatchResponse {
+
+	private final int statusCode;
+	private final String statusText;
+	private final HttpHeaders headers;
+	private final String body;
+
+	public BatchResponse(int statusCode, String statusText, HttpHeaders headers, String body) {
+		this.statusCode = statusCode;
+		this.statusText = statusText;
+		this.headers = headers;
+		this.body = body;
+	}
+
+	public int getStatusCode() {
+		return statusCode;
+	}
+
+	public String getStatusText() {
+		return statusText;
+	}
+
+	public HttpHeaders getHeaders() {
+		return headers;
+	}
+
+	public String getBody() {
+		return body;
+	}
+
+	/**
+	 * @return true if the operation returned a 2xx status code.
+	 */
+	public boolean isSuccess() {
+		return statusCode >= 200 && statusCode < 300;
+	}
+
+	/**
+	 * @return the body as json, an empty json object if the operation returned no content.
+	 */
+	public JSONObject getJson() {
+		if (body == null || body.trim().isEmpty()) {
+			return new JSONObject();
+		}
+		return new JSONObject(body);
+	}
+
+	@Override
+	public String toString() {
+		return "BatchResponse [statusCode=" + statusCode + ", statusText=" + statusText + "]";
+	}
+}
@@ -0,0 +1,328 @@
+package com.panxoloto.sharepoint.rest;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.Resource;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.ResourceAccessException;
+
+import com.panxoloto.sharepoint.rest.helper.ODataMetadata;
+
+/**
+ * Uploads big files and streams in chunks using the StartUpload, ContinueUpload and FinishUpload
+ * endpoints. Every chunk is read into a pooled buffer and written from it to the connection by
+ * the client transport (postBinary), so an upload holds one chunk in memory whatever the file size. Content
+ * fitting in a single chunk is sent with Files/add.
+ *
+ * The upload session keeps the last committed offset, when a chunk fails after the configured
+ * retries a ChunkedUploadException with the session is thrown and the upload can be resumed
+ * from that offset with the same resource. Only transient failures are retried, with a growing
+ * delay: I/O errors, 429 and 5xx responses. A chunk whose response was lost may have been
+ * committed. When sending it again is rejected, it's only taken as committed once the server
+ * confirms it's past its offset: the rejection is an offset mismatch, or for the last chunk the
+ * file has the full length. Any other rejection fails the upload.
+ */
+public class ChunkedFileUploader {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ChunkedFileUploader.class);
+
+	public static final int DEFAULT_CHUNK_SIZE = 10 * 1024 * 1024;
+	public static final int DEFAULT_MAX_RETRIES = 2;
+	public static final long DEFAULT_RETRY_DELAY_MILLIS = 1000;
+	private static final long MAX_RETRY_DELAY_MILLIS = 30000;
+	private static final int MAX_POOLED_BUFFERS = 4;
+
+	private final PLGSharepointClient client;
+	private final FileTransport transport;
+	private final int chunkSize;
+	private int maxRetries = DEFAULT_MAX_RETRIES;
+	private long retryDelayMillis = DEFAULT_RETRY_DELAY_MILLIS;
+	private final BlockingQueue<byte[]> buffers = new ArrayBlockingQueue<>(MAX_POOLED_BUFFERS);
+
+	/**
+	 * @param client - client used to read the file info.
+	 * @param transport - transport of the client used to send the chunks.
+	 * @param chunkSize - size in bytes of every chunk.
+	 */
+	ChunkedFileUploader(PLGSharepointClient client, FileTransport transport, int chunkSize) {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("Chunk size must be greater than zero");
+		}
+		this.client = client;
+		this.transport = transport;
+		this.chunkSize = chunkSize;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	/**
+	 * @param maxRetries - times a failed chunk is sent again before giving up.
+	 */
+	public void setMaxRetries(int maxRetries) {
+		if (maxRetries < 0) {
+			throw new IllegalArgumentException("Max retries can't be negative");
+		}
+		this.maxRetries = maxRetries;
+	}
+
+	public long getRetryDelayMillis() {
+		return retryDelayMillis;
+	}
+
+	/**
+	 * @param retryDelayMillis - delay before sending a failed chunk again, doubled on every retry.
+	 */
+	public void setRetryDelayMillis(long retryDelayMillis) {
+		if (retryDelayMillis < 0) {
+			throw new IllegalArgumentException("Retry delay can't be negative");
+		}
+		this.retryDelayMillis = retryDelayMillis;
+	}
+
+	/**
+	 * @param folder - server relative url of the destination folder.
+	 * @param resource - content to upload.
+	 * @param fileName - name of the file in the folder.
+	 * @return file info as returned by the server {"d": {...}}.
+	 * @throws ChunkedUploadException when the upload fails, with the session to resume it.
+	 * @throws Exception
+	 */
+	public JSONObject upload(String folder, Resource resource, String fileName) throws Exception {
+		ChunkedUploadSession session = new ChunkedUploadSession(folder, fileName, UUID.randomUUID().toString());
+		return resume(session, resource);
+	}
+
+	/**
+	 * Continues an upload from the last committed offset of the session. The resource must give the
+	 * content from its start again (file, byte array, or a new InputStreamResource over the same
+	 * content), the committed part is skipped. A stream already read by the failed upload can't be used.
+	 *
+	 * @param session - session of the failed upload.
+	 * @param resource - content to upload.
+	 * @return file info as returned by the server {"d": {...}}.
+	 * @throws ChunkedUploadException when the upload fails, with the session to resume it.
+	 * @throws Exception
+	 */
+	public JSONObject resume(ChunkedUploadSession session, Resource resource) throws Exception {
+		LOG.debug("Uploading {} in chunks of {} bytes from offset {}", session.getFileName(), chunkSize, session.getCommittedOffset());
+		byte[] buffer = acquireBuffer();
+		try (InputStream in = new PushbackInputStream(resource.getInputStream(), 1)) {
+			skipFully(in, session.getCommittedOffset());
+			while (true) {
+				int read = readChunk(in, buffer);
+				boolean last = isEndOfStream((PushbackInputStream) in);
+				JSONObject result = sendChunk(session, buffer, read, last);
+				if (last) {
+					return result;
+				}
+			}
+		} finally {
+			releaseBuffer(buffer);
+		}
+	}
+
+	private void createEmptyFile(ChunkedUploadSession session) throws Exception {
+		// Files/add overwrites the file, so sending it again after a lost response is harmless.
+		JSONObject fileInfo = ODataMetadata.toVerboseEntity(postWithRetries(addFilePath(session), new byte[0], 0, session));
+		session.setServerRelativeUrl(fileInfo.getJSONObject("d").getString("ServerRelativeUrl"));
+		LOG.debug("Created empty file {} for chunked upload", session.getServerRelativeUrl());
+	}
+
+	private JSONObject sendChunk(ChunkedUploadSession session, byte[] buffer, int length, boolean last) throws Exception {
+		if (!session.isStarted() && last) {
+			// Everything fits in a single chunk, no need of an upload session.
+			JSONObject fileInfo = ODataMetadata.toVerboseEntity(postWithRetries(addFilePath(session), buffer, length, session));
+			session.setCommittedOffset(session.getCommittedOffset() + length);
+			return fileInfo;
+		}
+		if (session.getServerRelativeUrl() == null) {
+			createEmptyFile(session);
+		}
+		String fileApi = "/_api/web/GetFileByServerRelativeUrl('" + session.getServerRelativeUrl() + "')/";
+		String uploadId = "guid'" + session.getUploadId() + "'";
+		long offset = session.getCommittedOffset();
+		if (!session.isStarted()) {
+			JSONObject response = postWithRetries(fileApi + "StartUpload(uploadId=" + uploadId + ")", buffer, length, session,
+					ChunkedFileUploader::isOffsetMismatch);
+			session.setCommittedOffset(readOffset(response, "StartUpload", offset + length));
+			session.setStarted(true);
+			return response;
+		}
+		if (last) {
+			JSONObject response = postWithRetries(fileApi + "FinishUpload(uploadId=" + uploadId + ",fileOffset=" + offset + ")",
+					buffer, length, session, rejection -> fileLength(session) == offset + length);
+			JSONObject fileInfo = response != null ? ODataMetadata.toVerboseEntity(response)
+					: client.getFileInfo(session.getServerRelativeUrl());
+			session.setCommittedOffset(offset + length);
+			LOG.debug("Finished chunked upload of {} ({} bytes)", session.getServerRelativeUrl(), session.getCommittedOffset());
+			return fileInfo;
+		}
+		JSONObject response = postWithRetries(fileApi + "ContinueUpload(uploadId=" + uploadId + ",fileOffset=" + offset + ")",
+				buffer, length, session, ChunkedFileUploader::isOffsetMismatch);
+		session.setCommittedOffset(readOffset(response, "ContinueUpload", offset + length));
+		return response;
+	}
+
+	/**
+	 * Tells whether a chunk rejected after a lost response was committed by the lost attempt.
+	 */
+	private interface CommitCheck {
+		boolean committed(HttpClientErrorException rejection) throws Exception;
+	}
+
+	private JSONObject postWithRetries(String apiPath, byte[] buffer, int length, ChunkedUploadSession session) throws Exception {
+		return postWithRetries(apiPath, buffer, length, session, null);
+	}
+
+	/**
+	 * @param commitCheck - confirms the chunk was committed when sending it again is rejected, null for requests that aren't chunks.
+	 * @return response of the request, null when the chunk was committed by an attempt whose response was lost.
+	 */
+	private JSONObject postWithRetries(String apiPath, byte[] buffer, int length, ChunkedUploadSession session,
+			CommitCheck commitCheck) throws Exception {
+		boolean responseLost = false;
+		long delayMillis = retryDelayMillis;
+		for (int attempt = 0; ; attempt++) {
+			try {
+				return transport.postBinary(apiPath, buffer, length);
+			} catch (Exception e) {
+				if (commitCheck != null && responseLost && isClientError(e) && commitCheck.committed((HttpClientErrorException) e)) {
+					// The lost attempt was committed, the server rejects the offset of the chunk now.
+					LOG.debug("Chunk at offset {} of {} rejected after a lost response, confirmed as committed",
+							session.getCommittedOffset(), session.getFileName());
+					return null;
+				}
+				if (attempt >= maxRetries || !isTransient(e)) {
+					throw new ChunkedUploadException("Chunked upload failed at offset " + session.getCommittedOffset(), session, e);
+				}
+				responseLost |= e instanceof ResourceAccessException;
+				LOG.warn("Chunk at offset {} of {} failed, retrying in {} ms ({}/{})", new Object[] {session.getCommittedOffset(),
+						session.getFileName(), delayMillis, attempt + 1, maxRetries, e});
+				try {
+					Thread.sleep(delayMillis);
+				} catch (InterruptedException e1) {
+					Thread.currentThread().interrupt();
+					throw new ChunkedUploadException("Chunked upload interrupted at offset " + session.getCommittedOffset(), session, e1);
+				}
+				delayMillis = Math.min(delayMillis * 2, MAX_RETRY_DELAY_MILLIS);
+			}
+		}
+	}
+
+	/**
+	 * @return true when the chunk was rejected because the upload is at another offset.
+	 */
+	private static boolean isOffsetMismatch(HttpClientErrorException rejection) {
+		return rejection.getRawStatusCode() == 400
+				&& rejection.getResponseBodyAsString().toLowerCase().contains("offset");
+	}
+
+	/**
+	 * @return length of the uploaded file, -1 when it can't be read.
+	 */
+	private long fileLength(ChunkedUploadSession session) {
+		try {
+			String length = client.getFileInfo(session.getServerRelativeUrl()).getJSONObject("d").optString("Length", "");
+			return length.isEmpty() ? -1 : Long.parseLong(length);
+		} catch (Exception e) {
+			LOG.warn("Length of {} not read to confirm its last chunk", session.getServerRelativeUrl(), e);
+			return -1;
+		}
+	}
+
+	/**
+	 * @return true for the failures worth sending the chunk again: I/O errors, 429 and 5xx responses.
+	 */
+	private static boolean isTransient(Exception e) {
+		if (e instanceof ResourceAccessException || e instanceof HttpServerErrorException) {
+			return true;
+		}
+		return e instanceof HttpClientErrorException && ((HttpClientErrorException) e).getRawStatusCode() == 429;
+	}
+
+	private static boolean isClientError(Exception e) {
+		return e instanceof HttpClientErrorException && ((HttpClientErrorException) e).getRawStatusCode() != 429;
+	}
+
+	private String addFilePath(ChunkedUploadSession session) {
+		return "/_api/web/GetFolderByServerRelativeUrl('" + session.getFolder() + "')/Files/add(url='"
+				+ session.getFileName() + "',overwrite=true)";
+	}
+
+	/**
+	 * @param response - response of the chunk, null when it was committed without one.
+	 * @param key - name of the offset in the response.
+	 * @param defaultOffset - offset after the chunk, when the response doesn't have it.
+	 */
+	private long readOffset(JSONObject response, String key, long defaultOffset) {
+		if (response == null) {
+			return defaultOffset;
+		}
+		JSONObject d = ODataMetadata.toVerboseProperty(response, key).optJSONObject("d");
+		Object value = d == null ? null : d.opt(key);
+		if (value == null) {
+			return defaultOffset;
+		}
+		return Long.parseLong(value.toString());
+	}
+
+	private int readChunk(InputStream in, byte[] buffer) throws IOException {
+		int total = 0;
+		while (total < buffer.length) {
+			int read = in.read(buffer, total, buffer.length - total);
+			if (read < 0) {
+				break;
+			}
+			total += read;
+		}
+		return total;
+	}
+
+	private boolean isEndOfStream(PushbackInputStream in) throws IOException {
+		int next = in.read();
+		if (next < 0) {
+			return true;
+		}
+		in.unread(next);
+		return false;
+	}
+
+	private void skipFully(InputStream in, long bytes) throws IOException {
+		long remaining = bytes;
+		while (remaining > 0) {
+			long skipped = in.skip(remaining);
+			if (skipped <= 0) {
+				if (in.read() < 0) {
+					throw new EOFException("Resource is shorter than the committed offset " + bytes);
+				}
+				skipped = 1;
+			}
+			remaining -= skipped;
+		}
+	}
+
+	private byte[] acquireBuffer() {
+		byte[] buffer = buffers.poll();
+		return buffer != null ? buffer : new byte[chunkSize];
+	}
+
+	private void releaseBuffer(byte[] buffer) {
+		buffers.offer(buffer);
+	}
+}
@@ -0,0 +1,23 @@
+package com.panxoloto.sharepoint.rest;
+
+/**
+ * Thrown when a chunked upload fails, the session keeps the last committed offset to resume it.
+ */
+public class ChunkedUploadException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	private final ChunkedUploadSession session;
+
+	public ChunkedUploadException(String message, ChunkedUploadSession session, Throwable cause) {
+		super(message, cause);
+		this.session = session;
+	}
+
+	/**
+	 * @return the session to pass to resumeUpload.
+	 */
+	public ChunkedUploadSession getSession() {
+		return session;
+	}
+}
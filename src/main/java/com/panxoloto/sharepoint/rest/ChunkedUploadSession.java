@@ -0,0 +1,79 @@
+package com.panxoloto.sharepoint.rest;
+
+import java.io.Serializable;
+
+/**
+ * State of a chunked upload (StartUpload/ContinueUpload/FinishUpload). It's updated after every
+ * committed chunk, so when an upload fails it can be resumed from the last committed offset.
+ */
+public class ChunkedUploadSession implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String folder;
+	private final String fileName;
+	private final String uploadId;
+	private volatile String serverRelativeUrl;
+	private volatile long committedOffset;
+	private volatile boolean started;
+
+	public ChunkedUploadSession(String folder, String fileName, String uploadId) {
+		this.folder = folder;
+		this.fileName = fileName;
+		this.uploadId = uploadId;
+	}
+
+	public String getFolder() {
+		return folder;
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	/**
+	 * @return the guid identifying the upload in the server.
+	 */
+	public String getUploadId() {
+		return uploadId;
+	}
+
+	/**
+	 * @return server relative url of the file being uploaded, null until the file is created.
+	 */
+	public String getServerRelativeUrl() {
+		return serverRelativeUrl;
+	}
+
+	void setServerRelativeUrl(String serverRelativeUrl) {
+		this.serverRelativeUrl = serverRelativeUrl;
+	}
+
+	/**
+	 * @return number of bytes already stored in the server.
+	 */
+	public long getCommittedOffset() {
+		return committedOffset;
+	}
+
+	void setCommittedOffset(long committedOffset) {
+		this.committedOffset = committedOffset;
+	}
+
+	/**
+	 * @return true if StartUpload was already accepted by the server.
+	 */
+	public boolean isStarted() {
+		return started;
+	}
+
+	void setStarted(boolean started) {
+		this.started = started;
+	}
+
+	@Override
+	public String toString() {
+		return "ChunkedUploadSession [folder=" + folder + ", fileName=" + fileName + ", uploadId=" + uploadId
+				+ ", committedOffset=" + committedOffset + "]";
+	}
+}
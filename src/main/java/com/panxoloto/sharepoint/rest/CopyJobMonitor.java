@@ -0,0 +1,492 @@
+package com.panxoloto.sharepoint.rest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestClientResponseException;
+
+import com.panxoloto.sharepoint.rest.helper.MoveCopyOptions;
+import com.panxoloto.sharepoint.rest.helper.SharepointExecutors;
+
+/**
+ * Submits server side copy and move jobs (CreateCopyJobs) and waits for them without blocking a
+ * thread: the progress of every job is polled from a scheduler, with a delay growing from the
+ * poll interval to the max poll interval while the job reports nothing new.
+ *
+ * Sources are sent in batches of jobBatchSize urls per CreateCopyJobs request, so a migration of
+ * thousands of folders costs a few control requests while the content is copied by sharepoint.
+ *
+ * The job keeps running on the server when a progress request fails, so transient failures (I/O
+ * errors, throttling and 5xx) are polled again with backoff, up to maxPollFailures in a row,
+ * before the future of the job fails.
+ *
+ * The client closes the monitor when it's closed: the scheduler is stopped and the jobs still
+ * awaited fail, they keep running on the server.
+ */
+public class CopyJobMonitor implements Closeable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(CopyJobMonitor.class);
+
+	public static final long DEFAULT_POLL_INTERVAL_MILLIS = 1000;
+	public static final long DEFAULT_MAX_POLL_INTERVAL_MILLIS = 30000;
+	public static final int DEFAULT_JOB_BATCH_SIZE = 100;
+	public static final int DEFAULT_MAX_POLL_FAILURES = 5;
+
+	// SP.CopyMigrationJobState, none once the job is finished.
+	private static final int JOB_STATE_NONE = 0;
+
+	private final PLGSharepointClient client;
+	private final Supplier<? extends ExecutorService> executor;
+	private volatile ScheduledExecutorService scheduler;
+	private final Set<CompletableFuture<CopyJobResult>> pending = ConcurrentHashMap.newKeySet();
+	private volatile boolean closed = false;
+	private volatile long pollIntervalMillis = DEFAULT_POLL_INTERVAL_MILLIS;
+	private volatile long maxPollIntervalMillis = DEFAULT_MAX_POLL_INTERVAL_MILLIS;
+	private volatile int jobBatchSize = DEFAULT_JOB_BATCH_SIZE;
+	private volatile int maxPollFailures = DEFAULT_MAX_POLL_FAILURES;
+
+	/**
+	 * @param client - client used to create the jobs and read their progress.
+	 * @param executor - supplies the executor the progress requests run on.
+	 */
+	public CopyJobMonitor(PLGSharepointClient client, Supplier<? extends ExecutorService> executor) {
+		this.client = client;
+		this.executor = executor;
+	}
+
+	public long getPollIntervalMillis() {
+		return pollIntervalMillis;
+	}
+
+	/**
+	 * @param pollIntervalMillis - delay before the first progress request and after progress is reported.
+	 */
+	public void setPollIntervalMillis(long pollIntervalMillis) {
+		if (pollIntervalMillis <= 0) {
+			throw new IllegalArgumentException("Poll interval must be greater than zero");
+		}
+		this.pollIntervalMillis = pollIntervalMillis;
+	}
+
+	public long getMaxPollIntervalMillis() {
+		return maxPollIntervalMillis;
+	}
+
+	/**
+	 * @param maxPollIntervalMillis - max delay between progress requests of a job reporting nothing new.
+	 */
+	public void setMaxPollIntervalMillis(long maxPollIntervalMillis) {
+		if (maxPollIntervalMillis <= 0) {
+			throw new IllegalArgumentException("Max poll interval must be greater than zero");
+		}
+		this.maxPollIntervalMillis = maxPollIntervalMillis;
+	}
+
+	public int getJobBatchSize() {
+		return jobBatchSize;
+	}
+
+	/**
+	 * @param jobBatchSize - max number of source urls sent per CreateCopyJobs request.
+	 */
+	public void setJobBatchSize(int jobBatchSize) {
+		if (jobBatchSize <= 0) {
+			throw new IllegalArgumentException("Job batch size must be greater than zero");
+		}
+		this.jobBatchSize = jobBatchSize;
+	}
+
+	public int getMaxPollFailures() {
+		return maxPollFailures;
+	}
+
+	/**
+	 * @param maxPollFailures - transient failures in a row of the progress requests of a job polled
+	 * again, 0 fails the job on the first one.
+	 */
+	public void setMaxPollFailures(int maxPollFailures) {
+		if (maxPollFailures < 0) {
+			throw new IllegalArgumentException("Max poll failures can't be negative");
+		}
+		this.maxPollFailures = maxPollFailures;
+	}
+
+	/**
+	 * Copies the files and folders to the destination and waits for the jobs.
+	 *
+	 * @param sourceUrls - absolute or server relative urls of the files and folders.
+	 * @param destinationUrl - absolute or server relative url of the target folder, in this or another site.
+	 * @param options - options of the jobs, null for the defaults.
+	 * @return completed with the result of every job once all of them have finished.
+	 */
+	public CompletableFuture<List<CopyJobResult>> copy(List<String> sourceUrls, String destinationUrl, MoveCopyOptions options) {
+		return run(sourceUrls, destinationUrl, false, options);
+	}
+
+	/**
+	 * Moves the files and folders to the destination and waits for the jobs.
+	 *
+	 * @param sourceUrls - absolute or server relative urls of the files and folders.
+	 * @param destinationUrl - absolute or server relative url of the target folder, in this or another site.
+	 * @param options - options of the jobs, null for the defaults.
+	 * @return completed with the result of every job once all of them have finished.
+	 */
+	public CompletableFuture<List<CopyJobResult>> move(List<String> sourceUrls, String destinationUrl, MoveCopyOptions options) {
+		return run(sourceUrls, destinationUrl, true, options);
+	}
+
+	private CompletableFuture<List<CopyJobResult>> run(List<String> sourceUrls, String destinationUrl, boolean move, MoveCopyOptions options) {
+		CompletableFuture<List<CopyJob>> jobs = new CompletableFuture<>();
+		try {
+			executor.get().submit(() -> {
+				try {
+					jobs.complete(submit(sourceUrls, destinationUrl, move, options));
+				} catch (Exception e) {
+					jobs.completeExceptionally(e);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			jobs.completeExceptionally(e);
+		}
+		return jobs.thenCompose(this::awaitAll);
+	}
+
+	/**
+	 * Creates the jobs, in batches of jobBatchSize sources, without waiting for them.
+	 *
+	 * @param sourceUrls - absolute or server relative urls of the files and folders.
+	 * @param destinationUrl - absolute or server relative url of the target folder.
+	 * @param move - true to delete the sources once copied.
+	 * @param options - options of the jobs, null for the defaults.
+	 * @return the queued jobs.
+	 * @throws Exception
+	 */
+	public List<CopyJob> submit(List<String> sourceUrls, String destinationUrl, boolean move, MoveCopyOptions options) throws Exception {
+		List<CopyJob> jobs = new ArrayList<>();
+		int batchSize = jobBatchSize;
+		for (int from = 0; from < sourceUrls.size(); from += batchSize) {
+			List<String> batch = sourceUrls.subList(from, Math.min(sourceUrls.size(), from + batchSize));
+			JSONObject response = client.createCopyJobs(batch, destinationUrl, move, options);
+			JSONArray results = results(response, "CreateCopyJobs");
+			for (int i = 0; i < results.length(); i++) {
+				JSONObject info = results.getJSONObject(i);
+				// One job per source, in the same order.
+				List<String> sources = results.length() == batch.size() ? Collections.singletonList(batch.get(i)) : batch;
+				jobs.add(new CopyJob(info, sources, destinationUrl, move));
+			}
+		}
+		LOG.debug("Created {} copy jobs for {} sources", jobs.size(), sourceUrls.size());
+		return jobs;
+	}
+
+	/**
+	 * @param jobs - jobs returned by submit.
+	 * @return completed with the result of every job, in the same order, once all of them have finished.
+	 */
+	public CompletableFuture<List<CopyJobResult>> awaitAll(List<CopyJob> jobs) {
+		List<CompletableFuture<CopyJobResult>> futures = new ArrayList<>(jobs.size());
+		for (CopyJob job : jobs) {
+			futures.add(await(job));
+		}
+		CompletableFuture<List<CopyJobResult>> all = CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+				.thenApply(done -> {
+					List<CopyJobResult> results = new ArrayList<>(futures.size());
+					futures.forEach(future -> results.add(future.join()));
+					return results;
+				});
+		all.whenComplete((results, e) -> {
+			if (all.isCancelled()) {
+				futures.forEach(future -> future.cancel(true));
+			}
+		});
+		return all;
+	}
+
+	/**
+	 * @param job - job returned by submit.
+	 * @return completed with the result once the job has finished, cancelling it stops the polling
+	 * but not the job.
+	 */
+	public CompletableFuture<CopyJobResult> await(CopyJob job) {
+		CompletableFuture<CopyJobResult> result = new CompletableFuture<>();
+		pending.add(result);
+		result.whenComplete((done, e) -> pending.remove(result));
+		schedule(new Poll(job, result), pollIntervalMillis);
+		return result;
+	}
+
+	/**
+	 * Stops the scheduler and fails the jobs still awaited, the jobs themselves aren't cancelled.
+	 */
+	@Override
+	public void close() {
+		ScheduledExecutorService current;
+		synchronized (this) {
+			closed = true;
+			current = scheduler;
+		}
+		if (current != null) {
+			current.shutdownNow();
+		}
+		IllegalStateException e = new IllegalStateException("Copy job monitor closed");
+		for (CompletableFuture<CopyJobResult> result : new ArrayList<>(pending)) {
+			result.completeExceptionally(e);
+		}
+	}
+
+	private void schedule(Poll poll, long delayMillis) {
+		if (closed) {
+			poll.result.completeExceptionally(new IllegalStateException("Copy job monitor closed"));
+			return;
+		}
+		try {
+			getScheduler().schedule(() -> {
+				try {
+					executor.get().submit(poll);
+				} catch (RejectedExecutionException e) {
+					poll.result.completeExceptionally(e);
+				}
+			}, delayMillis, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			poll.result.completeExceptionally(e);
+		}
+	}
+
+	private ScheduledExecutorService getScheduler() {
+		ScheduledExecutorService current = scheduler;
+		if (current == null) {
+			synchronized (this) {
+				current = scheduler;
+				if (current == null) {
+					if (closed) {
+						throw new RejectedExecutionException("Copy job monitor closed");
+					}
+					// A daemon thread that only waits the delays, the requests run in the executor.
+					current = SharepointExecutors.newDaemonScheduler("plg-sharepoint-copy-jobs");
+					scheduler = current;
+				}
+			}
+		}
+		return current;
+	}
+
+	/**
+	 * The results of a method, whatever the metadata level: {"d": {"Method": {"results": [...]}}}
+	 */
+	private static JSONArray results(JSONObject response, String method) {
+		Object value = response.has("d") ? response.get("d") : response;
+		if (value instanceof JSONObject && ((JSONObject) value).has(method)) {
+			value = ((JSONObject) value).get(method);
+		}
+		if (value instanceof JSONObject && ((JSONObject) value).has("results")) {
+			value = ((JSONObject) value).get("results");
+		} else if (value instanceof JSONObject && ((JSONObject) value).has("value")) {
+			value = ((JSONObject) value).get("value");
+		}
+		return value instanceof JSONArray ? (JSONArray) value : new JSONArray();
+	}
+
+	/**
+	 * @return true for failures a later request may not get: I/O errors, throttling and 5xx.
+	 */
+	private static boolean isTransient(Exception e) {
+		if (e instanceof ResourceAccessException || e instanceof IOException) {
+			return true;
+		}
+		if (e instanceof RestClientResponseException) {
+			int status = ((RestClientResponseException) e).getRawStatusCode();
+			return status == 429 || status >= 500;
+		}
+		return false;
+	}
+
+	private class Poll implements Runnable {
+
+		private final CopyJob job;
+		private final CompletableFuture<CopyJobResult> result;
+		private final List<JSONObject> logs = new ArrayList<>();
+		private long delayMillis = pollIntervalMillis;
+		private int failures = 0;
+
+		Poll(CopyJob job, CompletableFuture<CopyJobResult> result) {
+			this.job = job;
+			this.result = result;
+		}
+
+		@Override
+		public void run() {
+			if (result.isDone()) {
+				return;
+			}
+			try {
+				JSONObject response = client.getCopyJobProgress(job.getInfo());
+				failures = 0;
+				JSONObject d = response.optJSONObject("d");
+				JSONObject progress = d == null ? response : d.optJSONObject("GetCopyJobProgress") == null ? d : d.getJSONObject("GetCopyJobProgress");
+				Object rawLogs = progress.opt("Logs");
+				JSONArray newLogs = rawLogs instanceof JSONArray ? (JSONArray) rawLogs
+						: rawLogs instanceof JSONObject ? ((JSONObject) rawLogs).optJSONArray("results") : null;
+				int read = newLogs == null ? 0 : newLogs.length();
+				for (int i = 0; i < read; i++) {
+					Object log = newLogs.get(i);
+					logs.add(log instanceof JSONObject ? (JSONObject) log : new JSONObject(log.toString()));
+				}
+				if (progress.optInt("JobState", JOB_STATE_NONE) == JOB_STATE_NONE) {
+					CopyJobResult done = new CopyJobResult(job, logs);
+					LOG.debug("Copy job {} finished: {}", job.getJobId(), done);
+					result.complete(done);
+					return;
+				}
+				delayMillis = read > 0 ? pollIntervalMillis : Math.min(delayMillis * 2, maxPollIntervalMillis);
+				schedule(this, delayMillis);
+			} catch (Exception e) {
+				if (isTransient(e) && failures < maxPollFailures) {
+					failures++;
+					delayMillis = Math.min(delayMillis * 2, maxPollIntervalMillis);
+					LOG.warn("Error reading the progress of copy job {}, polling again in {} ms ({}/{}): {}",
+							new Object[] {job.getJobId(), delayMillis, failures, maxPollFailures, e.toString()});
+					schedule(this, delayMillis);
+					return;
+				}
+				LOG.error("Error reading the progress of copy job {}", job.getJobId(), e);
+				result.completeExceptionally(e);
+			}
+		}
+	}
+
+	/**
+	 * A queued copy or move job.
+	 */
+	public static class CopyJob {
+
+		private final JSONObject info;
+		private final List<String> sourceUrls;
+		private final String destinationUrl;
+		private final boolean move;
+
+		CopyJob(JSONObject info, List<String> sourceUrls, String destinationUrl, boolean move) {
+			this.info = info;
+			this.sourceUrls = sourceUrls;
+			this.destinationUrl = destinationUrl;
+			this.move = move;
+		}
+
+		/**
+		 * @return the job as returned by CreateCopyJobs, to pass to getCopyJobProgress.
+		 */
+		public JSONObject getInfo() {
+			return info;
+		}
+
+		public String getJobId() {
+			return info.optString("JobId");
+		}
+
+		/**
+		 * @return sources of the job.
+		 */
+		public List<String> getSourceUrls() {
+			return sourceUrls;
+		}
+
+		public String getDestinationUrl() {
+			return destinationUrl;
+		}
+
+		public boolean isMove() {
+			return move;
+		}
+
+		@Override
+		public String toString() {
+			return (move ? "move " : "copy ") + sourceUrls + " to " + destinationUrl + " (" + getJobId() + ")";
+		}
+	}
+
+	/**
+	 * Outcome of a finished job, from its logs.
+	 */
+	public static class CopyJobResult {
+
+		private final CopyJob job;
+		private final List<JSONObject> logs;
+		private final List<String> errors = new ArrayList<>();
+		private long objectsProcessed = -1;
+		private long bytesProcessed = -1;
+
+		CopyJobResult(CopyJob job, List<JSONObject> logs) {
+			this.job = job;
+			this.logs = Collections.unmodifiableList(new ArrayList<>(logs));
+			for (JSONObject log : logs) {
+				String event = log.optString("Event");
+				if ("JobError".equals(event) || "JobFatalError".equals(event)) {
+					errors.add(log.optString("Message", event));
+				} else if ("JobEnd".equals(event)) {
+					objectsProcessed = log.optLong("ObjectsProcessed", -1);
+					bytesProcessed = log.optLong("BytesProcessed", -1);
+				}
+			}
+		}
+
+		public CopyJob getJob() {
+			return job;
+		}
+
+		/**
+		 * @return true if the job reported no errors.
+		 */
+		public boolean isSucceeded() {
+			return errors.isEmpty();
+		}
+
+		/**
+		 * @return messages of the JobError and JobFatalError events.
+		 */
+		public List<String> getErrors() {
+			return Collections.unmodifiableList(errors);
+		}
+
+		/**
+		 * @return every log event of the job (JobStart, JobProgress, JobEnd...).
+		 */
+		public List<JSONObject> getLogs() {
+			return logs;
+		}
+
+		/**
+		 * @return objects copied as reported by JobEnd, -1 if not reported.
+		 */
+		public long getObjectsProcessed() {
+			return objectsProcessed;
+		}
+
+		/**
+		 * @return bytes copied as reported by JobEnd, -1 if not reported.
+		 */
+		public long getBytesProcessed() {
+			return bytesProcessed;
+		}
+
+		@Override
+		public String toString() {
+			return job + (isSucceeded() ? " succeeded" : " failed " + errors) + ", " + objectsProcessed + " objects, "
+					+ bytesProcessed + " bytes";
+		}
+	}
+}
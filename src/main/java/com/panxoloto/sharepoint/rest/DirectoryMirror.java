@@ -0,0 +1,691 @@
+package com.panxoloto.sharepoint.rest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.FileSystemResource;
+
+import com.panxoloto.sharepoint.rest.helper.PropertiesFiles;
+
+/**
+ * Mirrors a local directory tree into a folder of a document library, sending only the changes.
+ *
+ * The local tree is walked while the remote one is listed (listFolderTree), and both are compared
+ * by relative path (case insensitive, like sharepoint): missing folders are created, new files and
+ * files with a different size or modified locally after the remote copy are uploaded. With
+ * deleteRemote, remote files and folders missing locally are deleted.
+ *
+ * With a hash manifest the sha-256 of every uploaded file is kept in a local properties file, so a
+ * file touched but not changed since its last upload isn't uploaded again, and a new file with the
+ * same name, size and hash as a single file to delete is moved instead of uploaded again.
+ *
+ * plan only compares the trees (dry run), execute runs a plan with a bounded number of workers and
+ * keeps going when an action fails, every failure is reported in the stats.
+ */
+public class DirectoryMirror {
+
+	private static final Logger LOG = LoggerFactory.getLogger(DirectoryMirror.class);
+
+	public static final int DEFAULT_CONCURRENCY = 4;
+	/**
+	 * Remote dates have second precision and may come from a server with a slightly different clock.
+	 */
+	public static final long MODIFIED_TOLERANCE_MILLIS = 2000;
+
+	private final PLGSharepointClient client;
+	private final Supplier<? extends ExecutorService> executor;
+	private volatile int concurrency = DEFAULT_CONCURRENCY;
+	private volatile boolean deleteRemote = false;
+	private volatile boolean detectMoves = true;
+	private volatile Path hashManifest;
+
+	/**
+	 * @param client - client used to list and change the remote tree.
+	 * @param executor - supplies the executor the workers run on.
+	 */
+	public DirectoryMirror(PLGSharepointClient client, Supplier<? extends ExecutorService> executor) {
+		this.client = client;
+		this.executor = executor;
+	}
+
+	public int getConcurrency() {
+		return concurrency;
+	}
+
+	/**
+	 * @param concurrency - max number of actions run at the same time. Keep it under the max
+	 * connections per route of the pool.
+	 */
+	public void setConcurrency(int concurrency) {
+		if (concurrency <= 0) {
+			throw new IllegalArgumentException("Concurrency must be greater than zero");
+		}
+		this.concurrency = concurrency;
+	}
+
+	public boolean isDeleteRemote() {
+		return deleteRemote;
+	}
+
+	/**
+	 * @param deleteRemote - true to delete the remote files and folders missing locally, false by default.
+	 */
+	public void setDeleteRemote(boolean deleteRemote) {
+		this.deleteRemote = deleteRemote;
+	}
+
+	public boolean isDetectMoves() {
+		return detectMoves;
+	}
+
+	/**
+	 * @param detectMoves - true to move remote files instead of uploading and deleting them, only
+	 * applies with deleteRemote and a hash manifest.
+	 */
+	public void setDetectMoves(boolean detectMoves) {
+		this.detectMoves = detectMoves;
+	}
+
+	public Path getHashManifest() {
+		return hashManifest;
+	}
+
+	/**
+	 * @param hashManifest - properties file keeping the hash of the uploaded files, null to compare
+	 * by size and date only.
+	 */
+	public void setHashManifest(Path hashManifest) {
+		this.hashManifest = hashManifest;
+	}
+
+	/**
+	 * Compares the trees and runs the changes.
+	 *
+	 * @param localRoot - local directory.
+	 * @param listTitle - title of the library, null to crawl the remote folders.
+	 * @param remoteRoot - existing remote folder (/sites/mysite/Shared Documents/folder).
+	 * @return what was done.
+	 * @throws Exception thrown reading the trees, failed actions are reported in the stats.
+	 */
+	public MirrorStats mirror(Path localRoot, String listTitle, String remoteRoot) throws Exception {
+		return execute(plan(localRoot, listTitle, remoteRoot));
+	}
+
+	/**
+	 * Compares the trees without changing anything.
+	 *
+	 * @param localRoot - local directory.
+	 * @param listTitle - title of the library, null to crawl the remote folders.
+	 * @param remoteRoot - existing remote folder (/sites/mysite/Shared Documents/folder).
+	 * @return actions needed to mirror the local tree, in the order they're run.
+	 * @throws Exception
+	 */
+	public MirrorPlan plan(Path localRoot, String listTitle, String remoteRoot) throws Exception {
+		String root = remoteRoot.endsWith("/") ? remoteRoot.substring(0, remoteRoot.length() - 1) : remoteRoot;
+		Future<Map<String, FolderTreeLister.Entry>> remoteTree = executor.get().submit(() -> listRemote(listTitle, root));
+		Map<String, LocalEntry> local;
+		Map<String, FolderTreeLister.Entry> remote;
+		try {
+			local = listLocal(localRoot);
+			remote = remoteTree.get();
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+		} finally {
+			remoteTree.cancel(true);
+		}
+		Properties hashes = loadHashes();
+
+		List<Action> folders = new ArrayList<>();
+		List<Action> uploads = new ArrayList<>();
+		long unchanged = 0;
+		for (Map.Entry<String, LocalEntry> entry : local.entrySet()) {
+			LocalEntry file = entry.getValue();
+			FolderTreeLister.Entry remoteFile = remote.get(entry.getKey());
+			String remoteUrl = root + "/" + file.relativePath;
+			if (file.directory) {
+				if (remoteFile == null) {
+					folders.add(new Action(Action.Type.CREATE_FOLDER, file.relativePath, file.path, remoteUrl, null, 0));
+				}
+			} else if (remoteFile == null || remoteFile.isFolder() || isChanged(file, remoteFile, hashes)) {
+				uploads.add(new Action(Action.Type.UPLOAD, file.relativePath, file.path, remoteUrl, null, file.size));
+			} else {
+				unchanged++;
+			}
+		}
+		// Parents before children.
+		folders.sort(Comparator.comparingInt(action -> action.relativePath.split("/").length));
+
+		List<Action> moves = new ArrayList<>();
+		List<Action> deletes = new ArrayList<>();
+		if (deleteRemote) {
+			List<FolderTreeLister.Entry> missing = new ArrayList<>();
+			for (Map.Entry<String, FolderTreeLister.Entry> entry : remote.entrySet()) {
+				if (!local.containsKey(entry.getKey())) {
+					missing.add(entry.getValue());
+				}
+			}
+			if (detectMoves) {
+				detectMoves(root, uploads, missing, remote, hashes, moves);
+			}
+			// Removing a folder removes its contents, so only the topmost missing folders are removed.
+			List<String> removedFolders = missing.stream().filter(FolderTreeLister.Entry::isFolder)
+					.map(entry -> entry.getServerRelativeUrl().toLowerCase(Locale.ROOT) + "/").collect(Collectors.toList());
+			for (FolderTreeLister.Entry entry : missing) {
+				String url = entry.getServerRelativeUrl();
+				if (removedFolders.stream().anyMatch(url.toLowerCase(Locale.ROOT)::startsWith)) {
+					continue;
+				}
+				deletes.add(new Action(entry.isFolder() ? Action.Type.DELETE_FOLDER : Action.Type.DELETE_FILE,
+						relativePath(root, url), null, url, null, entry.getSize()));
+			}
+		}
+
+		List<Action> actions = new ArrayList<>(folders);
+		actions.addAll(moves);
+		actions.addAll(uploads);
+		actions.addAll(deletes);
+		MirrorPlan plan = new MirrorPlan(localRoot, listTitle, root, actions, unchanged);
+		LOG.debug("Mirror plan of {} to {}: {}", new Object[] {localRoot, root, plan});
+		return plan;
+	}
+
+	/**
+	 * Runs the actions of a plan: folders are created level by level, then files are moved,
+	 * uploaded and deleted, and the folders removed, each step with a bounded number of workers.
+	 *
+	 * @param plan - plan to run.
+	 * @return what was done, including the failed actions.
+	 * @throws Exception thrown when interrupted or when the hash manifest can't be saved.
+	 */
+	public MirrorStats execute(MirrorPlan plan) throws Exception {
+		long start = System.nanoTime();
+		MirrorStats stats = new MirrorStats(plan.getUnchanged());
+		Properties hashes = hashManifest == null ? null : loadHashes();
+		Map<Integer, List<Action>> folderLevels = new TreeMap<>();
+		for (Action action : plan.getActions(Action.Type.CREATE_FOLDER)) {
+			folderLevels.computeIfAbsent(action.relativePath.split("/").length, level -> new ArrayList<>()).add(action);
+		}
+		for (List<Action> level : folderLevels.values()) {
+			run(level, stats, action -> {
+				int slash = action.remoteUrl.lastIndexOf('/');
+				// createFolder puts the base folder both in the url and in the payload, so it isn't quoted.
+				client.createFolder(action.remoteUrl.substring(0, slash), action.remoteUrl.substring(slash + 1), null);
+			});
+		}
+		// The by path methods take server relative urls on every client, moveFile and deleteFile
+		// take urls relative to the site on sharepoint online.
+		run(plan.getActions(Action.Type.MOVE), stats, action -> {
+			client.moveFileByPath(action.sourceUrl, action.remoteUrl, true, null);
+			if (hashes != null) {
+				// The content moved with the file, so does its hash.
+				String source = relativePath(plan.getRemoteRoot(), action.sourceUrl).toLowerCase(Locale.ROOT);
+				String hash = (String) hashes.remove(source);
+				if (hash != null) {
+					hashes.setProperty(action.relativePath.toLowerCase(Locale.ROOT), hash);
+				}
+			}
+		});
+		run(plan.getActions(Action.Type.UPLOAD), stats, action -> {
+			int slash = action.remoteUrl.lastIndexOf('/');
+			FileSystemResource resource = new FileSystemResource(action.localPath.toFile());
+			long size = resource.contentLength();
+			JSONObject fileInfo = client.uploadFile(quote(action.remoteUrl.substring(0, slash)), resource,
+					quote(action.remoteUrl.substring(slash + 1)), new JSONObject());
+			// Only what the server stored counts, so the stats and the manifest never record a short upload.
+			String stored = fileInfo == null || fileInfo.optJSONObject("d") == null ? null : fileInfo.getJSONObject("d").optString("Length", null);
+			if (stored != null && Long.parseLong(stored) != size) {
+				throw new IOException("The server stored " + stored + " of the " + size + " bytes of " + action.localPath);
+			}
+			stats.uploadedBytes.addAndGet(size);
+			if (hashes != null) {
+				hashes.setProperty(action.relativePath.toLowerCase(Locale.ROOT), hash(action.localPath));
+			}
+		});
+		run(plan.getActions(Action.Type.DELETE_FILE), stats, action -> client.deleteFileByPath(action.remoteUrl));
+		run(plan.getActions(Action.Type.DELETE_FOLDER), stats, action -> client.removeFolder(quote(action.remoteUrl)));
+		if (hashes != null) {
+			saveHashes(hashes);
+		}
+		stats.elapsedNanos = System.nanoTime() - start;
+		LOG.debug("Mirrored {} to {}: {}", new Object[] {plan.getLocalRoot(), plan.getRemoteRoot(), stats});
+		return stats;
+	}
+
+	private interface ActionRunner {
+		void run(Action action) throws Exception;
+	}
+
+	private void run(List<Action> actions, MirrorStats stats, ActionRunner runner) throws Exception {
+		if (actions.isEmpty()) {
+			return;
+		}
+		Queue<Action> pending = new ConcurrentLinkedQueue<>(actions);
+		List<Future<?>> workers = new ArrayList<>();
+		ExecutorService executorService = executor.get();
+		for (int i = 0; i < Math.min(concurrency, actions.size()); i++) {
+			workers.add(executorService.submit(() -> {
+				Action action;
+				while ((action = pending.poll()) != null && !Thread.currentThread().isInterrupted()) {
+					try {
+						runner.run(action);
+						stats.done.get(action.type).incrementAndGet();
+					} catch (Exception e) {
+						LOG.warn("Mirror action {} failed", action, e);
+						stats.failed.get(action.type).incrementAndGet();
+						stats.failures.add(new Failure(action, e));
+					}
+				}
+			}));
+		}
+		try {
+			for (Future<?> worker : workers) {
+				worker.get();
+			}
+		} finally {
+			for (Future<?> worker : workers) {
+				worker.cancel(true);
+			}
+		}
+	}
+
+	private Map<String, FolderTreeLister.Entry> listRemote(String listTitle, String root) throws Exception {
+		Map<String, FolderTreeLister.Entry> remote = new HashMap<>();
+		try (Stream<FolderTreeLister.Entry> entries = client.listFolderTree(listTitle, root)) {
+			entries.forEach(entry -> remote.put(relativePath(root, entry.getServerRelativeUrl()).toLowerCase(Locale.ROOT), entry));
+		}
+		return remote;
+	}
+
+	private Map<String, LocalEntry> listLocal(Path localRoot) throws IOException {
+		Map<String, LocalEntry> local = new LinkedHashMap<>();
+		Files.walkFileTree(localRoot, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+				if (!dir.equals(localRoot)) {
+					add(dir, attrs, true);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if (attrs.isRegularFile()) {
+					add(file, attrs, false);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			private void add(Path path, BasicFileAttributes attrs, boolean directory) {
+				String relativePath = localRoot.relativize(path).toString().replace(path.getFileSystem().getSeparator(), "/");
+				local.put(relativePath.toLowerCase(Locale.ROOT), new LocalEntry(relativePath, path, directory,
+						directory ? 0 : attrs.size(), attrs.lastModifiedTime().toMillis()));
+			}
+		});
+		return local;
+	}
+
+	private boolean isChanged(LocalEntry file, FolderTreeLister.Entry remoteFile, Properties hashes) throws IOException {
+		if (file.size != remoteFile.getSize()) {
+			return true;
+		}
+		Instant remoteModified = parseDate(remoteFile.getModified());
+		if (remoteModified != null && file.modified <= remoteModified.toEpochMilli() + MODIFIED_TOLERANCE_MILLIS) {
+			return false;
+		}
+		// Modified after the upload, or unknown remote date: the hash of the last upload tells.
+		String uploadedHash = hashes.getProperty(file.relativePath.toLowerCase(Locale.ROOT));
+		if (uploadedHash == null) {
+			return remoteModified != null;
+		}
+		return !uploadedHash.equals(hash(file.path));
+	}
+
+	/**
+	 * A new file with the same name and size as a file to delete, both unique, is moved instead when
+	 * its hash is the one kept for the file to delete. Without a kept hash the contents can't be
+	 * compared, so the file is uploaded.
+	 */
+	private void detectMoves(String root, List<Action> uploads, List<FolderTreeLister.Entry> missing,
+			Map<String, FolderTreeLister.Entry> remote, Properties hashes, List<Action> moves) throws IOException {
+		Map<String, List<FolderTreeLister.Entry>> missingFiles = missing.stream().filter(entry -> !entry.isFolder())
+				.collect(Collectors.groupingBy(entry -> entry.getName().toLowerCase(Locale.ROOT) + "/" + entry.getSize()));
+		Map<String, List<Action>> newFiles = uploads.stream()
+				.filter(action -> !remote.containsKey(action.relativePath.toLowerCase(Locale.ROOT)))
+				.collect(Collectors.groupingBy(action -> action.localPath.getFileName().toString().toLowerCase(Locale.ROOT) + "/" + action.size));
+		for (Map.Entry<String, List<Action>> candidate : newFiles.entrySet()) {
+			List<FolderTreeLister.Entry> sources = missingFiles.get(candidate.getKey());
+			if (candidate.getValue().size() != 1 || sources == null || sources.size() != 1) {
+				continue;
+			}
+			Action upload = candidate.getValue().get(0);
+			FolderTreeLister.Entry source = sources.get(0);
+			String sourceHash = hashes.getProperty(relativePath(root, source.getServerRelativeUrl()).toLowerCase(Locale.ROOT));
+			if (sourceHash == null || !sourceHash.equals(hash(upload.localPath))) {
+				continue;
+			}
+			uploads.remove(upload);
+			missing.remove(source);
+			moves.add(new Action(Action.Type.MOVE, upload.relativePath, upload.localPath, upload.remoteUrl,
+					source.getServerRelativeUrl(), upload.size));
+		}
+	}
+
+	private Properties loadHashes() throws IOException {
+		Properties hashes = new Properties();
+		Path manifest = hashManifest;
+		if (manifest != null && Files.exists(manifest)) {
+			try (InputStream in = Files.newInputStream(manifest)) {
+				hashes.load(in);
+			}
+		}
+		return hashes;
+	}
+
+	private void saveHashes(Properties hashes) throws IOException {
+		// Replaced atomically: an empty manifest would make every touched file look changed.
+		PropertiesFiles.store(hashManifest, hashes, "Directory mirror hashes");
+	}
+
+	private static String hash(Path file) throws IOException {
+		try (InputStream in = Files.newInputStream(file)) {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			byte[] buffer = new byte[64 * 1024];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, read);
+			}
+			StringBuilder hex = new StringBuilder();
+			for (byte b : digest.digest()) {
+				hex.append(String.format("%02x", b));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static Instant parseDate(String date) {
+		if (date == null || date.isEmpty()) {
+			return null;
+		}
+		try {
+			return Instant.parse(date);
+		} catch (DateTimeParseException e) {
+			return null;
+		}
+	}
+
+	private static String relativePath(String root, String serverRelativeUrl) {
+		return serverRelativeUrl.length() > root.length() && serverRelativeUrl.regionMatches(true, 0, root, 0, root.length())
+				? serverRelativeUrl.substring(root.length() + 1) : serverRelativeUrl;
+	}
+
+	/**
+	 * Server relative urls go inside a quoted string of the path.
+	 */
+	private static String quote(String url) {
+		return url.replace("'", "''");
+	}
+
+	private static class LocalEntry {
+		private final String relativePath;
+		private final Path path;
+		private final boolean directory;
+		private final long size;
+		private final long modified;
+
+		LocalEntry(String relativePath, Path path, boolean directory, long size, long modified) {
+			this.relativePath = relativePath;
+			this.path = path;
+			this.directory = directory;
+			this.size = size;
+			this.modified = modified;
+		}
+	}
+
+	/**
+	 * A change of the remote tree.
+	 */
+	public static class Action {
+
+		public enum Type {
+			CREATE_FOLDER, MOVE, UPLOAD, DELETE_FILE, DELETE_FOLDER
+		}
+
+		private final Type type;
+		private final String relativePath;
+		private final Path localPath;
+		private final String remoteUrl;
+		private final String sourceUrl;
+		private final long size;
+
+		Action(Type type, String relativePath, Path localPath, String remoteUrl, String sourceUrl, long size) {
+			this.type = type;
+			this.relativePath = relativePath;
+			this.localPath = localPath;
+			this.remoteUrl = remoteUrl;
+			this.sourceUrl = sourceUrl;
+			this.size = size;
+		}
+
+		public Type getType() {
+			return type;
+		}
+
+		/**
+		 * @return path relative to the roots, with / separators.
+		 */
+		public String getRelativePath() {
+			return relativePath;
+		}
+
+		/**
+		 * @return local file or directory, null for deletions.
+		 */
+		public Path getLocalPath() {
+			return localPath;
+		}
+
+		/**
+		 * @return server relative url of the target.
+		 */
+		public String getRemoteUrl() {
+			return remoteUrl;
+		}
+
+		/**
+		 * @return server relative url of the file moved, only for moves.
+		 */
+		public String getSourceUrl() {
+			return sourceUrl;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		@Override
+		public String toString() {
+			return type + " " + (sourceUrl == null ? "" : sourceUrl + " -> ") + remoteUrl;
+		}
+	}
+
+	/**
+	 * Actions needed to mirror a local tree, in the order they're run.
+	 */
+	public static class MirrorPlan {
+
+		private final Path localRoot;
+		private final String listTitle;
+		private final String remoteRoot;
+		private final List<Action> actions;
+		private final long unchanged;
+
+		MirrorPlan(Path localRoot, String listTitle, String remoteRoot, List<Action> actions, long unchanged) {
+			this.localRoot = localRoot;
+			this.listTitle = listTitle;
+			this.remoteRoot = remoteRoot;
+			this.actions = Collections.unmodifiableList(actions);
+			this.unchanged = unchanged;
+		}
+
+		public Path getLocalRoot() {
+			return localRoot;
+		}
+
+		public String getListTitle() {
+			return listTitle;
+		}
+
+		public String getRemoteRoot() {
+			return remoteRoot;
+		}
+
+		public List<Action> getActions() {
+			return actions;
+		}
+
+		public List<Action> getActions(Action.Type type) {
+			return actions.stream().filter(action -> action.type == type).collect(Collectors.toList());
+		}
+
+		/**
+		 * @return number of local files already up to date.
+		 */
+		public long getUnchanged() {
+			return unchanged;
+		}
+
+		/**
+		 * @return bytes to upload.
+		 */
+		public long getUploadBytes() {
+			return actions.stream().filter(action -> action.type == Action.Type.UPLOAD).mapToLong(Action::getSize).sum();
+		}
+
+		@Override
+		public String toString() {
+			Map<Action.Type, Long> counts = actions.stream().collect(Collectors.groupingBy(Action::getType,
+					() -> new EnumMap<>(Action.Type.class), Collectors.counting()));
+			return counts + ", " + getUploadBytes() + " bytes to upload, " + unchanged + " unchanged";
+		}
+	}
+
+	/**
+	 * An action that failed.
+	 */
+	public static class Failure {
+
+		private final Action action;
+		private final Exception error;
+
+		Failure(Action action, Exception error) {
+			this.action = action;
+			this.error = error;
+		}
+
+		public Action getAction() {
+			return action;
+		}
+
+		public Exception getError() {
+			return error;
+		}
+
+		@Override
+		public String toString() {
+			return action + ": " + error;
+		}
+	}
+
+	/**
+	 * Result of running a plan.
+	 */
+	public static class MirrorStats {
+
+		private final Map<Action.Type, AtomicLong> done = new EnumMap<>(Action.Type.class);
+		private final Map<Action.Type, AtomicLong> failed = new EnumMap<>(Action.Type.class);
+		private final Queue<Failure> failures = new ConcurrentLinkedQueue<>();
+		private final AtomicLong uploadedBytes = new AtomicLong();
+		private final long unchanged;
+		private volatile long elapsedNanos;
+
+		MirrorStats(long unchanged) {
+			this.unchanged = unchanged;
+			for (Action.Type type : Action.Type.values()) {
+				done.put(type, new AtomicLong());
+				failed.put(type, new AtomicLong());
+			}
+		}
+
+		/**
+		 * @param type - type of action.
+		 * @return actions of the type that succeeded.
+		 */
+		public long getDone(Action.Type type) {
+			return done.get(type).get();
+		}
+
+		/**
+		 * @param type - type of action.
+		 * @return actions of the type that failed.
+		 */
+		public long getFailed(Action.Type type) {
+			return failed.get(type).get();
+		}
+
+		public List<Failure> getFailures() {
+			return new ArrayList<>(failures);
+		}
+
+		public long getUploadedBytes() {
+			return uploadedBytes.get();
+		}
+
+		public long getUnchanged() {
+			return unchanged;
+		}
+
+		public long getElapsedNanos() {
+			return elapsedNanos;
+		}
+
+		@Override
+		public String toString() {
+			return "done " + done + ", failed " + failed + ", " + uploadedBytes + " bytes uploaded, "
+					+ unchanged + " unchanged in " + elapsedNanos / 1_000_000 + " ms";
+		}
+	}
+}
@@ -0,0 +1,36 @@
+package com.panxoloto.sharepoint.rest;
+
+import org.json.JSONObject;
+import org.springframework.web.client.ResponseExtractor;
+
+/**
+ * Transport primitives of the chunked uploads and segmented downloads. Implemented by the clients
+ * with package private methods, so they aren't part of the PLGSharepointClient api.
+ */
+interface FileTransport {
+
+	/**
+	 * Downloads a byte range of a file handing the raw response to the extractor. The status is 206 when the
+	 * server honored the range, a file changed since the ETag is returned whole with status 200 instead.
+	 *
+	 * @param fileServerRelativeUrl
+	 * @param firstByte - offset of the first byte, inclusive.
+	 * @param lastByte - offset of the last byte, inclusive.
+	 * @param eTag - ETag of the file the range belongs to (If-Range header), null to send no If-Range.
+	 * @param extractor - reads the response body.
+	 * @return the value returned by the extractor.
+	 * @throws Exception
+	 */
+	<T> T downloadFileRange(String fileServerRelativeUrl, long firstByte, long lastByte, String eTag, ResponseExtractor<T> extractor) throws Exception;
+
+	/**
+	 * Posts binary content to an api path of the site (used to send the chunks of the uploads).
+	 *
+	 * @param apiPath - path relative to the site like /_api/web/GetFileByServerRelativeUrl('...')/ContinueUpload(...)
+	 * @param content - buffer with the content.
+	 * @param length - bytes of the buffer to send.
+	 * @return json response as sent by the server, the caller knows its shape to convert it with ODataMetadata.
+	 * @throws Exception
+	 */
+	JSONObject postBinary(String apiPath, byte[] content, int length) throws Exception;
+}
@@ -0,0 +1,395 @@
+package com.panxoloto.sharepoint.rest;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.client.HttpStatusCodeException;
+
+import com.panxoloto.sharepoint.rest.PageIterator.Page;
+import com.panxoloto.sharepoint.rest.helper.CamlQuery;
+import com.panxoloto.sharepoint.rest.helper.ODataQuery;
+
+/**
+ * Lists every file and folder under a folder of a document library.
+ *
+ * The whole subtree is read with a single paged RenderListDataAsStream view with RecursiveAll
+ * scope, instead of two requests per folder. When the view can't be used (no library title, or
+ * the server rejects the request) the tree is crawled breadth first with the folder endpoints, by a
+ * bounded number of workers.
+ *
+ * Entries come in no particular order, folders are listed before their contents only in the crawl.
+ */
+public class FolderTreeLister {
+
+	private static final Logger LOG = LoggerFactory.getLogger(FolderTreeLister.class);
+
+	public static final int DEFAULT_CONCURRENCY = 4;
+	public static final int DEFAULT_BUFFER_SIZE = 8;
+	public static final int DEFAULT_PAGE_SIZE = 5000;
+	private static final int READ_AHEAD = 2;
+
+	private static final ODataQuery FOLDER_FIELDS = ODataQuery.create().select("Name", "ServerRelativeUrl", "TimeLastModified");
+	private static final ODataQuery FILE_FIELDS = ODataQuery.create().select("Name", "ServerRelativeUrl", "TimeLastModified", "Length", "ETag");
+
+	private final PLGSharepointClient client;
+	private final Supplier<? extends ExecutorService> executor;
+	private volatile int concurrency = DEFAULT_CONCURRENCY;
+	private volatile int bufferSize = DEFAULT_BUFFER_SIZE;
+	private volatile int pageSize = DEFAULT_PAGE_SIZE;
+
+	/**
+	 * @param client - client used to read the folders.
+	 * @param executor - supplies the executor the prefetch and the crawl workers run on.
+	 */
+	public FolderTreeLister(PLGSharepointClient client, Supplier<? extends ExecutorService> executor) {
+		this.client = client;
+		this.executor = executor;
+	}
+
+	public int getConcurrency() {
+		return concurrency;
+	}
+
+	/**
+	 * @param concurrency - max number of folders read at the same time by the crawl.
+	 */
+	public void setConcurrency(int concurrency) {
+		if (concurrency <= 0) {
+			throw new IllegalArgumentException("Concurrency must be greater than zero");
+		}
+		this.concurrency = concurrency;
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * @param bufferSize - max number of pages of entries read by the crawl and not yet consumed.
+	 */
+	public void setBufferSize(int bufferSize) {
+		if (bufferSize <= 0) {
+			throw new IllegalArgumentException("Buffer size must be greater than zero");
+		}
+		this.bufferSize = bufferSize;
+	}
+
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	/**
+	 * @param pageSize - rows per page of the RecursiveAll view.
+	 */
+	public void setPageSize(int pageSize) {
+		if (pageSize <= 0) {
+			throw new IllegalArgumentException("Page size must be greater than zero");
+		}
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * @param listTitle - title of the library of the folder, null to crawl the folders.
+	 * @param folderServerRelativeUrl - root of the tree (/sites/mysite/Shared Documents/folder), not listed itself.
+	 * @return stream of the files and folders under the folder, close it if it's not fully consumed.
+	 * @throws Exception thrown reading the first page.
+	 */
+	public Stream<Entry> list(String listTitle, String folderServerRelativeUrl) throws Exception {
+		if (listTitle != null) {
+			CamlQuery query = CamlQuery.create()
+					.scope(CamlQuery.Scope.RECURSIVE_ALL)
+					.viewFields("FileRef", "FileLeafRef", "FSObjType", "File_x0020_Size", "Modified", "UniqueId", "owshiddenversion")
+					.rowLimit(pageSize);
+			JSONObject firstPage;
+			try {
+				firstPage = client.renderListData(listTitle, query, folderServerRelativeUrl, null);
+			} catch (HttpStatusCodeException e) {
+				LOG.warn("RecursiveAll view of {} rejected with status {}, crawling the folders", folderServerRelativeUrl, e.getRawStatusCode());
+				return crawl(folderServerRelativeUrl);
+			}
+			PageIterator<JSONObject> rows = new PageIterator<>(nextHref -> PageIterator.fromRenderListData(nextHref == null
+					? firstPage : client.renderListData(listTitle, query, folderServerRelativeUrl, nextHref)), executor.get(), READ_AHEAD);
+			return rows.stream().map(FolderTreeLister::fromRow);
+		}
+		return crawl(folderServerRelativeUrl);
+	}
+
+	/**
+	 * Lists the tree with the folder endpoints only, breadth first.
+	 *
+	 * @param folderServerRelativeUrl - root of the tree, not listed itself.
+	 * @return stream of the files and folders under the folder, close it if it's not fully consumed.
+	 */
+	public Stream<Entry> crawl(String folderServerRelativeUrl) {
+		Crawl crawl = new Crawl(folderServerRelativeUrl);
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(crawl, Spliterator.NONNULL), false)
+				.onClose(crawl::close);
+	}
+
+	private static Entry fromRow(JSONObject row) {
+		boolean folder = "1".equals(row.optString("FSObjType"));
+		String size = row.optString("File_x0020_Size", "");
+		String uniqueId = row.optString("UniqueId", null);
+		String version = row.optString("owshiddenversion", null);
+		return new Entry(row.optString("FileRef"), row.optString("FileLeafRef"), folder,
+				folder || size.isEmpty() ? 0 : Long.parseLong(size),
+				row.optString("Modified.", row.optString("Modified", null)),
+				uniqueId == null || version == null ? null : "\"" + uniqueId + "," + version + "\"");
+	}
+
+	private static Entry fromFolder(JSONObject folder) {
+		return new Entry(folder.optString("ServerRelativeUrl"), folder.optString("Name"), true, 0,
+				folder.optString("TimeLastModified", null), folder.optString("ETag", null));
+	}
+
+	private static Entry fromFile(JSONObject file) {
+		return new Entry(file.optString("ServerRelativeUrl"), file.optString("Name"), false,
+				Long.parseLong(file.optString("Length", "0")),
+				file.optString("TimeLastModified", null), file.optString("ETag", null));
+	}
+
+	/**
+	 * File or folder of the tree.
+	 */
+	public static class Entry {
+
+		private final String serverRelativeUrl;
+		private final String name;
+		private final boolean folder;
+		private final long size;
+		private final String modified;
+		private final String etag;
+
+		public Entry(String serverRelativeUrl, String name, boolean folder, long size, String modified, String etag) {
+			this.serverRelativeUrl = serverRelativeUrl;
+			this.name = name;
+			this.folder = folder;
+			this.size = size;
+			this.modified = modified;
+			this.etag = etag;
+		}
+
+		public String getServerRelativeUrl() {
+			return serverRelativeUrl;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public boolean isFolder() {
+			return folder;
+		}
+
+		/**
+		 * @return size in bytes, 0 for folders.
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * @return last modification as returned by the server, ISO 8601 in utc.
+		 */
+		public String getModified() {
+			return modified;
+		}
+
+		/**
+		 * @return etag of the file, can be null for folders.
+		 */
+		public String getEtag() {
+			return etag;
+		}
+
+		@Override
+		public String toString() {
+			return (folder ? "folder " : "file ") + serverRelativeUrl + (folder ? "" : " (" + size + " bytes)");
+		}
+	}
+
+	/**
+	 * Breadth first crawl. Workers take the next folder from the queue, put its subfolders back in
+	 * it and the entries in the bounded output queue. The folders queued and not yet read are
+	 * counted, the worker that takes the count to zero puts the end marker, or the first worker
+	 * failing after setting the error.
+	 */
+	private class Crawl implements Iterator<Entry>, Closeable {
+
+		private final BlockingQueue<String> folders = new LinkedBlockingQueue<>();
+		private final AtomicInteger pendingFolders = new AtomicInteger(1);
+		private final BlockingQueue<Page<Entry>> pages;
+		private final List<Future<?>> workers = new ArrayList<>();
+		private final Page<Entry> end = new Page<>(Collections.emptyList(), null);
+		private Iterator<Entry> current = Collections.emptyIterator();
+		private boolean finished = false;
+		private volatile Exception error;
+		private volatile boolean closed = false;
+
+		Crawl(String root) {
+			this.pages = new ArrayBlockingQueue<>(bufferSize);
+			folders.add(root);
+			ExecutorService executorService = executor.get();
+			for (int i = 0; i < concurrency; i++) {
+				workers.add(executorService.submit(this::work));
+			}
+		}
+
+		private void work() {
+			try {
+				while (!closed && error == null && pendingFolders.get() > 0) {
+					String folder = folders.poll(100, TimeUnit.MILLISECONDS);
+					if (folder == null) {
+						continue;
+					}
+					try {
+						visit(folder);
+					} catch (InterruptedException e) {
+						throw e;
+					} catch (Exception e) {
+						// The folder stays pending, so the error is set before any worker can put the end.
+						fail(e);
+						return;
+					}
+					if (pendingFolders.decrementAndGet() == 0) {
+						put(end);
+					}
+				}
+			} catch (InterruptedException e) {
+				LOG.debug("Folder crawl interrupted");
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		private void fail(Exception e) throws InterruptedException {
+			if (closed) {
+				// Requests interrupted by close fail with all kinds of exceptions.
+				return;
+			}
+			LOG.error("Error crawling folders", e);
+			error = e;
+			put(end);
+		}
+
+		private void visit(String folder) throws Exception {
+			// Server relative urls go inside a quoted string of the path.
+			String quoted = folder.replace("'", "''");
+			JSONObject page = client.getFolderFoldersByRelativeUrl(quoted, FOLDER_FIELDS);
+			while (page != null && !closed) {
+				List<Entry> entries = new ArrayList<>();
+				for (JSONObject subfolder : results(page)) {
+					Entry entry = fromFolder(subfolder);
+					entries.add(entry);
+					pendingFolders.incrementAndGet();
+					folders.add(entry.getServerRelativeUrl());
+				}
+				put(new Page<>(entries, null));
+				page = next(page);
+			}
+			page = client.getFolderFilesByRelativeUrl(quoted, FILE_FIELDS);
+			while (page != null && !closed) {
+				List<Entry> entries = new ArrayList<>();
+				for (JSONObject file : results(page)) {
+					entries.add(fromFile(file));
+				}
+				put(new Page<>(entries, null));
+				page = next(page);
+			}
+		}
+
+		private List<JSONObject> results(JSONObject page) {
+			JSONArray results = page.getJSONObject("d").optJSONArray("results");
+			List<JSONObject> items = new ArrayList<>(results == null ? 0 : results.length());
+			if (results != null) {
+				for (int i = 0; i < results.length(); i++) {
+					items.add(results.getJSONObject(i));
+				}
+			}
+			return items;
+		}
+
+		private JSONObject next(JSONObject page) throws Exception {
+			String nextLink = page.getJSONObject("d").optString("__next", null);
+			return nextLink == null ? null : client.getNextPage(nextLink);
+		}
+
+		private void put(Page<Entry> page) throws InterruptedException {
+			if (page != end && page.getItems().isEmpty()) {
+				return;
+			}
+			while (!closed) {
+				if (pages.offer(page, 100, TimeUnit.MILLISECONDS)) {
+					return;
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (!current.hasNext()) {
+				if (finished || closed) {
+					return false;
+				}
+				Page<Entry> page;
+				try {
+					page = pages.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					close();
+					throw new IllegalStateException("Interrupted while waiting for the next folder", e);
+				}
+				if (page == end) {
+					finished = true;
+					close();
+					if (error != null) {
+						throw new IllegalStateException("Error crawling folders", error);
+					}
+				}
+				current = page.getItems().iterator();
+			}
+			return true;
+		}
+
+		@Override
+		public Entry next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return current.next();
+		}
+
+		/**
+		 * Stops the workers and discards the entries not consumed.
+		 */
+		@Override
+		public void close() {
+			if (!closed) {
+				closed = true;
+				for (Future<?> worker : workers) {
+					worker.cancel(true);
+				}
+				pages.clear();
+			}
+		}
+	}
+}
@@ -0,0 +1,379 @@
+package com.panxoloto.sharepoint.rest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.panxoloto.sharepoint.rest.helper.ODataQuery;
+import com.panxoloto.sharepoint.rest.helper.PropertiesFiles;
+
+/**
+ * Incremental sync of lists through their change log (GetChanges). The change token of the last
+ * sync of every list is kept in a TokenStore, and every sync only reads the changes after it, so
+ * its cost depends on the number of changes and not on the size of the list.
+ *
+ * The first sync of a list only records its current token and returns no changes, read the whole
+ * list once (scanListItems) before it. Changes of the same item are merged: an item added and
+ * updated is reported once as added, an item added and deleted is not reported.
+ *
+ * The token is only saved by commit, once the changes have been processed, so a failed sync reads
+ * the same changes again.
+ */
+public class ListChangeSync {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ListChangeSync.class);
+
+	public static final int DEFAULT_HYDRATE_BATCH_SIZE = 50;
+
+	// SP.ChangeType values
+	private static final int ADD = 1;
+	private static final int UPDATE = 2;
+	private static final int DELETE_OBJECT = 3;
+	private static final int RENAME = 4;
+	private static final int MOVE_AWAY = 5;
+	private static final int MOVE_INTO = 6;
+	private static final int RESTORE = 7;
+	private static final int SYSTEM_UPDATE = 15;
+
+	/**
+	 * Keeps the last change token read of every list.
+	 */
+	public interface TokenStore {
+		/**
+		 * @param listTitle - Site list title.
+		 * @return the saved token, null if the list was never synced.
+		 */
+		String load(String listTitle) throws IOException;
+
+		void save(String listTitle, String changeToken) throws IOException;
+	}
+
+	/**
+	 * Receives the changed items. The item is null for deletions and for items that no longer
+	 * exist or don't match the query when they're read.
+	 */
+	public interface ChangeHandler {
+		void change(ItemChange change, Map<String, Object> item) throws Exception;
+	}
+
+	private final PLGSharepointClient client;
+	private final TokenStore tokenStore;
+	private volatile int hydrateBatchSize = DEFAULT_HYDRATE_BATCH_SIZE;
+
+	/**
+	 * @param client - client used to read the changes and the items.
+	 * @param tokenStore - keeps the change tokens between syncs.
+	 */
+	public ListChangeSync(PLGSharepointClient client, TokenStore tokenStore) {
+		this.client = client;
+		this.tokenStore = tokenStore;
+	}
+
+	public int getHydrateBatchSize() {
+		return hydrateBatchSize;
+	}
+
+	/**
+	 * @param hydrateBatchSize - items read per request when hydrating, each one adds an
+	 * "ID eq n" to the filter so it's limited by the url length.
+	 */
+	public void setHydrateBatchSize(int hydrateBatchSize) {
+		if (hydrateBatchSize <= 0) {
+			throw new IllegalArgumentException("Hydrate batch size must be greater than zero");
+		}
+		this.hydrateBatchSize = hydrateBatchSize;
+	}
+
+	/**
+	 * Reads the changes of the list after the saved token, the token is not saved.
+	 *
+	 * @param title - Site list title.
+	 * @return the merged changes, pass them to commit once they're processed.
+	 * @throws Exception
+	 */
+	public ListChanges getChanges(String title) throws Exception {
+		String startToken = tokenStore.load(title);
+		if (startToken == null) {
+			String current = client.getListChangeToken(title);
+			LOG.debug("First sync of list {}, starting from token {}", title, current);
+			return new ListChanges(title, null, current, Collections.emptyList());
+		}
+		Map<Integer, ItemChange> changes = new LinkedHashMap<>();
+		String token = startToken;
+		int read = 0;
+		while (true) {
+			JSONArray results = client.getListChanges(title, token).getJSONObject("d").optJSONArray("results");
+			if (results == null || results.length() == 0) {
+				break;
+			}
+			for (int i = 0; i < results.length(); i++) {
+				JSONObject change = results.getJSONObject(i);
+				token = change.getJSONObject("ChangeToken").getString("StringValue");
+				ItemChange.Type type = typeOf(change.optInt("ChangeType"));
+				if (type != null) {
+					merge(changes, new ItemChange(type, change.getInt("ItemId")));
+				}
+			}
+			read += results.length();
+		}
+		LOG.debug("Read {} changes of list {}, {} items changed", new Object[] {read, title, changes.size()});
+		return new ListChanges(title, startToken, token, new ArrayList<>(changes.values()));
+	}
+
+	/**
+	 * Saves the last token of the changes, the next sync starts after them.
+	 *
+	 * @param changes - changes already processed.
+	 * @throws IOException
+	 */
+	public void commit(ListChanges changes) throws IOException {
+		tokenStore.save(changes.getListTitle(), changes.getEndToken());
+	}
+
+	/**
+	 * Reads the changes, reads the added and updated items in batches of "ID eq n or ..." filters,
+	 * passes every change to the handler and commits the token.
+	 *
+	 * @param title - Site list title.
+	 * @param query - filter and projection of the items read, can be null. ID is always selected.
+	 * @param handler - receives every change in the calling thread.
+	 * @return number of changes.
+	 * @throws Exception thrown reading the changes or the items, or by the handler. The token is not saved then.
+	 */
+	public long sync(String title, ODataQuery query, ChangeHandler handler) throws Exception {
+		ListChanges changes = getChanges(title);
+		ODataQuery base = query == null ? ODataQuery.create() : query;
+		if (!base.getSelect().isEmpty() && base.getSelect().stream().noneMatch("ID"::equalsIgnoreCase)) {
+			base = base.select("ID");
+		}
+		List<ItemChange> pending = new ArrayList<>();
+		for (ItemChange change : changes.getChanges()) {
+			if (change.getType() == ItemChange.Type.DELETED) {
+				handler.change(change, null);
+			} else {
+				pending.add(change);
+				if (pending.size() == hydrateBatchSize) {
+					hydrate(title, base, pending, handler);
+					pending.clear();
+				}
+			}
+		}
+		if (!pending.isEmpty()) {
+			hydrate(title, base, pending, handler);
+		}
+		commit(changes);
+		return changes.getChanges().size();
+	}
+
+	private void hydrate(String title, ODataQuery base, List<ItemChange> changes, ChangeHandler handler) throws Exception {
+		String ids = changes.stream().map(change -> "ID eq " + change.getItemId()).collect(Collectors.joining(" or "));
+		ODataQuery query = base.withFilter(base.getFilter() == null ? ids : "(" + ids + ") and (" + base.getFilter() + ")")
+				.top(changes.size());
+		Map<Integer, Map<String, Object>> items = new HashMap<>();
+		client.forEachListItem(title, query, item -> {
+			Object id = item.containsKey("ID") ? item.get("ID") : item.get("Id");
+			if (id instanceof Number) {
+				items.put(((Number) id).intValue(), item);
+			}
+		});
+		for (ItemChange change : changes) {
+			handler.change(change, items.get(change.getItemId()));
+		}
+	}
+
+	private static ItemChange.Type typeOf(int changeType) {
+		switch (changeType) {
+		case ADD:
+		case MOVE_INTO:
+		case RESTORE:
+			return ItemChange.Type.ADDED;
+		case UPDATE:
+		case RENAME:
+		case SYSTEM_UPDATE:
+			return ItemChange.Type.UPDATED;
+		case DELETE_OBJECT:
+		case MOVE_AWAY:
+			return ItemChange.Type.DELETED;
+		default:
+			return null;
+		}
+	}
+
+	private static void merge(Map<Integer, ItemChange> changes, ItemChange change) {
+		ItemChange previous = changes.get(change.getItemId());
+		if (previous == null) {
+			changes.put(change.getItemId(), change);
+		} else if (change.getType() == ItemChange.Type.DELETED) {
+			if (previous.getType() == ItemChange.Type.ADDED) {
+				// Added and deleted since the last sync, the caller never saw it.
+				changes.remove(change.getItemId());
+			} else {
+				changes.put(change.getItemId(), change);
+			}
+		} else if (previous.getType() == ItemChange.Type.DELETED) {
+			// Deleted and restored, the caller may still have the old version.
+			changes.put(change.getItemId(), new ItemChange(ItemChange.Type.UPDATED, change.getItemId()));
+		}
+		// Added or updated followed by updates keeps the first type.
+	}
+
+	/**
+	 * A changed item of a list.
+	 */
+	public static class ItemChange {
+
+		public enum Type {
+			ADDED, UPDATED, DELETED
+		}
+
+		private final Type type;
+		private final int itemId;
+
+		public ItemChange(Type type, int itemId) {
+			this.type = type;
+			this.itemId = itemId;
+		}
+
+		public Type getType() {
+			return type;
+		}
+
+		public int getItemId() {
+			return itemId;
+		}
+
+		@Override
+		public String toString() {
+			return type + " " + itemId;
+		}
+	}
+
+	/**
+	 * Changes of a list between two change tokens.
+	 */
+	public static class ListChanges {
+
+		private final String listTitle;
+		private final String startToken;
+		private final String endToken;
+		private final List<ItemChange> changes;
+
+		ListChanges(String listTitle, String startToken, String endToken, List<ItemChange> changes) {
+			this.listTitle = listTitle;
+			this.startToken = startToken;
+			this.endToken = endToken;
+			this.changes = Collections.unmodifiableList(changes);
+		}
+
+		public String getListTitle() {
+			return listTitle;
+		}
+
+		/**
+		 * @return token the changes were read after, null on the first sync.
+		 */
+		public String getStartToken() {
+			return startToken;
+		}
+
+		/**
+		 * @return token of the last change read, saved by commit.
+		 */
+		public String getEndToken() {
+			return endToken;
+		}
+
+		public List<ItemChange> getChanges() {
+			return changes;
+		}
+
+		public Stream<ItemChange> stream() {
+			return changes.stream();
+		}
+	}
+
+	/**
+	 * Tokens kept in memory, lost when the process ends.
+	 */
+	public static class MemoryTokenStore implements TokenStore {
+
+		private final Map<String, String> tokens = new ConcurrentHashMap<>();
+
+		@Override
+		public String load(String listTitle) {
+			return tokens.get(listTitle);
+		}
+
+		@Override
+		public void save(String listTitle, String changeToken) {
+			tokens.put(listTitle, changeToken);
+		}
+	}
+
+	/**
+	 * Tokens kept in a properties file, one entry per list title.
+	 */
+	public static class FileTokenStore implements TokenStore {
+
+		private final Path file;
+		private final ReentrantLock lock = new ReentrantLock();
+
+		/**
+		 * @param file - properties file, created on the first save.
+		 */
+		public FileTokenStore(Path file) {
+			this.file = file;
+		}
+
+		@Override
+		public String load(String listTitle) throws IOException {
+			lock.lock();
+			try {
+				return read().getProperty(listTitle);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		@Override
+		public void save(String listTitle, String changeToken) throws IOException {
+			// A lock instead of a monitor, so a virtual thread writing the file isn't pinned.
+			lock.lock();
+			try {
+				Properties tokens = read();
+				tokens.setProperty(listTitle, changeToken);
+				// Replaced atomically: an empty file would make every list start again from the current token.
+				PropertiesFiles.store(file, tokens, "List change tokens");
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private Properties read() throws IOException {
+			Properties tokens = new Properties();
+			if (Files.exists(file)) {
+				try (InputStream in = Files.newInputStream(file)) {
+					tokens.load(in);
+				}
+			}
+			return tokens;
+		}
+	}
+}
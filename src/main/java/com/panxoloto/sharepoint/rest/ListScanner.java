@@ -0,0 +1,326 @@
+package com.panxoloto.sharepoint.rest;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.panxoloto.sharepoint.rest.helper.ODataMetadata;
+import com.panxoloto.sharepoint.rest.helper.ODataQuery;
+import com.panxoloto.sharepoint.rest.helper.ODataStreamParser;
+
+/**
+ * Reads lists bigger than the list view threshold (5000 items) splitting them in ranges of an
+ * indexed numeric column, ID by default: "ID gt 0 and ID le 5000", "ID gt 5000 and ID le 10000"...
+ * Every range returns at most partition size items, so the filter of the query can use columns
+ * that aren't indexed, and the ranges are read in parallel by a bounded number of workers.
+ *
+ * The items of all the ranges are merged into a single iterator through a bounded queue, so a slow
+ * consumer holds back the workers instead of filling the memory. Items come in the order they're
+ * read, not sorted, and as plain maps (see ODataStreamParser).
+ */
+public class ListScanner {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ListScanner.class);
+
+	public static final String DEFAULT_PARTITION_FIELD = "ID";
+	public static final int DEFAULT_PARTITION_SIZE = 5000;
+	public static final int DEFAULT_CONCURRENCY = 4;
+	public static final int DEFAULT_BUFFER_SIZE = 8;
+	private static final int CHUNK_SIZE = 500;
+
+	private final PLGSharepointClient client;
+	private final Supplier<? extends ExecutorService> executor;
+	private volatile String partitionField = DEFAULT_PARTITION_FIELD;
+	private volatile int partitionSize = DEFAULT_PARTITION_SIZE;
+	private volatile int concurrency = DEFAULT_CONCURRENCY;
+	private volatile int bufferSize = DEFAULT_BUFFER_SIZE;
+
+	/**
+	 * @param client - client used to read the ranges.
+	 * @param executor - supplies the executor the workers run on.
+	 */
+	public ListScanner(PLGSharepointClient client, Supplier<? extends ExecutorService> executor) {
+		this.client = client;
+		this.executor = executor;
+	}
+
+	public String getPartitionField() {
+		return partitionField;
+	}
+
+	/**
+	 * @param partitionField - indexed numeric column the list is split by, ID by default.
+	 */
+	public void setPartitionField(String partitionField) {
+		this.partitionField = partitionField;
+	}
+
+	public int getPartitionSize() {
+		return partitionSize;
+	}
+
+	/**
+	 * @param partitionSize - width of every range, keep it at or under the list view threshold.
+	 */
+	public void setPartitionSize(int partitionSize) {
+		if (partitionSize <= 0) {
+			throw new IllegalArgumentException("Partition size must be greater than zero");
+		}
+		this.partitionSize = partitionSize;
+	}
+
+	public int getConcurrency() {
+		return concurrency;
+	}
+
+	/**
+	 * @param concurrency - max number of ranges read at the same time. Keep it under the max
+	 * connections per route of the pool.
+	 */
+	public void setConcurrency(int concurrency) {
+		if (concurrency <= 0) {
+			throw new IllegalArgumentException("Concurrency must be greater than zero");
+		}
+		this.concurrency = concurrency;
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * @param bufferSize - max number of chunks of items read and not yet consumed.
+	 */
+	public void setBufferSize(int bufferSize) {
+		if (bufferSize <= 0) {
+			throw new IllegalArgumentException("Buffer size must be greater than zero");
+		}
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * @param title - Site list title.
+	 * @param query - filter, projection and page size applied to every range, can be null. Its order is not kept.
+	 * @return iterator over the items of all the ranges, close it if it's not fully consumed.
+	 * @throws Exception when the bounds of the partition field can't be read.
+	 */
+	public Scan scan(String title, ODataQuery query) throws Exception {
+		ODataQuery base = query == null ? ODataQuery.create() : query;
+		String field = partitionField;
+		Long min = bound(title, field, true);
+		Long max = min == null ? null : bound(title, field, false);
+		List<ODataQuery> partitions = new ArrayList<>();
+		if (min != null) {
+			int size = partitionSize;
+			if (base.getTop() == null) {
+				base = base.top(size);
+			}
+			for (long low = min - 1; low < max; low += size) {
+				String range = field + " gt " + low + " and " + field + " le " + Math.min(low + size, max);
+				partitions.add(base.withFilter(base.getFilter() == null ? range : range + " and (" + base.getFilter() + ")"));
+			}
+		}
+		LOG.debug("Scanning list {} in {} ranges of {} from {} to {}", new Object[] {title, partitions.size(), field, min, max});
+		return new Scan(title, partitions);
+	}
+
+	/**
+	 * Same as scan delivering the items to the handler in the calling thread, one at a time.
+	 *
+	 * @param title - Site list title.
+	 * @param query - filter, projection and page size applied to every range, can be null.
+	 * @param handler - receives every item.
+	 * @return number of items read.
+	 * @throws Exception thrown reading a range or by the handler.
+	 */
+	public long scan(String title, ODataQuery query, ODataStreamParser.ItemHandler handler) throws Exception {
+		long count = 0;
+		try (Scan scan = scan(title, query)) {
+			while (scan.hasNext()) {
+				handler.item(scan.next());
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return lowest or highest value of the field, null if the list is empty.
+	 */
+	private Long bound(String title, String field, boolean lowest) throws Exception {
+		// Sorting by an indexed column with top 1 isn't affected by the threshold.
+		JSONObject page = client.getListItems(title, ODataQuery.create().select(field).orderBy(field, lowest).top(1));
+		JSONArray results = page.getJSONObject("d").optJSONArray("results");
+		if (results == null || results.length() == 0) {
+			return null;
+		}
+		JSONObject item = results.getJSONObject(0);
+		for (String key : item.keySet()) {
+			if (key.equalsIgnoreCase(field)) {
+				return item.getLong(key);
+			}
+		}
+		throw new IllegalStateException("Field " + field + " not found in the items of " + title);
+	}
+
+	/**
+	 * Items of a scan. Workers take the next range until there are none left, and put the items
+	 * in chunks into the queue; the last worker to finish puts the end marker.
+	 */
+	public class Scan implements Iterator<Map<String, Object>>, Closeable {
+
+		private final String title;
+		private final List<ODataQuery> partitions;
+		private final BlockingQueue<Chunk> chunks;
+		private final AtomicInteger nextPartition = new AtomicInteger();
+		private final AtomicInteger activeWorkers;
+		private final List<Future<?>> workers = new ArrayList<>();
+		private Iterator<Map<String, Object>> current = Collections.emptyIterator();
+		private boolean finished = false;
+		private volatile boolean closed = false;
+
+		private Scan(String title, List<ODataQuery> partitions) {
+			this.title = title;
+			this.partitions = partitions;
+			this.chunks = new ArrayBlockingQueue<>(bufferSize);
+			int workerCount = Math.max(1, Math.min(concurrency, partitions.size()));
+			this.activeWorkers = new AtomicInteger(workerCount);
+			ExecutorService executorService = executor.get();
+			for (int i = 0; i < workerCount; i++) {
+				workers.add(executorService.submit(this::work));
+			}
+		}
+
+		private void work() {
+			int index = -1;
+			try {
+				while (!closed && (index = nextPartition.getAndIncrement()) < partitions.size()) {
+					List<Map<String, Object>> chunk = new ArrayList<>(CHUNK_SIZE);
+					// No metadata, the items are read as maps so the annotations would be dropped anyway.
+					client.forEachListItem(title, partitions.get(index), ODataMetadata.NONE, item -> {
+						chunk.add(item);
+						if (chunk.size() == CHUNK_SIZE) {
+							put(new Chunk(new ArrayList<>(chunk), null));
+							chunk.clear();
+						}
+					});
+					if (!chunk.isEmpty()) {
+						put(new Chunk(chunk, null));
+					}
+				}
+				if (activeWorkers.decrementAndGet() == 0) {
+					put(Chunk.END);
+				}
+			} catch (InterruptedException e) {
+				LOG.debug("List scan interrupted");
+				Thread.currentThread().interrupt();
+			} catch (Exception e) {
+				LOG.error("Error reading range {} of list {}", index < 0 ? null : partitions.get(index).getFilter(), title, e);
+				try {
+					put(new Chunk(Collections.emptyList(), e));
+				} catch (InterruptedException e1) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		private void put(Chunk chunk) throws InterruptedException {
+			while (!closed) {
+				if (chunks.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+					return;
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (!current.hasNext()) {
+				if (finished || closed) {
+					return false;
+				}
+				Chunk chunk;
+				try {
+					chunk = chunks.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					close();
+					throw new IllegalStateException("Interrupted while waiting for the next items", e);
+				}
+				if (chunk.error != null) {
+					finished = true;
+					close();
+					throw new IllegalStateException("Error scanning list " + title, chunk.error);
+				}
+				if (chunk == Chunk.END) {
+					finished = true;
+				}
+				current = chunk.items.iterator();
+			}
+			return true;
+		}
+
+		@Override
+		public Map<String, Object> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return current.next();
+		}
+
+		/**
+		 * Stops the workers and discards the items not consumed.
+		 */
+		@Override
+		public void close() {
+			if (!closed) {
+				closed = true;
+				for (Future<?> worker : workers) {
+					worker.cancel(true);
+				}
+				chunks.clear();
+			}
+		}
+
+		/**
+		 * @return a sequential stream over the items, closing the stream closes the scan.
+		 */
+		public Stream<Map<String, Object>> stream() {
+			return StreamSupport.stream(
+					Spliterators.spliteratorUnknownSize(this, Spliterator.NONNULL), false)
+					.onClose(this::close);
+		}
+	}
+
+	private static class Chunk {
+
+		static final Chunk END = new Chunk(Collections.emptyList(), null);
+
+		private final List<Map<String, Object>> items;
+		private final Exception error;
+
+		Chunk(List<Map<String, Object>> items, Exception error) {
+			this.items = items;
+			this.error = error;
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package com.panxoloto.sharepoint.rest;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.panxoloto.sharepoint.rest.helper.ListSchema;
+import com.panxoloto.sharepoint.rest.helper.ODataQuery;
+
+/**
+ * Cache of the schema of the lists (their fields), by list title. A schema is used as is during
+ * the revalidate interval, after it the list SchemaXml is read again and the fields are only
+ * read (and the schema rebuilt) when its Version changed, which happens on every field change.
+ */
+public class ListSchemaCache {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ListSchemaCache.class);
+
+	public static final long DEFAULT_REVALIDATE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+	private static final ODataQuery SCHEMA_XML_QUERY = ODataQuery.create().select("SchemaXml");
+	private static final ODataQuery FIELDS_QUERY = ODataQuery.create().select("InternalName", "TypeAsString");
+
+	private final PLGSharepointClient client;
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+	private volatile long revalidateMillis = DEFAULT_REVALIDATE_MILLIS;
+
+	private static class Entry {
+		private final ListSchema schema;
+		private volatile long checkedAt;
+
+		Entry(ListSchema schema) {
+			this.schema = schema;
+			this.checkedAt = System.nanoTime();
+		}
+	}
+
+	/**
+	 * @param client - client used to read the lists.
+	 */
+	public ListSchemaCache(PLGSharepointClient client) {
+		this.client = client;
+	}
+
+	public long getRevalidateMillis() {
+		return revalidateMillis;
+	}
+
+	/**
+	 * @param revalidateMillis - time a schema is used without checking the list version, 0 to check it on every use.
+	 */
+	public void setRevalidateMillis(long revalidateMillis) {
+		if (revalidateMillis < 0) {
+			throw new IllegalArgumentException("Revalidate interval can't be negative");
+		}
+		this.revalidateMillis = revalidateMillis;
+	}
+
+	/**
+	 * @param title - Site list title.
+	 * @return the schema of the list, read again only if the list version changed.
+	 * @throws Exception
+	 */
+	public ListSchema get(String title) throws Exception {
+		Entry entry = entries.get(key(title));
+		if (entry == null) {
+			return refresh(title);
+		}
+		if (System.nanoTime() - entry.checkedAt < TimeUnit.MILLISECONDS.toNanos(revalidateMillis)) {
+			return entry.schema;
+		}
+		PLGSharepointBatch batch = client.newBatch();
+		CompletableFuture<BatchResponse> list = batch.get(listPath(title), SCHEMA_XML_QUERY);
+		batch.execute();
+		int version = ListSchema.parseVersion(await(list).getJson().getJSONObject("d").getString("SchemaXml"));
+		if (version != -1 && version == entry.schema.getVersion()) {
+			entry.checkedAt = System.nanoTime();
+			return entry.schema;
+		}
+		LOG.debug("Schema of list {} changed from version {} to {}", new Object[] {title, entry.schema.getVersion(), version});
+		return refresh(title);
+	}
+
+	/**
+	 * Reads the list version and fields in one $batch and caches the schema.
+	 *
+	 * @param title - Site list title.
+	 * @return the schema of the list.
+	 * @throws Exception
+	 */
+	public ListSchema refresh(String title) throws Exception {
+		String apiPath = listPath(title);
+		PLGSharepointBatch batch = client.newBatch();
+		CompletableFuture<BatchResponse> list = batch.get(apiPath, SCHEMA_XML_QUERY);
+		CompletableFuture<BatchResponse> fields = batch.get(apiPath + "/Fields", FIELDS_QUERY);
+		batch.execute();
+		int version = ListSchema.parseVersion(await(list).getJson().getJSONObject("d").getString("SchemaXml"));
+		ListSchema schema = ListSchema.fromFields(version, await(fields).getJson());
+		entries.put(key(title), new Entry(schema));
+		LOG.debug("Read schema of list {} version {} with {} fields", new Object[] {title, version, schema.getColumns().size()});
+		return schema;
+	}
+
+	/**
+	 * @param title - Site list title whose schema is read again on the next use.
+	 */
+	public void invalidate(String title) {
+		entries.remove(key(title));
+	}
+
+	public void clear() {
+		entries.clear();
+	}
+
+	/**
+	 * @return number of cached schemas.
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	private static String listPath(String title) {
+		return "/_api/web/lists/GetByTitle('" + title.replace("'", "''") + "')";
+	}
+
+	private static String key(String title) {
+		return title.toLowerCase(Locale.ROOT);
+	}
+
+	private static BatchResponse await(CompletableFuture<BatchResponse> future) throws Exception {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+		}
+	}
+}
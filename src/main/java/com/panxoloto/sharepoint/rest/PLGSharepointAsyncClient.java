@@ -0,0 +1,279 @@
+package com.panxoloto.sharepoint.rest;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.json.JSONObject;
+import org.reactivestreams.Publisher;
+
+import com.panxoloto.sharepoint.rest.helper.MoveCopyOptions;
+import com.panxoloto.sharepoint.rest.helper.ODataQuery;
+
+/**
+ * Non blocking version of the PLGSharepointClient operations. Every method returns at once, the
+ * future completes when the response arrives, so a small io thread pool keeps hundreds of
+ * requests in flight. Cancelling a future aborts its request.
+ *
+ * Failed requests complete the future with the same RestClientResponseException the blocking
+ * client throws.
+ */
+public interface PLGSharepointAsyncClient extends Closeable {
+
+	/**
+	 * @return the blocking client sharing the login with this one.
+	 */
+	PLGSharepointClient getBlockingClient();
+
+	/**
+	 * @return json with all the lists of the site.
+	 */
+	CompletableFuture<JSONObject> getAllLists();
+
+	/**
+	 * @param title - list title.
+	 * @return json of the list.
+	 */
+	CompletableFuture<JSONObject> getListByTitle(String title);
+
+	/**
+	 * @param title - list title.
+	 * @return json with the fields of the list.
+	 */
+	CompletableFuture<JSONObject> getListFields(String title);
+
+	/**
+	 * @param title - list title.
+	 * @param filter - odata filter, can be null.
+	 * @return first page of items, d.__next has the link to the next one.
+	 */
+	CompletableFuture<JSONObject> getListItems(String title, String filter);
+
+	/**
+	 * @param title - list title.
+	 * @param query - filter, projection, sort and page size of the items.
+	 * @return first page of items, d.__next has the link to the next one.
+	 */
+	CompletableFuture<JSONObject> getListItems(String title, ODataQuery query);
+
+	/**
+	 * @param nextPageUrl - the d.__next link of a page.
+	 * @return the next page.
+	 */
+	CompletableFuture<JSONObject> getNextPage(String nextPageUrl);
+
+	/**
+	 * Items of a list one by one, the next page is only requested when the subscriber asks for
+	 * more items than the ones already received. Cancelling the subscription cancels the request
+	 * in flight.
+	 *
+	 * @param title - list title.
+	 * @param filter - odata filter, can be null.
+	 * @return publisher of the items, each subscription reads the list from the start.
+	 */
+	Publisher<JSONObject> getListItemsPublisher(String title, String filter);
+
+	/**
+	 * @param title - list title.
+	 * @param query - filter, projection, sort and page size of the items.
+	 * @return publisher of the items, each subscription reads the list from the start.
+	 */
+	Publisher<JSONObject> getListItemsPublisher(String title, ODataQuery query);
+
+	/**
+	 * @param folder - folder server relative url.
+	 * @return publisher of the files of the folder, one by one.
+	 */
+	Publisher<JSONObject> getFolderFilesPublisher(String folder);
+
+	/**
+	 * @param folder - folder server relative url.
+	 * @param query - filter, projection and sort of the files.
+	 * @return publisher of the files of the folder, one by one.
+	 * @throws IllegalArgumentException when the query sets top, Folder/Files isn't paged so only the first ones would be published.
+	 */
+	Publisher<JSONObject> getFolderFilesPublisher(String folder, ODataQuery query);
+
+	/**
+	 * @param folder - folder server relative url.
+	 * @return publisher of the subfolders of the folder, one by one.
+	 */
+	Publisher<JSONObject> getFolderFoldersPublisher(String folder);
+
+	/**
+	 * @param folder - folder server relative url.
+	 * @param query - filter, projection and sort of the subfolders.
+	 * @return publisher of the subfolders of the folder, one by one.
+	 * @throws IllegalArgumentException when the query sets top, Folder/Folders isn't paged so only the first ones would be published.
+	 */
+	Publisher<JSONObject> getFolderFoldersPublisher(String folder, ODataQuery query);
+
+	/**
+	 * @param folder - folder server relative url.
+	 * @return json with d.Exists.
+	 */
+	CompletableFuture<JSONObject> checkFolderExist(String folder);
+
+	/**
+	 * @param folder - folder server relative url.
+	 * @return json of the folder.
+	 */
+	CompletableFuture<JSONObject> getFolderByRelativeUrl(String folder);
+
+	/**
+	 * @param folder - folder server relative url.
+	 * @return json with the subfolders.
+	 */
+	CompletableFuture<JSONObject> getFolderFoldersByRelativeUrl(String folder);
+
+	/**
+	 * @param folder - folder server relative url.
+	 * @param query - filter, projection and sort of the subfolders, top only keeps the first ones.
+	 * @return json with all the subfolders, Folder/Folders isn't paged so there's no d.__next.
+	 */
+	CompletableFuture<JSONObject> getFolderFoldersByRelativeUrl(String folder, ODataQuery query);
+
+	/**
+	 * @param folder - folder server relative url.
+	 * @return json with the files of the folder.
+	 */
+	CompletableFuture<JSONObject> getFolderFilesByRelativeUrl(String folder);
+
+	/**
+	 * @param folder - folder server relative url.
+	 * @param query - filter, projection and sort of the files, top only keeps the first ones.
+	 * @return json with all the files of the folder, Folder/Files isn't paged so there's no d.__next.
+	 */
+	CompletableFuture<JSONObject> getFolderFilesByRelativeUrl(String folder, ODataQuery query);
+
+	/**
+	 * @param fileServerRelativeUrl
+	 * @return json of the file.
+	 */
+	CompletableFuture<JSONObject> getFileInfo(String fileServerRelativeUrl);
+
+	/**
+	 * @param fileServerRelativeUrl
+	 * @param info - property or navigation of the file (ListItemAllFields, Author...).
+	 * @return json of the property.
+	 */
+	CompletableFuture<JSONObject> getFileSpecificInfo(String fileServerRelativeUrl, String info);
+
+	/**
+	 * @param fileServerRelativeUrl
+	 * @return the content of the file, meant for small files.
+	 */
+	CompletableFuture<byte[]> downloadFile(String fileServerRelativeUrl);
+
+	/**
+	 * @param folder - destination folder server relative url.
+	 * @param content - content of the file.
+	 * @param fileName - name of the file in the folder.
+	 * @param jsonMetadata - metadata set after the upload, can be null.
+	 * @return json of the uploaded file.
+	 */
+	CompletableFuture<JSONObject> uploadFile(String folder, byte[] content, String fileName, JSONObject jsonMetadata);
+
+	/**
+	 * @param fileServerRelativeUrl
+	 * @return true when deleted.
+	 */
+	CompletableFuture<Boolean> deleteFile(String fileServerRelativeUrl);
+
+	/**
+	 * @param fileServerRelativeUrl
+	 * @param jsonMetadata - fields to update, __metadata type defaults to SP.File.
+	 * @return the response json, empty when the server returns no content.
+	 */
+	CompletableFuture<JSONObject> updateFileMetadata(String fileServerRelativeUrl, JSONObject jsonMetadata);
+
+	/**
+	 * @param folderServerRelativeUrl
+	 * @param jsonMetadata - fields to update, __metadata type defaults to SP.Folder.
+	 * @return the response json, empty when the server returns no content.
+	 */
+	CompletableFuture<JSONObject> updateFolderMetadata(String folderServerRelativeUrl, JSONObject jsonMetadata);
+
+	/**
+	 * @param baseFolderRemoteRelativeUrl - parent folder.
+	 * @param folder - server relative url of the new folder.
+	 * @param payload - extra properties, can be null.
+	 * @return json of the folder.
+	 */
+	CompletableFuture<JSONObject> createFolder(String baseFolderRemoteRelativeUrl, String folder, JSONObject payload);
+
+	/**
+	 * @param sourceRelativeServerUrl
+	 * @param destinyRelativeServerUrl
+	 * @return response json.
+	 */
+	CompletableFuture<JSONObject> moveFolder(String sourceRelativeServerUrl, String destinyRelativeServerUrl);
+
+	/**
+	 * @param sourceRelativeServerUrl
+	 * @param destinyRelativeServerUrl
+	 * @return response json.
+	 */
+	CompletableFuture<JSONObject> moveFile(String sourceRelativeServerUrl, String destinyRelativeServerUrl);
+
+	/**
+	 * @param folderRemoteRelativeUrl
+	 * @return true when deleted.
+	 */
+	CompletableFuture<Boolean> removeFolder(String folderRemoteRelativeUrl);
+
+	/**
+	 * @param sourceUrl - absolute or server relative url of the file.
+	 * @param destinationUrl - absolute or server relative url of the copy.
+	 * @param overwrite - true to replace an existing file.
+	 * @param options - options of the copy, null for the defaults.
+	 * @return response json.
+	 */
+	CompletableFuture<JSONObject> copyFileByPath(String sourceUrl, String destinationUrl, boolean overwrite, MoveCopyOptions options);
+
+	/**
+	 * @param sourceUrl - absolute or server relative url of the file.
+	 * @param destinationUrl - absolute or server relative url of the target.
+	 * @param overwrite - true to replace an existing file.
+	 * @param options - options of the move, null for the defaults.
+	 * @return response json.
+	 */
+	CompletableFuture<JSONObject> moveFileByPath(String sourceUrl, String destinationUrl, boolean overwrite, MoveCopyOptions options);
+
+	/**
+	 * @param sourceUrl - absolute or server relative url of the folder.
+	 * @param destinationUrl - absolute or server relative url of the copy.
+	 * @param options - options of the copy, null for the defaults.
+	 * @return response json.
+	 */
+	CompletableFuture<JSONObject> copyFolderByPath(String sourceUrl, String destinationUrl, MoveCopyOptions options);
+
+	/**
+	 * @param sourceUrl - absolute or server relative url of the folder.
+	 * @param destinationUrl - absolute or server relative url of the target.
+	 * @param options - options of the move, null for the defaults.
+	 * @return response json.
+	 */
+	CompletableFuture<JSONObject> moveFolderByPath(String sourceUrl, String destinationUrl, MoveCopyOptions options);
+
+	/**
+	 * @param sourceUrls - absolute or server relative urls of the files and folders.
+	 * @param destinationUrl - absolute or server relative url of the target folder.
+	 * @param move - true to delete the sources once copied.
+	 * @param options - options of the jobs, null for the defaults.
+	 * @return response json with the queued jobs.
+	 */
+	CompletableFuture<JSONObject> createCopyJobs(List<String> sourceUrls, String destinationUrl, boolean move, MoveCopyOptions options);
+
+	/**
+	 * @param copyJobInfo - job returned by createCopyJobs.
+	 * @return response json with the job state and the new logs.
+	 */
+	CompletableFuture<JSONObject> getCopyJobProgress(JSONObject copyJobInfo);
+
+	/**
+	 * @param folder - folder server relative url.
+	 * @return json with the role assignments of the folder.
+	 */
+	CompletableFuture<JSONObject> getFolderPermissions(String folder);
+}
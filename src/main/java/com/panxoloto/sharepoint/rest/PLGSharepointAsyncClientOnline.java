@@ -0,0 +1,106 @@
+package com.panxoloto.sharepoint.rest;
+
+import java.io.IOException;
+import java.net.URI;
+
+import org.springframework.util.MultiValueMap;
+
+import com.panxoloto.sharepoint.rest.helper.AsyncHttpExecutor;
+import com.panxoloto.sharepoint.rest.helper.HttpClientPoolConfig;
+
+/**
+ * Async client for sharepoint online. It takes the cookies and form digest from a blocking
+ * client, so both share the login and its background digest refresh.
+ *
+ * Requests rejected with 401/403 are not replayed, call getBlockingClient().refreshToken() and
+ * send them again.
+ */
+public class PLGSharepointAsyncClientOnline extends AbstractPLGSharepointAsyncClient {
+
+	private final PLGSharepointClientOnline client;
+	private final boolean ownClient;
+
+	/**
+	 * @param user - The user email to access sharepoint online site.
+	 * @param passwd - the user password to access sharepoint online site.
+	 * @param domain - the domain without protocol and no uri like contoso.sharepoint.com
+	 * @param spSiteUrl - The sharepoint site URI like /sites/contososite
+	 * @throws IOException
+	 */
+	public PLGSharepointAsyncClientOnline(String user, String passwd, String domain, String spSiteUrl) throws IOException {
+		this(new PLGSharepointClientOnline(user, passwd, domain, spSiteUrl), new HttpClientPoolConfig(), true);
+	}
+
+	/**
+	 * @param client - blocking client providing the session, it isn't closed with this one.
+	 * @param poolConfig - connection pool settings for the async http client.
+	 * @param maxInFlight - max number of requests sent at the same time, at most the connections per host.
+	 * @throws IOException
+	 */
+	public PLGSharepointAsyncClientOnline(PLGSharepointClientOnline client, HttpClientPoolConfig poolConfig, int maxInFlight) throws IOException {
+		this(client, poolConfig, maxInFlight, false);
+	}
+
+	private PLGSharepointAsyncClientOnline(PLGSharepointClientOnline client, HttpClientPoolConfig poolConfig, boolean ownClient) throws IOException {
+		this(client, poolConfig, poolConfig.getMaxPerRoute(), ownClient);
+	}
+
+	private PLGSharepointAsyncClientOnline(PLGSharepointClientOnline client, HttpClientPoolConfig poolConfig, int maxInFlight,
+			boolean ownClient) throws IOException {
+		// Cookies are set by hand from the session of the blocking client.
+		super(new AsyncHttpExecutor(poolConfig, null, false, maxInFlight, AsyncHttpExecutor.DEFAULT_IO_THREADS));
+		this.client = client;
+		this.ownClient = ownClient;
+	}
+
+	@Override
+	public PLGSharepointClient getBlockingClient() {
+		return client;
+	}
+
+	@Override
+	protected MultiValueMap<String, String> getGetHeaders(boolean includeAuthHeader) throws Exception {
+		return client.getHeaderHelper().getGetHeaders(includeAuthHeader);
+	}
+
+	@Override
+	protected MultiValueMap<String, String> getPostHeaders(String payload) throws Exception {
+		return client.getHeaderHelper().getPostHeaders(payload);
+	}
+
+	@Override
+	protected MultiValueMap<String, String> getUpdateHeaders(String payload) throws Exception {
+		return client.getHeaderHelper().getUpdateHeaders(payload);
+	}
+
+	@Override
+	protected MultiValueMap<String, String> getDeleteHeaders() throws Exception {
+		return client.getHeaderHelper().getDeleteHeaders();
+	}
+
+	@Override
+	protected URI getSharepointSiteUrl(String apiPath) throws Exception {
+		return client.getTokenHelper().getSharepointSiteUrl(apiPath);
+	}
+
+	@Override
+	protected URI getSharepointSiteUrl(String apiPath, String query) throws Exception {
+		return client.getTokenHelper().getSharepointSiteUrl(apiPath, query);
+	}
+
+	@Override
+	protected String getFileUrl(String fileServerRelativeUrl) {
+		return client.getSpSiteUrl() + "/" + fileServerRelativeUrl;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			super.close();
+		} finally {
+			if (ownClient) {
+				client.close();
+			}
+		}
+	}
+}
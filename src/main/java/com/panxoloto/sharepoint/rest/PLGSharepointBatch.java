@@ -0,0 +1,604 @@
+package com.panxoloto.sharepoint.rest;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.RestClientResponseException;
+import org.springframework.web.client.UnknownHttpStatusCodeException;
+
+import com.panxoloto.sharepoint.rest.helper.ODataQuery;
+import com.panxoloto.sharepoint.rest.helper.Permission;
+
+/**
+ * Queues operations against the sharepoint rest api and sends them in as few OData $batch
+ * (multipart/mixed) requests as possible. Write operations are grouped in change sets and the
+ * queue is split in several batch requests when it exceeds the max operations per batch.
+ *
+ * Every queued operation returns a future that is completed with its own response when the batch
+ * is executed, or completed exceptionally (with the same http exceptions the client throws) if
+ * the operation failed.
+ *
+ * The urls of the operations follow the conventions of the client that created the batch, like the
+ * file urls of the online client, which are relative to the site.
+ */
+public class PLGSharepointBatch {
+
+	private static final Logger LOG = LoggerFactory.getLogger(PLGSharepointBatch.class);
+	private static final String CRLF = "\r\n";
+	private static final String JSON_VERBOSE = "application/json;odata=verbose";
+
+	/**
+	 * SharePoint online rejects batches with more than 100 operations.
+	 */
+	public static final int DEFAULT_MAX_OPERATIONS_PER_BATCH = 100;
+
+	/**
+	 * Client specific part of the batch: url resolution and the http call with the auth headers.
+	 */
+	public interface BatchTransport {
+		/**
+		 * @param apiPath - path relative to the site like /_api/web/lists
+		 * @return absolute url of the api path.
+		 */
+		URI resolve(String apiPath) throws URISyntaxException;
+
+		/**
+		 * Posts the batch body to /_api/$batch.
+		 *
+		 * @param contentType - multipart content type including the boundary.
+		 * @param payload - batch body.
+		 * @return raw response.
+		 */
+		ResponseEntity<byte[]> send(String contentType, byte[] payload) throws Exception;
+
+		/**
+		 * @param fileServerRelativeUrl - file url as the file methods of the client take it.
+		 * @return server relative url of the file.
+		 */
+		default String getFileUrl(String fileServerRelativeUrl) {
+			return fileServerRelativeUrl;
+		}
+
+		/**
+		 * @param baseFolderRemoteRelativeUrl - parent folder.
+		 * @param folder - folder to create.
+		 * @return ServerRelativeUrl sent to create the folder, the same createFolder of the client sends.
+		 */
+		default String getNewFolderUrl(String baseFolderRemoteRelativeUrl, String folder) {
+			return baseFolderRemoteRelativeUrl + "/" + folder;
+		}
+	}
+
+	private static class Operation {
+		private final String method;
+		private final String apiPath;
+		private final Map<String, String> headers;
+		private final String body;
+		private final ODataQuery query;
+		private final CompletableFuture<BatchResponse> future = new CompletableFuture<>();
+
+		Operation(String method, String apiPath, Map<String, String> headers, String body) {
+			this(method, apiPath, headers, body, null);
+		}
+
+		Operation(String method, String apiPath, Map<String, String> headers, String body, ODataQuery query) {
+			this.method = method;
+			this.apiPath = apiPath;
+			this.headers = headers;
+			this.body = body;
+			this.query = query;
+		}
+
+		boolean isWrite() {
+			return !"GET".equals(method);
+		}
+	}
+
+	private final BatchTransport transport;
+	private final List<Operation> operations = new ArrayList<>();
+	private int maxOperationsPerBatch = DEFAULT_MAX_OPERATIONS_PER_BATCH;
+
+	public PLGSharepointBatch(BatchTransport transport) {
+		this.transport = transport;
+	}
+
+	public int getMaxOperationsPerBatch() {
+		return maxOperationsPerBatch;
+	}
+
+	/**
+	 * @param maxOperationsPerBatch - operations sent in a single $batch request, the queue is split above this value.
+	 */
+	public void setMaxOperationsPerBatch(int maxOperationsPerBatch) {
+		this.maxOperationsPerBatch = maxOperationsPerBatch;
+	}
+
+	/**
+	 * @return number of queued operations not executed yet.
+	 */
+	public synchronized int size() {
+		return operations.size();
+	}
+
+	/**
+	 * @param apiPath - path relative to the site like /_api/web/lists
+	 * @return future with the response.
+	 */
+	public CompletableFuture<BatchResponse> get(String apiPath) {
+		return add(new Operation("GET", apiPath, Collections.emptyMap(), null));
+	}
+
+	/**
+	 * @param apiPath - path relative to the site like /_api/web/lists
+	 * @param query - query options of the request.
+	 * @return future with the response.
+	 */
+	public CompletableFuture<BatchResponse> get(String apiPath, ODataQuery query) {
+		return add(new Operation("GET", apiPath, Collections.emptyMap(), null, query));
+	}
+
+	/**
+	 * @param apiPath - path relative to the site like /_api/web/lists
+	 * @param payload - json body, can be null.
+	 * @return future with the response.
+	 */
+	public CompletableFuture<BatchResponse> post(String apiPath, JSONObject payload) {
+		return add(new Operation("POST", apiPath, Collections.emptyMap(), payload == null ? null : payload.toString()));
+	}
+
+	/**
+	 * @param apiPath - path relative to the site of the entity to update.
+	 * @param payload - json body with the __metadata type and the properties to update.
+	 * @return future with the response.
+	 */
+	public CompletableFuture<BatchResponse> merge(String apiPath, JSONObject payload) {
+		Map<String, String> headers = new LinkedHashMap<>();
+		headers.put("X-HTTP-Method", "MERGE");
+		headers.put("IF-Match", "*");
+		return add(new Operation("POST", apiPath, headers, payload.toString()));
+	}
+
+	/**
+	 * @param apiPath - path relative to the site of the entity to delete.
+	 * @return future with the response.
+	 */
+	public CompletableFuture<BatchResponse> delete(String apiPath) {
+		Map<String, String> headers = new LinkedHashMap<>();
+		headers.put("X-HTTP-Method", "DELETE");
+		headers.put("IF-Match", "*");
+		return add(new Operation("POST", apiPath, headers, null));
+	}
+
+	/**
+	 * @param fileServerRelativeUrl
+	 * @return future with the file info.
+	 */
+	public CompletableFuture<BatchResponse> getFileInfo(String fileServerRelativeUrl) {
+		return get("/_api/web/GetFileByServerRelativeUrl('" + transport.getFileUrl(fileServerRelativeUrl) + "')");
+	}
+
+	/**
+	 * @param fileServerRelatUrl
+	 * @param jsonMetadata
+	 * @return future with the response.
+	 */
+	public CompletableFuture<BatchResponse> updateFileMetadata(String fileServerRelatUrl, JSONObject jsonMetadata) {
+		return merge("/_api/web/GetFileByServerRelativeUrl('" + fileServerRelatUrl + "')/listitemallfields",
+				withMetadataType(jsonMetadata, "SP.File"));
+	}
+
+	/**
+	 * @param folderServerRelatUrl
+	 * @param jsonMetadata
+	 * @return future with the response.
+	 */
+	public CompletableFuture<BatchResponse> updateFolderMetadata(String folderServerRelatUrl, JSONObject jsonMetadata) {
+		return merge("/_api/web/GetFolderByServerRelativeUrl('" + folderServerRelatUrl + "')/listitemallfields",
+				withMetadataType(jsonMetadata, "SP.Folder"));
+	}
+
+	/**
+	 * @param baseFolderRemoteRelativeUrl
+	 * @param folder
+	 * @param payload
+	 * @return future with the created folder.
+	 */
+	public CompletableFuture<BatchResponse> createFolder(String baseFolderRemoteRelativeUrl, String folder, JSONObject payload) {
+		payload = withMetadataType(payload == null ? new JSONObject() : payload, "SP.Folder");
+		payload.put("ServerRelativeUrl", transport.getNewFolderUrl(baseFolderRemoteRelativeUrl, folder));
+		return post("/_api/web/GetFolderByServerRelativeUrl('" + baseFolderRemoteRelativeUrl + "')/folders", payload);
+	}
+
+	/**
+	 * @param fileServerRelativeUrl
+	 * @return future with the response.
+	 */
+	public CompletableFuture<BatchResponse> deleteFile(String fileServerRelativeUrl) {
+		return delete("/_api/web/GetFileByServerRelativeUrl('" + transport.getFileUrl(fileServerRelativeUrl) + "')");
+	}
+
+	/**
+	 * @param folderRemoteRelativeUrl
+	 * @return future with the response.
+	 */
+	public CompletableFuture<BatchResponse> removeFolder(String folderRemoteRelativeUrl) {
+		return delete("/_api/web/GetFolderByServerRelativeUrl('" + folderRemoteRelativeUrl + "')");
+	}
+
+	/**
+	 * @param sourceRelativeServerUrl
+	 * @param destinyRelativeServerUrl
+	 * @return future with the response.
+	 */
+	public CompletableFuture<BatchResponse> moveFile(String sourceRelativeServerUrl, String destinyRelativeServerUrl) {
+		return post("/_api/web/GetFileByServerRelativeUrl('" + transport.getFileUrl(sourceRelativeServerUrl)
+				+ "')/moveto(newUrl='" + transport.getFileUrl(destinyRelativeServerUrl) + "',flags=1)", null);
+	}
+
+	/**
+	 * @param sourceRelativeServerUrl
+	 * @param destinyRelativeServerUrl
+	 * @return future with the response.
+	 */
+	public CompletableFuture<BatchResponse> moveFolder(String sourceRelativeServerUrl, String destinyRelativeServerUrl) {
+		return post("/_api/web/GetFolderByServerRelativeUrl('" + sourceRelativeServerUrl
+				+ "')/moveto(newUrl='" + destinyRelativeServerUrl + "',flags=1)", null);
+	}
+
+	/**
+	 * @param folder
+	 * @return future with the response.
+	 */
+	public CompletableFuture<BatchResponse> breakRoleInheritance(String folder) {
+		return breakRoleInheritance(folder, false, true);
+	}
+
+	/**
+	 * @param folder
+	 * @param copyRoleAssignments - true to start from the inherited permissions.
+	 * @param clearSubscopes - true to reset the unique permissions of the subfolders and files.
+	 * @return future with the response.
+	 */
+	public CompletableFuture<BatchResponse> breakRoleInheritance(String folder, boolean copyRoleAssignments, boolean clearSubscopes) {
+		return post("/_api/web/GetFolderByServerRelativeUrl('" + folder + "')/ListItemAllFields/breakroleinheritance(copyRoleAssignments="
+				+ copyRoleAssignments + ",clearSubscopes=" + clearSubscopes + ")", null);
+	}
+
+	/**
+	 * @param email
+	 * @return future with the site user.
+	 */
+	public CompletableFuture<BatchResponse> getUserByEmail(String email) {
+		return get("/_api/web/SiteUsers/getByEmail('" + email + "')");
+	}
+
+	/**
+	 * @param folder
+	 * @param principalId
+	 * @param permission
+	 * @return future with the response.
+	 */
+	public CompletableFuture<BatchResponse> addRoleAssignment(String folder, Integer principalId, Permission permission) {
+		return post("/_api/web/GetFolderByServerRelativeUrl('" + folder
+				+ "')/ListItemAllFields/roleAssignments/addroleassignment(principalid=" + principalId + ",roleDefId=" + permission + ")", null);
+	}
+
+	/**
+	 * Removes all the permissions of a principal in a folder.
+	 *
+	 * @param folder
+	 * @param principalId
+	 * @return future with the response.
+	 */
+	public CompletableFuture<BatchResponse> removeRoleAssignments(String folder, Integer principalId) {
+		return delete("/_api/web/GetFolderByServerRelativeUrl('" + folder
+				+ "')/ListItemAllFields/roleAssignments/getbyprincipalid(" + principalId + ")");
+	}
+
+	/**
+	 * Removes a single role of a principal in a folder.
+	 *
+	 * @param folder
+	 * @param principalId
+	 * @param roleDefId
+	 * @return future with the response.
+	 */
+	public CompletableFuture<BatchResponse> removeRoleAssignment(String folder, Integer principalId, String roleDefId) {
+		return post("/_api/web/GetFolderByServerRelativeUrl('" + folder
+				+ "')/ListItemAllFields/roleAssignments/removeroleassignment(principalid=" + principalId + ",roledefid=" + roleDefId + ")", null);
+	}
+
+	private JSONObject withMetadataType(JSONObject payload, String defaultType) {
+		JSONObject meta = new JSONObject();
+		if (payload.has("type")) {
+			meta.put("type", payload.get("type"));
+		} else {
+			meta.put("type", defaultType);
+		}
+		payload.put("__metadata", meta);
+		return payload;
+	}
+
+	private synchronized CompletableFuture<BatchResponse> add(Operation operation) {
+		operations.add(operation);
+		return operation.future;
+	}
+
+	/**
+	 * Sends every queued operation, splitting them in several $batch requests if needed, and completes their futures.
+	 * The queue is emptied so the batch can be reused.
+	 *
+	 * @return the responses in the same order the operations were queued (null if the server didn't answer an operation).
+	 * @throws Exception when a whole $batch request fails.
+	 */
+	public List<BatchResponse> execute() throws Exception {
+		List<Operation> pending;
+		synchronized (this) {
+			pending = new ArrayList<>(operations);
+			operations.clear();
+		}
+		List<BatchResponse> responses = new ArrayList<>(pending.size());
+		for (int from = 0; from < pending.size(); from += maxOperationsPerBatch) {
+			List<Operation> chunk = pending.subList(from, Math.min(pending.size(), from + maxOperationsPerBatch));
+			try {
+				responses.addAll(executeChunk(chunk));
+			} catch (Exception e) {
+				for (Operation operation : pending.subList(from, pending.size())) {
+					operation.future.completeExceptionally(e);
+				}
+				throw e;
+			}
+		}
+		return responses;
+	}
+
+	private List<BatchResponse> executeChunk(List<Operation> chunk) throws Exception {
+		String boundary = "batch_" + UUID.randomUUID();
+		List<List<Operation>> parts = toParts(chunk);
+		String payload = buildPayload(parts, boundary);
+		LOG.debug("Sending $batch with {} operations", chunk.size());
+
+		ResponseEntity<byte[]> response = transport.send("multipart/mixed; boundary=" + boundary,
+				payload.getBytes(StandardCharsets.UTF_8));
+		String body = response.getBody() == null ? "" : new String(response.getBody(), StandardCharsets.UTF_8);
+		MediaType contentType = response.getHeaders().getContentType();
+		String responseBoundary = contentType == null ? null : contentType.getParameter("boundary");
+
+		List<List<BatchResponse>> parsed = parseResponse(body, responseBoundary);
+		List<BatchResponse> results = new ArrayList<>(chunk.size());
+		for (int i = 0; i < parts.size(); i++) {
+			List<Operation> operations = parts.get(i);
+			List<BatchResponse> partResponses = i < parsed.size() ? parsed.get(i) : Collections.emptyList();
+			// A failed change set is answered with a single error for all its operations.
+			boolean failedChangeSet = operations.size() > 1 && partResponses.size() == 1 && !partResponses.get(0).isSuccess();
+			for (int j = 0; j < operations.size(); j++) {
+				BatchResponse operationResponse = failedChangeSet ? partResponses.get(0)
+						: j < partResponses.size() ? partResponses.get(j) : null;
+				results.add(operationResponse);
+				complete(operations.get(j), operationResponse);
+			}
+		}
+		return results;
+	}
+
+	private static void complete(Operation operation, BatchResponse operationResponse) {
+		if (operationResponse == null) {
+			operation.future.completeExceptionally(
+					new IllegalStateException("No response in $batch for " + operation.method + " " + operation.apiPath));
+		} else if (operationResponse.isSuccess()) {
+			operation.future.complete(operationResponse);
+		} else {
+			operation.future.completeExceptionally(toException(operationResponse));
+		}
+	}
+
+	/**
+	 * @return the parts of the $batch request: a single read, or the consecutive writes that go in the same change set.
+	 */
+	private static List<List<Operation>> toParts(List<Operation> chunk) {
+		List<List<Operation>> parts = new ArrayList<>();
+		int i = 0;
+		while (i < chunk.size()) {
+			if (!chunk.get(i).isWrite()) {
+				parts.add(Collections.singletonList(chunk.get(i)));
+				i++;
+				continue;
+			}
+			int from = i;
+			while (i < chunk.size() && chunk.get(i).isWrite()) {
+				i++;
+			}
+			parts.add(chunk.subList(from, i));
+		}
+		return parts;
+	}
+
+	private String buildPayload(List<List<Operation>> parts, String boundary) throws URISyntaxException {
+		StringBuilder sb = new StringBuilder();
+		for (List<Operation> part : parts) {
+			sb.append("--").append(boundary).append(CRLF);
+			if (!part.get(0).isWrite()) {
+				appendOperation(sb, part.get(0));
+				continue;
+			}
+			String changeset = "changeset_" + UUID.randomUUID();
+			sb.append("Content-Type: multipart/mixed; boundary=").append(changeset).append(CRLF);
+			sb.append(CRLF);
+			for (Operation operation : part) {
+				sb.append("--").append(changeset).append(CRLF);
+				appendOperation(sb, operation);
+			}
+			sb.append("--").append(changeset).append("--").append(CRLF);
+		}
+		sb.append("--").append(boundary).append("--").append(CRLF);
+		return sb.toString();
+	}
+
+	private void appendOperation(StringBuilder sb, Operation operation) throws URISyntaxException {
+		sb.append("Content-Type: application/http").append(CRLF);
+		sb.append("Content-Transfer-Encoding: binary").append(CRLF);
+		sb.append(CRLF);
+		URI uri = transport.resolve(operation.apiPath);
+		if (operation.query != null) {
+			uri = operation.query.appendTo(uri);
+		}
+		sb.append(operation.method).append(' ').append(uri.toASCIIString())
+				.append(" HTTP/1.1").append(CRLF);
+		sb.append("Accept: ").append(JSON_VERBOSE).append(CRLF);
+		for (Map.Entry<String, String> header : operation.headers.entrySet()) {
+			sb.append(header.getKey()).append(": ").append(header.getValue()).append(CRLF);
+		}
+		if (operation.isWrite()) {
+			sb.append("Content-Type: ").append(JSON_VERBOSE).append(CRLF);
+		}
+		sb.append(CRLF);
+		if (operation.body != null) {
+			sb.append(operation.body).append(CRLF);
+		}
+		sb.append(CRLF);
+	}
+
+	/**
+	 * Parses a multipart/mixed $batch response.
+	 *
+	 * @param body - response body.
+	 * @param boundary - boundary of the response, if null it's taken from the first line of the body.
+	 * @return the responses of every part in order: one for a read, the ones of a change set, or a
+	 * single one when a change set fails as a whole.
+	 * @throws BatchParseException when the body isn't a multipart response.
+	 */
+	static List<List<BatchResponse>> parseResponse(String body, String boundary) throws BatchParseException {
+		String normalized = body.replace("\r\n", "\n");
+		if (boundary == null) {
+			String firstLine = normalized.trim();
+			int eol = firstLine.indexOf('\n');
+			firstLine = eol < 0 ? firstLine : firstLine.substring(0, eol);
+			if (!firstLine.startsWith("--") || firstLine.trim().length() <= 2) {
+				throw new BatchParseException("No multipart boundary in the $batch response: " + abbreviate(firstLine));
+			}
+			boundary = firstLine.substring(2).trim();
+		}
+		List<List<BatchResponse>> parts = new ArrayList<>();
+		for (String part : splitMultipart(normalized, boundary)) {
+			parts.add(parsePart(part));
+		}
+		return parts;
+	}
+
+	private static List<String> splitMultipart(String body, String boundary) {
+		List<String> parts = new ArrayList<>();
+		String delimiter = "--" + boundary;
+		int pos = body.indexOf(delimiter);
+		while (pos >= 0) {
+			int partStart = pos + delimiter.length();
+			if (body.startsWith("--", partStart)) {
+				// closing delimiter
+				break;
+			}
+			int next = body.indexOf(delimiter, partStart);
+			parts.add(next < 0 ? body.substring(partStart) : body.substring(partStart, next));
+			pos = next;
+		}
+		return parts;
+	}
+
+	/**
+	 * @return the response of the part, or the responses of the change set of the part.
+	 */
+	private static List<BatchResponse> parsePart(String part) throws BatchParseException {
+		part = stripLeadingNewLine(part);
+		int headersEnd = part.indexOf("\n\n");
+		String mimeHeaders = headersEnd < 0 ? part : part.substring(0, headersEnd);
+		String content = headersEnd < 0 ? "" : part.substring(headersEnd + 2);
+		String contentType = headerValue(mimeHeaders, "Content-Type");
+		if (contentType != null && contentType.toLowerCase().startsWith("multipart/mixed")) {
+			String changeset = MediaType.parseMediaType(contentType).getParameter("boundary");
+			if (changeset == null) {
+				throw new BatchParseException("No boundary in the change set of the $batch response: " + contentType);
+			}
+			List<BatchResponse> responses = new ArrayList<>();
+			for (String changesetPart : splitMultipart(content, changeset)) {
+				responses.addAll(parsePart(changesetPart));
+			}
+			return responses;
+		}
+		return Collections.singletonList(parseHttpResponse(content));
+	}
+
+	private static BatchResponse parseHttpResponse(String content) throws BatchParseException {
+		content = stripLeadingNewLine(content);
+		int statusEnd = content.indexOf('\n');
+		String statusLine = statusEnd < 0 ? content : content.substring(0, statusEnd);
+		String[] status = statusLine.trim().split(" ", 3);
+		if (status.length < 2 || !status[0].startsWith("HTTP/") || !status[1].matches("\\d{3}")) {
+			throw new BatchParseException("Malformed status line in the $batch response: " + abbreviate(statusLine));
+		}
+		int statusCode = Integer.parseInt(status[1]);
+		String statusText = status.length > 2 ? status[2] : "";
+
+		String rest = statusEnd < 0 ? "" : content.substring(statusEnd + 1);
+		int headersEnd = rest.startsWith("\n") ? 0 : rest.indexOf("\n\n");
+		String headerBlock = headersEnd < 0 ? rest : rest.substring(0, headersEnd);
+		String responseBody = headersEnd < 0 ? "" : rest.substring(headersEnd + (rest.startsWith("\n") ? 1 : 2));
+
+		HttpHeaders headers = new HttpHeaders();
+		for (String line : headerBlock.split("\n")) {
+			int colon = line.indexOf(':');
+			if (colon > 0) {
+				headers.add(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+			}
+		}
+		return new BatchResponse(statusCode, statusText, headers, responseBody.trim());
+	}
+
+	private static String headerValue(String headers, String name) {
+		for (String line : headers.split("\n")) {
+			int colon = line.indexOf(':');
+			if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase(name)) {
+				return line.substring(colon + 1).trim();
+			}
+		}
+		return null;
+	}
+
+	private static String abbreviate(String value) {
+		return value.length() > 100 ? value.substring(0, 100) + "..." : value;
+	}
+
+	private static String stripLeadingNewLine(String value) {
+		while (value.startsWith("\n")) {
+			value = value.substring(1);
+		}
+		return value;
+	}
+
+	private static RestClientResponseException toException(BatchResponse response) {
+		byte[] body = response.getBody() == null ? new byte[0] : response.getBody().getBytes(StandardCharsets.UTF_8);
+		HttpStatus status = HttpStatus.resolve(response.getStatusCode());
+		if (status == null) {
+			return new UnknownHttpStatusCodeException(response.getStatusCode(), response.getStatusText(),
+					response.getHeaders(), body, StandardCharsets.UTF_8);
+		}
+		if (status.is4xxClientError()) {
+			return HttpClientErrorException.create(status, response.getStatusText(), response.getHeaders(), body, StandardCharsets.UTF_8);
+		}
+		return HttpServerErrorException.create(status, response.getStatusText(), response.getHeaders(), body, StandardCharsets.UTF_8);
+	}
+}
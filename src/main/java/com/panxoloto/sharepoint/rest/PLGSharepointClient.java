@@ -1,17 +1,45 @@
 package com.panxoloto.sharepoint.rest;
 
+import java.io.Closeable;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
 
 import org.json.JSONObject;
 import org.springframework.core.io.Resource;
+import org.springframework.web.client.ResponseExtractor;
 
+import com.panxoloto.sharepoint.rest.helper.CamlQuery;
+import com.panxoloto.sharepoint.rest.helper.ListRows;
+import com.panxoloto.sharepoint.rest.helper.ListSchema;
+import com.panxoloto.sharepoint.rest.helper.MoveCopyOptions;
+import com.panxoloto.sharepoint.rest.helper.ODataMetadata;
+import com.panxoloto.sharepoint.rest.helper.ODataQuery;
+import com.panxoloto.sharepoint.rest.helper.ODataStreamParser;
 import com.panxoloto.sharepoint.rest.helper.Permission;
 
-public interface PLGSharepointClient {
+/**
+ * Implementations are thread safe, share one instance instead of creating one per thread.
+ */
+public interface PLGSharepointClient extends Closeable {
 	/**
 	 * @throws Exception
 	 */
 	void refreshToken() throws Exception;
+
+	/**
+	 * Creates a batch to queue operations and send them together in OData $batch requests.
+	 * 
+	 * @return a new empty batch.
+	 */
+	PLGSharepointBatch newBatch();
+
+	/**
+	 * @return cache of the site user and group ids used to resolve principals.
+	 */
+	PrincipalCache getPrincipalCache();
 	
 	/**
 	 * Method to get json string wich you can transform to a JSONObject and get data from it.
@@ -42,6 +70,25 @@ public interface PLGSharepointClient {
 	 */
 	JSONObject getListFields(String title) throws Exception;
 
+	/**
+	 * @param title - Site list title.
+	 * @return the current change token of the list (CurrentChangeToken.StringValue).
+	 * @throws Exception
+	 */
+	String getListChangeToken(String title) throws Exception;
+
+	/**
+	 * Item changes of a list after a change token (GetChanges): added, updated, deleted, restored,
+	 * renamed and moved items. Each SP.ChangeItem has ChangeType, ItemId and its ChangeToken, read again
+	 * from the token of the last change to get the next ones. See ListChangeSync.
+	 * 
+	 * @param title - Site list title.
+	 * @param changeTokenStart - change token the changes are read after.
+	 * @return json with the changes in d.results, at most 1000 per call.
+	 * @throws Exception
+	 */
+	JSONObject getListChanges(String title, String changeTokenStart) throws Exception;
+
 
 	
 	
@@ -74,6 +121,229 @@ public interface PLGSharepointClient {
 	 */
 	JSONObject getListItems(String title, String jsonExtendedAttrs, String filter) throws Exception;
 
+	/**
+	 * Items of a list with the query options, use select to retrieve only the needed fields and
+	 * top to choose the page size.
+	 * 
+	 * @param title - Site list title.
+	 * @param query - filter, projection, sort and page size of the items.
+	 * @return first page of items, d.__next has the link to the next one.
+	 * @throws Exception
+	 */
+	JSONObject getListItems(String title, ODataQuery query) throws Exception;
+
+	/**
+	 * Follows a next page link of a paged response (__next attribute).
+	 * 
+	 * @param nextPageUrl - absolute url of the next page.
+	 * @return json object with the page.
+	 * @throws Exception
+	 */
+	JSONObject getNextPage(String nextPageUrl) throws Exception;
+
+	/**
+	 * Iterates over all the items of a list, the next page is fetched in background while the current one is consumed.
+	 * The iterator must be closed if it's not fully consumed.
+	 * 
+	 * @param title - Site list title.
+	 * @param filter - odata filter, null or empty to retrieve all items.
+	 * @return iterator over the items.
+	 * @throws Exception
+	 */
+	PageIterator<JSONObject> iterateListItems(String title, String filter) throws Exception;
+
+	/**
+	 * Same as iterateListItems requesting the given metadata level instead of the client one.
+	 * Pages are returned in the verbose shape anyway.
+	 * 
+	 * @param title - Site list title.
+	 * @param filter - odata filter, null or empty to retrieve all items.
+	 * @param metadata - metadata level requested for this scan.
+	 * @return iterator over the items, close it if it's not fully consumed.
+	 * @throws Exception
+	 */
+	PageIterator<JSONObject> iterateListItems(String title, String filter, ODataMetadata metadata) throws Exception;
+
+	/**
+	 * Same as iterateListItems with the query options instead of a filter.
+	 * 
+	 * @param title - Site list title.
+	 * @param query - filter, projection, sort and page size of the items.
+	 * @return iterator over the items, close it if it's not fully consumed.
+	 * @throws Exception
+	 */
+	PageIterator<JSONObject> iterateListItems(String title, ODataQuery query) throws Exception;
+
+	/**
+	 * @param title - Site list title.
+	 * @param query - filter, projection, sort and page size of the items.
+	 * @param metadata - metadata level requested for this scan.
+	 * @return iterator over the items, close it if it's not fully consumed.
+	 * @throws Exception
+	 */
+	PageIterator<JSONObject> iterateListItems(String title, ODataQuery query, ODataMetadata metadata) throws Exception;
+
+	/**
+	 * Same as iterateListItems but as a stream, close the stream if it's not fully consumed.
+	 * 
+	 * @param title - Site list title.
+	 * @param filter - odata filter, null or empty to retrieve all items.
+	 * @return stream of items.
+	 * @throws Exception
+	 */
+	Stream<JSONObject> streamListItems(String title, String filter) throws Exception;
+
+	/**
+	 * Reads every item of a list following the next page links. Each response is decoded while
+	 * it's received instead of building a String and a JSONObject per page, so only one item is
+	 * in memory at a time (see ODataStreamParser).
+	 * 
+	 * @param title - Site list title.
+	 * @param filter - odata filter, null or empty to retrieve all items.
+	 * @param handler - receives every item as a map, without the __metadata and __deferred blocks.
+	 * @return number of items read.
+	 * @throws Exception
+	 */
+	long forEachListItem(String title, String filter, ODataStreamParser.ItemHandler handler) throws Exception;
+
+	/**
+	 * Same as forEachListItem requesting the given metadata level instead of the client one.
+	 * 
+	 * @param title - Site list title.
+	 * @param filter - odata filter, null or empty to retrieve all items.
+	 * @param metadata - metadata level requested for this scan, NONE is the smallest response.
+	 * @param handler - receives every item as a map.
+	 * @return number of items read.
+	 * @throws Exception
+	 */
+	long forEachListItem(String title, String filter, ODataMetadata metadata, ODataStreamParser.ItemHandler handler) throws Exception;
+
+	/**
+	 * Same as forEachListItem with the query options instead of a filter.
+	 * 
+	 * @param title - Site list title.
+	 * @param query - filter, projection, sort and page size of the items.
+	 * @param handler - receives every item as a map.
+	 * @return number of items read.
+	 * @throws Exception
+	 */
+	long forEachListItem(String title, ODataQuery query, ODataStreamParser.ItemHandler handler) throws Exception;
+
+	/**
+	 * @param title - Site list title.
+	 * @param query - filter, projection, sort and page size of the items.
+	 * @param metadata - metadata level requested for this scan, NONE is the smallest response.
+	 * @param handler - receives every item as a map.
+	 * @return number of items read.
+	 * @throws Exception
+	 */
+	long forEachListItem(String title, ODataQuery query, ODataMetadata metadata, ODataStreamParser.ItemHandler handler) throws Exception;
+
+	/**
+	 * Reads a list of any size splitting it in ranges of ID, or of the indexed column set in the
+	 * ListScanner, read in parallel. Every range stays under the list view threshold, so the filter
+	 * can use columns that aren't indexed. Items are not sorted.
+	 * 
+	 * @param title - Site list title.
+	 * @param query - filter, projection and page size applied to every range, can be null.
+	 * @return stream of the items as maps, close it if it's not fully consumed.
+	 * @throws Exception
+	 */
+	Stream<Map<String, Object>> scanListItems(String title, ODataQuery query) throws Exception;
+
+	/**
+	 * Same as scanListItems delivering the items to the handler in the calling thread.
+	 * 
+	 * @param title - Site list title.
+	 * @param query - filter, projection and page size applied to every range, can be null.
+	 * @param handler - receives every item.
+	 * @return number of items read.
+	 * @throws Exception
+	 */
+	long scanListItems(String title, ODataQuery query, ODataStreamParser.ItemHandler handler) throws Exception;
+
+	/**
+	 * Schema of the list, cached and read again only when the list version changes.
+	 * 
+	 * @param title - Site list title.
+	 * @return columns of the list with the type used to decode them.
+	 * @throws Exception
+	 */
+	ListSchema getListSchema(String title) throws Exception;
+
+	/**
+	 * Reads the items into typed columns (ints, doubles, epoch millis dates, lookup and person ids)
+	 * following the cached list schema, instead of a map per item. The columns are the ones of the
+	 * $select of the query, or all the list fields when there's no $select.
+	 * 
+	 * @param title - Site list title.
+	 * @param query - filter, projection, sort and page size of the items, can be null.
+	 * @param handler - receives the rows of every page, reused for the next one.
+	 * @return number of items read.
+	 * @throws Exception
+	 */
+	long forEachListRow(String title, ODataQuery query, ListRows.RowHandler handler) throws Exception;
+
+	/**
+	 * Same as forEachListRow requesting the given metadata level instead of the client one.
+	 * 
+	 * @param title - Site list title.
+	 * @param query - filter, projection, sort and page size of the items, can be null.
+	 * @param metadata - metadata level requested for this scan, NONE is the smallest response.
+	 * @param handler - receives the rows of every page, reused for the next one.
+	 * @return number of items read.
+	 * @throws Exception
+	 */
+	long forEachListRow(String title, ODataQuery query, ODataMetadata metadata, ListRows.RowHandler handler) throws Exception;
+
+	/**
+	 * Reads a page of rows with RenderListDataAsStream, usually faster than the items endpoint for
+	 * wide lists: lookup and person fields come resolved in the same response and the view can be
+	 * scoped to a folder and its subfolders.
+	 * 
+	 * @param title - Site list title.
+	 * @param query - CAML view of the rows.
+	 * @param folderServerRelativeUrl - folder the view is scoped to, null for the root folder.
+	 * @param nextHref - NextHref of the previous page, null for the first one.
+	 * @return json with the rows in Row and the NextHref of the next page.
+	 * @throws Exception
+	 */
+	JSONObject renderListData(String title, CamlQuery query, String folderServerRelativeUrl, String nextHref) throws Exception;
+
+	/**
+	 * Iterates over all the rows of a RenderListDataAsStream view following the NextHref links, the
+	 * next page is fetched in background while the current one is consumed.
+	 * 
+	 * @param title - Site list title.
+	 * @param query - CAML view of the rows.
+	 * @param folderServerRelativeUrl - folder the view is scoped to, null for the root folder.
+	 * @return iterator over the rows, close it if it's not fully consumed.
+	 * @throws Exception
+	 */
+	PageIterator<JSONObject> iterateRenderListData(String title, CamlQuery query, String folderServerRelativeUrl) throws Exception;
+
+	/**
+	 * Same as iterateRenderListData but as a stream, close the stream if it's not fully consumed.
+	 * 
+	 * @param title - Site list title.
+	 * @param query - CAML view of the rows.
+	 * @param folderServerRelativeUrl - folder the view is scoped to, null for the root folder.
+	 * @return stream of rows.
+	 * @throws Exception
+	 */
+	Stream<JSONObject> streamRenderListData(String title, CamlQuery query, String folderServerRelativeUrl) throws Exception;
+
+	/**
+	 * Lists every file and folder under a folder with a single paged RecursiveAll view of the
+	 * library, or crawling the folders in parallel when the view can't be used, see FolderTreeLister.
+	 * 
+	 * @param listTitle - title of the library of the folder, null to crawl the folders.
+	 * @param folderServerRelativeUrl - root of the tree (/SITEURL/library/folder), not listed itself.
+	 * @return stream of entries with path, size, modification date and etag, close it if it's not fully consumed.
+	 * @throws Exception
+	 */
+	Stream<FolderTreeLister.Entry> listFolderTree(String listTitle, String folderServerRelativeUrl) throws Exception;
+
 	/**
 	 * @param folder folder server relative URL to check (/SITEURL/folder)
 	 * @param jsonExtendedAttrs extended body for the query.
@@ -107,6 +377,22 @@ public interface PLGSharepointClient {
 	 */
 	JSONObject getFolderFilesByRelativeUrl(String folder, String jsonExtendedAttrs) throws Exception;
 
+	/**
+	 * @param folder folder server relative URL to retrieve (/SITEURL/folder)
+	 * @param query filter, projection and sort of the subfolders, top only keeps the first ones.
+	 * @return json representing all the folders, Folder/Folders isn't paged so there's no d.__next.
+	 * @throws Exception thrown when something went wrong.
+	 */
+	JSONObject getFolderFoldersByRelativeUrl(String folder, ODataQuery query) throws Exception;
+
+	/**
+	 * @param folder folder server relative URL to retrieve (/SITEURL/folder)
+	 * @param query filter, projection and sort of the files, top only keeps the first ones.
+	 * @return json representing all the files, Folder/Files isn't paged so there's no d.__next.
+	 * @throws Exception thrown when something went wrong.
+	 */
+	JSONObject getFolderFilesByRelativeUrl(String folder, ODataQuery query) throws Exception;
+
 	/**
 	 * @param fileServerRelativeUrl
 	 * @return
@@ -114,6 +400,16 @@ public interface PLGSharepointClient {
 	 */
 	Boolean deleteFile(String fileServerRelativeUrl) throws Exception;
 
+	/**
+	 * Deletes a file by its full path, resolved the same way by every client (deleteFile takes a
+	 * path relative to the site on sharepoint online).
+	 * 
+	 * @param fileUrl - absolute or server relative url of the file (/sites/mysite/Shared Documents/file.txt).
+	 * @return true if the file was deleted.
+	 * @throws Exception
+	 */
+	Boolean deleteFileByPath(String fileUrl) throws Exception;
+
 	/**
 	 * @param fileServerRelativeUrl
 	 * @return
@@ -143,6 +439,48 @@ public interface PLGSharepointClient {
 	 * @throws Exception
 	 */
 	Resource downloadFile(String fileServerRelativeUrl, String fileName) throws Exception;
+
+	/**
+	 * Downloads a file handing the raw response to the extractor. The connection is released as soon as the extractor returns.
+	 * 
+	 * @param fileServerRelativeUrl
+	 * @param extractor - reads the response body.
+	 * @return the value returned by the extractor.
+	 * @throws Exception
+	 */
+	<T> T downloadFile(String fileServerRelativeUrl, ResponseExtractor<T> extractor) throws Exception;
+
+	/**
+	 * Streams a file into a local path, the content is never held in the heap.
+	 * 
+	 * @param fileServerRelativeUrl
+	 * @param target - local file, created or truncated.
+	 * @return bytes downloaded and throughput.
+	 * @throws Exception
+	 */
+	TransferStats downloadTo(String fileServerRelativeUrl, Path target) throws Exception;
+
+	/**
+	 * Streams a file into a channel, the channel is not closed.
+	 * 
+	 * @param fileServerRelativeUrl
+	 * @param channel - destination of the content.
+	 * @return bytes downloaded and throughput.
+	 * @throws Exception
+	 */
+	TransferStats downloadTo(String fileServerRelativeUrl, WritableByteChannel channel) throws Exception;
+
+	/**
+	 * Downloads a file fetching several byte ranges in parallel, see SegmentedDownloader. Starting it again
+	 * with the same target after a failure resumes the download.
+	 * 
+	 * @param fileServerRelativeUrl
+	 * @param target - local file.
+	 * @return bytes downloaded and throughput.
+	 * @throws Exception
+	 */
+	TransferStats downloadSegmented(String fileServerRelativeUrl, Path target) throws Exception;
+
 	/**
 	 * @param folder
 	 * @param resource
@@ -161,6 +499,18 @@ public interface PLGSharepointClient {
 	 * @throws Exception
 	 */
 	JSONObject uploadFile(String folder, Resource resource, String fileName, JSONObject jsonMetadata) throws Exception;
+
+	/**
+	 * Resumes a chunked upload from its last committed offset, big files and streams are uploaded in chunks by uploadFile.
+	 * 
+	 * @param session - session of the failed upload, taken from the ChunkedUploadException.
+	 * @param resource - the same content that was being uploaded from its start, a file, a byte array or a new stream.
+	 * @param jsonMetadata - metadata to set once the file is uploaded.
+	 * @return file info.
+	 * @throws Exception
+	 */
+	JSONObject resumeUpload(ChunkedUploadSession session, Resource resource, JSONObject jsonMetadata) throws Exception;
+
 	
 	/**
 	 * @param fileServerRelatUrl
@@ -215,6 +565,73 @@ public interface PLGSharepointClient {
 	 * @throws Exception
 	 */
 	Boolean removeFolder(String folderRemoteRelativeUrl) throws Exception;
+
+	/**
+	 * Server side copy of a file (SP.MoveCopyUtil.CopyFileByPath), the content doesn't go through
+	 * the client and the target can be in another site of the tenant.
+	 *
+	 * @param sourceUrl - absolute or server relative url of the file.
+	 * @param destinationUrl - absolute or server relative url of the copy.
+	 * @param overwrite - true to replace an existing file.
+	 * @param options - options of the copy, null for the defaults.
+	 * @return json response.
+	 * @throws Exception
+	 */
+	JSONObject copyFileByPath(String sourceUrl, String destinationUrl, boolean overwrite, MoveCopyOptions options) throws Exception;
+
+	/**
+	 * Server side move of a file (SP.MoveCopyUtil.MoveFileByPath), the target can be in another site.
+	 *
+	 * @param sourceUrl - absolute or server relative url of the file.
+	 * @param destinationUrl - absolute or server relative url of the target.
+	 * @param overwrite - true to replace an existing file.
+	 * @param options - options of the move, null for the defaults.
+	 * @return json response.
+	 * @throws Exception
+	 */
+	JSONObject moveFileByPath(String sourceUrl, String destinationUrl, boolean overwrite, MoveCopyOptions options) throws Exception;
+
+	/**
+	 * Server side copy of a folder and its contents (SP.MoveCopyUtil.CopyFolderByPath).
+	 *
+	 * @param sourceUrl - absolute or server relative url of the folder.
+	 * @param destinationUrl - absolute or server relative url of the copy.
+	 * @param options - options of the copy, null for the defaults.
+	 * @return json response.
+	 * @throws Exception
+	 */
+	JSONObject copyFolderByPath(String sourceUrl, String destinationUrl, MoveCopyOptions options) throws Exception;
+
+	/**
+	 * Server side move of a folder and its contents (SP.MoveCopyUtil.MoveFolderByPath).
+	 *
+	 * @param sourceUrl - absolute or server relative url of the folder.
+	 * @param destinationUrl - absolute or server relative url of the target.
+	 * @param options - options of the move, null for the defaults.
+	 * @return json response.
+	 * @throws Exception
+	 */
+	JSONObject moveFolderByPath(String sourceUrl, String destinationUrl, MoveCopyOptions options) throws Exception;
+
+	/**
+	 * Queues asynchronous copy or move jobs (Site.CreateCopyJobs), for large folders and bulk
+	 * migrations. Follow them with getCopyJobProgress or CopyJobMonitor.
+	 *
+	 * @param sourceUrls - absolute or server relative urls of the files and folders.
+	 * @param destinationUrl - absolute or server relative url of the target folder.
+	 * @param move - true to delete the sources once copied.
+	 * @param options - options of the jobs, null for the defaults.
+	 * @return json response, d.CreateCopyJobs.results has the JobId, JobQueueUri and EncryptionKey of every job.
+	 * @throws Exception
+	 */
+	JSONObject createCopyJobs(List<String> sourceUrls, String destinationUrl, boolean move, MoveCopyOptions options) throws Exception;
+
+	/**
+	 * @param copyJobInfo - job returned by createCopyJobs.
+	 * @return json response, d.GetCopyJobProgress has the JobState (0 when finished) and the Logs since the last call.
+	 * @throws Exception
+	 */
+	JSONObject getCopyJobProgress(JSONObject copyJobInfo) throws Exception;
 	
 	
 	
@@ -1,34 +1,100 @@
 package com.panxoloto.sharepoint.rest;
 
+import java.io.IOException;
 import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import org.apache.http.pool.PoolStats;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpRange;
+import org.springframework.http.MediaType;
 import org.springframework.http.RequestEntity;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.StreamingHttpOutputMessage;
 import org.springframework.util.MultiValueMap;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.client.ResponseExtractor;
 import org.springframework.web.client.RestTemplate;
 
+import com.panxoloto.sharepoint.rest.helper.CamlQuery;
+import com.panxoloto.sharepoint.rest.helper.ChannelCopyHelper;
 import com.panxoloto.sharepoint.rest.helper.AuthTokenHelperOnline;
 import com.panxoloto.sharepoint.rest.helper.HeadersHelper;
+import com.panxoloto.sharepoint.rest.helper.HttpClientHelper;
+import com.panxoloto.sharepoint.rest.helper.HttpClientPoolConfig;
+import com.panxoloto.sharepoint.rest.helper.HttpProtocols;
+import com.panxoloto.sharepoint.rest.helper.ListRows;
+import com.panxoloto.sharepoint.rest.helper.ListSchema;
+import com.panxoloto.sharepoint.rest.helper.MoveCopyOptions;
+import com.panxoloto.sharepoint.rest.helper.ODataMetadata;
+import com.panxoloto.sharepoint.rest.helper.ODataQuery;
+import com.panxoloto.sharepoint.rest.helper.ODataStreamParser;
 import com.panxoloto.sharepoint.rest.helper.Permission;
-
+import com.panxoloto.sharepoint.rest.helper.ReauthenticationInterceptor;
+import com.panxoloto.sharepoint.rest.helper.SharepointExecutors;
+import com.panxoloto.sharepoint.rest.helper.ThrottlingRequestFactory;
+
+/**
+ * Thread safe, a single instance can be shared by all the threads of the application. Every
+ * request builds its own headers and the auth state is replaced as a whole when it's refreshed.
+ */
 public class PLGSharepointClientOnline implements PLGSharepointClient {
 
 
 	private static final Logger LOG = LoggerFactory.getLogger(com.panxoloto.sharepoint.rest.PLGSharepointClientOnline.class);
-	private MultiValueMap<String, String> headers;
 	private RestTemplate restTemplate;
 	private String spSiteUrl;
 	private AuthTokenHelperOnline tokenHelper;
+	private ReauthenticationInterceptor reauthenticationInterceptor;
 	private HeadersHelper headerHelper;
+	private HttpClientHelper httpClientHelper;
+	private volatile ExecutorService executorService;
+	private volatile boolean ownExecutorService = true;
+	private volatile int pageReadAhead = DEFAULT_PAGE_READ_AHEAD;
+	// The transport of the uploader and the downloader, its methods aren't part of the client api.
+	private final FileTransport fileTransport = new FileTransport() {
+		@Override
+		public <T> T downloadFileRange(String fileServerRelativeUrl, long firstByte, long lastByte, String eTag, ResponseExtractor<T> extractor) throws Exception {
+			return PLGSharepointClientOnline.this.downloadFileRange(fileServerRelativeUrl, firstByte, lastByte, eTag, extractor);
+		}
+
+		@Override
+		public JSONObject postBinary(String apiPath, byte[] content, int length) throws Exception {
+			return PLGSharepointClientOnline.this.postBinary(apiPath, content, length);
+		}
+	};
+	private volatile ChunkedFileUploader chunkedUploader = new ChunkedFileUploader(this, fileTransport, ChunkedFileUploader.DEFAULT_CHUNK_SIZE);
+	private volatile long chunkedUploadThreshold = DEFAULT_CHUNKED_UPLOAD_THRESHOLD;
+	private final SegmentedDownloader segmentedDownloader = new SegmentedDownloader(this, fileTransport, this::getExecutorService);
+	private final ListScanner listScanner = new ListScanner(this, this::getExecutorService);
+	private final FolderTreeLister folderTreeLister = new FolderTreeLister(this, this::getExecutorService);
+	private final DirectoryMirror directoryMirror = new DirectoryMirror(this, this::getExecutorService);
+	private final CopyJobMonitor copyJobMonitor = new CopyJobMonitor(this, this::getExecutorService);
+	private final PermissionReconciler permissionReconciler = new PermissionReconciler(this);
+	private final PrincipalCache principalCache = new PrincipalCache(this);
+	private final ListSchemaCache listSchemaCache = new ListSchemaCache(this);
+
+	public static final int DEFAULT_PAGE_READ_AHEAD = 2;
+	public static final long DEFAULT_CHUNKED_UPLOAD_THRESHOLD = 32 * 1024 * 1024;
 	
 	/**
 	 * @param spSiteUr.- The sharepoint site URL like https://contoso.sharepoint.com/sites/contososite
@@ -41,8 +107,34 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 	 */
 	public PLGSharepointClientOnline(String user, 
 			String passwd, String domain, String spSiteUrl) {
+		this(user, passwd, domain, spSiteUrl, new HttpClientPoolConfig());
+	}
+
+	/**
+	 * @param user - The user email to access sharepoint online site.
+	 * @param passwd - the user password to access sharepoint online site.
+	 * @param domain - the domain without protocol and no uri like contoso.sharepoint.com
+	 * @param spSiteUrl - The sharepoint site URI like /sites/contososite
+	 * @param poolConfig - connection pool settings for the http client shared with the auth helper.
+	 */
+	public PLGSharepointClientOnline(String user, 
+			String passwd, String domain, String spSiteUrl, HttpClientPoolConfig poolConfig) {
+		this(user, passwd, domain, spSiteUrl, poolConfig, HttpProtocols.HTTPS, null);
+	}
+
+	/**
+	 * Login against another protocol and security token service, like a stub site.
+	 * 
+	 * @param protocol - protocol of the site and its login.
+	 * @param tokenLoginUrl - security token service of the login, null for the one of Microsoft.
+	 */
+	PLGSharepointClientOnline(String user, String passwd, String domain, String spSiteUrl,
+			HttpClientPoolConfig poolConfig, HttpProtocols protocol, String tokenLoginUrl) {
 		super();
-		this.restTemplate = new RestTemplate();
+		// Cookies are sent by hand in the headers, so the http client must not manage them.
+		this.httpClientHelper = new HttpClientHelper(poolConfig, null, false);
+		this.restTemplate = new RestTemplate(this.httpClientHelper.getRequestFactory());
+		this.executorService = SharepointExecutors.newDaemonThreadPool("plg-sharepoint");
 		this.spSiteUrl = spSiteUrl;
 		if (this.spSiteUrl.endsWith("/")) {
 			LOG.debug("spSiteUri ends with /, removing character");
@@ -52,7 +144,16 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 			LOG.debug("spSiteUri doesnt start with /, adding character");
 			this.spSiteUrl = String.format("%s%s", "/", this.spSiteUrl);
 		}
-		this.tokenHelper = new AuthTokenHelperOnline(this.restTemplate, user, passwd, domain, spSiteUrl);
+		// The login has its own request factory, so it's not replayed by the reauthentication.
+		RestTemplate authRestTemplate = new RestTemplate(this.httpClientHelper.newRequestFactory());
+		this.tokenHelper = new AuthTokenHelperOnline(authRestTemplate, user, passwd, domain, spSiteUrl);
+		this.tokenHelper.setProtocol(protocol);
+		if (tokenLoginUrl != null) {
+			this.tokenHelper.setTokenLoginUrl(tokenLoginUrl);
+		}
+		this.reauthenticationInterceptor = new ReauthenticationInterceptor(this.tokenHelper);
+		// A replay handler rather than an interceptor, interceptors buffer every request body.
+		this.httpClientHelper.getRequestFactory().setReplayHandler(this.reauthenticationInterceptor);
 		try {
 			LOG.debug("Wrapper auth initialization performed successfully. Now you can perform actions on the site.");
 			this.tokenHelper.init();
@@ -69,6 +170,254 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 	public void refreshToken() throws Exception {
 		this.tokenHelper.init();
 	}
+
+	/**
+	 * @return interceptor logging in again when the session is rejected, to configure it.
+	 */
+	public ReauthenticationInterceptor getReauthenticationInterceptor() {
+		return reauthenticationInterceptor;
+	}
+
+	/**
+	 * @return the request factory retrying throttled requests, to configure it and read its counters.
+	 */
+	public ThrottlingRequestFactory getThrottlingRequestFactory() {
+		return this.httpClientHelper.getRequestFactory();
+	}
+
+	/**
+	 * Usage of the connection pool shared by every request of this client, useful to check
+	 * that connections are being reused (available connections grow while leased stays low).
+	 * Not part of PLGSharepointClient, the statistics are the ones of the Apache http client.
+	 *
+	 * @return pool statistics for all routes.
+	 */
+	public PoolStats getConnectionPoolStats() {
+		return this.httpClientHelper.getPoolStats();
+	}
+
+	/**
+	 * @return a new batch to queue operations and send them in $batch requests.
+	 */
+	@Override
+	public PLGSharepointBatch newBatch() {
+		return new PLGSharepointBatch(new PLGSharepointBatch.BatchTransport() {
+			@Override
+			public URI resolve(String apiPath) throws URISyntaxException {
+				return tokenHelper.getSharepointSiteUrl(apiPath);
+			}
+
+			@Override
+			public ResponseEntity<byte[]> send(String contentType, byte[] payload) throws Exception {
+				return executeBatch(contentType, payload);
+			}
+
+			@Override
+			public String getFileUrl(String fileServerRelativeUrl) {
+				return spSiteUrl + "/" + fileServerRelativeUrl;
+			}
+
+			@Override
+			public String getNewFolderUrl(String baseFolderRemoteRelativeUrl, String folder) {
+				return folder;
+			}
+		});
+	}
+
+	private ResponseEntity<byte[]> executeBatch(String contentType, byte[] payload) throws Exception {
+		MultiValueMap<String, String> headers = headerHelper.getPostHeaders("");
+		headers.remove("Content-length");
+		headers.set("Content-Type", contentType);
+
+		URI uri = this.tokenHelper.getSharepointSiteUrl("/_api/$batch");
+		LOG.debug(String.format("URI: %s", uri ));
+
+		RequestEntity<byte[]> requestEntity = new RequestEntity<>(payload,
+				headers, HttpMethod.POST,
+				uri
+		);
+		return restTemplate.exchange(requestEntity, byte[].class);
+	}
+
+	/**
+	 * @return executor used for background work like page prefetch.
+	 */
+	public ExecutorService getExecutorService() {
+		return executorService;
+	}
+
+	/**
+	 * Replaces the executor used for background work and bulk operations by one running each task
+	 * in a virtual thread. It has no effect on jvms older than 21.
+	 * 
+	 * @return true if the client now runs its tasks in virtual threads.
+	 */
+	public boolean useVirtualThreads() {
+		if (!SharepointExecutors.isVirtualThreadSupported()) {
+			return false;
+		}
+		ExecutorService previous = this.executorService;
+		boolean ownPrevious = this.ownExecutorService;
+		this.executorService = SharepointExecutors.newVirtualThreadPerTaskExecutor("plg-sharepoint");
+		this.ownExecutorService = true;
+		if (ownPrevious) {
+			previous.shutdown();
+		}
+		return true;
+	}
+
+	/**
+	 * Replaces the executor used for background work, the given executor is not shutdown on close.
+	 * 
+	 * @param executorService
+	 */
+	public void setExecutorService(ExecutorService executorService) {
+		if (this.ownExecutorService) {
+			this.executorService.shutdown();
+		}
+		this.executorService = executorService;
+		this.ownExecutorService = false;
+	}
+
+	/**
+	 * @return max number of pages fetched ahead by the list item iterators.
+	 */
+	public int getPageReadAhead() {
+		return pageReadAhead;
+	}
+
+	public void setPageReadAhead(int pageReadAhead) {
+		this.pageReadAhead = pageReadAhead;
+	}
+
+	/**
+	 * @return metadata level requested by default in the Accept header.
+	 */
+	public ODataMetadata getODataMetadata() {
+		return headerHelper.getMetadata();
+	}
+
+	/**
+	 * @param metadata - metadata level requested by default, NONE or MINIMAL make the responses much smaller.
+	 * Responses are returned in the verbose shape whatever the level, see ODataMetadata.
+	 */
+	public void setODataMetadata(ODataMetadata metadata) {
+		headerHelper.setMetadata(metadata);
+	}
+
+	/**
+	 * @return uploader used for files over the chunked upload threshold.
+	 */
+	public ChunkedFileUploader getChunkedUploader() {
+		return chunkedUploader;
+	}
+
+	FileTransport getFileTransport() {
+		return fileTransport;
+	}
+
+	/**
+	 * @param chunkSize - size in bytes of every chunk of the chunked uploads.
+	 */
+	public void setChunkSize(int chunkSize) {
+		ChunkedFileUploader uploader = new ChunkedFileUploader(this, fileTransport, chunkSize);
+		uploader.setMaxRetries(this.chunkedUploader.getMaxRetries());
+		uploader.setRetryDelayMillis(this.chunkedUploader.getRetryDelayMillis());
+		this.chunkedUploader = uploader;
+	}
+
+	public long getChunkedUploadThreshold() {
+		return chunkedUploadThreshold;
+	}
+
+	/**
+	 * @param chunkedUploadThreshold - resources bigger than this size in bytes are uploaded in chunks.
+	 */
+	public void setChunkedUploadThreshold(long chunkedUploadThreshold) {
+		this.chunkedUploadThreshold = chunkedUploadThreshold;
+	}
+
+	/**
+	 * @return downloader used by downloadSegmented, to configure the segments.
+	 */
+	public SegmentedDownloader getSegmentedDownloader() {
+		return segmentedDownloader;
+	}
+
+	/**
+	 * @return scanner used by scanListItems, to configure the ranges and concurrency.
+	 */
+	public ListScanner getListScanner() {
+		return listScanner;
+	}
+
+	/**
+	 * @return lister used by listFolderTree, to configure the page size and the crawl concurrency.
+	 */
+	public FolderTreeLister getFolderTreeLister() {
+		return folderTreeLister;
+	}
+
+	/**
+	 * @return mirror of local directories into document libraries of this client.
+	 */
+	public DirectoryMirror getDirectoryMirror() {
+		return directoryMirror;
+	}
+
+	/**
+	 * @return monitor of the server side copy jobs of this client.
+	 */
+	public CopyJobMonitor getCopyJobMonitor() {
+		return copyJobMonitor;
+	}
+
+	/**
+	 * @return reconciler applying the desired permissions of folders in batches.
+	 */
+	public PermissionReconciler getPermissionReconciler() {
+		return permissionReconciler;
+	}
+
+	/**
+	 * @return cache of the site user and group ids, to configure its ttl.
+	 */
+	@Override
+	public PrincipalCache getPrincipalCache() {
+		return principalCache;
+	}
+
+	/**
+	 * @return cache of the list schemas used by forEachListRow, to configure its revalidation.
+	 */
+	public ListSchemaCache getListSchemaCache() {
+		return listSchemaCache;
+	}
+
+	HeadersHelper getHeaderHelper() {
+		return headerHelper;
+	}
+
+	AuthTokenHelperOnline getTokenHelper() {
+		return tokenHelper;
+	}
+
+	String getSpSiteUrl() {
+		return spSiteUrl;
+	}
+
+	/**
+	 * Closes the pooled connections. The client can't be used after this.
+	 */
+	@Override
+	public void close() throws IOException {
+		this.copyJobMonitor.close();
+		if (this.ownExecutorService) {
+			this.executorService.shutdownNow();
+		}
+		this.tokenHelper.close();
+		this.httpClientHelper.close();
+	}
 	
 	/**
 	 * Method to get json string wich you can transform to a JSONObject and get data from it.
@@ -81,7 +430,7 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 	@Override
 	public JSONObject getAllLists(String data) throws Exception {
 		LOG.debug("getAllLists {}", data);
-	    headers = headerHelper.getGetHeaders(false);
+	    MultiValueMap<String, String> headers = headerHelper.getGetHeaders(false);
 
 		URI uri =  this.tokenHelper.getSharepointSiteUrl("/_api/web/lists");
 		LOG.debug(String.format("URI: %s", uri ));
@@ -92,9 +441,9 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 	        );
 
 	    ResponseEntity<String> responseEntity = 
-	        restTemplate.exchange(uri.toString(), HttpMethod.GET, requestEntity, String.class);
+	        restTemplate.exchange(uri, HttpMethod.GET, requestEntity, String.class);
 
-	    return new JSONObject(responseEntity.getBody());
+	    return ODataMetadata.toVerboseCollection(new JSONObject(responseEntity.getBody()));
 	}
 	
 	/**
@@ -108,7 +457,7 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 	@Override
 	public JSONObject getListByTitle(String title, String jsonExtendedAttrs) throws Exception {
 		LOG.debug("getListByTitle {} jsonExtendedAttrs {}", new Object[] {title, jsonExtendedAttrs});
-	    headers = headerHelper.getGetHeaders(false);
+	    MultiValueMap<String, String> headers = headerHelper.getGetHeaders(false);
 
 		URI uri =  this.tokenHelper.getSharepointSiteUrl("/_api/web/lists/GetByTitle('" + title + "')");
 		LOG.debug(String.format("URI: %s", uri ));
@@ -119,9 +468,9 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 	        );
 
 	    ResponseEntity<String> responseEntity = 
-	        restTemplate.exchange(uri.toString(), HttpMethod.GET, requestEntity, String.class);
+	        restTemplate.exchange(uri, HttpMethod.GET, requestEntity, String.class);
 
-	    return new JSONObject(responseEntity.getBody());
+	    return ODataMetadata.toVerboseEntity(new JSONObject(responseEntity.getBody()));
 	}
 
 	/**
@@ -134,7 +483,7 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 	@Override
 	public JSONObject getListFields(String title) throws Exception {
 		LOG.debug("getListByTitle {} ", new Object[] {title});
-	    headers = headerHelper.getGetHeaders(false);
+	    MultiValueMap<String, String> headers = headerHelper.getGetHeaders(false);
 
 		URI uri =  this.tokenHelper.getSharepointSiteUrl("/_api/web/lists/GetByTitle('" + title + "')/Fields");
 		LOG.debug(String.format("URI: %s", uri ));
@@ -145,9 +494,55 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 	        );
 
 	    ResponseEntity<String> responseEntity = 
-	        restTemplate.exchange(uri.toString(), HttpMethod.GET, requestEntity, String.class);
+	        restTemplate.exchange(uri, HttpMethod.GET, requestEntity, String.class);
 
-	    return new JSONObject(responseEntity.getBody());
+	    return ODataMetadata.toVerboseCollection(new JSONObject(responseEntity.getBody()));
+	}
+
+	/**
+	 * @param title - Site list title.
+	 * @return the current change token of the list, changes are read from it on.
+	 * @throws Exception
+	 */
+	@Override
+	public String getListChangeToken(String title) throws Exception {
+		LOG.debug("getListChangeToken {}", title);
+		JSONObject list = ODataMetadata.toVerboseEntity(getJson(this.tokenHelper.getSharepointSiteUrl("/_api/web/lists/GetByTitle('" + title + "')",
+				ODataQuery.create().select("CurrentChangeToken")), headerHelper.getMetadata()));
+		return list.getJSONObject("d").getJSONObject("CurrentChangeToken").getString("StringValue");
+	}
+
+	/**
+	 * @param title - Site list title.
+	 * @param changeTokenStart - change token the changes are read after.
+	 * @return json with the item changes (SP.ChangeItem) in d.results, at most 1000 per call.
+	 * @throws Exception
+	 */
+	@Override
+	public JSONObject getListChanges(String title, String changeTokenStart) throws Exception {
+		LOG.debug("getListChanges {} changeTokenStart {}", title, changeTokenStart);
+		JSONObject query = new JSONObject();
+		query.put("__metadata", new JSONObject().put("type", "SP.ChangeQuery"));
+		query.put("Item", true);
+		query.put("Add", true);
+		query.put("Update", true);
+		query.put("SystemUpdate", true);
+		query.put("DeleteObject", true);
+		query.put("Restore", true);
+		query.put("Rename", true);
+		query.put("Move", true);
+		query.put("ChangeTokenStart", new JSONObject()
+				.put("__metadata", new JSONObject().put("type", "SP.ChangeToken"))
+				.put("StringValue", changeTokenStart));
+		String payloadStr = new JSONObject().put("query", query).toString();
+		MultiValueMap<String, String> headers = ThrottlingRequestFactory.markResendable(headerHelper.getPostHeaders(payloadStr));
+
+		RequestEntity<String> requestEntity = new RequestEntity<>(payloadStr,
+				headers, HttpMethod.POST,
+				this.tokenHelper.getSharepointSiteUrl("/_api/web/lists/GetByTitle('" + title + "')/GetChanges")
+				);
+		ResponseEntity<String> responseEntity = restTemplate.exchange(requestEntity, String.class);
+		return ODataMetadata.toVerboseCollection(new JSONObject(responseEntity.getBody()));
 	}
 
 	/**
@@ -170,7 +565,7 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 		payload.put("Title", listTitle);
 		
 		String payloadStr = payload.toString();
-		headers = headerHelper.getPostHeaders(payloadStr);
+		MultiValueMap<String, String> headers = headerHelper.getPostHeaders(payloadStr);
 
 		URI uri =  this.tokenHelper.getSharepointSiteUrl("/_api/web/lists");
 		LOG.debug(String.format("URI: %s", uri ));
@@ -179,8 +574,8 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
     			headers, HttpMethod.POST, 
     			uri
     			);
-	    ResponseEntity<String> responseEntity =  restTemplate.exchange(uri.toString(), HttpMethod.POST, requestEntity, String.class);
-	    return new JSONObject(responseEntity.getBody());
+	    ResponseEntity<String> responseEntity =  restTemplate.exchange(uri, HttpMethod.POST, requestEntity, String.class);
+	    return ODataMetadata.toVerboseEntity(new JSONObject(responseEntity.getBody()));
 	}
 
 	/**
@@ -201,43 +596,354 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 		}
 
 		String payloadStr = payload.toString();
-		headers = headerHelper.getUpdateHeaders(payloadStr);
+		MultiValueMap<String, String> headers = headerHelper.getUpdateHeaders(payloadStr);
 
 		URI uri =  this.tokenHelper.getSharepointSiteUrl("/_api/web/lists/GetByTitle('" + listTitle + "')");
 		LOG.debug(String.format("URI: %s", uri ));
 
-		RequestEntity<String> requestEntity = new RequestEntity<>(payloadStr,
-    			headers, HttpMethod.POST, 
-    			uri
-    			);
-	    ResponseEntity<String> responseEntity =  restTemplate.exchange(uri.toString(), HttpMethod.POST, requestEntity, String.class);
-	    return new JSONObject(responseEntity.getBody());
+		RequestEntity<String> requestEntity = new RequestEntity<>(payloadStr,
+    			headers, HttpMethod.POST, 
+    			uri
+    			);
+	    ResponseEntity<String> responseEntity =  restTemplate.exchange(uri, HttpMethod.POST, requestEntity, String.class);
+	    return ODataMetadata.toVerboseEntity(new JSONObject(responseEntity.getBody()));
+	}
+
+	/**
+	 * @param title
+	 * @param jsonExtendedAttrs
+	 * @param filter
+	 * @return
+	 * @throws Exception
+	 */
+	@Override
+	public JSONObject getListItems(String title, String jsonExtendedAttrs, String filter) throws Exception {
+		LOG.debug("getListByTitle {} jsonExtendedAttrs {}", new Object[] {title, jsonExtendedAttrs});
+	    MultiValueMap<String, String> headers = headerHelper.getGetHeaders(true);
+
+		URI uri =  this.tokenHelper.getSharepointSiteUrl("/_api/lists/GetByTitle('" + title + "')/items", filter);
+		LOG.debug(String.format("URI: %s", uri ));
+
+		RequestEntity<String> requestEntity = new RequestEntity<>(jsonExtendedAttrs,
+	        headers, HttpMethod.GET, 
+	        uri
+	        );
+
+	    ResponseEntity<String> responseEntity = 
+	        restTemplate.exchange(uri, HttpMethod.GET, requestEntity, String.class);
+
+	    return ODataMetadata.toVerboseCollection(new JSONObject(responseEntity.getBody()));
+	}
+
+	/**
+	 * @param title - Site list title.
+	 * @param query - filter, projection, sort and page size of the items.
+	 * @return first page of items, d.__next has the link to the next one.
+	 * @throws Exception
+	 */
+	@Override
+	public JSONObject getListItems(String title, ODataQuery query) throws Exception {
+		LOG.debug("getListItems {} query {}", new Object[] {title, query});
+		return getPage(getListItemsUri(title, query), headerHelper.getMetadata());
+	}
+
+	/**
+	 * @param nextPageUrl - absolute url of the next page as returned in the __next attribute.
+	 * @return json object with the page.
+	 * @throws Exception
+	 */
+	@Override
+	public JSONObject getNextPage(String nextPageUrl) throws Exception {
+		LOG.debug("getNextPage {}", nextPageUrl);
+		MultiValueMap<String, String> headers = headerHelper.getGetHeaders(true);
+
+		// __next links are already encoded, so the URI is used as is.
+		URI uri = new URI(nextPageUrl);
+		RequestEntity<String> requestEntity = new RequestEntity<>("{}",
+			headers, HttpMethod.GET,
+			uri
+			);
+
+		ResponseEntity<String> responseEntity = restTemplate.exchange(requestEntity, String.class);
+
+		return ODataMetadata.toVerboseCollection(new JSONObject(responseEntity.getBody()));
+	}
+
+	/**
+	 * @param title - Site list title.
+	 * @param filter - odata filter, null or empty to retrieve all items.
+	 * @return iterator over every item of the list, following the next page links and prefetching the next page.
+	 * @throws Exception
+	 */
+	@Override
+	public PageIterator<JSONObject> iterateListItems(String title, String filter) throws Exception {
+		return iterateListItems(title, filter, headerHelper.getMetadata());
+	}
+
+	/**
+	 * @param title - Site list title.
+	 * @param filter - odata filter, null or empty to retrieve all items.
+	 * @param metadata - metadata level requested for this scan.
+	 * @return iterator over every item of the list, following the next page links and prefetching the next page.
+	 * @throws Exception
+	 */
+	@Override
+	public PageIterator<JSONObject> iterateListItems(String title, String filter, ODataMetadata metadata) throws Exception {
+		LOG.debug("iterateListItems {} filter {} metadata {}", new Object[] {title, filter, metadata});
+		return iteratePages(getListItemsUri(title, filter), metadata);
+	}
+
+	/**
+	 * @param title - Site list title.
+	 * @param query - filter, projection, sort and page size of the items.
+	 * @return iterator over every item of the list, following the next page links and prefetching the next page.
+	 * @throws Exception
+	 */
+	@Override
+	public PageIterator<JSONObject> iterateListItems(String title, ODataQuery query) throws Exception {
+		return iterateListItems(title, query, headerHelper.getMetadata());
+	}
+
+	/**
+	 * @param title - Site list title.
+	 * @param query - filter, projection, sort and page size of the items.
+	 * @param metadata - metadata level requested for this scan.
+	 * @return iterator over every item of the list, following the next page links and prefetching the next page.
+	 * @throws Exception
+	 */
+	@Override
+	public PageIterator<JSONObject> iterateListItems(String title, ODataQuery query, ODataMetadata metadata) throws Exception {
+		LOG.debug("iterateListItems {} query {} metadata {}", new Object[] {title, query, metadata});
+		return iteratePages(getListItemsUri(title, query), metadata);
+	}
+
+	private PageIterator<JSONObject> iteratePages(URI firstPage, ODataMetadata metadata) {
+		// __next links are already encoded, so the URI is used as is.
+		return new PageIterator<>(pageLink -> PageIterator.fromODataPage(
+				getPage(pageLink == null ? firstPage : new URI(pageLink), metadata)), executorService, pageReadAhead);
+	}
+
+	/**
+	 * @param title - Site list title.
+	 * @param filter - odata filter, null or empty to retrieve all items.
+	 * @return stream of every item of the list, it must be closed if not fully consumed.
+	 * @throws Exception
+	 */
+	@Override
+	public Stream<JSONObject> streamListItems(String title, String filter) throws Exception {
+		return iterateListItems(title, filter).stream();
+	}
+
+	/**
+	 * @param title - Site list title.
+	 * @param filter - odata filter, null or empty to retrieve all items.
+	 * @param handler - receives every item as a map.
+	 * @return number of items read.
+	 * @throws Exception
+	 */
+	@Override
+	public long forEachListItem(String title, String filter, ODataStreamParser.ItemHandler handler) throws Exception {
+		return forEachListItem(title, filter, headerHelper.getMetadata(), handler);
+	}
+
+	/**
+	 * @param title - Site list title.
+	 * @param filter - odata filter, null or empty to retrieve all items.
+	 * @param metadata - metadata level requested for this scan.
+	 * @param handler - receives every item as a map.
+	 * @return number of items read.
+	 * @throws Exception
+	 */
+	@Override
+	public long forEachListItem(String title, String filter, ODataMetadata metadata, ODataStreamParser.ItemHandler handler) throws Exception {
+		LOG.debug("forEachListItem {} filter {} metadata {}", new Object[] {title, filter, metadata});
+		return readAllPages(getListItemsUri(title, filter), metadata, handler);
+	}
+
+	/**
+	 * @param title - Site list title.
+	 * @param query - filter, projection, sort and page size of the items.
+	 * @param handler - receives every item as a map.
+	 * @return number of items read.
+	 * @throws Exception
+	 */
+	@Override
+	public long forEachListItem(String title, ODataQuery query, ODataStreamParser.ItemHandler handler) throws Exception {
+		return forEachListItem(title, query, headerHelper.getMetadata(), handler);
+	}
+
+	/**
+	 * @param title - Site list title.
+	 * @param query - filter, projection, sort and page size of the items.
+	 * @param metadata - metadata level requested for this scan.
+	 * @param handler - receives every item as a map.
+	 * @return number of items read.
+	 * @throws Exception
+	 */
+	@Override
+	public long forEachListItem(String title, ODataQuery query, ODataMetadata metadata, ODataStreamParser.ItemHandler handler) throws Exception {
+		LOG.debug("forEachListItem {} query {} metadata {}", new Object[] {title, query, metadata});
+		return readAllPages(getListItemsUri(title, query), metadata, handler);
+	}
+
+	/**
+	 * @param title - Site list title.
+	 * @param query - filter, projection and page size applied to every range, can be null.
+	 * @return stream of the items of all the ranges, it must be closed if not fully consumed.
+	 * @throws Exception
+	 */
+	@Override
+	public Stream<Map<String, Object>> scanListItems(String title, ODataQuery query) throws Exception {
+		return listScanner.scan(title, query).stream();
+	}
+
+	/**
+	 * @param title - Site list title.
+	 * @param query - filter, projection and page size applied to every range, can be null.
+	 * @param handler - receives every item in the calling thread.
+	 * @return number of items read.
+	 * @throws Exception
+	 */
+	@Override
+	public long scanListItems(String title, ODataQuery query, ODataStreamParser.ItemHandler handler) throws Exception {
+		return listScanner.scan(title, query, handler);
+	}
+
+	/**
+	 * @param title - Site list title.
+	 * @return columns of the list, from the schema cache.
+	 * @throws Exception
+	 */
+	@Override
+	public ListSchema getListSchema(String title) throws Exception {
+		return listSchemaCache.get(title);
+	}
+
+	/**
+	 * @param title - Site list title.
+	 * @param query - filter, projection, sort and page size of the items, can be null.
+	 * @param handler - receives the rows of every page.
+	 * @return number of items read.
+	 * @throws Exception
+	 */
+	@Override
+	public long forEachListRow(String title, ODataQuery query, ListRows.RowHandler handler) throws Exception {
+		return forEachListRow(title, query, headerHelper.getMetadata(), handler);
+	}
+
+	/**
+	 * @param title - Site list title.
+	 * @param query - filter, projection, sort and page size of the items, can be null.
+	 * @param metadata - metadata level requested for this scan.
+	 * @param handler - receives the rows of every page.
+	 * @return number of items read.
+	 * @throws Exception
+	 */
+	@Override
+	public long forEachListRow(String title, ODataQuery query, ODataMetadata metadata, ListRows.RowHandler handler) throws Exception {
+		LOG.debug("forEachListRow {} query {} metadata {}", new Object[] {title, query, metadata});
+		ListRows rows = new ListRows(listSchemaCache.get(title), query == null ? null : query.getSelect());
+		return ODataStreamParser.readAllRows(getListItemsUri(title, query), pageRequester(metadata), rows, handler);
+	}
+
+	/**
+	 * @param title - Site list title.
+	 * @param query - CAML view of the rows.
+	 * @param folderServerRelativeUrl - folder the view is scoped to, null for the root folder.
+	 * @param nextHref - NextHref of the previous page, null for the first one.
+	 * @return json with the rows in Row and the NextHref of the next page.
+	 * @throws Exception
+	 */
+	@Override
+	public JSONObject renderListData(String title, CamlQuery query, String folderServerRelativeUrl, String nextHref) throws Exception {
+		LOG.debug("renderListData {} folder {} nextHref {}", new Object[] {title, folderServerRelativeUrl, nextHref});
+		String payloadStr = query.toRenderListDataPayload(folderServerRelativeUrl);
+		MultiValueMap<String, String> headers = ThrottlingRequestFactory.markResendable(headerHelper.getPostHeaders(payloadStr));
+
+		URI uri = this.tokenHelper.getSharepointSiteUrl("/_api/web/lists/GetByTitle('" + title + "')/RenderListDataAsStream");
+		if (nextHref != null) {
+			// NextHref is an encoded query string like ?Paged=TRUE&p_ID=30&PageFirstRow=31
+			uri = URI.create(uri.toASCIIString() + nextHref);
+		}
+		RequestEntity<String> requestEntity = new RequestEntity<>(payloadStr,
+				headers, HttpMethod.POST,
+				uri
+				);
+		ResponseEntity<String> responseEntity = restTemplate.exchange(requestEntity, String.class);
+		return CamlQuery.parseRenderListData(responseEntity.getBody());
+	}
+
+	/**
+	 * @param title - Site list title.
+	 * @param query - CAML view of the rows.
+	 * @param folderServerRelativeUrl - folder the view is scoped to, null for the root folder.
+	 * @return iterator over the rows, following NextHref and prefetching the next page.
+	 * @throws Exception
+	 */
+	@Override
+	public PageIterator<JSONObject> iterateRenderListData(String title, CamlQuery query, String folderServerRelativeUrl) throws Exception {
+		LOG.debug("iterateRenderListData {} folder {}", title, folderServerRelativeUrl);
+		return new PageIterator<>(nextHref -> PageIterator.fromRenderListData(
+				renderListData(title, query, folderServerRelativeUrl, nextHref)), executorService, pageReadAhead);
+	}
+
+	/**
+	 * @param title - Site list title.
+	 * @param query - CAML view of the rows.
+	 * @param folderServerRelativeUrl - folder the view is scoped to, null for the root folder.
+	 * @return stream of the rows, it must be closed if not fully consumed.
+	 * @throws Exception
+	 */
+	@Override
+	public Stream<JSONObject> streamRenderListData(String title, CamlQuery query, String folderServerRelativeUrl) throws Exception {
+		return iterateRenderListData(title, query, folderServerRelativeUrl).stream();
 	}
 
 	/**
-	 * @param title
-	 * @param jsonExtendedAttrs
-	 * @param filter
-	 * @return
+	 * @param listTitle - title of the library, null to crawl the folders.
+	 * @param folderServerRelativeUrl - root of the tree, not listed itself.
+	 * @return stream of the files and folders under the folder, it must be closed if not fully consumed.
 	 * @throws Exception
 	 */
 	@Override
-	public JSONObject getListItems(String title, String jsonExtendedAttrs, String filter) throws Exception {
-		LOG.debug("getListByTitle {} jsonExtendedAttrs {}", new Object[] {title, jsonExtendedAttrs});
-	    headers = headerHelper.getGetHeaders(true);
+	public Stream<FolderTreeLister.Entry> listFolderTree(String listTitle, String folderServerRelativeUrl) throws Exception {
+		return folderTreeLister.list(listTitle, folderServerRelativeUrl);
+	}
 
-		URI uri =  this.tokenHelper.getSharepointSiteUrl("/_api/lists/GetByTitle('" + title + "')/items", filter);
-		LOG.debug(String.format("URI: %s", uri ));
+	private long readAllPages(URI firstPage, ODataMetadata metadata, ODataStreamParser.ItemHandler handler) throws Exception {
+		return ODataStreamParser.readAllPages(firstPage, pageRequester(metadata), handler);
+	}
 
-		RequestEntity<String> requestEntity = new RequestEntity<>(jsonExtendedAttrs,
-	        headers, HttpMethod.GET, 
-	        uri
-	        );
+	private ODataStreamParser.PageRequester pageRequester(ODataMetadata metadata) {
+		return (pageUri, extractor) -> {
+			MultiValueMap<String, String> headers = headerHelper.getGetHeaders(true, metadata);
+			return restTemplate.execute(pageUri, HttpMethod.GET, request -> request.getHeaders().putAll(headers), extractor);
+		};
+	}
 
-	    ResponseEntity<String> responseEntity = 
-	        restTemplate.exchange(uri.toString(), HttpMethod.GET, requestEntity, String.class);
+	private URI getListItemsUri(String title, String filter) throws Exception {
+		String apiPath = "/_api/lists/GetByTitle('" + title + "')/items";
+		return filter == null || filter.isEmpty()
+				? this.tokenHelper.getSharepointSiteUrl(apiPath)
+				: this.tokenHelper.getSharepointSiteUrl(apiPath, filter);
+	}
+
+	private URI getListItemsUri(String title, ODataQuery query) throws Exception {
+		return this.tokenHelper.getSharepointSiteUrl("/_api/lists/GetByTitle('" + title + "')/items", query);
+	}
+
+	private JSONObject getPage(URI uri, ODataMetadata metadata) throws Exception {
+		return ODataMetadata.toVerboseCollection(getJson(uri, metadata));
+	}
 
-	    return new JSONObject(responseEntity.getBody());
+	private JSONObject getJson(URI uri, ODataMetadata metadata) throws Exception {
+		MultiValueMap<String, String> headers = headerHelper.getGetHeaders(true, metadata);
+		RequestEntity<String> requestEntity = new RequestEntity<>("{}",
+				headers, HttpMethod.GET,
+				uri
+				);
+		ResponseEntity<String> responseEntity = restTemplate.exchange(requestEntity, String.class);
+		return new JSONObject(responseEntity.getBody());
 	}
 
 	/**
@@ -249,7 +955,7 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 	@Override
 	public JSONObject checkFolderExist(String folder, String jsonExtendedAttrs) throws Exception {
 		LOG.debug("getFolderByRelativeUrl {} jsonExtendedAttrs {}", new Object[] {folder, jsonExtendedAttrs});
-		headers = headerHelper.getGetHeaders(false);
+		MultiValueMap<String, String> headers = headerHelper.getGetHeaders(false);
 
 		URI uri = this.tokenHelper.getSharepointSiteUrl("/_api/web/GetFolderByServerRelativeUrl('" + folder + "')/Exists");
 		LOG.debug(String.format("URI: %s", uri ));
@@ -260,9 +966,9 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 		);
 
 		ResponseEntity<String> responseEntity =
-				restTemplate.exchange(uri.toString(), HttpMethod.GET, requestEntity, String.class);
+				restTemplate.exchange(uri, HttpMethod.GET, requestEntity, String.class);
 
-		return new JSONObject(responseEntity.getBody());
+		return ODataMetadata.toVerboseProperty(new JSONObject(responseEntity.getBody()), "Exists");
 	}
 	
 	/**
@@ -274,7 +980,7 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 	@Override
 	public JSONObject getFolderByRelativeUrl(String folder, String jsonExtendedAttrs) throws Exception {
 		LOG.debug("getFolderByRelativeUrl {} jsonExtendedAttrs {}", new Object[] {folder, jsonExtendedAttrs});
-	    headers = headerHelper.getGetHeaders(false);
+	    MultiValueMap<String, String> headers = headerHelper.getGetHeaders(false);
 
 		URI uri = this.tokenHelper.getSharepointSiteUrl("/_api/web/GetFolderByServerRelativeUrl('" + folder + "')");
 		LOG.debug(String.format("URI: %s", uri ));
@@ -285,9 +991,9 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 	        );
 
 	    ResponseEntity<String> responseEntity = 
-	        restTemplate.exchange(uri.toString(), HttpMethod.GET, requestEntity, String.class);
+	        restTemplate.exchange(uri, HttpMethod.GET, requestEntity, String.class);
 
-	    return new JSONObject(responseEntity.getBody());
+	    return ODataMetadata.toVerboseEntity(new JSONObject(responseEntity.getBody()));
 	}
 
 	/**
@@ -299,7 +1005,7 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 	@Override
 	public JSONObject getFolderFoldersByRelativeUrl(String folder, String jsonExtendedAttrs) throws Exception {
 		LOG.debug("getFolderFoldersByRelativeUrl {} jsonExtendedAttrs {}", new Object[] {folder, jsonExtendedAttrs});
-		headers = headerHelper.getGetHeaders(false);
+		MultiValueMap<String, String> headers = headerHelper.getGetHeaders(false);
 
 		URI uri = this.tokenHelper.getSharepointSiteUrl("/_api/web/GetFolderByServerRelativeUrl('" + folder + "')/Folders");
 		LOG.debug(String.format("URI: %s", uri ));
@@ -310,15 +1016,15 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 		);
 
 		ResponseEntity<String> responseEntity =
-				restTemplate.exchange(uri.toString(), HttpMethod.GET, requestEntity, String.class);
+				restTemplate.exchange(uri, HttpMethod.GET, requestEntity, String.class);
 
-		return new JSONObject(responseEntity.getBody());
+		return ODataMetadata.toVerboseCollection(new JSONObject(responseEntity.getBody()));
 	}
 
 	@Override
 	public JSONObject getFolderFilesByRelativeUrl(String folderServerRelativeUrl) throws Exception {
 		LOG.debug("getFolderFilesByRelativeUrl {} ", new Object[] {folderServerRelativeUrl});
-		headers = headerHelper.getGetHeaders(false);
+		MultiValueMap<String, String> headers = headerHelper.getGetHeaders(false);
 
 		URI uri =  this.tokenHelper.getSharepointSiteUrl("/_api/web/GetFolderByServerRelativeUrl('" + folderServerRelativeUrl + "')/Files");
 		LOG.debug(String.format("URI: %s", uri ));
@@ -329,9 +1035,9 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 		);
 
 		ResponseEntity<String> responseEntity =
-				restTemplate.exchange(uri.toString(), HttpMethod.GET, requestEntity, String.class);
+				restTemplate.exchange(uri, HttpMethod.GET, requestEntity, String.class);
 
-		return new JSONObject(responseEntity.getBody());
+		return ODataMetadata.toVerboseCollection(new JSONObject(responseEntity.getBody()));
 	}
 	
 	/**
@@ -343,7 +1049,7 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 	@Override
 	public JSONObject getFolderFilesByRelativeUrl(String folder, String jsonExtendedAttrs) throws Exception {
 		LOG.debug("getFolderFilesByRelativeUrl {} jsonExtendedAttrs {}", new Object[] {folder, jsonExtendedAttrs});
-		headers = headerHelper.getGetHeaders(false);
+		MultiValueMap<String, String> headers = headerHelper.getGetHeaders(false);
 
 		URI uri =  this.tokenHelper.getSharepointSiteUrl("/_api/web/GetFolderByServerRelativeUrl('" + folder + "')/Files");
 		LOG.debug(String.format("URI: %s", uri ));
@@ -354,9 +1060,35 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 		);
 
 		ResponseEntity<String> responseEntity =
-				restTemplate.exchange(uri.toString(), HttpMethod.GET, requestEntity, String.class);
+				restTemplate.exchange(uri, HttpMethod.GET, requestEntity, String.class);
 
-		return new JSONObject(responseEntity.getBody());
+		return ODataMetadata.toVerboseCollection(new JSONObject(responseEntity.getBody()));
+	}
+
+	/**
+	 * @param folder folder server relative URL to retrieve (/SITEURL/folder)
+	 * @param query filter, projection and sort of the subfolders, top only keeps the first ones.
+	 * @return json representing all the folders, Folder/Folders isn't paged so there's no d.__next.
+	 * @throws Exception thrown when something went wrong.
+	 */
+	@Override
+	public JSONObject getFolderFoldersByRelativeUrl(String folder, ODataQuery query) throws Exception {
+		LOG.debug("getFolderFoldersByRelativeUrl {} query {}", new Object[] {folder, query});
+		return getPage(this.tokenHelper.getSharepointSiteUrl("/_api/web/GetFolderByServerRelativeUrl('" + folder + "')/Folders", query),
+				headerHelper.getMetadata());
+	}
+
+	/**
+	 * @param folder folder server relative URL to retrieve (/SITEURL/folder)
+	 * @param query filter, projection and sort of the files, top only keeps the first ones.
+	 * @return json representing all the files, Folder/Files isn't paged so there's no d.__next.
+	 * @throws Exception thrown when something went wrong.
+	 */
+	@Override
+	public JSONObject getFolderFilesByRelativeUrl(String folder, ODataQuery query) throws Exception {
+		LOG.debug("getFolderFilesByRelativeUrl {} query {}", new Object[] {folder, query});
+		return getPage(this.tokenHelper.getSharepointSiteUrl("/_api/web/GetFolderByServerRelativeUrl('" + folder + "')/Files", query),
+				headerHelper.getMetadata());
 	}
 
 
@@ -369,7 +1101,7 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 	public Boolean deleteFile(String fileServerRelativeUrl) throws Exception {
 		LOG.debug("Deleting file {} ", fileServerRelativeUrl);
 
-	    headers = headerHelper.getDeleteHeaders();
+	    MultiValueMap<String, String> headers = headerHelper.getDeleteHeaders();
 
 		URI uri =  this.tokenHelper.getSharepointSiteUrl("/_api/web/GetFileByServerRelativeUrl('" + spSiteUrl + "/" + fileServerRelativeUrl +"')");
 		LOG.debug(String.format("URI: %s", uri ));
@@ -379,10 +1111,32 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 	        uri
 	        );
 
-	    restTemplate.exchange(uri.toString(), HttpMethod.POST, requestEntity, String.class);
+	    restTemplate.exchange(uri, HttpMethod.POST, requestEntity, String.class);
 	    return Boolean.TRUE;
 	}
 
+	/**
+	 * @param fileUrl - absolute or server relative url of the file.
+	 * @return true if the file was deleted.
+	 * @throws Exception
+	 */
+	@Override
+	public Boolean deleteFileByPath(String fileUrl) throws Exception {
+		LOG.debug("Deleting file by path {}", fileUrl);
+		MultiValueMap<String, String> headers = headerHelper.getDeleteHeaders();
+
+		URI uri = this.tokenHelper.getSharepointSiteUrl("/_api/web/GetFileByServerRelativePath(decodedurl='"
+				+ MoveCopyOptions.toServerRelativeUrl(fileUrl).replace("'", "''") + "')");
+		LOG.debug(String.format("URI: %s", uri ));
+
+		RequestEntity<String> requestEntity = new RequestEntity<>("{}",
+				headers, HttpMethod.POST,
+				uri
+		);
+		restTemplate.exchange(requestEntity, String.class);
+		return Boolean.TRUE;
+	}
+
 
 	/**
 	 * @param fileServerRelativeUrl
@@ -393,7 +1147,7 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 	public JSONObject getFileInfo(String fileServerRelativeUrl) throws Exception {
 		LOG.debug("Getting file info {} ", fileServerRelativeUrl);
 
-		headers = headerHelper.getGetHeaders(true);
+		MultiValueMap<String, String> headers = headerHelper.getGetHeaders(true);
 
 		URI uri =  this.tokenHelper.getSharepointSiteUrl("/_api/web/GetFileByServerRelativeUrl('" + spSiteUrl + "/" + fileServerRelativeUrl +"')");
 		LOG.debug(String.format("URI: %s", uri ));
@@ -403,8 +1157,8 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 			  uri
 		);
 
-		ResponseEntity<String> responseEntity = restTemplate.exchange(uri.toString(), HttpMethod.GET, requestEntity, String.class);
-		return new JSONObject(responseEntity.getBody());
+		ResponseEntity<String> responseEntity = restTemplate.exchange(uri, HttpMethod.GET, requestEntity, String.class);
+		return ODataMetadata.toVerboseEntity(new JSONObject(responseEntity.getBody()));
 	}
 
 	/**
@@ -416,7 +1170,7 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 	public JSONObject getFileSpecificInfo(String fileServerRelativeUrl, String info) throws Exception {
 		LOG.debug("Getting file info {} ", fileServerRelativeUrl);
 
-		headers = headerHelper.getGetHeaders(true);
+		MultiValueMap<String, String> headers = headerHelper.getGetHeaders(true);
 
 		URI uri =  this.tokenHelper.getSharepointSiteUrl("/_api/web/GetFileByServerRelativeUrl('" + spSiteUrl + "/" + fileServerRelativeUrl +"')/" + info);
 		LOG.debug(String.format("URI: %s", uri ));
@@ -426,8 +1180,8 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 				uri
 		);
 
-		ResponseEntity<String> responseEntity = restTemplate.exchange(uri.toString(), HttpMethod.GET, requestEntity, String.class);
-		return new JSONObject(responseEntity.getBody());
+		ResponseEntity<String> responseEntity = restTemplate.exchange(uri, HttpMethod.GET, requestEntity, String.class);
+		return ODataMetadata.toVerboseProperty(new JSONObject(responseEntity.getBody()), info);
 	}
 
 	/**
@@ -442,14 +1196,14 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 		URI uri =  this.tokenHelper.getSharepointSiteUrl("/_api/web/GetFileByServerRelativeUrl('" + spSiteUrl + "/" + fileServerRelativeUrl +"')/$value");
 		LOG.debug(String.format("URI: %s", uri ));
 
-		headers = headerHelper.getGetHeaders(true);
+		MultiValueMap<String, String> headers = headerHelper.getGetHeaders(true);
 	    
 	    RequestEntity<String> requestEntity = new RequestEntity<>("", 
 	        headers, HttpMethod.GET, 
 	        uri
 	        );
 
-	    ResponseEntity<Resource> response = restTemplate.exchange(uri.toString(), HttpMethod.GET, requestEntity, Resource.class);
+	    ResponseEntity<Resource> response = restTemplate.exchange(uri, HttpMethod.GET, requestEntity, Resource.class);
 	    return response.getBody();
 	}
 
@@ -466,17 +1220,104 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 		URI uri =  this.tokenHelper.getSharepointSiteUrl("/_api/web/GetFolderByServerRelativeUrl('" + fileServerRelativeUrl +"')/Files('" + fileName + "')/$value");
 		LOG.debug(String.format("URI: %s", uri ));
 
-		headers = headerHelper.getGetHeaders(true);
+		MultiValueMap<String, String> headers = headerHelper.getGetHeaders(true);
 
 		RequestEntity<String> requestEntity = new RequestEntity<>("",
 				headers, HttpMethod.GET,
 				uri
 		);
 
-		ResponseEntity<Resource> response = restTemplate.exchange(uri.toString(), HttpMethod.GET, requestEntity, Resource.class);
+		ResponseEntity<Resource> response = restTemplate.exchange(uri, HttpMethod.GET, requestEntity, Resource.class);
 		return response.getBody();
 	}
 
+	/**
+	 * Downloads a file handing the response to the extractor, the connection is released when the extractor returns.
+	 * 
+	 * @param fileServerRelativeUrl
+	 * @param extractor - reads the response body.
+	 * @return the value returned by the extractor.
+	 * @throws Exception
+	 */
+	@Override
+	public <T> T downloadFile(String fileServerRelativeUrl, ResponseExtractor<T> extractor) throws Exception {
+		LOG.debug("Downloading file {} ", fileServerRelativeUrl);
+		MultiValueMap<String, String> headers = headerHelper.getGetHeaders(true);
+
+		URI uri = this.tokenHelper.getSharepointSiteUrl("/_api/web/GetFileByServerRelativeUrl('" + spSiteUrl + "/" + fileServerRelativeUrl +"')/$value");
+		LOG.debug(String.format("URI: %s", uri ));
+
+		return restTemplate.execute(uri, HttpMethod.GET, request -> request.getHeaders().putAll(headers), extractor);
+	}
+
+	/**
+	 * Streams a file to a local path without holding it in memory.
+	 * 
+	 * @param fileServerRelativeUrl
+	 * @param target - local file, it's created or truncated.
+	 * @return bytes downloaded and throughput.
+	 * @throws Exception
+	 */
+	@Override
+	public TransferStats downloadTo(String fileServerRelativeUrl, Path target) throws Exception {
+		try (FileChannel channel = FileChannel.open(target,
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			return downloadTo(fileServerRelativeUrl, channel);
+		}
+	}
+
+	/**
+	 * Streams a file to a channel without holding it in memory, the channel is not closed.
+	 * 
+	 * @param fileServerRelativeUrl
+	 * @param channel - destination of the content.
+	 * @return bytes downloaded and throughput.
+	 * @throws Exception
+	 */
+	@Override
+	public TransferStats downloadTo(String fileServerRelativeUrl, WritableByteChannel channel) throws Exception {
+		long start = System.nanoTime();
+		Long bytes = downloadFile(fileServerRelativeUrl, response -> ChannelCopyHelper.copy(response.getBody(), channel));
+		TransferStats stats = new TransferStats(bytes, System.nanoTime() - start);
+		LOG.debug("Downloaded file {} {}", fileServerRelativeUrl, stats);
+		return stats;
+	}
+
+	/**
+	 * @param fileServerRelativeUrl
+	 * @param firstByte - offset of the first byte, inclusive.
+	 * @param lastByte - offset of the last byte, inclusive.
+	 * @param eTag - ETag of the file the range belongs to, null to send no If-Range.
+	 * @param extractor - reads the response body.
+	 * @return the value returned by the extractor.
+	 * @throws Exception
+	 */
+	<T> T downloadFileRange(String fileServerRelativeUrl, long firstByte, long lastByte, String eTag, ResponseExtractor<T> extractor) throws Exception {
+		LOG.debug("Downloading bytes {}-{} of file {} ", firstByte, lastByte, fileServerRelativeUrl);
+		MultiValueMap<String, String> headers = headerHelper.getGetHeaders(true);
+
+		URI uri = this.tokenHelper.getSharepointSiteUrl("/_api/web/GetFileByServerRelativeUrl('" + spSiteUrl + "/" + fileServerRelativeUrl +"')/$value");
+
+		return restTemplate.execute(uri, HttpMethod.GET, request -> {
+			request.getHeaders().putAll(headers);
+			request.getHeaders().setRange(Collections.singletonList(HttpRange.createByteRange(firstByte, lastByte)));
+			if (eTag != null) {
+				request.getHeaders().set(HttpHeaders.IF_RANGE, eTag);
+			}
+		}, extractor);
+	}
+
+	/**
+	 * @param fileServerRelativeUrl
+	 * @param target - local file.
+	 * @return bytes downloaded and throughput.
+	 * @throws Exception
+	 */
+	@Override
+	public TransferStats downloadSegmented(String fileServerRelativeUrl, Path target) throws Exception {
+		return segmentedDownloader.download(fileServerRelativeUrl, target);
+	}
+
 	/**
 	 * @param folder
 	 * @param resource
@@ -495,19 +1336,28 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 			submeta.put("type", "SP.ListItem");
 		}
 		jsonMetadata.put("__metadata", submeta);
-		
-	    headers = headerHelper.getPostHeaders("");
 
+		JSONObject jsonFileInfo = uploadFileContent(folder, resource, resource.getFilename());
+		updateUploadedFileMetadata(jsonFileInfo, jsonMetadata);
+		return jsonFileInfo;
+	}
+
+	/**
+	 * Uploads the content of the file, in chunks if the resource size is over the chunked upload threshold.
+	 */
+	private JSONObject uploadFileContent(String folder, Resource resource, String fileName) throws Exception {
+		if (isChunkedUpload(resource)) {
+			LOG.debug("Resource {} is a stream or over {} bytes, uploading in chunks", fileName, chunkedUploadThreshold);
+			return chunkedUploader.upload(folder, resource, fileName);
+		}
+		HttpHeaders headers = getUploadHeaders(resource);
 
 		URI uri =  this.tokenHelper.getSharepointSiteUrl(
 				"/_api/web/GetFolderByServerRelativeUrl('" + folder +"')/Files/add(url='"
-						+ resource.getFilename() + "',overwrite=true)"
+						+ fileName + "',overwrite=true)"
 		);
 		LOG.debug(String.format("URI: %s", uri ));
-		LOG.debug(String.format("Resource: %s -> %s", resource.getFilename(), resource.toString() ));
-		LOG.debug(String.format("Headers"));
-		for (String h : headers.keySet())
-			LOG.debug(String.format("%s -> %s",h, headers.get(h)));
+		LOG.debug(String.format("Resource: %s -> %s", fileName, resource.toString() ));
 
 		RequestEntity<Resource> requestEntity = new RequestEntity<>(resource,
 	        headers, HttpMethod.POST,
@@ -515,32 +1365,103 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 	        );
 
 	    ResponseEntity<String> responseEntity = 
-	        restTemplate.exchange(uri.toString(), HttpMethod.POST, requestEntity, String.class);
+	        restTemplate.exchange(uri, HttpMethod.POST, requestEntity, String.class);
 
-	    String fileInfoStr = responseEntity.getBody();
-	    
 	    LOG.debug("Retrieved response from server with json");
-	    
-	    JSONObject jsonFileInfo = new JSONObject(fileInfoStr);
+	    return ODataMetadata.toVerboseEntity(new JSONObject(responseEntity.getBody()));
+	}
+
+	private void updateUploadedFileMetadata(JSONObject jsonFileInfo, JSONObject jsonMetadata) throws Exception {
+		if (jsonMetadata.length() == 1 && jsonMetadata.has("__metadata")) {
+			// Nothing but the type, the merge would only cost a request.
+			return;
+		}
 	    String serverRelFileUrl = jsonFileInfo.getJSONObject("d").getString("ServerRelativeUrl");
 
-	    LOG.debug("File uploaded to URI", serverRelFileUrl);
+	    LOG.debug("File uploaded to URI {}", serverRelFileUrl);
 	    String metadata = jsonMetadata.toString();
-	    headers = headerHelper.getUpdateHeaders(metadata);
+	    MultiValueMap<String, String> headers = headerHelper.getUpdateHeaders(metadata);
 
-		URI uri1 =  this.tokenHelper.getSharepointSiteUrl("/_api/web/GetFileByServerRelativeUrl('" + serverRelFileUrl + "')/listitemallfields");
-		LOG.debug(String.format("URI: %s", uri1 ));
+		URI uri =  this.tokenHelper.getSharepointSiteUrl("/_api/web/GetFileByServerRelativeUrl('" + serverRelFileUrl + "')/listitemallfields");
+		LOG.debug(String.format("URI: %s", uri ));
 
 		LOG.debug("Updating file adding metadata {}", jsonMetadata);
 
-	    RequestEntity<String> requestEntity1 = new RequestEntity<>(metadata, 
+	    RequestEntity<String> requestEntity = new RequestEntity<>(metadata, 
 	        headers, HttpMethod.POST,
-	        uri1
+	        uri
 	        );
-	    ResponseEntity<String> responseEntity1 = 
-		        restTemplate.exchange(uri1.toString(), HttpMethod.POST, requestEntity1, String.class);
-	    LOG.debug("Updated file metadata Status {}", responseEntity1.getStatusCode());
-	    return jsonFileInfo;
+	    ResponseEntity<String> responseEntity = 
+		        restTemplate.exchange(uri, HttpMethod.POST, requestEntity, String.class);
+	    LOG.debug("Updated file metadata Status {}", responseEntity.getStatusCode());
+	}
+
+	private boolean isChunkedUpload(Resource resource) throws IOException {
+		// The size of a stream (InputStreamResource) is only known by reading it, chunking it keeps
+		// one chunk in memory instead of the whole content.
+		return resource.isOpen() || resource.contentLength() > chunkedUploadThreshold;
+	}
+
+	/**
+	 * Post headers for the upload of the resource, with its length rather than the one of the
+	 * empty payload the post headers are built for.
+	 */
+	private HttpHeaders getUploadHeaders(Resource resource) throws Exception {
+		// Copied to HttpHeaders, the helper adds the length as Content-length.
+		HttpHeaders headers = new HttpHeaders();
+		headers.addAll(headerHelper.getPostHeaders(""));
+		if (resource.isOpen()) {
+			// A stream has no known size, it's sent chunked.
+			headers.remove(HttpHeaders.CONTENT_LENGTH);
+		} else {
+			headers.setContentLength(resource.contentLength());
+		}
+		return headers;
+	}
+
+	/**
+	 * @param session - session of the failed chunked upload (from ChunkedUploadException).
+	 * @param resource - same content that was being uploaded.
+	 * @param jsonMetadata - metadata to set once the file is uploaded.
+	 * @return file info.
+	 * @throws Exception
+	 */
+	@Override
+	public JSONObject resumeUpload(ChunkedUploadSession session, Resource resource, JSONObject jsonMetadata) throws Exception {
+		LOG.debug("Resuming upload {}", session);
+		JSONObject submeta = new JSONObject();
+		submeta.put("type", "SP.ListItem");
+		jsonMetadata.put("__metadata", submeta);
+
+		JSONObject jsonFileInfo = chunkedUploader.resume(session, resource);
+		updateUploadedFileMetadata(jsonFileInfo, jsonMetadata);
+		return jsonFileInfo;
+	}
+
+	/**
+	 * @param apiPath - path relative to the site.
+	 * @param content - buffer with the binary content.
+	 * @param length - number of bytes of the buffer to send.
+	 * @return json response.
+	 * @throws Exception
+	 */
+	JSONObject postBinary(String apiPath, byte[] content, int length) throws Exception {
+		MultiValueMap<String, String> headers = headerHelper.getPostHeaders("");
+
+		URI uri =  this.tokenHelper.getSharepointSiteUrl(apiPath);
+		LOG.debug(String.format("URI: %s", uri ));
+
+		return restTemplate.execute(uri, HttpMethod.POST, request -> {
+			request.getHeaders().putAll(headers);
+			request.getHeaders().setContentType(MediaType.APPLICATION_OCTET_STREAM);
+			request.getHeaders().setContentLength(length);
+			if (request instanceof StreamingHttpOutputMessage) {
+				// Written from the chunk buffer, without copies, also when the request is sent again.
+				((StreamingHttpOutputMessage) request).setBody(ThrottlingRequestFactory.repeatableBody(content, 0, length));
+			} else {
+				request.getBody().write(content, 0, length);
+			}
+		}, response -> new JSONObject(StreamUtils.copyToString(response.getBody(), StandardCharsets.UTF_8)));
 	}
 
 
@@ -554,7 +1475,7 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 		}
 		jsonMetadata.put("__metadata", subMeta);
 
-		headers = headerHelper.getPostHeaders("");
+		MultiValueMap<String, String> headers = getUploadHeaders(resource);
 
 		URI uri =  this.tokenHelper.getSharepointSiteUrl(
 				"/_api/Web/getFolderByServerRelativePath(DecodedUrl='" + folder + "')/Files/add(overwrite=true," +
@@ -580,7 +1501,7 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 
 		LOG.debug("Retrieved response from server with json");
 
-		JSONObject jsonFileInfo = new JSONObject(fileInfoStr);
+		JSONObject jsonFileInfo = ODataMetadata.toVerboseEntity(new JSONObject(fileInfoStr));
 		String serverRelFileUrl = jsonFileInfo.getJSONObject("d").getString("ServerRelativeUrl");
 
 		LOG.debug("File uploaded to URI {}", serverRelFileUrl);
@@ -612,49 +1533,10 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 		JSONObject submeta = new JSONObject();
 		submeta.put("type", "SP.ListItem");
 		jsonMetadata.put("__metadata", submeta);
-		
-	    headers = headerHelper.getPostHeaders("");
-	    headers.remove("Content-Length");
-
-		URI uri =  this.tokenHelper.getSharepointSiteUrl(
-				"/_api/web/GetFolderByServerRelativeUrl('" + folder +"')/Files/add(url='"
-						+ fileName + "',overwrite=true)"
-		);
-
-		LOG.debug(String.format("URI: %s", uri ));
-
-		RequestEntity<Resource> requestEntity = new RequestEntity<>(resource,
-	        headers, HttpMethod.POST, 
-	        uri
-	        );
-
-	    ResponseEntity<String> responseEntity = 
-	        restTemplate.exchange(uri.toString(), HttpMethod.POST, requestEntity, String.class);
-
-	    String fileInfoStr = responseEntity.getBody();
-	    
-	    LOG.debug("Retrieved response from server with json");
-	    
-	    JSONObject jsonFileInfo = new JSONObject(fileInfoStr);
-	    String serverRelFileUrl = jsonFileInfo.getJSONObject("d").getString("ServerRelativeUrl");
 
-	    LOG.debug("File uploaded to URI", serverRelFileUrl);
-	    String metadata = jsonMetadata.toString();
-	    headers = headerHelper.getUpdateHeaders(metadata);
-
-	    LOG.debug("Updating file adding metadata {}", jsonMetadata);
-
-		URI uri1 =  this.tokenHelper.getSharepointSiteUrl("/_api/web/GetFileByServerRelativeUrl('" + serverRelFileUrl + "')/listitemallfields");
-		LOG.debug(String.format("URI: %s", uri1 ));
-
-		RequestEntity<String> requestEntity1 = new RequestEntity<>(metadata,
-	        headers, HttpMethod.POST, 
-	        uri1
-	        );
-	    ResponseEntity<String> responseEntity1 =
-		        restTemplate.exchange(uri1.toString(), HttpMethod.POST, requestEntity1, String.class);
-	    LOG.debug("Updated file metadata Status {}", responseEntity1.getStatusCode());
-	    return jsonFileInfo;
+		JSONObject jsonFileInfo = uploadFileContent(folder, resource, fileName);
+		updateUploadedFileMetadata(jsonFileInfo, jsonMetadata);
+		return jsonFileInfo;
 	}
 	
 	/**
@@ -674,7 +1556,7 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 		jsonMetadata.put("__metadata", meta);
 	    LOG.debug("File uploaded to URI", fileServerRelatUrl);
 	    String metadata = jsonMetadata.toString();
-	    headers = headerHelper.getUpdateHeaders(metadata);
+	    MultiValueMap<String, String> headers = headerHelper.getUpdateHeaders(metadata);
 	    LOG.debug("Updating file adding metadata {}", jsonMetadata);
 
 		URI uri =  this.tokenHelper.getSharepointSiteUrl("/_api/web/GetFileByServerRelativeUrl('" + fileServerRelatUrl + "')/listitemallfields");
@@ -685,7 +1567,7 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 	        uri
 	        );
 	    ResponseEntity<String> responseEntity =
-		        restTemplate.exchange(uri.toString(), HttpMethod.POST, requestEntity, String.class);
+		        restTemplate.exchange(uri, HttpMethod.POST, requestEntity, String.class);
 	    LOG.debug("Updated file metadata Status {}", responseEntity.getStatusCode());
 	    return new JSONObject(responseEntity);
 	}
@@ -707,7 +1589,7 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 		jsonMetadata.put("__metadata", meta);
 	    LOG.debug("File uploaded to URI", folderServerRelatUrl);
 	    String metadata = jsonMetadata.toString();
-	    headers = headerHelper.getUpdateHeaders(metadata);
+	    MultiValueMap<String, String> headers = headerHelper.getUpdateHeaders(metadata);
 	    LOG.debug("Updating file adding metadata {}", jsonMetadata);
 
 		URI uri =  this.tokenHelper.getSharepointSiteUrl("/_api/web/GetFolderByServerRelativeUrl('" + folderServerRelatUrl + "')/listitemallfields");
@@ -718,7 +1600,7 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 	        uri
 	        );
 	    ResponseEntity<String> responseEntity =
-		        restTemplate.exchange(uri.toString(), HttpMethod.POST, requestEntity, String.class);
+		        restTemplate.exchange(uri, HttpMethod.POST, requestEntity, String.class);
 	    LOG.debug("Updated file metadata Status {}", responseEntity.getStatusCode());
 	    return new JSONObject(responseEntity);
 	}
@@ -731,7 +1613,7 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 	@Override
 	public JSONObject breakRoleInheritance(String folder) throws Exception {
 		LOG.debug("Breaking role inheritance on folder {}", folder);
-	    headers = headerHelper.getPostHeaders("");
+	    MultiValueMap<String, String> headers = headerHelper.getPostHeaders("");
 
 		URI uri =  this.tokenHelper.getSharepointSiteUrl("/_api/web/GetFolderByServerRelativeUrl('" + folder + "')/ListItemAllFields/breakroleinheritance(copyRoleAssignments=false,clearSubscopes=true)");
 		LOG.debug(String.format("URI: %s", uri ));
@@ -741,8 +1623,8 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 	        uri
         );
 
-	    ResponseEntity<String> responseEntity =  restTemplate.exchange(uri.toString(), HttpMethod.POST, requestEntity, String.class);
-	    return new JSONObject(responseEntity.getBody());
+	    ResponseEntity<String> responseEntity =  restTemplate.exchange(uri, HttpMethod.POST, requestEntity, String.class);
+	    return ODataMetadata.toVerboseEntity(new JSONObject(responseEntity.getBody()));
 	}
 
 	/**
@@ -767,7 +1649,7 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 		payload.put("__metadata", meta);
 		payload.put("ServerRelativeUrl", folder);
 		String payloadStr = payload.toString();
-		headers = headerHelper.getPostHeaders(payloadStr);
+		MultiValueMap<String, String> headers = headerHelper.getPostHeaders(payloadStr);
 
 		URI uri =  this.tokenHelper.getSharepointSiteUrl("/_api/web/GetFolderByServerRelativeUrl('" +  baseFolderRemoteRelativeUrl + "')/folders");
 		LOG.debug(String.format("URI: %s", uri ));
@@ -776,8 +1658,8 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
     			headers, HttpMethod.POST, 
     			uri
     			);
-	    ResponseEntity<String> responseEntity =  restTemplate.exchange(uri.toString(), HttpMethod.POST, requestEntity, String.class);
-	    return new JSONObject(responseEntity.getBody());
+	    ResponseEntity<String> responseEntity =  restTemplate.exchange(uri, HttpMethod.POST, requestEntity, String.class);
+	    return ODataMetadata.toVerboseEntity(new JSONObject(responseEntity.getBody()));
 	}
 	
 	/**
@@ -789,7 +1671,7 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 	@Override
 	public JSONObject moveFolder(String sourceRelativeServerUrl, String destinyRelativeServerUrl) throws Exception {
 		LOG.debug("createFolder sourceRelativeServerUrl {} destinyRelativeServerUrl {}", new Object[] {sourceRelativeServerUrl, destinyRelativeServerUrl});
-		headers = headerHelper.getPostHeaders("");
+		MultiValueMap<String, String> headers = headerHelper.getPostHeaders("");
 
 		URI uri =  this.tokenHelper.getSharepointSiteUrl(
 				"/_api/web/GetFolderByServerRelativeUrl('" + sourceRelativeServerUrl
@@ -801,8 +1683,8 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
     			headers, HttpMethod.POST, 
     			uri
     			);
-	    ResponseEntity<String> responseEntity =  restTemplate.exchange(uri.toString(), HttpMethod.POST, requestEntity, String.class);
-	    return new JSONObject(responseEntity.getBody());
+	    ResponseEntity<String> responseEntity =  restTemplate.exchange(uri, HttpMethod.POST, requestEntity, String.class);
+	    return ODataMetadata.toVerboseEntity(new JSONObject(responseEntity.getBody()));
 	}
 	
 	/**
@@ -814,7 +1696,7 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 	@Override
 	public JSONObject moveFile(String sourceRelativeServerUrl, String destinyRelativeServerUrl) throws Exception {
 		LOG.debug("createFolder sourceRelativeServerUrl {} destinyRelativeServerUrl {}", new Object[] {sourceRelativeServerUrl, destinyRelativeServerUrl});
-		headers = headerHelper.getPostHeaders("");
+		MultiValueMap<String, String> headers = headerHelper.getPostHeaders("");
 
 		URI uri =  this.tokenHelper.getSharepointSiteUrl(
 				"/_api/web/GetFileByServerRelativeUrl('" + spSiteUrl + "/" + sourceRelativeServerUrl
@@ -828,8 +1710,8 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
     			);
 
 
-	    ResponseEntity<String> responseEntity =  restTemplate.exchange(uri.toString(), HttpMethod.POST, requestEntity, String.class);
-	    return new JSONObject(responseEntity.getBody());
+	    ResponseEntity<String> responseEntity =  restTemplate.exchange(uri, HttpMethod.POST, requestEntity, String.class);
+	    return ODataMetadata.toVerboseEntity(new JSONObject(responseEntity.getBody()));
 	}
 	
 	/**
@@ -840,7 +1722,7 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 	@Override
 	public Boolean removeFolder(String folderRemoteRelativeUrl) throws Exception {
 		LOG.debug("Deleting folder {}", folderRemoteRelativeUrl);
-		headers = headerHelper.getDeleteHeaders();
+		MultiValueMap<String, String> headers = headerHelper.getDeleteHeaders();
 
 		URI uri =  this.tokenHelper.getSharepointSiteUrl("/_api/web/GetFolderByServerRelativeUrl('" + folderRemoteRelativeUrl + "')");
 		LOG.debug(String.format("URI: %s", uri ));
@@ -849,10 +1731,117 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
     			headers, HttpMethod.POST, 
     			uri
     			);
-	    restTemplate.exchange(uri.toString(), HttpMethod.POST, requestEntity, String.class);
+	    restTemplate.exchange(uri, HttpMethod.POST, requestEntity, String.class);
 	    return Boolean.TRUE;
 	}
 
+	/**
+	 * @param sourceUrl - absolute or server relative url of the file.
+	 * @param destinationUrl - absolute or server relative url of the copy.
+	 * @param overwrite - true to replace an existing file.
+	 * @param options - options of the copy, null for the defaults.
+	 * @return json response.
+	 * @throws Exception
+	 */
+	@Override
+	public JSONObject copyFileByPath(String sourceUrl, String destinationUrl, boolean overwrite, MoveCopyOptions options) throws Exception {
+		return moveCopy("CopyFileByPath", sourceUrl, destinationUrl, overwrite, options);
+	}
+
+	/**
+	 * @param sourceUrl - absolute or server relative url of the file.
+	 * @param destinationUrl - absolute or server relative url of the target.
+	 * @param overwrite - true to replace an existing file.
+	 * @param options - options of the move, null for the defaults.
+	 * @return json response.
+	 * @throws Exception
+	 */
+	@Override
+	public JSONObject moveFileByPath(String sourceUrl, String destinationUrl, boolean overwrite, MoveCopyOptions options) throws Exception {
+		return moveCopy("MoveFileByPath", sourceUrl, destinationUrl, overwrite, options);
+	}
+
+	/**
+	 * @param sourceUrl - absolute or server relative url of the folder.
+	 * @param destinationUrl - absolute or server relative url of the copy.
+	 * @param options - options of the copy, null for the defaults.
+	 * @return json response.
+	 * @throws Exception
+	 */
+	@Override
+	public JSONObject copyFolderByPath(String sourceUrl, String destinationUrl, MoveCopyOptions options) throws Exception {
+		return moveCopy("CopyFolderByPath", sourceUrl, destinationUrl, null, options);
+	}
+
+	/**
+	 * @param sourceUrl - absolute or server relative url of the folder.
+	 * @param destinationUrl - absolute or server relative url of the target.
+	 * @param options - options of the move, null for the defaults.
+	 * @return json response.
+	 * @throws Exception
+	 */
+	@Override
+	public JSONObject moveFolderByPath(String sourceUrl, String destinationUrl, MoveCopyOptions options) throws Exception {
+		return moveCopy("MoveFolderByPath", sourceUrl, destinationUrl, null, options);
+	}
+
+	private JSONObject moveCopy(String method, String sourceUrl, String destinationUrl, Boolean overwrite, MoveCopyOptions options) throws Exception {
+		LOG.debug("{} {} to {}", new Object[] {method, sourceUrl, destinationUrl});
+		URI uri = this.tokenHelper.getSharepointSiteUrl("/_api/SP.MoveCopyUtil." + method);
+		String payloadStr = (options == null ? MoveCopyOptions.create() : options).toMoveCopyPayload(
+				MoveCopyOptions.toAbsoluteUrl(uri, sourceUrl), MoveCopyOptions.toAbsoluteUrl(uri, destinationUrl), overwrite);
+		return ODataMetadata.toVerboseEntity(postJson(uri, payloadStr));
+	}
+
+	/**
+	 * @param sourceUrls - absolute or server relative urls of the files and folders.
+	 * @param destinationUrl - absolute or server relative url of the target folder.
+	 * @param move - true to delete the sources once copied.
+	 * @param options - options of the jobs, null for the defaults.
+	 * @return json response with the queued jobs.
+	 * @throws Exception
+	 */
+	@Override
+	public JSONObject createCopyJobs(List<String> sourceUrls, String destinationUrl, boolean move, MoveCopyOptions options) throws Exception {
+		LOG.debug("createCopyJobs {} to {} move {}", new Object[] {sourceUrls, destinationUrl, move});
+		URI uri = this.tokenHelper.getSharepointSiteUrl("/_api/site/CreateCopyJobs");
+		List<String> absoluteUrls = new ArrayList<>(sourceUrls.size());
+		for (String sourceUrl : sourceUrls) {
+			absoluteUrls.add(MoveCopyOptions.toAbsoluteUrl(uri, sourceUrl));
+		}
+		String payloadStr = (options == null ? MoveCopyOptions.create() : options).toCopyJobsPayload(
+				absoluteUrls, MoveCopyOptions.toAbsoluteUrl(uri, destinationUrl), move);
+		return ODataMetadata.toVerboseCollection(postJson(uri, payloadStr));
+	}
+
+	/**
+	 * @param copyJobInfo - job returned by createCopyJobs.
+	 * @return json response with the job state and the new logs.
+	 * @throws Exception
+	 */
+	@Override
+	public JSONObject getCopyJobProgress(JSONObject copyJobInfo) throws Exception {
+		String payloadStr = MoveCopyOptions.toCopyJobProgressPayload(copyJobInfo);
+		// Only reads the job, so it's sent again after an I/O failure.
+		return ODataMetadata.toVerboseEntity(postJson(this.tokenHelper.getSharepointSiteUrl("/_api/site/GetCopyJobProgress"),
+				payloadStr, ThrottlingRequestFactory.markResendable(headerHelper.getPostHeaders(payloadStr))));
+	}
+
+	private JSONObject postJson(URI uri, String payloadStr) throws Exception {
+		return postJson(uri, payloadStr, headerHelper.getPostHeaders(payloadStr));
+	}
+
+	private JSONObject postJson(URI uri, String payloadStr, MultiValueMap<String, String> headers) throws Exception {
+		LOG.debug(String.format("URI: %s", uri ));
+
+		RequestEntity<String> requestEntity = new RequestEntity<>(payloadStr,
+				headers, HttpMethod.POST,
+				uri
+				);
+		ResponseEntity<String> responseEntity = restTemplate.exchange(requestEntity, String.class);
+		return new JSONObject(responseEntity.getBody());
+	}
+
 	/**
 	 * @param folder
 	 * @param users
@@ -864,39 +1853,28 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 	public Boolean grantPermissionToUsers(String folder, List<String> users, Permission permission) throws Exception {
 		LOG.debug("Granting {} permission to users {} in folder {}", new Object[] {permission, users, folder});
 
-	    headers = headerHelper.getGetHeaders(false);
-
-		List<Integer> userIds = new ArrayList<>();
-	    for (String user : users) {
-
-			URI uri =  this.tokenHelper.getSharepointSiteUrl("/_api/web/SiteUsers/getByEmail('" + user+ "')");
-			LOG.debug(String.format("URI: %s", uri ));
+		// Users are resolved through the principal cache and granted in parallel, no more at once
+		// than the connections per host so the tasks don't queue for a pooled connection.
+		List<Integer> userIds = principalCache.getIds(users);
 
-	    	RequestEntity<String> requestEntity = new RequestEntity<>("{}", 
-	    			headers, HttpMethod.GET, 
-	    			uri
-	    			);
-	    	ResponseEntity<String> responseEntity =  restTemplate.exchange(uri.toString(), HttpMethod.GET, requestEntity, String.class);
-	    	JSONObject objJson = new JSONObject(responseEntity.getBody());
-	    	LOG.debug("json object retrieved for user {}", user);
-	    	Integer userId = (Integer) objJson.getJSONObject("d").get("Id");
-	    	userIds.add(userId);
-	    }
-	    
-	    headers = headerHelper.getPostHeaders("{}");
+		MultiValueMap<String, String> postHeaders = headerHelper.getPostHeaders("{}");
 
-	    for (Integer userId : userIds) {
+		List<Callable<Void>> addRoleAssignments = new ArrayList<>(userIds.size());
+		for (Integer userId : userIds) {
+			addRoleAssignments.add(() -> {
+				URI uri =  this.tokenHelper.getSharepointSiteUrl("/_api/web/GetFolderByServerRelativeUrl('" + folder + "')/ListItemAllFields/roleAssignments/addroleassignment(principalid=" + userId +",roleDefId=" + permission +")");
+				LOG.debug(String.format("URI: %s", uri));
 
-			URI uri =  this.tokenHelper.getSharepointSiteUrl("/_api/web/GetFolderByServerRelativeUrl('" + folder + "')/ListItemAllFields/roleAssignments/addroleassignment(principalid=" + userId +",roleDefId=" + permission +")");
-			LOG.debug(String.format("URI: %s", uri));
+				RequestEntity<String> requestEntity = new RequestEntity<>("{}",
+						postHeaders, HttpMethod.POST, 
+						uri
+						);
 
-	    	RequestEntity<String> requestEntity = new RequestEntity<>("{}",
-	    			headers, HttpMethod.POST, 
-	    			uri
-    			);
-	    	
-	    	restTemplate.exchange(uri.toString(), HttpMethod.POST, requestEntity, String.class);
-	    }
+				restTemplate.exchange(uri, HttpMethod.POST, requestEntity, String.class);
+				return null;
+			});
+		}
+		SharepointExecutors.invokeAll(executorService, addRoleAssignments, httpClientHelper.getMaxPerRoute());
 	    return Boolean.TRUE;
 	}
 	
@@ -907,7 +1885,7 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 	 */
 	@Override
 	public JSONObject getFolderPermissions(String folder) throws Exception {
-		headers = headerHelper.getGetHeaders(false);
+		MultiValueMap<String, String> headers = headerHelper.getGetHeaders(false);
 
 		URI uri =  this.tokenHelper.getSharepointSiteUrl("/_api/web/GetFolderByServerRelativeUrl('" + folder + "')/ListItemAllFields/roleAssignments");
 		LOG.debug(String.format("URI: %s", uri ));
@@ -917,9 +1895,9 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 				uri
 	    		);
 	    
-	    ResponseEntity<String> response = restTemplate.exchange(uri.toString(), HttpMethod.GET, requestEntity, String.class);
+	    ResponseEntity<String> response = restTemplate.exchange(uri, HttpMethod.GET, requestEntity, String.class);
 
-	    return new JSONObject(response.getBody());
+	    return ODataMetadata.toVerboseCollection(new JSONObject(response.getBody()));
 	}
 	
 	/**
@@ -942,7 +1920,7 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
     		LOG.debug("JSON payload retrieved from server for user {}", "");
 	    }
 	    
-	    headers = headerHelper.getDeleteHeaders();
+	    MultiValueMap<String, String> headers = headerHelper.getDeleteHeaders();
 	    for (Integer userId : userIds) {
 
 			URI uri =  this.tokenHelper.getSharepointSiteUrl("/_api/web/GetFolderByServerRelativeUrl('" + folder + "')/ListItemAllFields/roleAssignments/getbyprincipalid(" + userId  +")");
@@ -953,7 +1931,7 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 	    			uri
 			);
 	    	
-	    	restTemplate.exchange(uri.toString(), HttpMethod.POST, requestEntity, String.class);
+	    	restTemplate.exchange(uri, HttpMethod.POST, requestEntity, String.class);
 	    }
 	    return Boolean.TRUE;
 	}
@@ -970,26 +1948,9 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 	public Boolean removePermissionToUsers(String folder, List<String> users, Permission permission) throws Exception {
 		LOG.debug("Revoking {} permission to users {} in folder {}", new Object[] {permission, users, folder});
 		
-	    headers = headerHelper.getGetHeaders(false);
-
-	    List<Integer> userIds = new ArrayList<>();
-	    for (String user : users) {
-
-			URI uri =  this.tokenHelper.getSharepointSiteUrl("/_api/web/SiteUsers/getByEmail('" + user+ "')");
-			LOG.debug(String.format("URI: %s", uri ));
+	    List<Integer> userIds = principalCache.getExistingIds(users);
 
-			RequestEntity<String> requestEntity = new RequestEntity<>("{}",
-	    			headers, HttpMethod.GET, 
-	    			uri
-			);
-	    	ResponseEntity<String> responseEntity =  restTemplate.exchange(uri.toString(), HttpMethod.GET, requestEntity, String.class);
-	    	LOG.debug("JSON payload retrieved from server for user {}", user);
-	    	JSONObject objJson = new JSONObject(responseEntity.getBody());
-	    	Integer userId = (Integer) objJson.getJSONObject("d").get("Id");
-	    	userIds.add(userId);
-	    }
-	    
-	    headers = headerHelper.getDeleteHeaders();
+	    MultiValueMap<String, String> headers = headerHelper.getDeleteHeaders();
 	    for (Integer userId : userIds) {
 
 			URI uri =  this.tokenHelper.getSharepointSiteUrl("/_api/web/GetFolderByServerRelativeUrl('" + folder + "')/ListItemAllFields/roleAssignments/getbyprincipalid(" + userId  +")");
@@ -1000,7 +1961,7 @@ public class PLGSharepointClientOnline implements PLGSharepointClient {
 	    			uri
 			);
 	    	
-	    	restTemplate.exchange(uri.toString(), HttpMethod.POST, requestEntity1, String.class);
+	    	restTemplate.exchange(uri, HttpMethod.POST, requestEntity1, String.class);
 	    }
 	    return Boolean.TRUE;
 	}
@@ -0,0 +1,129 @@
+package com.panxoloto.sharepoint.rest;
+
+import java.io.IOException;
+import java.net.URI;
+
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.NTCredentials;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.springframework.util.MultiValueMap;
+
+import com.panxoloto.sharepoint.rest.helper.AsyncHttpExecutor;
+import com.panxoloto.sharepoint.rest.helper.HttpClientPoolConfig;
+import com.panxoloto.sharepoint.rest.helper.HttpProtocols;
+
+/**
+ * Async client for sharepoint on premises. The requests authenticate with NTLM, the digest key
+ * comes from a blocking client owned by this one.
+ */
+public class PLGSharepointOnPremisesAsyncClient extends AbstractPLGSharepointAsyncClient {
+
+	private final PLGSharepointOnPremisesClient client;
+
+	/**
+	 * @param user - The user to access sharepoint site.
+	 * @param passwd - the user password.
+	 * @param domain - the NTLM domain.
+	 * @param spSiteUrl - The sharepoint site URI - host part
+	 * @param spSitePrefix - The sharepoint site URI - path part /sites/contososite
+	 * @throws IOException
+	 */
+	public PLGSharepointOnPremisesAsyncClient(String user, String passwd, String domain, String spSiteUrl, String spSitePrefix) throws IOException {
+		this(user, passwd, domain, spSiteUrl, spSitePrefix, new HttpClientPoolConfig());
+	}
+
+	/**
+	 * @param user - The user to access sharepoint site.
+	 * @param passwd - the user password.
+	 * @param domain - the NTLM domain.
+	 * @param spSiteUrl - The sharepoint site URI - host part
+	 * @param spSitePrefix - The sharepoint site URI - path part /sites/contososite
+	 * @param poolConfig - connection pool settings for the async http client, one request in flight per connection.
+	 * @throws IOException
+	 */
+	public PLGSharepointOnPremisesAsyncClient(String user, String passwd, String domain, String spSiteUrl, String spSitePrefix,
+			HttpClientPoolConfig poolConfig) throws IOException {
+		this(user, passwd, domain, spSiteUrl, spSitePrefix, poolConfig, poolConfig.getMaxPerRoute());
+	}
+
+	/**
+	 * @param user - The user to access sharepoint site.
+	 * @param passwd - the user password.
+	 * @param domain - the NTLM domain.
+	 * @param spSiteUrl - The sharepoint site URI - host part
+	 * @param spSitePrefix - The sharepoint site URI - path part /sites/contososite
+	 * @param poolConfig - connection pool settings for the async http client.
+	 * @param maxInFlight - max number of requests sent at the same time, at most the connections per host.
+	 * @throws IOException
+	 */
+	public PLGSharepointOnPremisesAsyncClient(String user, String passwd, String domain, String spSiteUrl, String spSitePrefix,
+			HttpClientPoolConfig poolConfig, int maxInFlight) throws IOException {
+		super(new AsyncHttpExecutor(poolConfig, credentials(user, passwd, domain, spSiteUrl), true, maxInFlight,
+				AsyncHttpExecutor.DEFAULT_IO_THREADS));
+		this.client = new PLGSharepointOnPremisesClient(user, passwd, domain, spSiteUrl, spSitePrefix, poolConfig);
+	}
+
+	private static CredentialsProvider credentials(String user, String passwd, String domain, String spSiteUrl) {
+		CredentialsProvider credsProvider = new BasicCredentialsProvider();
+		credsProvider.setCredentials(AuthScope.ANY, new NTCredentials(user, passwd, spSiteUrl, domain));
+		return credsProvider;
+	}
+
+	@Override
+	public PLGSharepointClient getBlockingClient() {
+		return client;
+	}
+
+	public HttpProtocols getProtocol() {
+		return client.getProtocol();
+	}
+
+	public void setProtocol(HttpProtocols protocol) {
+		client.setProtocol(protocol);
+	}
+
+	@Override
+	protected MultiValueMap<String, String> getGetHeaders(boolean includeAuthHeader) throws Exception {
+		return client.getHeaderHelper().getGetHeaders(includeAuthHeader);
+	}
+
+	@Override
+	protected MultiValueMap<String, String> getPostHeaders(String payload) throws Exception {
+		return client.getHeaderHelper().getPostHeaders(payload);
+	}
+
+	@Override
+	protected MultiValueMap<String, String> getUpdateHeaders(String payload) throws Exception {
+		return client.getHeaderHelper().getUpdateHeaders(payload);
+	}
+
+	@Override
+	protected MultiValueMap<String, String> getDeleteHeaders() throws Exception {
+		return client.getHeaderHelper().getDeleteHeaders();
+	}
+
+	@Override
+	protected URI getSharepointSiteUrl(String apiPath) throws Exception {
+		return client.getTokenHelper().getSharepointSiteUrl(apiPath);
+	}
+
+	@Override
+	protected URI getSharepointSiteUrl(String apiPath, String query) throws Exception {
+		return client.getTokenHelper().getSharepointSiteUrl(apiPath, query);
+	}
+
+	@Override
+	protected String getFileUrl(String fileServerRelativeUrl) {
+		return fileServerRelativeUrl;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			super.close();
+		} finally {
+			client.close();
+		}
+	}
+}
@@ -0,0 +1,211 @@
+package com.panxoloto.sharepoint.rest;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Iterates over the items of a paged sharepoint response following the next page links lazily.
+ * Pages are fetched in background by a producer task, so page N+1 is being downloaded while
+ * page N is consumed. The number of pages fetched ahead is bounded by the read ahead value.
+ *
+ * The iterator must be closed if it's not fully consumed to stop the background fetch.
+ *
+ * @param <T> type of the items of each page.
+ */
+public class PageIterator<T> implements Iterator<T>, Closeable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(PageIterator.class);
+
+	/**
+	 * Retrieves a page given the link returned by the previous one (null for the first page).
+	 */
+	public interface PageFetcher<T> {
+		Page<T> fetch(String pageLink) throws Exception;
+	}
+
+	/**
+	 * A page of items and the link to the next one (null if it's the last page).
+	 */
+	public static class Page<T> {
+		private final List<T> items;
+		private final String nextLink;
+		private final Exception error;
+
+		public Page(List<T> items, String nextLink) {
+			this(items, nextLink, null);
+		}
+
+		private Page(List<T> items, String nextLink, Exception error) {
+			this.items = items;
+			this.nextLink = nextLink;
+			this.error = error;
+		}
+
+		public List<T> getItems() {
+			return items;
+		}
+
+		public String getNextLink() {
+			return nextLink;
+		}
+	}
+
+	private final BlockingQueue<Page<T>> pages;
+	private final Future<?> producer;
+	private Iterator<T> current = Collections.emptyIterator();
+	private boolean finished = false;
+	private volatile boolean closed = false;
+
+	/**
+	 * @param fetcher - retrieves every page.
+	 * @param executor - executor to run the background fetch.
+	 * @param readAhead - max number of pages fetched and not yet consumed.
+	 */
+	public PageIterator(PageFetcher<T> fetcher, ExecutorService executor, int readAhead) {
+		this.pages = new ArrayBlockingQueue<>(Math.max(1, readAhead));
+		this.producer = executor.submit(() -> produce(fetcher));
+	}
+
+	private void produce(PageFetcher<T> fetcher) {
+		String link = null;
+		try {
+			do {
+				Page<T> page = fetcher.fetch(link);
+				link = page.getNextLink();
+				if (link == null) {
+					// last page, also acts as end marker
+					putPage(new Page<>(page.getItems(), null));
+				} else {
+					putPage(page);
+				}
+			} while (link != null && !closed);
+		} catch (InterruptedException e) {
+			LOG.debug("Page fetch interrupted");
+			Thread.currentThread().interrupt();
+		} catch (Exception e) {
+			LOG.error("Error retrieving page {}", link, e);
+			try {
+				putPage(new Page<T>(Collections.emptyList(), null, e));
+			} catch (InterruptedException e1) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void putPage(Page<T> page) throws InterruptedException {
+		while (!closed) {
+			if (pages.offer(page, 100, TimeUnit.MILLISECONDS)) {
+				return;
+			}
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (!current.hasNext()) {
+			if (finished || closed) {
+				return false;
+			}
+			Page<T> page;
+			try {
+				page = pages.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				close();
+				throw new IllegalStateException("Interrupted while waiting for the next page", e);
+			}
+			if (page.error != null) {
+				finished = true;
+				throw new IllegalStateException("Error retrieving next page", page.error);
+			}
+			if (page.getNextLink() == null) {
+				finished = true;
+			}
+			current = page.getItems().iterator();
+		}
+		return true;
+	}
+
+	@Override
+	public T next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return current.next();
+	}
+
+	/**
+	 * Stops the background fetch and discards the pages not consumed.
+	 */
+	@Override
+	public void close() {
+		if (!closed) {
+			closed = true;
+			producer.cancel(true);
+			pages.clear();
+		}
+	}
+
+	/**
+	 * @return a sequential stream over the items, closing the stream closes this iterator.
+	 */
+	public Stream<T> stream() {
+		return StreamSupport.stream(
+				Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false)
+				.onClose(this::close);
+	}
+
+	/**
+	 * Builds a page from a sharepoint json response: {"d": {"results": [...], "__next": "..."}}
+	 *
+	 * @param json - response of the rest api.
+	 * @return the page with the results as JSONObjects.
+	 */
+	public static Page<JSONObject> fromODataPage(JSONObject json) {
+		JSONObject d = json.getJSONObject("d");
+		JSONArray results = d.optJSONArray("results");
+		List<JSONObject> items = new ArrayList<>(results == null ? 0 : results.length());
+		if (results != null) {
+			for (int i = 0; i < results.length(); i++) {
+				items.add(results.getJSONObject(i));
+			}
+		}
+		return new Page<>(items, d.optString("__next", null));
+	}
+
+	/**
+	 * Builds a page from a RenderListDataAsStream response: {"Row": [...], "NextHref": "?Paged=TRUE&amp;p_ID=..."}
+	 *
+	 * @param json - response of RenderListDataAsStream.
+	 * @return the page with the rows as JSONObjects, the next link is the NextHref query string.
+	 */
+	public static Page<JSONObject> fromRenderListData(JSONObject json) {
+		JSONArray rows = json.optJSONArray("Row");
+		List<JSONObject> items = new ArrayList<>(rows == null ? 0 : rows.length());
+		if (rows != null) {
+			for (int i = 0; i < rows.length(); i++) {
+				items.add(rows.getJSONObject(i));
+			}
+		}
+		String nextHref = json.optString("NextHref", null);
+		return new Page<>(items, nextHref == null || nextHref.isEmpty() ? null : nextHref);
+	}
+}
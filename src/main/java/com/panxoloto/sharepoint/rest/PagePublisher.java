@@ -0,0 +1,187 @@
+package com.panxoloto.sharepoint.rest;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.panxoloto.sharepoint.rest.PageIterator.Page;
+
+/**
+ * Publishes the items of a paged sharepoint response one by one, following the next page links
+ * as the subscriber requests more items.
+ *
+ * A page is only requested when the items of the previous one have been delivered and there is
+ * pending demand, so at most one page is held in memory per subscription however slow the
+ * subscriber is. Cancelling the subscription cancels the request of the page being fetched.
+ *
+ * Every subscription starts again from the first page.
+ *
+ * @param <T> type of the items of each page.
+ */
+public class PagePublisher<T> implements Publisher<T> {
+
+	private static final Logger LOG = LoggerFactory.getLogger(PagePublisher.class);
+
+	/**
+	 * Retrieves a page given the link returned by the previous one (null for the first page).
+	 * Cancelling the returned future must cancel the request.
+	 */
+	public interface AsyncPageFetcher<T> {
+		CompletableFuture<Page<T>> fetch(String pageLink);
+	}
+
+	private final AsyncPageFetcher<T> fetcher;
+
+	/**
+	 * @param fetcher - retrieves every page.
+	 */
+	public PagePublisher(AsyncPageFetcher<T> fetcher) {
+		this.fetcher = fetcher;
+	}
+
+	@Override
+	public void subscribe(Subscriber<? super T> subscriber) {
+		if (subscriber == null) {
+			throw new NullPointerException("Subscriber can't be null");
+		}
+		PageSubscription subscription = new PageSubscription(subscriber);
+		subscriber.onSubscribe(subscription);
+		subscription.drain();
+	}
+
+	/**
+	 * All the signals to the subscriber are sent from drain, which only runs in one thread at a
+	 * time: callers that find it running just mark that there's more work to do.
+	 */
+	private final class PageSubscription implements Subscription {
+
+		private final Subscriber<? super T> subscriber;
+		private final AtomicLong requested = new AtomicLong();
+		private final AtomicInteger wip = new AtomicInteger();
+		private final AtomicBoolean cancelled = new AtomicBoolean();
+		private final Queue<T> items = new ArrayDeque<>();
+		private volatile CompletableFuture<Page<T>> inFlight;
+		private volatile Page<T> fetched;
+		private volatile Throwable error;
+		private String nextLink;
+		private boolean started;
+		private boolean done;
+
+		PageSubscription(Subscriber<? super T> subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				error = new IllegalArgumentException("Requested items must be greater than zero, got " + n);
+			} else {
+				requested.getAndUpdate(current -> current + n < 0 ? Long.MAX_VALUE : current + n);
+			}
+			drain();
+		}
+
+		@Override
+		public void cancel() {
+			if (cancelled.compareAndSet(false, true)) {
+				CompletableFuture<Page<T>> future = inFlight;
+				if (future != null) {
+					LOG.debug("Subscription cancelled, cancelling the page request");
+					future.cancel(true);
+				}
+				drain();
+			}
+		}
+
+		void drain() {
+			if (wip.getAndIncrement() != 0) {
+				return;
+			}
+			int missed = 1;
+			do {
+				step();
+				missed = wip.addAndGet(-missed);
+			} while (missed != 0);
+		}
+
+		private void step() {
+			if (done) {
+				return;
+			}
+			if (cancelled.get()) {
+				finish();
+				return;
+			}
+			Page<T> page = fetched;
+			if (page != null) {
+				// The request is over once its page is taken, not when the future completes.
+				fetched = null;
+				inFlight = null;
+				items.addAll(page.getItems());
+				nextLink = page.getNextLink();
+			}
+			while (requested.get() > 0 && !items.isEmpty() && !cancelled.get()) {
+				subscriber.onNext(items.poll());
+				requested.decrementAndGet();
+			}
+			if (cancelled.get()) {
+				finish();
+				return;
+			}
+			Throwable failure = error;
+			if (failure != null) {
+				// Errors are sent right away, the items not delivered are discarded.
+				finish();
+				subscriber.onError(failure);
+				return;
+			}
+			if (!items.isEmpty() || inFlight != null) {
+				return;
+			}
+			if (started && nextLink == null) {
+				finish();
+				subscriber.onComplete();
+				return;
+			}
+			if (requested.get() > 0) {
+				fetch(started ? nextLink : null);
+			}
+		}
+
+		private void fetch(String link) {
+			started = true;
+			CompletableFuture<Page<T>> future;
+			try {
+				future = fetcher.fetch(link);
+			} catch (RuntimeException e) {
+				future = new CompletableFuture<>();
+				future.completeExceptionally(e);
+			}
+			inFlight = future;
+			future.whenComplete((result, e) -> {
+				if (e != null) {
+					error = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+				} else {
+					fetched = result;
+				}
+				drain();
+			});
+		}
+
+		private void finish() {
+			done = true;
+			items.clear();
+			fetched = null;
+		}
+	}
+}
@@ -0,0 +1,520 @@
+package com.panxoloto.sharepoint.rest;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.panxoloto.sharepoint.rest.helper.ODataQuery;
+import com.panxoloto.sharepoint.rest.helper.Permission;
+
+/**
+ * Applies the desired permissions of folders with the minimum number of requests. The role
+ * assignments of the folders are read in $batch requests with the members and roles expanded,
+ * compared with the desired principal to role map, and only the differences are written, in
+ * $batch requests too. Folders already matching the desired permissions cost a share of a read
+ * batch and nothing else.
+ *
+ * Principals are the email of site users or the name of site groups. Principals already assigned
+ * to any folder of the run are matched by email, login name or title, the rest are resolved through
+ * the principal cache of the client. Hidden roles like Limited Access, managed by sharepoint for sharing links, are left as
+ * they are.
+ *
+ * A folder inheriting its permissions keeps inheriting them if they already match and its parent
+ * isn't changed in the same run, otherwise the inheritance is broken without copying the parent
+ * permissions and without clearing the unique permissions of its contents. Breaking it grants the
+ * caller Full Control, so the folder is read again and that grant is removed unless desired.
+ */
+public class PermissionReconciler {
+
+	private static final Logger LOG = LoggerFactory.getLogger(PermissionReconciler.class);
+
+	public static final int DEFAULT_FOLDERS_PER_BATCH = PLGSharepointBatch.DEFAULT_MAX_OPERATIONS_PER_BATCH;
+
+	private static final ODataQuery ROLE_ASSIGNMENTS_QUERY = ODataQuery.create()
+			.select("HasUniqueRoleAssignments", "RoleAssignments")
+			.expand("RoleAssignments/Member", "RoleAssignments/RoleDefinitionBindings");
+
+	private static final int PRINCIPAL_TYPE_USER = 1;
+
+	private final PLGSharepointClient client;
+	private volatile boolean removeUnlisted = true;
+	private volatile int foldersPerBatch = DEFAULT_FOLDERS_PER_BATCH;
+
+	/**
+	 * @param client - client used to send the batches.
+	 */
+	public PermissionReconciler(PLGSharepointClient client) {
+		this.client = client;
+	}
+
+	public boolean isRemoveUnlisted() {
+		return removeUnlisted;
+	}
+
+	/**
+	 * @param removeUnlisted - true (default) to remove the principals not in the desired map, false
+	 * to only add and change the roles of the listed ones.
+	 */
+	public void setRemoveUnlisted(boolean removeUnlisted) {
+		this.removeUnlisted = removeUnlisted;
+	}
+
+	public int getFoldersPerBatch() {
+		return foldersPerBatch;
+	}
+
+	/**
+	 * @param foldersPerBatch - folders read per $batch request, also the max operations per write batch.
+	 */
+	public void setFoldersPerBatch(int foldersPerBatch) {
+		if (foldersPerBatch <= 0) {
+			throw new IllegalArgumentException("Folders per batch must be greater than zero");
+		}
+		this.foldersPerBatch = foldersPerBatch;
+	}
+
+	/**
+	 * @param folder - server relative url of the folder.
+	 * @param desired - role of every principal (user email or group name) that must have access.
+	 * @return what was changed.
+	 * @throws Exception thrown when a whole batch fails, failures of single folders are reported in the result.
+	 */
+	public ReconcileResult reconcile(String folder, Map<String, Permission> desired) throws Exception {
+		return reconcile(Collections.singletonMap(folder, desired));
+	}
+
+	/**
+	 * Reconciles the folders in rounds of foldersPerBatch folders, parents before their subfolders:
+	 * one read batch, one batch looking up the principals not seen yet (if any), the batch breaking
+	 * the inheritance followed by a read of those folders (if any) and the write batches of the
+	 * folders that changed. A folder inheriting from a folder changed in the same round is read
+	 * again in the next round, after the writes of its parent.
+	 *
+	 * @param desiredByFolder - desired permissions of every folder, by server relative url.
+	 * @return what was changed.
+	 * @throws Exception thrown when a whole batch fails, failures of single folders are reported in the result.
+	 */
+	public ReconcileResult reconcile(Map<String, Map<String, Permission>> desiredByFolder) throws Exception {
+		ReconcileResult result = new ReconcileResult();
+		Map<String, Integer> principals = new HashMap<>();
+		int batchSize = foldersPerBatch;
+		List<String> pending = parentsFirst(desiredByFolder.keySet());
+		while (!pending.isEmpty()) {
+			int end = Math.min(pending.size(), batchSize);
+			Map<String, Map<String, Permission>> round = new LinkedHashMap<>();
+			for (String folder : pending.subList(0, end)) {
+				round.put(folder, desiredByFolder.get(folder));
+			}
+			List<String> next = new ArrayList<>(reconcileRound(round, principals, result, batchSize));
+			next.addAll(pending.subList(end, pending.size()));
+			pending = parentsFirst(next);
+		}
+		LOG.debug("Reconciled permissions of {} folders: {}", desiredByFolder.size(), result);
+		return result;
+	}
+
+	/**
+	 * @return the folders deferred to the next round.
+	 */
+	private List<String> reconcileRound(Map<String, Map<String, Permission>> round, Map<String, Integer> principals,
+			ReconcileResult result, int batchSize) throws Exception {
+		Map<String, FolderAcl> acls = read(round.keySet(), principals, result, batchSize);
+
+		// Look up the principals not assigned to any folder seen so far.
+		Set<String> unknown = new LinkedHashSet<>();
+		for (String folder : acls.keySet()) {
+			for (String principal : round.get(folder).keySet()) {
+				if (!principals.containsKey(key(principal))) {
+					unknown.add(principal);
+				}
+			}
+		}
+		if (!unknown.isEmpty()) {
+			Map<String, Integer> found = client.getPrincipalCache().resolveAll(unknown);
+			for (Map.Entry<String, Integer> principal : found.entrySet()) {
+				principals.put(key(principal.getKey()), principal.getValue());
+			}
+			result.principalsLookedUp.addAndGet(unknown.size());
+		}
+
+		// Write the differences of the folders with unique permissions, find the ones to break.
+		PLGSharepointBatch writes = newBatch(batchSize);
+		Map<String, List<CompletableFuture<BatchResponse>>> folderWrites = new LinkedHashMap<>();
+		Map<String, Map<Integer, Permission>> toBreak = new LinkedHashMap<>();
+		List<String> changing = new ArrayList<>();
+		List<String> deferred = new ArrayList<>();
+		for (Map.Entry<String, FolderAcl> entry : acls.entrySet()) {
+			String folder = entry.getKey();
+			FolderAcl acl = entry.getValue();
+			Map<Integer, Permission> desired = desiredIds(folder, round.get(folder), principals, result);
+			if (desired == null) {
+				continue;
+			}
+			if (!acl.unique) {
+				if (hasAncestor(folder, changing)) {
+					// The inherited permissions read are about to change, compare them once written.
+					deferred.add(folder);
+					continue;
+				}
+				if (!acl.differs(desired, removeUnlisted)) {
+					continue;
+				}
+				toBreak.put(folder, desired);
+				changing.add(folder);
+				continue;
+			}
+			List<CompletableFuture<BatchResponse>> operations = addOperations(writes, folder, acl, desired, removeUnlisted, result);
+			if (!operations.isEmpty()) {
+				folderWrites.put(folder, operations);
+				changing.add(folder);
+			}
+		}
+
+		if (!toBreak.isEmpty()) {
+			PLGSharepointBatch breaks = newBatch(batchSize);
+			Map<String, CompletableFuture<BatchResponse>> breakResponses = new LinkedHashMap<>();
+			for (String folder : toBreak.keySet()) {
+				breakResponses.put(folder, breaks.breakRoleInheritance(folder, false, false));
+			}
+			breaks.execute();
+			List<String> broken = new ArrayList<>();
+			for (Map.Entry<String, CompletableFuture<BatchResponse>> response : breakResponses.entrySet()) {
+				try {
+					await(response.getValue());
+					result.inheritanceBroken.incrementAndGet();
+					broken.add(response.getKey());
+				} catch (Exception e) {
+					result.fail(response.getKey(), e);
+				}
+			}
+			// Nothing is copied, but the caller is granted Full Control: read what the folders got and
+			// remove everything not desired, whatever removeUnlisted says.
+			Map<String, FolderAcl> brokenAcls = read(broken, principals, result, batchSize);
+			for (Map.Entry<String, FolderAcl> entry : brokenAcls.entrySet()) {
+				String folder = entry.getKey();
+				List<CompletableFuture<BatchResponse>> operations = addOperations(writes, folder, entry.getValue(), toBreak.get(folder), true, result);
+				// The folder changed with the break even if nothing is written.
+				folderWrites.put(folder, operations);
+			}
+		}
+		if (writes.size() > 0) {
+			writes.execute();
+		}
+		for (Map.Entry<String, List<CompletableFuture<BatchResponse>>> entry : folderWrites.entrySet()) {
+			try {
+				for (CompletableFuture<BatchResponse> operation : entry.getValue()) {
+					await(operation);
+				}
+				result.foldersChanged.incrementAndGet();
+			} catch (Exception e) {
+				result.fail(entry.getKey(), e);
+			}
+		}
+		return deferred;
+	}
+
+	private Map<String, FolderAcl> read(Collection<String> folders, Map<String, Integer> principals, ReconcileResult result,
+			int batchSize) throws Exception {
+		Map<String, FolderAcl> acls = new LinkedHashMap<>();
+		if (folders.isEmpty()) {
+			return acls;
+		}
+		PLGSharepointBatch reads = newBatch(batchSize);
+		Map<String, CompletableFuture<BatchResponse>> responses = new LinkedHashMap<>();
+		for (String folder : folders) {
+			responses.put(folder, reads.get("/_api/web/GetFolderByServerRelativeUrl('" + folder + "')/ListItemAllFields",
+					ROLE_ASSIGNMENTS_QUERY));
+		}
+		reads.execute();
+		for (Map.Entry<String, CompletableFuture<BatchResponse>> response : responses.entrySet()) {
+			try {
+				FolderAcl acl = FolderAcl.parse(await(response.getValue()).getJson().getJSONObject("d"));
+				acls.put(response.getKey(), acl);
+				acl.collectPrincipals(principals, client.getPrincipalCache());
+				result.foldersRead.incrementAndGet();
+			} catch (Exception e) {
+				result.fail(response.getKey(), e);
+			}
+		}
+		return acls;
+	}
+
+	/**
+	 * @return the desired role by principal id, null when a principal doesn't exist.
+	 */
+	private Map<Integer, Permission> desiredIds(String folder, Map<String, Permission> desiredByName, Map<String, Integer> principals,
+			ReconcileResult result) {
+		Map<Integer, Permission> desired = new LinkedHashMap<>();
+		boolean missingPrincipal = false;
+		for (Map.Entry<String, Permission> principal : desiredByName.entrySet()) {
+			Integer id = principals.get(key(principal.getKey()));
+			if (id == null) {
+				result.fail(folder, new IllegalArgumentException("Principal " + principal.getKey() + " not found"));
+				missingPrincipal = true;
+			} else {
+				desired.put(id, principal.getValue());
+			}
+		}
+		return missingPrincipal ? null : desired;
+	}
+
+	/**
+	 * Adds the writes turning the acl of a folder into the desired one, the additions before the
+	 * removals so the caller doesn't lose its access to the folder before the last write.
+	 */
+	private List<CompletableFuture<BatchResponse>> addOperations(PLGSharepointBatch writes, String folder, FolderAcl acl,
+			Map<Integer, Permission> desired, boolean removeUnlisted, ReconcileResult result) {
+		List<CompletableFuture<BatchResponse>> operations = new ArrayList<>();
+		for (Map.Entry<Integer, Permission> role : desired.entrySet()) {
+			if (!acl.roles.getOrDefault(role.getKey(), Collections.emptySet()).contains(role.getValue().toString())) {
+				operations.add(writes.addRoleAssignment(folder, role.getKey(), role.getValue()));
+				result.rolesAdded.incrementAndGet();
+			}
+		}
+		for (Map.Entry<Integer, Permission> role : desired.entrySet()) {
+			String roleDefId = role.getValue().toString();
+			for (String currentRoleDefId : acl.roles.getOrDefault(role.getKey(), Collections.emptySet())) {
+				if (!currentRoleDefId.equals(roleDefId)) {
+					operations.add(writes.removeRoleAssignment(folder, role.getKey(), currentRoleDefId));
+					result.rolesRemoved.incrementAndGet();
+				}
+			}
+		}
+		if (removeUnlisted) {
+			for (Map.Entry<Integer, Set<String>> current : acl.roles.entrySet()) {
+				if (!desired.containsKey(current.getKey()) && !current.getValue().isEmpty()) {
+					operations.add(acl.hidden.getOrDefault(current.getKey(), false)
+							// Keep the hidden roles of the principal, remove the visible ones only.
+							? removeRoles(writes, folder, current.getKey(), current.getValue())
+							: writes.removeRoleAssignments(folder, current.getKey()));
+					result.rolesRemoved.addAndGet(current.getValue().size());
+				}
+			}
+		}
+		return operations;
+	}
+
+	private static boolean hasAncestor(String folder, List<String> folders) {
+		String path = key(folder);
+		for (String other : folders) {
+			if (path.startsWith(key(other) + "/")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static List<String> parentsFirst(Collection<String> folders) {
+		List<String> sorted = new ArrayList<>(folders);
+		sorted.sort(Comparator.comparingInt(folder -> folder.length() - folder.replace("/", "").length()));
+		return sorted;
+	}
+
+	private CompletableFuture<BatchResponse> removeRoles(PLGSharepointBatch writes, String folder, Integer principalId, Set<String> roleDefIds) {
+		List<CompletableFuture<BatchResponse>> removals = new ArrayList<>();
+		for (String roleDefId : roleDefIds) {
+			removals.add(writes.removeRoleAssignment(folder, principalId, roleDefId));
+		}
+		return CompletableFuture.allOf(removals.toArray(new CompletableFuture<?>[0])).thenApply(done -> removals.get(0).join());
+	}
+
+	private PLGSharepointBatch newBatch(int batchSize) {
+		PLGSharepointBatch batch = client.newBatch();
+		batch.setMaxOperationsPerBatch(batchSize);
+		return batch;
+	}
+
+	private static BatchResponse await(CompletableFuture<BatchResponse> future) throws Exception {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause() instanceof CompletionException ? e.getCause().getCause() : e.getCause();
+			throw cause instanceof Exception ? (Exception) cause : e;
+		}
+	}
+
+	private static String key(String principal) {
+		return principal.toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Visible roles of every principal of a folder.
+	 */
+	private static class FolderAcl {
+
+		private final boolean unique;
+		private final Map<Integer, Set<String>> roles;
+		// Principals with hidden roles too, their assignment can't be deleted as a whole.
+		private final Map<Integer, Boolean> hidden;
+		private final List<JSONObject> members = new ArrayList<>();
+
+		FolderAcl(boolean unique, Map<Integer, Set<String>> roles, Map<Integer, Boolean> hidden) {
+			this.unique = unique;
+			this.roles = roles;
+			this.hidden = hidden;
+		}
+
+		static FolderAcl parse(JSONObject item) {
+			Map<Integer, Set<String>> roles = new LinkedHashMap<>();
+			Map<Integer, Boolean> hidden = new HashMap<>();
+			FolderAcl acl = new FolderAcl(item.optBoolean("HasUniqueRoleAssignments", true), roles, hidden);
+			for (Object assignment : results(item.opt("RoleAssignments"))) {
+				JSONObject roleAssignment = (JSONObject) assignment;
+				int principalId = roleAssignment.getInt("PrincipalId");
+				Set<String> visible = new LinkedHashSet<>();
+				for (Object binding : results(roleAssignment.opt("RoleDefinitionBindings"))) {
+					JSONObject roleDefinition = (JSONObject) binding;
+					if (roleDefinition.optBoolean("Hidden", false)) {
+						hidden.put(principalId, true);
+					} else {
+						visible.add(String.valueOf(roleDefinition.get("Id")));
+					}
+				}
+				roles.put(principalId, visible);
+				JSONObject member = roleAssignment.optJSONObject("Member");
+				if (member != null) {
+					acl.members.add(member);
+				}
+			}
+			return acl;
+		}
+
+		void collectPrincipals(Map<String, Integer> principals, PrincipalCache cache) {
+			for (JSONObject member : members) {
+				cache.put(member);
+				int id = member.getInt("Id");
+				boolean user = member.optInt("PrincipalType") == PRINCIPAL_TYPE_USER;
+				for (String name : new String[] {member.optString("Email"), member.optString("LoginName"), user ? "" : member.optString("Title")}) {
+					if (!name.isEmpty()) {
+						principals.put(key(name), id);
+					}
+				}
+			}
+		}
+
+		boolean differs(Map<Integer, Permission> desired, boolean removeUnlisted) {
+			for (Map.Entry<Integer, Permission> role : desired.entrySet()) {
+				if (!Collections.singleton(role.getValue().toString()).equals(roles.get(role.getKey()))) {
+					return true;
+				}
+			}
+			if (removeUnlisted) {
+				for (Map.Entry<Integer, Set<String>> current : roles.entrySet()) {
+					if (!desired.containsKey(current.getKey()) && !current.getValue().isEmpty()) {
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+
+		private static List<Object> results(Object value) {
+			if (value instanceof JSONObject) {
+				value = ((JSONObject) value).opt("results");
+			}
+			List<Object> list = new ArrayList<>();
+			if (value instanceof JSONArray) {
+				((JSONArray) value).forEach(list::add);
+			}
+			return list;
+		}
+	}
+
+	/**
+	 * A folder that couldn't be read or changed.
+	 */
+	public static class Failure {
+
+		private final String folder;
+		private final Exception error;
+
+		Failure(String folder, Exception error) {
+			this.folder = folder;
+			this.error = error;
+		}
+
+		public String getFolder() {
+			return folder;
+		}
+
+		public Exception getError() {
+			return error;
+		}
+	}
+
+	/**
+	 * What a reconcile run read and changed.
+	 */
+	public static class ReconcileResult {
+
+		private final AtomicLong foldersRead = new AtomicLong();
+		private final AtomicLong foldersChanged = new AtomicLong();
+		private final AtomicLong inheritanceBroken = new AtomicLong();
+		private final AtomicLong rolesAdded = new AtomicLong();
+		private final AtomicLong rolesRemoved = new AtomicLong();
+		private final AtomicLong principalsLookedUp = new AtomicLong();
+		private final List<Failure> failures = Collections.synchronizedList(new ArrayList<>());
+
+		void fail(String folder, Exception error) {
+			LOG.warn("Unable to reconcile the permissions of folder {}", folder, error);
+			failures.add(new Failure(folder, error));
+		}
+
+		public long getFoldersRead() {
+			return foldersRead.get();
+		}
+
+		/**
+		 * @return folders with at least one change, unchanged folders cost no writes.
+		 */
+		public long getFoldersChanged() {
+			return foldersChanged.get();
+		}
+
+		public long getInheritanceBroken() {
+			return inheritanceBroken.get();
+		}
+
+		public long getRolesAdded() {
+			return rolesAdded.get();
+		}
+
+		public long getRolesRemoved() {
+			return rolesRemoved.get();
+		}
+
+		public long getPrincipalsLookedUp() {
+			return principalsLookedUp.get();
+		}
+
+		public List<Failure> getFailures() {
+			synchronized (failures) {
+				return new ArrayList<>(failures);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return foldersRead + " folders read, " + foldersChanged + " changed, " + inheritanceBroken
+					+ " inheritances broken, " + rolesAdded + " roles added, " + rolesRemoved + " removed, "
+					+ principalsLookedUp + " principals looked up, " + failures.size() + " failures";
+		}
+	}
+}
@@ -0,0 +1,376 @@
+package com.panxoloto.sharepoint.rest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestClientResponseException;
+
+import com.panxoloto.sharepoint.rest.helper.ODataQuery;
+
+/**
+ * Cache of the ids of the site users and groups, by email, login name or group title (case
+ * insensitive). Principal ids almost never change, so they're kept for the ttl, and principals
+ * that don't exist are remembered for the negative ttl so they aren't looked up again and again.
+ *
+ * The site users and groups are preloaded with one $batch on the first use (or by preload), and
+ * the principals still unknown are resolved together in one $batch: users through ensureuser,
+ * groups through SiteGroups/GetByName. ensureuser adds the user to the site, so lookups that must
+ * not change the site (like removing permissions) use the read only resolveExisting, which reads
+ * SiteUsers/getByEmail or getByLoginName instead. A lookup answered with 404, or ensureuser
+ * answering 500 because the login could not be found, means the principal isn't found. Any other
+ * failure (throttling, expired session, server errors) is thrown and not cached.
+ */
+public class PrincipalCache {
+
+	private static final Logger LOG = LoggerFactory.getLogger(PrincipalCache.class);
+
+	public static final long DEFAULT_TTL_MILLIS = TimeUnit.HOURS.toMillis(1);
+	public static final long DEFAULT_NEGATIVE_TTL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+	private static final ODataQuery PRINCIPALS_QUERY = ODataQuery.create().select("Id", "LoginName", "Email", "Title", "PrincipalType");
+	private static final int PRINCIPAL_TYPE_USER = 1;
+
+	private final PLGSharepointClient client;
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+	private volatile long ttlMillis = DEFAULT_TTL_MILLIS;
+	private volatile long negativeTtlMillis = DEFAULT_NEGATIVE_TTL_MILLIS;
+	private volatile boolean preloadOnFirstUse = true;
+	private volatile long preloadedAt = -1;
+	private final ReentrantLock preloadLock = new ReentrantLock();
+
+	private static class Entry {
+		private final Integer id;
+		private final long expiresAt;
+		/** False when a read only lookup didn't find it, ensureuser may still add it. */
+		private final boolean ensured;
+
+		Entry(Integer id, long expiresAt, boolean ensured) {
+			this.id = id;
+			this.expiresAt = expiresAt;
+			this.ensured = ensured;
+		}
+
+		boolean isExpired(long now) {
+			return now - expiresAt >= 0;
+		}
+	}
+
+	/**
+	 * @param client - client used to read the site users and groups.
+	 */
+	public PrincipalCache(PLGSharepointClient client) {
+		this.client = client;
+	}
+
+	public long getTtlMillis() {
+		return ttlMillis;
+	}
+
+	/**
+	 * @param ttlMillis - time a resolved principal is kept.
+	 */
+	public void setTtlMillis(long ttlMillis) {
+		if (ttlMillis <= 0) {
+			throw new IllegalArgumentException("Ttl must be greater than zero");
+		}
+		this.ttlMillis = ttlMillis;
+	}
+
+	public long getNegativeTtlMillis() {
+		return negativeTtlMillis;
+	}
+
+	/**
+	 * @param negativeTtlMillis - time a principal not found is remembered, 0 to look it up every time.
+	 */
+	public void setNegativeTtlMillis(long negativeTtlMillis) {
+		if (negativeTtlMillis < 0) {
+			throw new IllegalArgumentException("Negative ttl can't be negative");
+		}
+		this.negativeTtlMillis = negativeTtlMillis;
+	}
+
+	public boolean isPreloadOnFirstUse() {
+		return preloadOnFirstUse;
+	}
+
+	/**
+	 * @param preloadOnFirstUse - true (default) to read all the site users and groups on the first
+	 * resolve and when the preload expires.
+	 */
+	public void setPreloadOnFirstUse(boolean preloadOnFirstUse) {
+		this.preloadOnFirstUse = preloadOnFirstUse;
+	}
+
+	/**
+	 * Reads all the site users and groups in one $batch and caches them.
+	 *
+	 * @return number of principals read.
+	 * @throws Exception
+	 */
+	public int preload() throws Exception {
+		PLGSharepointBatch batch = client.newBatch();
+		CompletableFuture<BatchResponse> users = batch.get("/_api/web/SiteUsers", PRINCIPALS_QUERY);
+		CompletableFuture<BatchResponse> groups = batch.get("/_api/web/SiteGroups", PRINCIPALS_QUERY);
+		batch.execute();
+		int read = 0;
+		for (CompletableFuture<BatchResponse> response : Arrays.asList(users, groups)) {
+			JSONObject page = await(response).getJson();
+			while (true) {
+				JSONObject d = page.getJSONObject("d");
+				JSONArray results = d.optJSONArray("results");
+				for (int i = 0; results != null && i < results.length(); i++) {
+					put(results.getJSONObject(i));
+					read++;
+				}
+				String next = d.optString("__next", null);
+				if (next == null) {
+					break;
+				}
+				page = client.getNextPage(next);
+			}
+		}
+		preloadedAt = System.nanoTime();
+		LOG.debug("Preloaded {} site users and groups", read);
+		return read;
+	}
+
+	/**
+	 * @param principal - email or login name of a user, or title of a group.
+	 * @return the principal id, null if it doesn't exist.
+	 * @throws Exception
+	 */
+	public Integer resolve(String principal) throws Exception {
+		return resolveAll(Collections.singletonList(principal)).get(principal);
+	}
+
+	/**
+	 * Resolves the principals, the ones not cached in a single $batch. The users not in the site
+	 * yet are added to it by ensureuser.
+	 *
+	 * @param principals - emails or login names of users, or titles of groups.
+	 * @return the id of every principal found, the ones not found are missing.
+	 * @throws Exception thrown when the batch or a lookup fails, principals not found aren't an error.
+	 */
+	public Map<String, Integer> resolveAll(Collection<String> principals) throws Exception {
+		return resolveAll(principals, true);
+	}
+
+	/**
+	 * Resolves the principals already in the site without adding any, the ones not cached in a
+	 * single $batch.
+	 *
+	 * @param principals - emails or login names of users, or titles of groups.
+	 * @return the id of every principal found, the ones not found are missing.
+	 * @throws Exception thrown when the batch or a lookup fails, principals not found aren't an error.
+	 */
+	public Map<String, Integer> resolveExisting(Collection<String> principals) throws Exception {
+		return resolveAll(principals, false);
+	}
+
+	private Map<String, Integer> resolveAll(Collection<String> principals, boolean ensure) throws Exception {
+		if (preloadOnFirstUse && (preloadedAt == -1 || System.nanoTime() - preloadedAt >= TimeUnit.MILLISECONDS.toNanos(ttlMillis))) {
+			// A lock and not a monitor, the preload is network I/O that would pin a virtual thread.
+			preloadLock.lock();
+			try {
+				if (preloadedAt == -1 || System.nanoTime() - preloadedAt >= TimeUnit.MILLISECONDS.toNanos(ttlMillis)) {
+					preload();
+				}
+			} finally {
+				preloadLock.unlock();
+			}
+		}
+		Map<String, Integer> resolved = new LinkedHashMap<>();
+		Set<String> unknown = new LinkedHashSet<>();
+		long now = System.nanoTime();
+		for (String principal : principals) {
+			Entry entry = entries.get(key(principal));
+			if (entry == null || entry.isExpired(now) || (entry.id == null && ensure && !entry.ensured)) {
+				unknown.add(principal);
+			} else if (entry.id != null) {
+				resolved.put(principal, entry.id);
+			}
+		}
+		if (unknown.isEmpty()) {
+			return resolved;
+		}
+		PLGSharepointBatch batch = client.newBatch();
+		Map<String, CompletableFuture<BatchResponse>> lookups = new LinkedHashMap<>();
+		for (String principal : unknown) {
+			lookups.put(principal, lookup(batch, principal, ensure));
+		}
+		batch.execute();
+		int found = 0;
+		RestClientResponseException failure = null;
+		for (Map.Entry<String, CompletableFuture<BatchResponse>> lookup : lookups.entrySet()) {
+			try {
+				JSONObject principal = await(lookup.getValue()).getJson().getJSONObject("d");
+				put(principal);
+				entries.put(key(lookup.getKey()), new Entry(principal.getInt("Id"), expiresAt(ttlMillis), true));
+				resolved.put(lookup.getKey(), principal.getInt("Id"));
+				found++;
+			} catch (RestClientResponseException e) {
+				if (!isNotFound(e, ensure && isUser(lookup.getKey()))) {
+					// Kept to throw once the principals found are cached.
+					LOG.debug("Lookup of principal {} failed with status {}", lookup.getKey(), e.getRawStatusCode());
+					if (failure == null) {
+						failure = e;
+					}
+					continue;
+				}
+				LOG.debug("Principal {} not found: {}", lookup.getKey(), e.getRawStatusCode());
+				if (negativeTtlMillis > 0) {
+					entries.put(key(lookup.getKey()), new Entry(null, expiresAt(negativeTtlMillis), ensure || !isUser(lookup.getKey())));
+				}
+			}
+		}
+		LOG.debug("Resolved {} of {} principals not cached", found, unknown.size());
+		if (failure != null) {
+			throw failure;
+		}
+		return resolved;
+	}
+
+	/**
+	 * @param e - failure of a lookup.
+	 * @param ensured - true when the lookup was an ensureuser.
+	 * @return true when the failure means the principal doesn't exist: a 404, or the 500 ensureuser
+	 *         answers for a login it can't resolve.
+	 */
+	private static boolean isNotFound(RestClientResponseException e, boolean ensured) {
+		if (e.getRawStatusCode() == HttpStatus.NOT_FOUND.value()) {
+			return true;
+		}
+		return ensured && e.getRawStatusCode() == HttpStatus.INTERNAL_SERVER_ERROR.value()
+				&& e.getResponseBodyAsString().toLowerCase(Locale.ROOT).contains("could not be found");
+	}
+
+	private static CompletableFuture<BatchResponse> lookup(PLGSharepointBatch batch, String principal, boolean ensure) {
+		if (!isUser(principal)) {
+			return batch.get("/_api/web/SiteGroups/GetByName('" + principal.replace("'", "''") + "')");
+		}
+		if (ensure) {
+			return batch.post("/_api/web/ensureuser", new JSONObject().put("logonName", principal));
+		}
+		if (principal.contains("|") || principal.contains("\\")) {
+			return batch.get("/_api/web/SiteUsers/getByLoginName('" + principal.replace("'", "''") + "')");
+		}
+		return batch.getUserByEmail(principal.replace("'", "''"));
+	}
+
+	/**
+	 * @param principals - emails or login names of users, or titles of groups.
+	 * @return the ids in the same order, adding the users not in the site yet.
+	 * @throws HttpClientErrorException (404) when a principal doesn't exist, like the lookup by email did.
+	 * @throws Exception
+	 */
+	public List<Integer> getIds(List<String> principals) throws Exception {
+		return ids(principals, resolveAll(principals, true));
+	}
+
+	/**
+	 * @param principals - emails or login names of users, or titles of groups.
+	 * @return the ids in the same order, without adding any user to the site.
+	 * @throws HttpClientErrorException (404) when a principal isn't in the site.
+	 * @throws Exception
+	 */
+	public List<Integer> getExistingIds(List<String> principals) throws Exception {
+		return ids(principals, resolveAll(principals, false));
+	}
+
+	private static List<Integer> ids(List<String> principals, Map<String, Integer> resolved) {
+		List<Integer> ids = new ArrayList<>(principals.size());
+		List<String> missing = new ArrayList<>();
+		for (String principal : principals) {
+			Integer id = resolved.get(principal);
+			if (id == null) {
+				missing.add(principal);
+			} else {
+				ids.add(id);
+			}
+		}
+		if (!missing.isEmpty()) {
+			throw new HttpClientErrorException(HttpStatus.NOT_FOUND, "Principals not found: " + missing);
+		}
+		return ids;
+	}
+
+	/**
+	 * Caches a principal read from sharepoint, by email, login name and title for groups.
+	 *
+	 * @param principal - json of the user or group, with Id, LoginName, Email, Title and PrincipalType.
+	 */
+	public void put(JSONObject principal) {
+		Entry entry = new Entry(principal.getInt("Id"), expiresAt(ttlMillis), true);
+		boolean user = principal.optInt("PrincipalType", PRINCIPAL_TYPE_USER) == PRINCIPAL_TYPE_USER;
+		for (String name : new String[] {principal.optString("Email"), principal.optString("LoginName"), user ? "" : principal.optString("Title")}) {
+			if (!name.isEmpty()) {
+				entries.put(key(name), entry);
+			}
+		}
+	}
+
+	/**
+	 * @param principal - email, login name or group title to forget.
+	 */
+	public void invalidate(String principal) {
+		entries.remove(key(principal));
+	}
+
+	/**
+	 * Forgets every principal, the next resolve preloads them again.
+	 */
+	public void clear() {
+		entries.clear();
+		preloadedAt = -1;
+	}
+
+	/**
+	 * @return number of cached names, found or not.
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Emails and claims are users, the rest group titles.
+	 */
+	private static boolean isUser(String principal) {
+		return principal.contains("@") || principal.contains("|") || principal.contains("\\");
+	}
+
+	private static long expiresAt(long ttlMillis) {
+		return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+	}
+
+	private static String key(String principal) {
+		return principal.toLowerCase(Locale.ROOT);
+	}
+
+	private static BatchResponse await(CompletableFuture<BatchResponse> future) throws Exception {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+		}
+	}
+}
@@ -0,0 +1,362 @@
+package com.panxoloto.sharepoint.rest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+
+import com.panxoloto.sharepoint.rest.helper.ChannelCopyHelper;
+import com.panxoloto.sharepoint.rest.helper.PropertiesFiles;
+
+/**
+ * Downloads big files as several byte ranges fetched in parallel, each one on its own pooled
+ * connection, written with positional writes into a pre-allocated file.
+ *
+ * The bytes received by every segment are saved in a small sidecar file next to the target
+ * (target name + ".segments"), so a failed download continues where every segment stopped when
+ * it's started again with the same target. The sidecar is removed once the download completes.
+ * The sidecar keeps the ETag of the file too, a file changed since isn't resumed, and every range
+ * is requested with If-Range so a change in the middle of the download isn't mixed in either.
+ *
+ * Files smaller than two segments, servers ignoring the Range header and files changed during the
+ * download fall back to a single stream download.
+ */
+public class SegmentedDownloader {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SegmentedDownloader.class);
+
+	public static final int DEFAULT_SEGMENT_COUNT = 4;
+	public static final long DEFAULT_MIN_SEGMENT_SIZE = 8 * 1024 * 1024;
+	public static final int DEFAULT_MAX_RETRIES = 2;
+	public static final String PROGRESS_FILE_SUFFIX = ".segments";
+	private static final long PROGRESS_SAVE_INTERVAL = 4 * 1024 * 1024;
+
+	private final PLGSharepointClient client;
+	private final FileTransport transport;
+	private final Supplier<? extends Executor> executor;
+	private int segmentCount = DEFAULT_SEGMENT_COUNT;
+	private long minSegmentSize = DEFAULT_MIN_SEGMENT_SIZE;
+	private int maxRetries = DEFAULT_MAX_RETRIES;
+
+	/**
+	 * @param client - client used to read the file info and download small files.
+	 * @param transport - transport of the client used to fetch the ranges.
+	 * @param executor - supplies the executor the segments run on.
+	 */
+	SegmentedDownloader(PLGSharepointClient client, FileTransport transport, Supplier<? extends Executor> executor) {
+		this.client = client;
+		this.transport = transport;
+		this.executor = executor;
+	}
+
+	public int getSegmentCount() {
+		return segmentCount;
+	}
+
+	/**
+	 * @param segmentCount - max number of ranges downloaded in parallel. Keep it under the
+	 * max connections per route of the pool.
+	 */
+	public void setSegmentCount(int segmentCount) {
+		if (segmentCount <= 0) {
+			throw new IllegalArgumentException("Segment count must be greater than zero");
+		}
+		this.segmentCount = segmentCount;
+	}
+
+	public long getMinSegmentSize() {
+		return minSegmentSize;
+	}
+
+	/**
+	 * @param minSegmentSize - files are not split in ranges smaller than this size in bytes.
+	 */
+	public void setMinSegmentSize(long minSegmentSize) {
+		if (minSegmentSize <= 0) {
+			throw new IllegalArgumentException("Min segment size must be greater than zero");
+		}
+		this.minSegmentSize = minSegmentSize;
+	}
+
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	/**
+	 * @param maxRetries - times a failed segment is requested again, from the last byte received.
+	 */
+	public void setMaxRetries(int maxRetries) {
+		this.maxRetries = maxRetries;
+	}
+
+	/**
+	 * @param fileServerRelativeUrl - file to download.
+	 * @param target - local file. If a sidecar progress file of the same download exists the
+	 * download is resumed, otherwise the file is created or truncated.
+	 * @return bytes downloaded in this call and throughput.
+	 * @throws Exception
+	 */
+	public TransferStats download(String fileServerRelativeUrl, Path target) throws Exception {
+		long start = System.nanoTime();
+		JSONObject fileInfo = client.getFileInfo(fileServerRelativeUrl);
+		long length = readLength(fileInfo);
+		String eTag = readETag(fileInfo);
+		Path progressFile = progressFile(target);
+		int segments = segmentsFor(length);
+		if (segments <= 1) {
+			LOG.debug("File {} ({} bytes) is too small to split, downloading in a single stream", fileServerRelativeUrl, length);
+			Files.deleteIfExists(progressFile);
+			return client.downloadTo(fileServerRelativeUrl, target);
+		}
+
+		Progress progress = Progress.load(progressFile, fileServerRelativeUrl, length, eTag, target);
+		boolean resumed = progress != null;
+		if (!resumed) {
+			progress = new Progress(progressFile, fileServerRelativeUrl, length, eTag, segments);
+		}
+		long alreadyDone = progress.total();
+		LOG.debug("Downloading {} ({} bytes) in {} segments{}", fileServerRelativeUrl, length, progress.segments,
+				resumed ? ", resuming from " + alreadyDone + " bytes" : "");
+
+		boolean rangesIgnored = false;
+		try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			if (!resumed) {
+				channel.truncate(0);
+				channel.write(ByteBuffer.wrap(new byte[1]), length - 1);
+				progress.save();
+			}
+			CompletableFuture<?>[] futures = new CompletableFuture<?>[progress.segments];
+			for (int i = 0; i < progress.segments; i++) {
+				final int index = i;
+				final Progress segmentProgress = progress;
+				futures[i] = CompletableFuture.runAsync(() -> {
+					try {
+						downloadSegment(fileServerRelativeUrl, channel, segmentProgress, index);
+					} catch (Exception e) {
+						segmentProgress.aborted = true;
+						throw new CompletionException(e);
+					}
+				}, executor.get());
+			}
+			try {
+				CompletableFuture.allOf(futures).join();
+			} catch (CompletionException e) {
+				progress.save();
+				if (!(e.getCause() instanceof RangeNotSupportedException)) {
+					throw new IOException("Segmented download of " + fileServerRelativeUrl
+							+ " failed, start it again with the same target to resume it", e.getCause());
+				}
+				rangesIgnored = true;
+			}
+		}
+
+		if (rangesIgnored) {
+			LOG.warn("Server ignored the Range header downloading {}, or the file changed, downloading in a single stream", fileServerRelativeUrl);
+			Files.deleteIfExists(progressFile);
+			return client.downloadTo(fileServerRelativeUrl, target);
+		}
+		Files.deleteIfExists(progressFile);
+		TransferStats stats = new TransferStats(length - alreadyDone, System.nanoTime() - start);
+		LOG.debug("Downloaded file {} in {} segments {}", fileServerRelativeUrl, progress.segments, stats);
+		return stats;
+	}
+
+	private void downloadSegment(String fileServerRelativeUrl, FileChannel channel, Progress progress, int index) throws Exception {
+		long first = progress.segmentStart(index);
+		long last = progress.segmentEnd(index);
+		for (int attempt = 0; ; attempt++) {
+			long from = first + progress.done.get(index);
+			if (from > last) {
+				return;
+			}
+			try {
+				transport.downloadFileRange(fileServerRelativeUrl, from, last, progress.eTag, response -> {
+					if (response.getStatusCode() != HttpStatus.PARTIAL_CONTENT) {
+						throw new RangeNotSupportedException();
+					}
+					long[] unsaved = {0};
+					return ChannelCopyHelper.copy(response.getBody(), channel, from, written -> {
+						if (progress.aborted) {
+							throw new CancellationException("Another segment failed");
+						}
+						progress.done.addAndGet(index, written);
+						unsaved[0] += written;
+						if (unsaved[0] >= PROGRESS_SAVE_INTERVAL) {
+							unsaved[0] = 0;
+							progress.saveQuietly();
+						}
+					});
+				});
+				if (first + progress.done.get(index) <= last) {
+					throw new IOException("Segment " + index + " ended at byte " + (first + progress.done.get(index)) + " of " + last);
+				}
+				return;
+			} catch (RangeNotSupportedException | CancellationException e) {
+				throw e;
+			} catch (Exception e) {
+				if (progress.aborted || attempt >= maxRetries) {
+					throw e;
+				}
+				LOG.warn("Segment {} of {} failed at byte {}, retrying ({}/{})", index, fileServerRelativeUrl,
+						first + progress.done.get(index), attempt + 1, maxRetries, e);
+			}
+		}
+	}
+
+	private int segmentsFor(long length) {
+		long segments = Math.min(segmentCount, length / minSegmentSize);
+		return (int) Math.max(segments, 1);
+	}
+
+	private long readLength(JSONObject fileInfo) {
+		JSONObject info = fileInfo.has("d") ? fileInfo.getJSONObject("d") : fileInfo;
+		return Long.parseLong(info.get("Length").toString());
+	}
+
+	/**
+	 * @return the ETag property of the file, or the etag of its metadata, null if there's none.
+	 */
+	private String readETag(JSONObject fileInfo) {
+		JSONObject info = fileInfo.has("d") ? fileInfo.getJSONObject("d") : fileInfo;
+		String eTag = info.optString("ETag", null);
+		if (eTag == null && info.optJSONObject("__metadata") != null) {
+			eTag = info.getJSONObject("__metadata").optString("etag", null);
+		}
+		return eTag;
+	}
+
+	/**
+	 * @param target - local file of a segmented download.
+	 * @return the sidecar file keeping the progress of the download.
+	 */
+	public static Path progressFile(Path target) {
+		return target.resolveSibling(target.getFileName() + PROGRESS_FILE_SUFFIX);
+	}
+
+	/**
+	 * Bytes received by every segment, the segment boundaries are derived from the length and the
+	 * number of segments so only the counters are stored.
+	 */
+	private static class Progress {
+
+		private final Path file;
+		private final String url;
+		private final long length;
+		private final String eTag;
+		private final int segments;
+		private final AtomicLongArray done;
+		private volatile boolean aborted;
+		private final ReentrantLock saveLock = new ReentrantLock();
+
+		Progress(Path file, String url, long length, String eTag, int segments) {
+			this.file = file;
+			this.url = url;
+			this.length = length;
+			this.eTag = eTag;
+			this.segments = segments;
+			this.done = new AtomicLongArray(segments);
+		}
+
+		long segmentStart(int index) {
+			return length / segments * index;
+		}
+
+		long segmentEnd(int index) {
+			return index == segments - 1 ? length - 1 : segmentStart(index + 1) - 1;
+		}
+
+		long total() {
+			long total = 0;
+			for (int i = 0; i < segments; i++) {
+				total += done.get(i);
+			}
+			return total;
+		}
+
+		void save() throws IOException {
+			// A lock instead of a monitor, so a virtual thread writing the file isn't pinned.
+			saveLock.lock();
+			try {
+				Properties properties = new Properties();
+				properties.setProperty("url", url);
+				properties.setProperty("length", Long.toString(length));
+				if (eTag != null) {
+					properties.setProperty("etag", eTag);
+				}
+				properties.setProperty("segments", Integer.toString(segments));
+				for (int i = 0; i < segments; i++) {
+					properties.setProperty("segment." + i, Long.toString(done.get(i)));
+				}
+				// Replaced atomically, a crash while writing must not lose the progress saved before.
+				PropertiesFiles.store(file, properties, "Segmented download progress");
+			} finally {
+				saveLock.unlock();
+			}
+		}
+
+		void saveQuietly() {
+			try {
+				save();
+			} catch (IOException e) {
+				LOG.warn("Couldn't save the download progress to {}", file, e);
+			}
+		}
+
+		/**
+		 * @return the saved progress, or null when there's none for this url, length, ETag and target.
+		 */
+		static Progress load(Path file, String url, long length, String eTag, Path target) {
+			if (!Files.exists(file) || !Files.exists(target)) {
+				return null;
+			}
+			Properties properties = new Properties();
+			try (InputStream in = Files.newInputStream(file)) {
+				properties.load(in);
+				if (!url.equals(properties.getProperty("url"))
+						|| length != Long.parseLong(properties.getProperty("length"))
+						|| Files.size(target) != length) {
+					LOG.debug("Ignoring progress file {} of a different download", file);
+					return null;
+				}
+				// Same url and length aren't enough, the file may have been replaced by another of the same size.
+				if (eTag == null || !eTag.equals(properties.getProperty("etag"))) {
+					LOG.debug("Ignoring progress file {}, the file changed since", file);
+					return null;
+				}
+				Progress progress = new Progress(file, url, length, eTag, Integer.parseInt(properties.getProperty("segments")));
+				for (int i = 0; i < progress.segments; i++) {
+					progress.done.set(i, Long.parseLong(properties.getProperty("segment." + i, "0")));
+				}
+				return progress;
+			} catch (IOException | RuntimeException e) {
+				LOG.warn("Ignoring unreadable progress file {}", file, e);
+				return null;
+			}
+		}
+	}
+
+	private static class RangeNotSupportedException extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		RangeNotSupportedException() {
+			super("Server doesn't support range requests");
+		}
+	}
+}
@@ -3,38 +3,34 @@ package com.panxoloto.sharepoint.rest;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.lang.reflect.Type;
+import java.net.URI;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
 
 import org.springframework.core.io.InputStreamResource;
 import org.springframework.http.HttpHeaders;
-import org.springframework.http.HttpRequest;
+import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
-import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.StreamingHttpOutputMessage;
+import org.springframework.http.client.ClientHttpRequest;
 import org.springframework.http.client.ClientHttpRequestFactory;
-import org.springframework.http.client.ClientHttpRequestInterceptor;
 import org.springframework.http.client.ClientHttpResponse;
 import org.springframework.http.converter.HttpMessageConverter;
 import org.springframework.http.converter.ResourceHttpMessageConverter;
 import org.springframework.web.client.ResponseExtractor;
 import org.springframework.web.client.RestTemplate;
 
-import com.google.common.collect.Lists;
-
 public class StreamRestTemplate extends RestTemplate {
-	private static final DeferredCloseClientHttpRequestInterceptor deferredCloseClientHttpRequestInterceptor =
-			new DeferredCloseClientHttpRequestInterceptor();
 
 	public StreamRestTemplate() {
-		super.setInterceptors(Lists.newArrayList(deferredCloseClientHttpRequestInterceptor));
 	}
 
 	public StreamRestTemplate(ClientHttpRequestFactory requestFactory) {
 		super(requestFactory);
-		super.setInterceptors(Lists.newArrayList(deferredCloseClientHttpRequestInterceptor));
 		List<HttpMessageConverter<?>> msgConverters = getMessageConverters();
 		List<HttpMessageConverter<?>> toRemove = new ArrayList<>();
 		for (HttpMessageConverter<?> converter : msgConverters) {
@@ -46,23 +42,12 @@ public class StreamRestTemplate extends RestTemplate {
 		msgConverters.add(0, new ResourceHttpMessageConverter(true));
 	}
 
+	/**
+	 * Wraps the requests rather than intercepting them, interceptors would buffer every request body.
+	 */
 	@Override
-	public void setInterceptors(List<ClientHttpRequestInterceptor> interceptors) {
-		super.setInterceptors(addInterceptorAtBeginning(interceptors));
-	}
-
-	private List<ClientHttpRequestInterceptor> addInterceptorAtBeginning(List<ClientHttpRequestInterceptor> interceptors) {
-		boolean interceptorExists = interceptors.contains(deferredCloseClientHttpRequestInterceptor);
-		if (interceptorExists && interceptors.get(0) == deferredCloseClientHttpRequestInterceptor) {
-			return interceptors;
-		}
-		LinkedList<ClientHttpRequestInterceptor> newInterceptors = Lists.newLinkedList();
-		newInterceptors.addAll(interceptors);
-		if (interceptorExists) {
-			newInterceptors.remove(deferredCloseClientHttpRequestInterceptor);
-		}
-		newInterceptors.addFirst(deferredCloseClientHttpRequestInterceptor);
-		return newInterceptors;
+	protected ClientHttpRequest createRequest(URI url, HttpMethod method) throws IOException {
+		return new DeferredCloseClientHttpRequest(super.createRequest(url, method));
 	}
 
 	@Override
@@ -72,11 +57,54 @@ public class StreamRestTemplate extends RestTemplate {
 		return new StreamResponseExtractor<>(isStream, responseEntityResponseExtractor);
 	}
 
-	private static class DeferredCloseClientHttpRequestInterceptor implements ClientHttpRequestInterceptor {
+	private static class DeferredCloseClientHttpRequest implements ClientHttpRequest, StreamingHttpOutputMessage {
+		private final ClientHttpRequest delegate;
+
+		DeferredCloseClientHttpRequest(ClientHttpRequest delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public HttpMethod getMethod() {
+			return delegate.getMethod();
+		}
+
+		@Override
+		public String getMethodValue() {
+			return delegate.getMethodValue();
+		}
+
+		@Override
+		public URI getURI() {
+			return delegate.getURI();
+		}
+
+		@Override
+		public HttpHeaders getHeaders() {
+			return delegate.getHeaders();
+		}
+
+		@Override
+		public OutputStream getBody() throws IOException {
+			return delegate.getBody();
+		}
+
+		@Override
+		public void setBody(Body body) {
+			if (delegate instanceof StreamingHttpOutputMessage) {
+				((StreamingHttpOutputMessage) delegate).setBody(body);
+				return;
+			}
+			try {
+				body.writeTo(delegate.getBody());
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
 		@Override
-		public ClientHttpResponse intercept(HttpRequest request, byte[] body, ClientHttpRequestExecution execution) throws IOException {
-			ClientHttpResponse response = execution.execute(request, body);
-			return new DeferredCloseClientHttpResponse(response);
+		public ClientHttpResponse execute() throws IOException {
+			return new DeferredCloseClientHttpResponse(delegate.execute());
 		}
 	}
 
@@ -0,0 +1,40 @@
+package com.panxoloto.sharepoint.rest;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bytes transferred by a download or upload and the time it took.
+ */
+public class TransferStats {
+
+	private final long bytes;
+	private final long elapsedNanos;
+
+	public TransferStats(long bytes, long elapsedNanos) {
+		this.bytes = bytes;
+		this.elapsedNanos = elapsedNanos;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	public long getElapsedMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+	}
+
+	/**
+	 * @return average throughput of the transfer.
+	 */
+	public double getBytesPerSecond() {
+		if (elapsedNanos <= 0) {
+			return 0;
+		}
+		return bytes * 1_000_000_000d / elapsedNanos;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("TransferStats [bytes=%d, elapsedMillis=%d, bytesPerSecond=%.0f]", bytes, getElapsedMillis(), getBytesPerSecond());
+	}
+}
@@ -0,0 +1,314 @@
+package com.panxoloto.sharepoint.rest.helper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.RestClientResponseException;
+import org.springframework.web.client.UnknownHttpStatusCodeException;
+
+/**
+ * Non blocking transport of the async clients, built on Apache HttpAsyncClient. A few io threads
+ * serve all the requests, no thread waits for a response.
+ *
+ * At most maxInFlight requests are sent at the same time, never more than the connections per
+ * host of the pool, the rest wait in a queue without blocking the caller. Throttled requests
+ * (429/503) are sent again after the Retry-After delay or a jittered backoff. Cancelling a
+ * returned future aborts its http request.
+ *
+ * The futures are completed on a pool of callback threads, not on the io threads, so dependent
+ * stages may block (like a digest refresh) without stalling every other request.
+ */
+public class AsyncHttpExecutor implements Closeable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(AsyncHttpExecutor.class);
+
+	public static final int DEFAULT_IO_THREADS = 2;
+
+	private final PoolingNHttpClientConnectionManager connectionManager;
+	private final CloseableHttpAsyncClient httpClient;
+	private final ScheduledExecutorService scheduler;
+	private final ExecutorService callbackExecutor;
+	private final int maxInFlight;
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final Queue<PendingRequest> queue = new ConcurrentLinkedQueue<>();
+	private volatile int maxRetries = ThrottlingRequestFactory.DEFAULT_MAX_RETRIES;
+
+	/**
+	 * @param config - pool configuration, default values are used when null.
+	 * @param credentialsProvider - credentials provider (NTLM for on premises), can be null.
+	 * @param cookieManagement - false when the cookies are managed by hand in the request headers (online client).
+	 * @param maxInFlight - max number of requests sent at the same time, capped to the connections per
+	 * host of the pool config as the rest would only wait for a connection.
+	 * @param ioThreads - number of io reactor threads.
+	 * @throws IOReactorException
+	 */
+	public AsyncHttpExecutor(HttpClientPoolConfig config, CredentialsProvider credentialsProvider, boolean cookieManagement,
+			int maxInFlight, int ioThreads) throws IOReactorException {
+		if (config == null) {
+			config = new HttpClientPoolConfig();
+		}
+		if (maxInFlight <= 0) {
+			throw new IllegalArgumentException("Max in flight requests must be greater than zero");
+		}
+		if (maxInFlight > config.getMaxPerRoute()) {
+			LOG.debug("Max in flight requests {} capped to the {} connections per host", maxInFlight, config.getMaxPerRoute());
+		}
+		this.maxInFlight = Math.min(maxInFlight, config.getMaxPerRoute());
+		IOReactorConfig reactorConfig = IOReactorConfig.custom()
+				.setIoThreadCount(ioThreads)
+				.setConnectTimeout(config.getConnectTimeoutMillis())
+				.setSoTimeout(config.getSocketTimeoutMillis())
+				.build();
+		this.connectionManager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(reactorConfig,
+				SharepointExecutors.daemonThreadFactory("plg-sharepoint-io")));
+		this.connectionManager.setMaxTotal(config.getMaxTotal());
+		this.connectionManager.setDefaultMaxPerRoute(config.getMaxPerRoute());
+
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(config.getConnectTimeoutMillis())
+				.setSocketTimeout(config.getSocketTimeoutMillis())
+				.setConnectionRequestTimeout(config.getConnectionRequestTimeoutMillis())
+				.build();
+		HttpAsyncClientBuilder builder = HttpAsyncClients.custom()
+				.setConnectionManager(this.connectionManager)
+				.setDefaultRequestConfig(requestConfig);
+		if (credentialsProvider != null) {
+			builder.setDefaultCredentialsProvider(credentialsProvider);
+		}
+		if (!cookieManagement) {
+			builder.disableCookieManagement();
+		}
+		this.httpClient = builder.build();
+		this.httpClient.start();
+		this.scheduler = SharepointExecutors.newDaemonScheduler("plg-sharepoint-async-retry");
+		this.callbackExecutor = SharepointExecutors.newDaemonThreadPool("plg-sharepoint-async");
+	}
+
+	/**
+	 * @return max number of requests sent at the same time.
+	 */
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	/**
+	 * @param maxRetries - times a throttled request is sent again.
+	 */
+	public void setMaxRetries(int maxRetries) {
+		this.maxRetries = maxRetries;
+	}
+
+	/**
+	 * @return requests sent and waiting for the response.
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * @return requests waiting for a free slot.
+	 */
+	public int getQueued() {
+		return queue.size();
+	}
+
+	/**
+	 * Queues the request, it's sent as soon as there are less than maxInFlight requests running.
+	 *
+	 * @param request - request with all its headers, the body must be repeatable.
+	 * @return the response when the status is 2xx, otherwise the future fails with a RestClientResponseException.
+	 */
+	public CompletableFuture<ResponseEntity<byte[]>> execute(HttpRequestBase request) {
+		PendingRequest pending = new PendingRequest(request);
+		queue.add(pending);
+		drain();
+		return pending.result;
+	}
+
+	private void drain() {
+		while (!queue.isEmpty()) {
+			int current = inFlight.get();
+			if (current >= maxInFlight) {
+				return;
+			}
+			if (!inFlight.compareAndSet(current, current + 1)) {
+				continue;
+			}
+			PendingRequest pending = queue.poll();
+			if (pending == null) {
+				inFlight.decrementAndGet();
+				continue;
+			}
+			send(pending);
+		}
+	}
+
+	private void send(PendingRequest pending) {
+		if (pending.result.isDone()) {
+			// Cancelled while waiting in the queue.
+			release();
+			return;
+		}
+		pending.request.reset();
+		Future<HttpResponse> future;
+		try {
+			future = httpClient.execute(pending.request, callback(pending));
+		} catch (RuntimeException e) {
+			// The client is shut down or the request is malformed.
+			release();
+			complete(() -> pending.result.completeExceptionally(e));
+			return;
+		}
+		pending.result.whenComplete((response, e) -> {
+			if (pending.result.isCancelled()) {
+				future.cancel(true);
+			}
+		});
+	}
+
+	private FutureCallback<HttpResponse> callback(PendingRequest pending) {
+		return new FutureCallback<HttpResponse>() {
+			@Override
+			public void completed(HttpResponse response) {
+				release();
+				complete(() -> handle(pending, response));
+			}
+
+			@Override
+			public void failed(Exception e) {
+				release();
+				complete(() -> pending.result.completeExceptionally(e));
+			}
+
+			@Override
+			public void cancelled() {
+				release();
+				complete(() -> pending.result.cancel(false));
+			}
+		};
+	}
+
+	/**
+	 * Runs the completion of a future, and so its dependent stages, on a callback thread.
+	 */
+	private void complete(Runnable completion) {
+		try {
+			callbackExecutor.execute(completion);
+		} catch (RejectedExecutionException e) {
+			// Closed, nothing else runs on the io threads anymore.
+			completion.run();
+		}
+	}
+
+	private void release() {
+		inFlight.decrementAndGet();
+		drain();
+	}
+
+	private void handle(PendingRequest pending, HttpResponse response) {
+		try {
+			int status = response.getStatusLine().getStatusCode();
+			byte[] body = response.getEntity() != null ? EntityUtils.toByteArray(response.getEntity()) : new byte[0];
+			HttpHeaders headers = new HttpHeaders();
+			for (Header header : response.getAllHeaders()) {
+				headers.add(header.getName(), header.getValue());
+			}
+			if ((status == 429 || status == 503) && pending.attempt < maxRetries) {
+				retry(pending, headers.getFirst(HttpHeaders.RETRY_AFTER));
+				return;
+			}
+			if (status >= 200 && status < 300) {
+				pending.result.complete(new ResponseEntity<>(body, headers, HttpStatus.valueOf(status)));
+			} else {
+				pending.result.completeExceptionally(toException(status, response.getStatusLine().getReasonPhrase(), headers, body));
+			}
+		} catch (IOException | RuntimeException e) {
+			pending.result.completeExceptionally(e);
+		}
+	}
+
+	private void retry(PendingRequest pending, String retryAfter) {
+		long delay = ThrottlingRequestFactory.parseRetryAfter(retryAfter);
+		if (delay < 0) {
+			long previous = pending.previousDelay;
+			delay = Math.min(ThrottlingRequestFactory.DEFAULT_MAX_DELAY_MILLIS, ThreadLocalRandom.current().nextLong(
+					ThrottlingRequestFactory.DEFAULT_BASE_DELAY_MILLIS, Math.max(previous * 3, ThrottlingRequestFactory.DEFAULT_BASE_DELAY_MILLIS + 1)));
+			pending.previousDelay = delay;
+		}
+		pending.attempt++;
+		LOG.debug("{} throttled, retrying in {} ms ({}/{})", pending.request.getURI(), delay, pending.attempt, maxRetries);
+		scheduler.schedule(() -> {
+			queue.add(pending);
+			drain();
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private RestClientResponseException toException(int statusCode, String statusText, HttpHeaders headers, byte[] body) {
+		HttpStatus status = HttpStatus.resolve(statusCode);
+		if (status == null) {
+			return new UnknownHttpStatusCodeException(statusCode, statusText, headers, body, StandardCharsets.UTF_8);
+		}
+		if (status.is4xxClientError()) {
+			return HttpClientErrorException.create(status, statusText, headers, body, StandardCharsets.UTF_8);
+		}
+		return HttpServerErrorException.create(status, statusText, headers, body, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Stops the io threads and closes the connections, queued requests fail.
+	 */
+	@Override
+	public void close() throws IOException {
+		scheduler.shutdownNow();
+		PendingRequest pending;
+		while ((pending = queue.poll()) != null) {
+			pending.result.completeExceptionally(new IOException("Async client closed"));
+		}
+		httpClient.close();
+		callbackExecutor.shutdown();
+	}
+
+	private static final class PendingRequest {
+
+		private final HttpRequestBase request;
+		private final CompletableFuture<ResponseEntity<byte[]>> result = new CompletableFuture<>();
+		private int attempt;
+		private long previousDelay = ThrottlingRequestFactory.DEFAULT_BASE_DELAY_MILLIS;
+
+		PendingRequest(HttpRequestBase request) {
+			this.request = request;
+		}
+	}
+}
@@ -46,9 +46,11 @@ public class AuthTokenHelperOnPremises {
 	 * @throws URISyntaxException 
 	 */
 	public URI getSharepointSiteUrl(String apiPath) throws URISyntaxException {
+		// Authority like the query variant, so the domain can have a port.
 		return new URI(getProtocolString(),
 				this.spDomain,
 				this.spSitePrefix +  apiPath,
+				null,
 				null
 				);
 	}
@@ -60,7 +62,7 @@ public class AuthTokenHelperOnPremises {
 	 * @throws URISyntaxException
 	 */
 	public URI getSharepointSiteUrl(String apiPath, String query) throws URISyntaxException {
-		if (!query.startsWith("$filter=")) {
+		if (!query.startsWith("$")) {
 			LOG.debug("Missing $filter in query string, adding");
 			query = String.format("%s%s", "$filter=", query);
 		}
@@ -71,4 +73,14 @@ public class AuthTokenHelperOnPremises {
 				null
 				);
 	}
+
+	/**
+	 * @param apiPath - path of the resource.
+	 * @param query - query options, already encoded by the query, null for none.
+	 * @return the uri of the resource with the query.
+	 * @throws URISyntaxException
+	 */
+	public URI getSharepointSiteUrl(String apiPath, ODataQuery query) throws URISyntaxException {
+		return query == null ? getSharepointSiteUrl(apiPath) : query.appendTo(getSharepointSiteUrl(apiPath));
+	}
 }
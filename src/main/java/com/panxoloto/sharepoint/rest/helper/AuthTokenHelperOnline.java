@@ -1,8 +1,12 @@
 package com.panxoloto.sharepoint.rest.helper;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.net.HttpCookie;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -22,15 +26,16 @@ import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
 import org.springframework.web.client.RestTemplate;
 
-public class AuthTokenHelperOnline {
+public class AuthTokenHelperOnline implements DigestSessionManager.SessionSource<AuthTokenHelperOnline.Session>, Closeable {
 
 	private static final Logger LOG = LoggerFactory.getLogger(com.panxoloto.sharepoint.rest.helper.AuthTokenHelperOnline.class);
-	private MultiValueMap<String, String> headers;
 	private String spSiteUri;
-	private String formDigestValue ;
 	private String domain;
-	private List<String> cookies;
-	private final String TOKEN_LOGIN_URL = "https://login.microsoftonline.com/extSTS.srf";
+	private final DigestSessionManager<Session> sessionManager;
+	private static final int DEFAULT_DIGEST_TIMEOUT = 1800;
+	private static final String TOKEN_LOGIN_URL = "https://login.microsoftonline.com/extSTS.srf";
+	private String tokenLoginUrl = TOKEN_LOGIN_URL;
+	private HttpProtocols protocol = HttpProtocols.HTTPS;
 	private String payload = "<s:Envelope xmlns:s=\"http://www.w3.org/2003/05/soap-envelope\"\n"
 			+ "      xmlns:a=\"http://www.w3.org/2005/08/addressing\"\n"
 			+ "      xmlns:u=\"http://docs.oasis-open.org/wss/2004/01/oasis-200401-wss-wssecurity-utility-1.0.xsd\">\n"
@@ -81,15 +86,40 @@ public class AuthTokenHelperOnline {
 		this.domain = domain;
 		this.spSiteUri = spSiteUri;
 		this.payload = String.format(this.payload, user, passwd, domain);
+		this.sessionManager = new DigestSessionManager<>(this, SharepointExecutors.newDaemonScheduler("plg-sharepoint-session"));
 	}
 	
 	
+	public void setProtocol(HttpProtocols protocol) {
+		this.protocol = protocol;
+	}
+
+	public HttpProtocols getProtocol() {
+		return protocol;
+	}
+
+	private String getProtocolString() {
+		return protocol == HttpProtocols.HTTPS ? "https" : "http";
+	}
+
+	/**
+	 * @param tokenLoginUrl - security token service issuing the token of the login, the one of
+	 * Microsoft by default.
+	 */
+	public void setTokenLoginUrl(String tokenLoginUrl) {
+		this.tokenLoginUrl = tokenLoginUrl;
+	}
+
+	public String getTokenLoginUrl() {
+		return tokenLoginUrl;
+	}
+
 	protected String receiveSecurityToken() throws URISyntaxException {
 		LOG.debug("AuthTokenHelper ReceiveSecurityToker()");
 		RequestEntity<String> requestEntity = 
 	        new RequestEntity<>(this.payload, 
 	        HttpMethod.POST, 
-	        new URI(TOKEN_LOGIN_URL));
+	        new URI(tokenLoginUrl));
 		LOG.debug("AuthTokenHelper ReceiveSecurityToken() - requestEntity OK");
 	    ResponseEntity<String> responseEntity = restTemplate.exchange(requestEntity, String.class);
 		String securityToken = responseEntity.getBody();
@@ -108,7 +138,7 @@ public class AuthTokenHelperOnline {
 		RequestEntity<String> requestEntity =
 				new RequestEntity<>(securityToken,
 						HttpMethod.POST,
-						new URI(String.format("https://%s/_forms/default.aspx?wa=wsignin1.0", this.domain)));
+						new URI(String.format("%s://%s/_forms/default.aspx?wa=wsignin1.0", getProtocolString(), this.domain)));
 
 
 		ResponseEntity<String> responseEntity = restTemplate.exchange(requestEntity, String.class);
@@ -123,8 +153,13 @@ public class AuthTokenHelperOnline {
 
 	protected String getFormDigestValue(List<String> cookies)
 			throws IOException, URISyntaxException, TransformerException, JSONException {
+		return getContextInfo(cookies).getString("FormDigestValue");
+	}
 
-		headers = new LinkedMultiValueMap<>();
+	protected JSONObject getContextInfo(List<String> cookies)
+			throws IOException, URISyntaxException, TransformerException, JSONException {
+
+		MultiValueMap<String, String> headers = new LinkedMultiValueMap<>();
 		headers.add("Cookie",  cookies.stream().collect(Collectors.joining(";")) );
 		headers.add("Accept", "application/json;odata=verbose");
 		headers.add("Content-Type", "application/json;odata=verbose");
@@ -132,29 +167,105 @@ public class AuthTokenHelperOnline {
 		//headers.add("X-ClientService-ClientTag", "SDK-JAVA");
 
 		RequestEntity<String> requestEntity = new RequestEntity<>(headers, HttpMethod.POST,
-				new URI(String.format("https://%s/_api/contextinfo", this.domain)));
+				new URI(String.format("%s://%s/_api/contextinfo", getProtocolString(), this.domain)));
 
 		ResponseEntity<String> responseEntity = restTemplate.exchange(requestEntity, String.class);
 		String body = responseEntity.getBody();
 		LOG.debug(String.format("Response:\n%s", body));
 		JSONObject json = new JSONObject(body);
 
-		return json.getJSONObject("d").getJSONObject("GetContextWebInformation").getString("FormDigestValue");
+		return json.getJSONObject("d").getJSONObject("GetContextWebInformation");
 	}
-	
+
+	/**
+	 * @param cookies - Set-Cookie headers of the login.
+	 * @return when the first of the cookies expires, Long.MAX_VALUE if they have no expiration.
+	 */
+	protected long getCookiesExpiration(List<String> cookies) {
+		long now = System.currentTimeMillis();
+		long expiration = Long.MAX_VALUE;
+		for (String cookie : cookies) {
+			try {
+				for (HttpCookie parsed : HttpCookie.parse(cookie)) {
+					if (parsed.getMaxAge() >= 0) {
+						expiration = Math.min(expiration, now + parsed.getMaxAge() * 1000);
+					}
+				}
+			} catch (IllegalArgumentException e) {
+				LOG.debug("Unable to read the expiration of cookie {}", cookie);
+			}
+		}
+		return expiration;
+	}
+
+	private Session requestDigest(List<String> cookies, long cookiesExpiration) throws Exception {
+		long requestTime = System.currentTimeMillis();
+		JSONObject info = getContextInfo(cookies);
+		int timeout = info.optInt("FormDigestTimeoutSeconds", DEFAULT_DIGEST_TIMEOUT);
+		if (timeout < 30 || timeout > 24 * 3600) {
+			timeout = DEFAULT_DIGEST_TIMEOUT;
+		}
+		return new Session(cookies, cookiesExpiration, info.getString("FormDigestValue"), requestTime + timeout * 1000L);
+	}
+
+	/**
+	 * Full login: security token, sign in cookies and form digest.
+	 */
+	@Override
+	public Session login() throws Exception {
+		LOG.debug("AuthTokenHelper login()");
+		String securityToken = receiveSecurityToken();
+		LOG.debug(String.format("AuthTokenHelper login () - Obtained securityToken: %s", securityToken));
+		List<String> cookies = getSignInCookies(securityToken);
+		LOG.debug(String.format("AuthTokenHelper login () - Obtained Cookies: %s", String.join(";", cookies)));
+		Session session = requestDigest(cookies, getCookiesExpiration(cookies));
+		LOG.debug(String.format("AuthTokenHelper login () - Obtained Digest Value: %s", session.getFormDigestValue()));
+		return session;
+	}
+
 	/**
+	 * New form digest for the cookies of the current session.
+	 */
+	@Override
+	public Session refreshDigest(Session current) throws Exception {
+		return requestDigest(current.getCookies(), current.getLoginExpiration());
+	}
+
+	/**
+	 * Performs the login and publishes the new session, requests already running keep using
+	 * the previous one.
+	 * 
 	 * @throws Exception
 	 */
 	public void init() throws Exception {
-		LOG.debug("AuthTokenHelper init()");
-		String securityToken = receiveSecurityToken();
-		LOG.debug(String.format("AuthTokenHelper init () - Obtained securityToken: %s", securityToken));
-		this.cookies = getSignInCookies(securityToken);
-		LOG.debug(String.format("AuthTokenHelper init () - Obtained Cookies: %s", String.join(";", getCookies())));
-		formDigestValue = getFormDigestValue(this.cookies);
-		LOG.debug(String.format("AuthTokenHelper init () - Obtained Digest Value: %s", getFormDigestValue()));
+		sessionManager.login();
 	}
 
+	/**
+	 * Cookies and digest of the current login, read them from the same session so both
+	 * belong to the same login. The digest is refreshed first if it has expired.
+	 * 
+	 * @return
+	 * @throws Exception
+	 */
+	public Session getSession() throws Exception {
+		return sessionManager.getSession();
+	}
+
+	/**
+	 * @return the manager refreshing the session.
+	 */
+	public DigestSessionManager<Session> getSessionManager() {
+		return sessionManager;
+	}
+
+	/**
+	 * Stops the background refresh of the session.
+	 */
+	@Override
+	public void close() {
+		sessionManager.close();
+	}
 
 	/**
 	 * The security token to use in Authorization Bearer  header or X-RequestDigest header 
@@ -163,7 +274,7 @@ public class AuthTokenHelperOnline {
 	 * @return
 	 */
 	public String getFormDigestValue() {
-		return formDigestValue;
+		return sessionManager.getCurrentSession().getFormDigestValue();
 	}
 
 	/**
@@ -172,7 +283,7 @@ public class AuthTokenHelperOnline {
 	 * @return
 	 */
 	public List<String> getCookies() {
-		return this.cookies;
+		return sessionManager.getCurrentSession().getCookies();
 	}
 	
 	/**
@@ -182,9 +293,11 @@ public class AuthTokenHelperOnline {
 	 * @throws URISyntaxException 
 	 */
 	public URI getSharepointSiteUrl(String apiPath) throws URISyntaxException {
-		return new URI("https",
+		// Authority like the query variant, so the domain can have a port.
+		return new URI(getProtocolString(),
 				this.domain,
 				this.spSiteUri + apiPath,
+				null,
 				null
 				);
 	}
@@ -196,15 +309,70 @@ public class AuthTokenHelperOnline {
 	 * @throws URISyntaxException
 	 */
 	public URI getSharepointSiteUrl(String apiPath, String query) throws URISyntaxException {
-		if (!query.startsWith("$filter=")) {
+		if (!query.startsWith("$")) {
 			LOG.debug("Missing $filter in query string, adding");
 			query = String.format("%s%s", "$filter=", query);
 		}
-		return new URI("https",
+		return new URI(getProtocolString(),
 				this.domain,
 				this.spSiteUri + apiPath,
 				query,
 				null
 				);
 	}
+
+	/**
+	 * @param apiPath - path of the resource.
+	 * @param query - query options, already encoded by the query, null for none.
+	 * @return the uri of the resource with the query.
+	 * @throws URISyntaxException
+	 */
+	public URI getSharepointSiteUrl(String apiPath, ODataQuery query) throws URISyntaxException {
+		return query == null ? getSharepointSiteUrl(apiPath) : query.appendTo(getSharepointSiteUrl(apiPath));
+	}
+
+	/**
+	 * Immutable auth state of a login, replaced as a whole when the login is refreshed.
+	 */
+	public static final class Session implements DigestSessionManager.ExpiringSession {
+
+		private final List<String> cookies;
+		private final String cookieHeader;
+		private final long cookiesExpiration;
+		private final String formDigestValue;
+		private final long digestExpiration;
+
+		Session(List<String> cookies, long cookiesExpiration, String formDigestValue, long digestExpiration) {
+			this.cookies = Collections.unmodifiableList(new ArrayList<>(cookies));
+			this.cookieHeader = String.join(";", cookies);
+			this.cookiesExpiration = cookiesExpiration;
+			this.formDigestValue = formDigestValue;
+			this.digestExpiration = digestExpiration;
+		}
+
+		@Override
+		public long getDigestExpiration() {
+			return digestExpiration;
+		}
+
+		@Override
+		public long getLoginExpiration() {
+			return cookiesExpiration;
+		}
+
+		public List<String> getCookies() {
+			return cookies;
+		}
+
+		/**
+		 * @return the cookies joined to be sent in the Cookie header.
+		 */
+		public String getCookieHeader() {
+			return cookieHeader;
+		}
+
+		public String getFormDigestValue() {
+			return formDigestValue;
+		}
+	}
 }
@@ -0,0 +1,182 @@
+package com.panxoloto.sharepoint.rest.helper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.json.JSONObject;
+
+/**
+ * CAML view of a RenderListDataAsStream request: scope, where clause, sort, view fields and row
+ * limit. Instances are immutable like ODataQuery, every method returns a new view.
+ *
+ * <pre>
+ * CamlQuery query = CamlQuery.create()
+ *         .scope(CamlQuery.Scope.RECURSIVE_ALL)
+ *         .where("&lt;Eq&gt;&lt;FieldRef Name='Status'/&gt;&lt;Value Type='Text'&gt;Open&lt;/Value&gt;&lt;/Eq&gt;")
+ *         .viewFields("ID", "Title", "Author", "Customer")
+ *         .rowLimit(5000);
+ * </pre>
+ */
+public final class CamlQuery {
+
+	/**
+	 * RenderOptions value returning the rows (ListData).
+	 */
+	public static final int RENDER_LIST_DATA = 2;
+
+	public static final int DEFAULT_ROW_LIMIT = 5000;
+
+	/**
+	 * Scope of the view: DEFAULT only reads the folder, RECURSIVE reads the files of the subfolders,
+	 * RECURSIVE_ALL reads files and folders of the subfolders.
+	 */
+	public enum Scope {
+		DEFAULT(null), FILES_ONLY("FilesOnly"), RECURSIVE("Recursive"), RECURSIVE_ALL("RecursiveAll");
+
+		private final String value;
+
+		Scope(String value) {
+			this.value = value;
+		}
+	}
+
+	private final Scope scope;
+	private final String where;
+	private final List<String> orderBy;
+	private final List<String> viewFields;
+	private final int rowLimit;
+
+	private CamlQuery(Scope scope, String where, List<String> orderBy, List<String> viewFields, int rowLimit) {
+		this.scope = scope;
+		this.where = where;
+		this.orderBy = orderBy;
+		this.viewFields = viewFields;
+		this.rowLimit = rowLimit;
+	}
+
+	/**
+	 * @return a view of all the rows of the folder, DEFAULT_ROW_LIMIT rows per page.
+	 */
+	public static CamlQuery create() {
+		return new CamlQuery(Scope.DEFAULT, null, Collections.emptyList(), Collections.emptyList(), DEFAULT_ROW_LIMIT);
+	}
+
+	public CamlQuery scope(Scope scope) {
+		return new CamlQuery(scope, where, orderBy, viewFields, rowLimit);
+	}
+
+	/**
+	 * @param where - content of the Where element, like &lt;Eq&gt;...&lt;/Eq&gt;, it's sent as is.
+	 * @return the new view.
+	 */
+	public CamlQuery where(String where) {
+		return new CamlQuery(scope, where, orderBy, viewFields, rowLimit);
+	}
+
+	/**
+	 * @param field - internal name of the field to sort by.
+	 * @param ascending - false to sort descending.
+	 * @return the new view.
+	 */
+	public CamlQuery orderBy(String field, boolean ascending) {
+		List<String> fields = new ArrayList<>(orderBy);
+		fields.add("<FieldRef Name=\"" + escape(field) + "\" Ascending=\"" + (ascending ? "TRUE" : "FALSE") + "\"/>");
+		return new CamlQuery(scope, where, Collections.unmodifiableList(fields), viewFields, rowLimit);
+	}
+
+	/**
+	 * @param fields - internal names of the fields returned, lookup and person fields come resolved.
+	 * @return the new view.
+	 */
+	public CamlQuery viewFields(String... fields) {
+		List<String> all = new ArrayList<>(viewFields);
+		all.addAll(Arrays.asList(fields));
+		return new CamlQuery(scope, where, orderBy, Collections.unmodifiableList(all), rowLimit);
+	}
+
+	/**
+	 * @param rowLimit - rows per page.
+	 * @return the new view.
+	 */
+	public CamlQuery rowLimit(int rowLimit) {
+		if (rowLimit <= 0) {
+			throw new IllegalArgumentException("Row limit must be greater than zero");
+		}
+		return new CamlQuery(scope, where, orderBy, viewFields, rowLimit);
+	}
+
+	/**
+	 * @return the ViewXml, with a paged row limit so the response has the NextHref of the next page.
+	 */
+	public String toViewXml() {
+		StringBuilder xml = new StringBuilder("<View");
+		if (scope.value != null) {
+			xml.append(" Scope=\"").append(scope.value).append('"');
+		}
+		xml.append("><Query>");
+		if (where != null && !where.isEmpty()) {
+			xml.append("<Where>").append(where).append("</Where>");
+		}
+		if (!orderBy.isEmpty()) {
+			xml.append("<OrderBy>");
+			orderBy.forEach(xml::append);
+			xml.append("</OrderBy>");
+		}
+		xml.append("</Query>");
+		if (!viewFields.isEmpty()) {
+			xml.append("<ViewFields>");
+			for (String field : viewFields) {
+				xml.append("<FieldRef Name=\"").append(escape(field)).append("\"/>");
+			}
+			xml.append("</ViewFields>");
+		}
+		xml.append("<RowLimit Paged=\"TRUE\">").append(rowLimit).append("</RowLimit></View>");
+		return xml.toString();
+	}
+
+	/**
+	 * @param folderServerRelativeUrl - folder the view is scoped to, null for the root folder.
+	 * @return body of the RenderListDataAsStream request.
+	 */
+	public String toRenderListDataPayload(String folderServerRelativeUrl) {
+		JSONObject parameters = new JSONObject();
+		parameters.put("__metadata", new JSONObject().put("type", "SP.RenderListDataParameters"));
+		parameters.put("ViewXml", toViewXml());
+		parameters.put("RenderOptions", RENDER_LIST_DATA);
+		parameters.put("DatesInUtc", true);
+		if (folderServerRelativeUrl != null) {
+			parameters.put("FolderServerRelativeUrl", folderServerRelativeUrl);
+		}
+		return new JSONObject().put("parameters", parameters).toString();
+	}
+
+	/**
+	 * The response is the json of the rows as is, but some servers return it as a string inside
+	 * the odata envelope ({"d": {"RenderListDataAsStream": "..."}} or {"value": "..."}).
+	 *
+	 * @param body - body of the RenderListDataAsStream response.
+	 * @return json with Row and NextHref.
+	 */
+	public static JSONObject parseRenderListData(String body) {
+		JSONObject json = new JSONObject(body);
+		JSONObject d = json.optJSONObject("d");
+		if (d != null && d.opt("RenderListDataAsStream") instanceof String) {
+			return new JSONObject(d.getString("RenderListDataAsStream"));
+		}
+		if (!json.has("Row") && json.opt("value") instanceof String) {
+			return new JSONObject(json.getString("value"));
+		}
+		return json;
+	}
+
+	@Override
+	public String toString() {
+		return toViewXml();
+	}
+
+	private static String escape(String value) {
+		return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+	}
+}
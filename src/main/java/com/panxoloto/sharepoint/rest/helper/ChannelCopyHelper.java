@@ -0,0 +1,94 @@
+package com.panxoloto.sharepoint.rest.helper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.LongConsumer;
+
+/**
+ * Copies http response bodies to channels through pooled direct buffers, so downloads
+ * never hold the whole content in the heap.
+ */
+public final class ChannelCopyHelper {
+
+	public static final int BUFFER_SIZE = 64 * 1024;
+	private static final int MAX_POOLED_BUFFERS = 32;
+
+	private static final BlockingQueue<ByteBuffer> BUFFERS = new ArrayBlockingQueue<>(MAX_POOLED_BUFFERS);
+
+	private ChannelCopyHelper() {
+	}
+
+	/**
+	 * @param in - stream to read until the end, it's not closed.
+	 * @param out - channel to write to, it's not closed.
+	 * @return number of bytes copied.
+	 * @throws IOException
+	 */
+	public static long copy(InputStream in, WritableByteChannel out) throws IOException {
+		ReadableByteChannel source = Channels.newChannel(in);
+		ByteBuffer buffer = acquire();
+		try {
+			long total = 0;
+			while (source.read(buffer) >= 0) {
+				buffer.flip();
+				while (buffer.hasRemaining()) {
+					total += out.write(buffer);
+				}
+				buffer.clear();
+			}
+			return total;
+		} finally {
+			BUFFERS.offer(buffer);
+		}
+	}
+
+	/**
+	 * Copies a stream into a file at the given position using positional writes, so several
+	 * streams can fill different regions of the same file concurrently.
+	 *
+	 * @param in - stream to read until the end, it's not closed.
+	 * @param out - file to write to, it's not closed and its position is not changed.
+	 * @param position - offset of the file where the first byte is written.
+	 * @param progress - notified with the number of bytes written after every buffer, may be null.
+	 * @return number of bytes copied.
+	 * @throws IOException
+	 */
+	public static long copy(InputStream in, FileChannel out, long position, LongConsumer progress) throws IOException {
+		ReadableByteChannel source = Channels.newChannel(in);
+		ByteBuffer buffer = acquire();
+		try {
+			long total = 0;
+			while (source.read(buffer) >= 0) {
+				buffer.flip();
+				int written = 0;
+				while (buffer.hasRemaining()) {
+					written += out.write(buffer, position + total + written);
+				}
+				total += written;
+				buffer.clear();
+				if (progress != null) {
+					progress.accept(written);
+				}
+			}
+			return total;
+		} finally {
+			BUFFERS.offer(buffer);
+		}
+	}
+
+	private static ByteBuffer acquire() {
+		ByteBuffer buffer = BUFFERS.poll();
+		if (buffer == null) {
+			buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+		buffer.clear();
+		return buffer;
+	}
+}
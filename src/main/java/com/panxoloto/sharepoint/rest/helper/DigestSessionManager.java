@@ -0,0 +1,266 @@
+package com.panxoloto.sharepoint.rest.helper;
+
+import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpClientErrorException;
+
+/**
+ * Keeps the form digest (and the login it depends on) of a client valid.
+ *
+ * The digest is refreshed ahead of its expiration on a background scheduler and on demand when a
+ * request finds it expired. Concurrent refreshes are collapsed in a single request to the server,
+ * the other callers wait for its result. Only the digest is requested again while the login is
+ * valid, the full login is done when the login expires within the refresh ahead time or the
+ * server rejects it.
+ *
+ * @param <S> session published by the manager.
+ */
+public class DigestSessionManager<S extends DigestSessionManager.ExpiringSession> implements Closeable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(DigestSessionManager.class);
+
+	public static final long DEFAULT_REFRESH_AHEAD_MILLIS = 60 * 1000;
+	private static final long EXPIRATION_MARGIN_MILLIS = 5 * 1000;
+	private static final long MIN_REFRESH_DELAY_MILLIS = 1000;
+	private static final long RETRY_DELAY_MILLIS = 30 * 1000;
+	// Margin that makes any session look expired, so the scheduled refresh always renews the digest.
+	private static final long ALWAYS_REFRESH_MARGIN = Long.MAX_VALUE / 2;
+
+	/**
+	 * Auth state with the instants (epoch millis) it stops being valid.
+	 */
+	public interface ExpiringSession {
+
+		/**
+		 * @return when the form digest expires.
+		 */
+		long getDigestExpiration();
+
+		/**
+		 * @return when the login (cookies) expires, Long.MAX_VALUE if it doesn't.
+		 */
+		long getLoginExpiration();
+	}
+
+	/**
+	 * Performs the requests to the server.
+	 *
+	 * @param <S> session type.
+	 */
+	public interface SessionSource<S> {
+
+		/**
+		 * @return a new session, doing the full login and getting a new digest.
+		 * @throws Exception
+		 */
+		S login() throws Exception;
+
+		/**
+		 * @param current - session whose login is still valid.
+		 * @return a session with the same login and a new digest.
+		 * @throws Exception
+		 */
+		S refreshDigest(S current) throws Exception;
+	}
+
+	private final SessionSource<S> source;
+	private final ScheduledExecutorService scheduler;
+	private final AtomicReference<Refresh<S>> inFlight = new AtomicReference<>();
+	private volatile S session;
+	private volatile ScheduledFuture<?> scheduledRefresh;
+	private volatile long refreshAheadMillis = DEFAULT_REFRESH_AHEAD_MILLIS;
+	private volatile boolean closed;
+
+	/**
+	 * @param source - performs the login and digest requests.
+	 * @param scheduler - runs the background refresh, null to refresh only on demand. It's shutdown on close.
+	 */
+	public DigestSessionManager(SessionSource<S> source, ScheduledExecutorService scheduler) {
+		this.source = source;
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * @return a valid session, refreshing it first if it's expired.
+	 * @throws Exception
+	 */
+	public S getSession() throws Exception {
+		S current = session;
+		if (isValid(current, EXPIRATION_MARGIN_MILLIS)) {
+			return current;
+		}
+		return await(refresh(EXPIRATION_MARGIN_MILLIS, false));
+	}
+
+	/**
+	 * @return the last published session, without checking its expiration. Null before the first login.
+	 */
+	public S getCurrentSession() {
+		return session;
+	}
+
+	/**
+	 * Logs in again even if the current session is valid. If a login is already running its
+	 * result is returned instead of starting another one.
+	 *
+	 * @return the new session.
+	 * @throws Exception
+	 */
+	public S login() throws Exception {
+		return await(refresh(0, true));
+	}
+
+	public long getRefreshAheadMillis() {
+		return refreshAheadMillis;
+	}
+
+	/**
+	 * @param refreshAheadMillis - time before the expiration the background refresh is done.
+	 */
+	public void setRefreshAheadMillis(long refreshAheadMillis) {
+		this.refreshAheadMillis = refreshAheadMillis;
+	}
+
+	/**
+	 * Stops the background refresh.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		ScheduledFuture<?> scheduled = scheduledRefresh;
+		if (scheduled != null) {
+			scheduled.cancel(false);
+		}
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+	}
+
+	private CompletableFuture<S> refresh(long margin, boolean forceLogin) {
+		while (true) {
+			Refresh<S> running = inFlight.get();
+			if (running != null) {
+				if (!forceLogin || running.login) {
+					return running.future;
+				}
+				// A digest refresh is running, wait for it and then log in.
+				running.future.handle((s, e) -> null).join();
+				continue;
+			}
+			Refresh<S> mine = new Refresh<>(forceLogin);
+			if (!inFlight.compareAndSet(null, mine)) {
+				continue;
+			}
+			try {
+				S current = session;
+				if (!forceLogin && isValid(current, margin)) {
+					// Another caller refreshed it while this one was checking.
+					mine.future.complete(current);
+				} else {
+					S refreshed = doRefresh(current, forceLogin);
+					session = refreshed;
+					scheduleRefresh(refreshed);
+					mine.future.complete(refreshed);
+				}
+			} catch (Exception e) {
+				mine.future.completeExceptionally(e);
+			} finally {
+				inFlight.compareAndSet(mine, null);
+			}
+			return mine.future;
+		}
+	}
+
+	private S doRefresh(S current, boolean forceLogin) throws Exception {
+		long now = System.currentTimeMillis();
+		// A login expiring within the refresh ahead time is renewed, a new digest would only be
+		// scheduled for a refresh sooner and sooner until the login expired.
+		long loginMargin = Math.max(refreshAheadMillis, EXPIRATION_MARGIN_MILLIS);
+		if (forceLogin || current == null || now + loginMargin >= current.getLoginExpiration()) {
+			LOG.debug("Logging in to get a new session");
+			return source.login();
+		}
+		try {
+			LOG.debug("Refreshing the form digest");
+			return source.refreshDigest(current);
+		} catch (HttpClientErrorException e) {
+			if (e.getStatusCode() != HttpStatus.UNAUTHORIZED && e.getStatusCode() != HttpStatus.FORBIDDEN) {
+				throw e;
+			}
+			LOG.debug("Login rejected refreshing the form digest, logging in again");
+			return source.login();
+		}
+	}
+
+	private void scheduleRefresh(S refreshed) {
+		if (scheduler == null || closed) {
+			return;
+		}
+		long remaining = Math.min(refreshed.getDigestExpiration(), refreshed.getLoginExpiration()) - System.currentTimeMillis();
+		long delay = Math.max(Math.max(remaining - refreshAheadMillis, remaining / 2), MIN_REFRESH_DELAY_MILLIS);
+		schedule(delay);
+	}
+
+	private void schedule(long delay) {
+		ScheduledFuture<?> previous = scheduledRefresh;
+		if (previous != null) {
+			previous.cancel(false);
+		}
+		try {
+			scheduledRefresh = scheduler.schedule(this::backgroundRefresh, delay, TimeUnit.MILLISECONDS);
+			LOG.debug("Next session refresh in {} ms", delay);
+		} catch (RuntimeException e) {
+			LOG.debug("Session refresh not scheduled, the scheduler is shutdown");
+		}
+	}
+
+	private void backgroundRefresh() {
+		if (closed) {
+			return;
+		}
+		try {
+			await(refresh(ALWAYS_REFRESH_MARGIN, false));
+		} catch (Exception e) {
+			LOG.warn("Background session refresh failed, retrying in {} ms", RETRY_DELAY_MILLIS, e);
+			schedule(RETRY_DELAY_MILLIS);
+		}
+	}
+
+	private boolean isValid(S s, long margin) {
+		if (s == null) {
+			return false;
+		}
+		long limit = System.currentTimeMillis() + margin;
+		return limit < s.getDigestExpiration() && limit < s.getLoginExpiration();
+	}
+
+	private S await(CompletableFuture<S> future) throws Exception {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	private static final class Refresh<S> {
+
+		private final boolean login;
+		private final CompletableFuture<S> future = new CompletableFuture<>();
+
+		Refresh(boolean login) {
+			this.login = login;
+		}
+	}
+}
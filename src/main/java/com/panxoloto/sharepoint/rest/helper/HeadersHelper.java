@@ -1,29 +1,57 @@
 package com.panxoloto.sharepoint.rest.helper;
 
-import java.util.stream.Collectors;
+import java.nio.charset.StandardCharsets;
 
 import org.springframework.util.LinkedMultiValueMap;
 
 public class HeadersHelper {
 
 	private AuthTokenHelperOnline tokenHelper;
+	private volatile ODataMetadata metadata = ODataMetadata.VERBOSE;
 
+	/**
+	 * Every call builds a new map from a single session snapshot, so the returned headers
+	 * can be used by one request without being shared between threads.
+	 * 
+	 * @param tokenHelper
+	 */
 	public HeadersHelper(AuthTokenHelperOnline tokenHelper) {
 		this.tokenHelper = tokenHelper;
 	}
 	
+	public ODataMetadata getMetadata() {
+		return metadata;
+	}
+
+	/**
+	 * @param metadata - metadata level requested by default in the Accept header.
+	 */
+	public void setMetadata(ODataMetadata metadata) {
+		this.metadata = metadata;
+	}
+
+	/**
+	 * @return
+	 */
+	public LinkedMultiValueMap<String, String> getGetHeaders(boolean includeAuthHeader) throws Exception {
+		return getGetHeaders(includeAuthHeader, this.metadata);
+	}
+
 	/**
+	 * @param includeAuthHeader
+	 * @param metadata - metadata level requested in the Accept header.
 	 * @return
 	 */
-	public LinkedMultiValueMap<String, String> getGetHeaders(boolean includeAuthHeader) {
+	public LinkedMultiValueMap<String, String> getGetHeaders(boolean includeAuthHeader, ODataMetadata metadata) throws Exception {
+		AuthTokenHelperOnline.Session session = this.tokenHelper.getSession();
 		LinkedMultiValueMap<String, String> headers = new LinkedMultiValueMap<>();
-		headers.add("Cookie",  this.tokenHelper.getCookies().stream().collect(Collectors.joining(";")) );
-		headers.add("Accept", "application/json;odata=verbose");
+		headers.add("Cookie", session.getCookieHeader());
+		headers.add("Accept", metadata.getAccept());
 		headers.add("X-ClientService-ClientTag", "SDK-JAVA");
 	    if (includeAuthHeader) {
-	    	headers.add("Authorization", "Bearer " + this.tokenHelper.getFormDigestValue());
+	    	headers.add("Authorization", "Bearer " + session.getFormDigestValue());
 	    } else {
-	    	headers.add("X-RequestDigest", this.tokenHelper.getFormDigestValue());
+	    	headers.add("X-RequestDigest", session.getFormDigestValue());
 	    }
 	    return headers;
 	}
@@ -32,15 +60,16 @@ public class HeadersHelper {
 	 * @param payloadStr
 	 * @return
 	 */
-	public LinkedMultiValueMap<String, String> getPostHeaders(String payloadStr) {
+	public LinkedMultiValueMap<String, String> getPostHeaders(String payloadStr) throws Exception {
+		AuthTokenHelperOnline.Session session = this.tokenHelper.getSession();
 		LinkedMultiValueMap<String, String> headers = new LinkedMultiValueMap<>();
-		headers.add("Cookie",  this.tokenHelper.getCookies().stream().collect(Collectors.joining(";")) );
-		headers.add("Accept", "application/json;odata=verbose");
+		headers.add("Cookie", session.getCookieHeader());
+		headers.add("Accept", this.metadata.getAccept());
 		headers.add("Content-Type", "application/json;odata=verbose");
-		headers.add("Content-length", "" + payloadStr.getBytes().length);
+		headers.add("Content-length", "" + payloadStr.getBytes(StandardCharsets.UTF_8).length);
 		headers.add("X-ClientService-ClientTag", "SDK-JAVA");
 	    //headers.add("Authorization", "Bearer " + this.tokenHelper.getFormDigestValue());
-		headers.add("X-RequestDigest", this.tokenHelper.getFormDigestValue());
+		headers.add("X-RequestDigest", session.getFormDigestValue());
 	    return headers;
 	}
 	
@@ -48,29 +77,31 @@ public class HeadersHelper {
 	 * @param payloadStr
 	 * @return
 	 */
-	public LinkedMultiValueMap<String, String> getUpdateHeaders(String payloadStr) {
+	public LinkedMultiValueMap<String, String> getUpdateHeaders(String payloadStr) throws Exception {
+		AuthTokenHelperOnline.Session session = this.tokenHelper.getSession();
 		LinkedMultiValueMap<String, String> headers = new LinkedMultiValueMap<>();
-		headers.add("Cookie",  this.tokenHelper.getCookies().stream().collect(Collectors.joining(";")) );
-		headers.add("Accept", "application/json;odata=verbose");
+		headers.add("Cookie", session.getCookieHeader());
+		headers.add("Accept", this.metadata.getAccept());
 		headers.add("Content-Type", "application/json;odata=verbose");
-		headers.add("Content-length", "" + payloadStr.getBytes().length);
+		headers.add("Content-length", "" + payloadStr.getBytes(StandardCharsets.UTF_8).length);
 		headers.add("X-ClientService-ClientTag", "SDK-JAVA");
 		headers.add("X-HTTP-Method", "MERGE");
 		headers.add("IF-Match", "*");
 	    //headers.add("Authorization", "Bearer " + this.tokenHelper.getFormDigestValue());
-		headers.add("X-RequestDigest", this.tokenHelper.getFormDigestValue());
+		headers.add("X-RequestDigest", session.getFormDigestValue());
 	    return headers;
 	}
 	
 	/**
 	 * @return
 	 */
-	public LinkedMultiValueMap<String, String> getDeleteHeaders() {
+	public LinkedMultiValueMap<String, String> getDeleteHeaders() throws Exception {
+		AuthTokenHelperOnline.Session session = this.tokenHelper.getSession();
 		LinkedMultiValueMap<String, String> headers = new LinkedMultiValueMap<>();
-		headers.add("Cookie",  this.tokenHelper.getCookies().stream().collect(Collectors.joining(";")) );
-		headers.add("Accept", "application/json;odata=verbose");
+		headers.add("Cookie", session.getCookieHeader());
+		headers.add("Accept", this.metadata.getAccept());
 		headers.add("X-ClientService-ClientTag", "SDK-JAVA");
-	    headers.add("Authorization", "Bearer " + this.tokenHelper.getFormDigestValue());
+	    headers.add("Authorization", "Bearer " + session.getFormDigestValue());
 	    headers.add("X-HTTP-Method", "DELETE");
 	    headers.add("IF-Match", "*");
 	    return headers;
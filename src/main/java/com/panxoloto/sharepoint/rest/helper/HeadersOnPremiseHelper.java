@@ -1,5 +1,7 @@
 package com.panxoloto.sharepoint.rest.helper;
 
+import java.nio.charset.StandardCharsets;
+
 import org.apache.http.HttpHeaders;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
@@ -9,13 +11,29 @@ import com.panxoloto.sharepoint.rest.PLGSharepointOnPremisesClient;
 public class HeadersOnPremiseHelper {
 
 	PLGSharepointOnPremisesClient client;
+	private volatile ODataMetadata metadata = ODataMetadata.VERBOSE;
 
 	public HeadersOnPremiseHelper(PLGSharepointOnPremisesClient client) {
 		this.client = client;
 	}
 
+	public ODataMetadata getMetadata() {
+		return metadata;
+	}
+
+	/**
+	 * @param metadata - metadata level requested by default in the Accept header.
+	 */
+	public void setMetadata(ODataMetadata metadata) {
+		this.metadata = metadata;
+	}
+
 	private void addAcceptJson(LinkedMultiValueMap<String, String> headers) {
-		headers.add("Accept", "application/json;odata=verbose");
+		addAcceptJson(headers, this.metadata);
+	}
+
+	private void addAcceptJson(LinkedMultiValueMap<String, String> headers, ODataMetadata metadata) {
+		headers.add("Accept", metadata.getAccept());
 	}
 
 	private void addClientHeader(LinkedMultiValueMap<String, String> headers) {
@@ -43,8 +61,17 @@ public class HeadersOnPremiseHelper {
 	 * @return
 	 */
 	public LinkedMultiValueMap<String, String> getGetHeaders(boolean includeAuthHeader) throws Exception {
+		return getGetHeaders(includeAuthHeader, this.metadata);
+	}
+
+	/**
+	 * @param includeAuthHeader
+	 * @param metadata - metadata level requested in the Accept header.
+	 * @return
+	 */
+	public LinkedMultiValueMap<String, String> getGetHeaders(boolean includeAuthHeader, ODataMetadata metadata) throws Exception {
 		LinkedMultiValueMap<String, String> headers = new LinkedMultiValueMap<>();
-		addAcceptJson(headers);
+		addAcceptJson(headers, metadata);
 		addClientHeader(headers);
 		addXFormsAuth(headers);
 		addAgentHeader(headers);
@@ -65,7 +92,7 @@ public class HeadersOnPremiseHelper {
 		addAgentHeader(headers);
 
 		addContentType(headers);
-		headers.add("Content-length", "" + payloadStr.getBytes().length);
+		headers.add("Content-length", "" + payloadStr.getBytes(StandardCharsets.UTF_8).length);
 		addDigestKeyHeader(headers);
 		return headers;
 	}
@@ -79,7 +106,7 @@ public class HeadersOnPremiseHelper {
 		LinkedMultiValueMap<String, String> headers = new LinkedMultiValueMap<>();
 		addAcceptJson(headers);
 		addContentType(headers);
-		headers.add("Content-length", "" + payloadStr.getBytes().length);
+		headers.add("Content-length", "" + payloadStr.getBytes(StandardCharsets.UTF_8).length);
 		addClientHeader(headers);
 		headers.add("X-HTTP-Method", "MERGE");
 		headers.add("IF-Match", "*");
@@ -100,9 +127,12 @@ public class HeadersOnPremiseHelper {
 	    return headers;
 	}
 
+	/**
+	 * @return headers of the contextinfo request, always verbose as the digest is read from the verbose shape.
+	 */
 	public MultiValueMap<String, String> getCommonHeaders() {
 		LinkedMultiValueMap<String, String> headers = new LinkedMultiValueMap<>();
-		addAcceptJson(headers);
+		addAcceptJson(headers, ODataMetadata.VERBOSE);
 		addClientHeader(headers);
 		addXFormsAuth(headers);
 		addAgentHeader(headers);
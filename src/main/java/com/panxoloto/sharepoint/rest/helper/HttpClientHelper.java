@@ -0,0 +1,118 @@
+package com.panxoloto.sharepoint.rest.helper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+
+/**
+ * Builds and owns the pooled, keep-alive Apache HttpClient used by the sharepoint clients.
+ * The same instance is shared by the client and its auth helper so the login and the api calls
+ * reuse the same TLS connections.
+ */
+public class HttpClientHelper implements Closeable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(HttpClientHelper.class);
+	private final PoolingHttpClientConnectionManager connectionManager;
+	private final CloseableHttpClient httpClient;
+	private final HttpComponentsClientHttpRequestFactory httpComponentsRequestFactory;
+	private final ThrottlingRequestFactory requestFactory;
+
+	/**
+	 * @param config - pool configuration, default values are used when null.
+	 * @param credentialsProvider - credentials provider (NTLM for on premises), can be null.
+	 * @param cookieManagement - false when the cookies are managed by hand in the request headers (online client).
+	 */
+	public HttpClientHelper(HttpClientPoolConfig config, CredentialsProvider credentialsProvider, boolean cookieManagement) {
+		if (config == null) {
+			config = new HttpClientPoolConfig();
+		}
+		LOG.debug("Building pooled http client maxTotal {} maxPerRoute {}", config.getMaxTotal(), config.getMaxPerRoute());
+		this.connectionManager = new PoolingHttpClientConnectionManager();
+		this.connectionManager.setMaxTotal(config.getMaxTotal());
+		this.connectionManager.setDefaultMaxPerRoute(config.getMaxPerRoute());
+		this.connectionManager.setValidateAfterInactivity(config.getValidateAfterInactivityMillis());
+
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(config.getConnectTimeoutMillis())
+				.setSocketTimeout(config.getSocketTimeoutMillis())
+				.setConnectionRequestTimeout(config.getConnectionRequestTimeoutMillis())
+				.build();
+
+		HttpClientBuilder builder = HttpClients.custom()
+				.setConnectionManager(this.connectionManager)
+				.setDefaultRequestConfig(requestConfig);
+		if (credentialsProvider != null) {
+			builder.setDefaultCredentialsProvider(credentialsProvider);
+		}
+		if (!cookieManagement) {
+			builder.disableCookieManagement();
+		}
+		if (config.isEvictExpiredConnections()) {
+			builder.evictExpiredConnections();
+		}
+		if (config.getMaxIdleTimeMillis() > 0) {
+			builder.evictIdleConnections(config.getMaxIdleTimeMillis(), TimeUnit.MILLISECONDS);
+		}
+		this.httpClient = builder.build();
+		this.httpComponentsRequestFactory = new HttpComponentsClientHttpRequestFactory(this.httpClient);
+		// The throttling factory decides which bodies are buffered, large uploads are streamed.
+		this.httpComponentsRequestFactory.setBufferRequestBody(false);
+		this.requestFactory = new ThrottlingRequestFactory(this.httpComponentsRequestFactory);
+	}
+
+	/**
+	 * @return the request factory to build the rest templates with, it retries throttled requests.
+	 */
+	public ThrottlingRequestFactory getRequestFactory() {
+		return requestFactory;
+	}
+
+	/**
+	 * @return a new throttling request factory over the same connection pool, with its own
+	 *         settings and replay handler (the login requests use one without reauthentication).
+	 */
+	public ThrottlingRequestFactory newRequestFactory() {
+		return new ThrottlingRequestFactory(this.httpComponentsRequestFactory);
+	}
+
+	/**
+	 * @return the underlying http client.
+	 */
+	public CloseableHttpClient getHttpClient() {
+		return httpClient;
+	}
+
+	/**
+	 * @return current pool usage (leased, available and pending connections) for all routes.
+	 */
+	public PoolStats getPoolStats() {
+		return connectionManager.getTotalStats();
+	}
+
+	/**
+	 * @return connections per host, the most requests that can be sent to the site at once.
+	 */
+	public int getMaxPerRoute() {
+		return connectionManager.getDefaultMaxPerRoute();
+	}
+
+	/**
+	 * Closes all pooled connections and stops the eviction thread.
+	 */
+	@Override
+	public void close() throws IOException {
+		LOG.debug("Closing pooled http client");
+		httpClient.close();
+	}
+}
@@ -0,0 +1,111 @@
+package com.panxoloto.sharepoint.rest.helper;
+
+/**
+ * Connection pool settings used to build the Apache HttpClient shared by a sharepoint client
+ * and its auth helper.
+ *
+ * Default values are tuned for a single sharepoint tenant/farm, so most of the connections
+ * go to the same route.
+ */
+public class HttpClientPoolConfig {
+
+	public static final int DEFAULT_MAX_TOTAL = 50;
+	public static final int DEFAULT_MAX_PER_ROUTE = 20;
+	public static final int DEFAULT_VALIDATE_AFTER_INACTIVITY_MILLIS = 2000;
+	public static final long DEFAULT_MAX_IDLE_TIME_MILLIS = 30000;
+	public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 30000;
+	public static final int DEFAULT_SOCKET_TIMEOUT_MILLIS = 120000;
+	public static final int DEFAULT_CONNECTION_REQUEST_TIMEOUT_MILLIS = 60000;
+
+	private int maxTotal = DEFAULT_MAX_TOTAL;
+	private int maxPerRoute = DEFAULT_MAX_PER_ROUTE;
+	private int validateAfterInactivityMillis = DEFAULT_VALIDATE_AFTER_INACTIVITY_MILLIS;
+	private long maxIdleTimeMillis = DEFAULT_MAX_IDLE_TIME_MILLIS;
+	private boolean evictExpiredConnections = true;
+	private int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+	private int socketTimeoutMillis = DEFAULT_SOCKET_TIMEOUT_MILLIS;
+	private int connectionRequestTimeoutMillis = DEFAULT_CONNECTION_REQUEST_TIMEOUT_MILLIS;
+
+	/**
+	 * @return max number of connections kept in the pool for all routes.
+	 */
+	public int getMaxTotal() {
+		return maxTotal;
+	}
+
+	public void setMaxTotal(int maxTotal) {
+		this.maxTotal = maxTotal;
+	}
+
+	/**
+	 * @return max number of connections kept in the pool for a single route (host).
+	 */
+	public int getMaxPerRoute() {
+		return maxPerRoute;
+	}
+
+	public void setMaxPerRoute(int maxPerRoute) {
+		this.maxPerRoute = maxPerRoute;
+	}
+
+	/**
+	 * @return inactivity period in milliseconds after which a pooled connection is validated before being leased.
+	 */
+	public int getValidateAfterInactivityMillis() {
+		return validateAfterInactivityMillis;
+	}
+
+	public void setValidateAfterInactivityMillis(int validateAfterInactivityMillis) {
+		this.validateAfterInactivityMillis = validateAfterInactivityMillis;
+	}
+
+	/**
+	 * @return max time in milliseconds a connection can stay idle in the pool before the eviction thread closes it.
+	 * A value lower or equal than zero disables idle eviction.
+	 */
+	public long getMaxIdleTimeMillis() {
+		return maxIdleTimeMillis;
+	}
+
+	public void setMaxIdleTimeMillis(long maxIdleTimeMillis) {
+		this.maxIdleTimeMillis = maxIdleTimeMillis;
+	}
+
+	/**
+	 * @return true if the eviction thread has to close connections whose keep-alive has expired.
+	 */
+	public boolean isEvictExpiredConnections() {
+		return evictExpiredConnections;
+	}
+
+	public void setEvictExpiredConnections(boolean evictExpiredConnections) {
+		this.evictExpiredConnections = evictExpiredConnections;
+	}
+
+	public int getConnectTimeoutMillis() {
+		return connectTimeoutMillis;
+	}
+
+	public void setConnectTimeoutMillis(int connectTimeoutMillis) {
+		this.connectTimeoutMillis = connectTimeoutMillis;
+	}
+
+	public int getSocketTimeoutMillis() {
+		return socketTimeoutMillis;
+	}
+
+	public void setSocketTimeoutMillis(int socketTimeoutMillis) {
+		this.socketTimeoutMillis = socketTimeoutMillis;
+	}
+
+	/**
+	 * @return max time in milliseconds to wait for a free connection from the pool.
+	 */
+	public int getConnectionRequestTimeoutMillis() {
+		return connectionRequestTimeoutMillis;
+	}
+
+	public void setConnectionRequestTimeoutMillis(int connectionRequestTimeoutMillis) {
+		this.connectionRequestTimeoutMillis = connectionRequestTimeoutMillis;
+	}
+}
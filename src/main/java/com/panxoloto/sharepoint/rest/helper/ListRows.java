@@ -0,0 +1,487 @@
+package com.panxoloto.sharepoint.rest.helper;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+import com.panxoloto.sharepoint.rest.helper.ListSchema.Column;
+import com.panxoloto.sharepoint.rest.helper.ListSchema.ColumnType;
+
+/**
+ * Items of a list page decoded into one array per column: int[] for integers, booleans and
+ * lookup or person ids, double[] for numbers, long[] for dates (epoch millis) and Object[] for
+ * text and multi valued columns. Only the columns asked for are decoded, the rest of the item
+ * properties are skipped without being read, and the arrays are reused from page to page, so a
+ * scan doesn't build a map, a boxed number nor a date string per value.
+ *
+ * Rows are read by index and columns by their position (see columnIndex), the typed getters
+ * return 0 or false for empty values like a ResultSet does, use isNull to tell them apart.
+ * Instances are filled by ODataStreamParser.readAllRows and aren't thread safe.
+ */
+public final class ListRows {
+
+	private static final int INITIAL_CAPACITY = 100;
+
+	/**
+	 * Receives the rows of every page. They're cleared for the next page once the handler returns,
+	 * copy the values that have to be kept.
+	 */
+	public interface RowHandler {
+		void rows(ListRows rows) throws Exception;
+	}
+
+	private final Column[] columns;
+	private final Map<String, Integer> indexes = new HashMap<>();
+	private final int[][] ints;
+	private final double[][] doubles;
+	private final long[][] longs;
+	private final Object[][] objects;
+	private final boolean[][] present;
+	private int[] ids = new int[16];
+	private int size;
+	private int capacity;
+
+	/**
+	 * @param schema - schema of the list.
+	 * @param names - internal or property names of the columns to decode, null or empty for all the
+	 * columns of the schema. Names the schema hasn't got (like Author/Title) are ignored.
+	 */
+	public ListRows(ListSchema schema, Collection<String> names) {
+		Set<Column> selected = new LinkedHashSet<>();
+		if (names == null || names.isEmpty()) {
+			selected.addAll(schema.getColumns());
+		} else {
+			for (String name : names) {
+				Column column = schema.getColumn(name);
+				if (column != null) {
+					selected.add(column);
+				}
+			}
+		}
+		this.columns = selected.toArray(new Column[selected.size()]);
+		this.ints = new int[columns.length][];
+		this.doubles = new double[columns.length][];
+		this.longs = new long[columns.length][];
+		this.objects = new Object[columns.length][];
+		this.present = new boolean[columns.length][];
+		for (int col = 0; col < columns.length; col++) {
+			Column column = columns[col];
+			indexes.put(column.getPropertyName(), col);
+			// Expanded lookups come as an object under the field name, with the Id inside.
+			indexes.putIfAbsent(column.getName(), col);
+			if ("ID".equals(column.getName())) {
+				indexes.putIfAbsent("Id", col);
+			}
+		}
+		allocate(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * @return number of rows of the page.
+	 */
+	public int size() {
+		return size;
+	}
+
+	public int getColumnCount() {
+		return columns.length;
+	}
+
+	/**
+	 * @param col - position of the column.
+	 * @return the column.
+	 */
+	public Column getColumn(int col) {
+		return columns[col];
+	}
+
+	/**
+	 * Resolve the positions once before reading the rows.
+	 *
+	 * @param name - internal or property name of the column.
+	 * @return its position, -1 if it isn't decoded.
+	 */
+	public int columnIndex(String name) {
+		Integer col = indexes.get(name);
+		return col == null ? -1 : col.intValue();
+	}
+
+	/**
+	 * @param row - row index.
+	 * @param col - column position.
+	 * @return true if the item hasn't got a value for the column.
+	 */
+	public boolean isNull(int row, int col) {
+		checkRow(row);
+		return !present[col][row];
+	}
+
+	/**
+	 * @return value of an INTEGER column, 0 when empty.
+	 */
+	public int getInt(int row, int col) {
+		checkRow(row);
+		checkType(col, ColumnType.INTEGER);
+		return ints[col][row];
+	}
+
+	/**
+	 * @return value of a NUMBER or INTEGER column, 0 when empty.
+	 */
+	public double getDouble(int row, int col) {
+		checkRow(row);
+		if (columns[col].getType() == ColumnType.INTEGER) {
+			return ints[col][row];
+		}
+		checkType(col, ColumnType.NUMBER);
+		return doubles[col][row];
+	}
+
+	/**
+	 * @return value of a DATE column as epoch millis, 0 when empty.
+	 */
+	public long getDateMillis(int row, int col) {
+		checkRow(row);
+		checkType(col, ColumnType.DATE);
+		return longs[col][row];
+	}
+
+	/**
+	 * @return value of a BOOLEAN column, false when empty.
+	 */
+	public boolean getBoolean(int row, int col) {
+		checkRow(row);
+		checkType(col, ColumnType.BOOLEAN);
+		return ints[col][row] != 0;
+	}
+
+	/**
+	 * @return id of the item of a LOOKUP (or USER) column, 0 when empty.
+	 */
+	public int getLookupId(int row, int col) {
+		checkRow(row);
+		if (columns[col].getType() != ColumnType.USER) {
+			checkType(col, ColumnType.LOOKUP);
+		}
+		return ints[col][row];
+	}
+
+	/**
+	 * @return id of the user or group of a USER column, 0 when empty.
+	 */
+	public int getPersonId(int row, int col) {
+		checkRow(row);
+		checkType(col, ColumnType.USER);
+		return ints[col][row];
+	}
+
+	/**
+	 * @return ids of a LOOKUP_MULTI or USER_MULTI column, empty when there aren't. The array is
+	 * the one kept by the rows, don't modify it.
+	 */
+	public int[] getLookupIds(int row, int col) {
+		checkRow(row);
+		if (!columns[col].getType().isMulti()) {
+			throw new IllegalArgumentException("Column " + columns[col] + " isn't multi valued");
+		}
+		Object value = objects[col][row];
+		return value == null ? new int[0] : (int[]) value;
+	}
+
+	/**
+	 * @return the text of a TEXT column, the value of the others as a string, null when empty.
+	 */
+	public String getString(int row, int col) {
+		Object value = getValue(row, col);
+		return value == null || value instanceof String ? (String) value : String.valueOf(value);
+	}
+
+	/**
+	 * Boxed value, for generic code. Dates are Instants, TEXT columns strings or, for complex
+	 * values like urls or multi choices, the decoded maps and lists.
+	 *
+	 * @return the value, null when empty.
+	 */
+	public Object getValue(int row, int col) {
+		if (isNull(row, col)) {
+			return null;
+		}
+		switch (columns[col].getType()) {
+		case INTEGER:
+		case LOOKUP:
+		case USER:
+			return ints[col][row];
+		case BOOLEAN:
+			return ints[col][row] != 0;
+		case NUMBER:
+			return doubles[col][row];
+		case DATE:
+			return Instant.ofEpochMilli(longs[col][row]);
+		case LOOKUP_MULTI:
+		case USER_MULTI:
+			return getLookupIds(row, col).clone();
+		default:
+			return objects[col][row];
+		}
+	}
+
+	/**
+	 * Empties the rows keeping the arrays.
+	 */
+	void clear() {
+		for (int col = 0; col < columns.length; col++) {
+			if (objects[col] != null) {
+				Arrays.fill(objects[col], 0, size, null);
+			}
+		}
+		size = 0;
+	}
+
+	/**
+	 * Decodes an item into a new row.
+	 *
+	 * @param parser - positioned on the START_OBJECT of the item, left on its END_OBJECT.
+	 */
+	void read(JsonParser parser) throws IOException {
+		if (size == capacity) {
+			allocate(capacity * 2);
+		}
+		int row = size;
+		for (int col = 0; col < columns.length; col++) {
+			present[col][row] = false;
+		}
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			Integer col = indexes.get(parser.getCurrentName());
+			JsonToken token = parser.nextToken();
+			if (col == null || token == JsonToken.VALUE_NULL) {
+				parser.skipChildren();
+				continue;
+			}
+			// A column can come twice, like AuthorId and a deferred Author, keep the value read.
+			present[col][row] |= readValue(parser, token, col, row);
+		}
+		size++;
+	}
+
+	private boolean readValue(JsonParser parser, JsonToken token, int col, int row) throws IOException {
+		switch (columns[col].getType()) {
+		case INTEGER:
+			return readInt(parser, token, col, row);
+		case LOOKUP:
+		case USER:
+			if (token == JsonToken.START_OBJECT) {
+				return readExpandedId(parser, col, row);
+			}
+			return readInt(parser, token, col, row);
+		case BOOLEAN:
+			if (token == JsonToken.VALUE_TRUE || token == JsonToken.VALUE_FALSE) {
+				ints[col][row] = token == JsonToken.VALUE_TRUE ? 1 : 0;
+				return true;
+			}
+			return readInt(parser, token, col, row);
+		case NUMBER:
+			if (token == JsonToken.VALUE_NUMBER_INT || token == JsonToken.VALUE_NUMBER_FLOAT) {
+				doubles[col][row] = parser.getDoubleValue();
+				return true;
+			} else if (token == JsonToken.VALUE_STRING) {
+				doubles[col][row] = Double.parseDouble(parser.getText());
+				return true;
+			}
+			parser.skipChildren();
+			return false;
+		case DATE:
+			if (token == JsonToken.VALUE_STRING) {
+				longs[col][row] = parseDateMillis(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+				return true;
+			}
+			parser.skipChildren();
+			return false;
+		case LOOKUP_MULTI:
+		case USER_MULTI:
+			return readIds(parser, token, col, row);
+		default:
+			Object value = token == JsonToken.VALUE_STRING ? parser.getText() : ODataStreamParser.readValue(parser, token);
+			if (value instanceof Map && ((Map<?, ?>) value).size() == 1 && ((Map<?, ?>) value).get("results") instanceof List) {
+				// Verbose collections like multi choices, kept as lists as with the other metadata levels.
+				value = ((Map<?, ?>) value).get("results");
+			}
+			objects[col][row] = value;
+			return value != null;
+		}
+	}
+
+	private boolean readInt(JsonParser parser, JsonToken token, int col, int row) throws IOException {
+		switch (token) {
+		case VALUE_NUMBER_INT:
+			ints[col][row] = parser.getIntValue();
+			return true;
+		case VALUE_NUMBER_FLOAT:
+			ints[col][row] = (int) parser.getDoubleValue();
+			return true;
+		case VALUE_STRING:
+			ints[col][row] = Integer.parseInt(parser.getText());
+			return true;
+		default:
+			parser.skipChildren();
+			return false;
+		}
+	}
+
+	private boolean readExpandedId(JsonParser parser, int col, int row) throws IOException {
+		boolean found = false;
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken token = parser.nextToken();
+			if (("Id".equals(field) || "ID".equals(field)) && token == JsonToken.VALUE_NUMBER_INT) {
+				ints[col][row] = parser.getIntValue();
+				found = true;
+			} else {
+				parser.skipChildren();
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Multi valued ids come as {"results": [1, 2]} in verbose and as [1, 2] with the other metadata levels.
+	 */
+	private boolean readIds(JsonParser parser, JsonToken token, int col, int row) throws IOException {
+		if (token == JsonToken.START_OBJECT) {
+			boolean found = false;
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				JsonToken value = parser.nextToken();
+				if ("results".equals(field) && value == JsonToken.START_ARRAY) {
+					found = readIds(parser, value, col, row);
+				} else {
+					parser.skipChildren();
+				}
+			}
+			return found;
+		} else if (token != JsonToken.START_ARRAY) {
+			parser.skipChildren();
+			return false;
+		}
+		int count = 0;
+		JsonToken element;
+		while ((element = parser.nextToken()) != JsonToken.END_ARRAY) {
+			if (element == JsonToken.VALUE_NUMBER_INT) {
+				if (count == ids.length) {
+					ids = Arrays.copyOf(ids, count * 2);
+				}
+				ids[count++] = parser.getIntValue();
+			} else {
+				parser.skipChildren();
+			}
+		}
+		objects[col][row] = Arrays.copyOf(ids, count);
+		return true;
+	}
+
+	private void allocate(int newCapacity) {
+		for (int col = 0; col < columns.length; col++) {
+			switch (columns[col].getType()) {
+			case INTEGER:
+			case BOOLEAN:
+			case LOOKUP:
+			case USER:
+				ints[col] = ints[col] == null ? new int[newCapacity] : Arrays.copyOf(ints[col], newCapacity);
+				break;
+			case NUMBER:
+				doubles[col] = doubles[col] == null ? new double[newCapacity] : Arrays.copyOf(doubles[col], newCapacity);
+				break;
+			case DATE:
+				longs[col] = longs[col] == null ? new long[newCapacity] : Arrays.copyOf(longs[col], newCapacity);
+				break;
+			default:
+				objects[col] = objects[col] == null ? new Object[newCapacity] : Arrays.copyOf(objects[col], newCapacity);
+			}
+			present[col] = present[col] == null ? new boolean[newCapacity] : Arrays.copyOf(present[col], newCapacity);
+		}
+		capacity = newCapacity;
+	}
+
+	private void checkRow(int row) {
+		if (row < 0 || row >= size) {
+			throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+		}
+	}
+
+	private void checkType(int col, ColumnType type) {
+		if (columns[col].getType() != type) {
+			throw new IllegalArgumentException("Column " + columns[col] + " isn't " + type);
+		}
+	}
+
+	/**
+	 * Reads dates like 2021-02-03T10:15:30Z straight from the parser buffer, other iso formats
+	 * and /Date(millis)/ are parsed the slow way.
+	 */
+	static long parseDateMillis(char[] text, int offset, int length) {
+		if (length == 20 && text[offset + 4] == '-' && text[offset + 7] == '-' && text[offset + 10] == 'T'
+				&& text[offset + 13] == ':' && text[offset + 16] == ':' && text[offset + 19] == 'Z') {
+			int year = digits(text, offset, 4);
+			int month = digits(text, offset + 5, 2);
+			int day = digits(text, offset + 8, 2);
+			int hour = digits(text, offset + 11, 2);
+			int minute = digits(text, offset + 14, 2);
+			int second = digits(text, offset + 17, 2);
+			if (year >= 0 && month >= 1 && month <= 12 && day >= 1 && day <= 31 && hour >= 0 && hour < 24
+					&& minute >= 0 && minute < 60 && second >= 0 && second < 60) {
+				return ((daysFromCivil(year, month, day) * 24 + hour) * 60 + minute) * 60_000L + second * 1000L;
+			}
+		}
+		String date = new String(text, offset, length);
+		if (date.startsWith("/Date(") && date.endsWith(")/")) {
+			String millis = date.substring(6, date.length() - 2);
+			int zone = Math.max(millis.lastIndexOf('+'), millis.lastIndexOf('-'));
+			return Long.parseLong(zone > 0 ? millis.substring(0, zone) : millis);
+		}
+		try {
+			return OffsetDateTime.parse(date).toInstant().toEpochMilli();
+		} catch (DateTimeParseException e) {
+			// Dates without offset are in utc.
+			return LocalDateTime.parse(date).toInstant(ZoneOffset.UTC).toEpochMilli();
+		}
+	}
+
+	/**
+	 * @return the number, -1 if a char isn't a digit.
+	 */
+	private static int digits(char[] text, int offset, int count) {
+		int value = 0;
+		for (int i = offset; i < offset + count; i++) {
+			char c = text[i];
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	/**
+	 * Days since 1970-01-01 of a date of the proleptic gregorian calendar.
+	 */
+	private static long daysFromCivil(int year, int month, int day) {
+		int y = month <= 2 ? year - 1 : year;
+		int era = (y >= 0 ? y : y - 399) / 400;
+		int yearOfEra = y - era * 400;
+		int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097L + dayOfEra - 719468;
+	}
+}
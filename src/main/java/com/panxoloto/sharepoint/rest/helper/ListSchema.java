@@ -0,0 +1,187 @@
+package com.panxoloto.sharepoint.rest.helper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Columns of a list as read from its fields: internal name, name of the property in the items
+ * and the type used to decode its values into ListRows. Instances are immutable, the schema
+ * version of the list (the Version attribute of its SchemaXml) tells when they're outdated.
+ */
+public final class ListSchema {
+
+	private static final Pattern LIST_VERSION = Pattern.compile("<List\\b[^>]*?\\sVersion=\"(\\d+)\"");
+
+	/**
+	 * How the values of a column are decoded and kept.
+	 */
+	public enum ColumnType {
+		/** Counter and Integer, kept as int. */
+		INTEGER,
+		/** Number and Currency, kept as double. */
+		NUMBER,
+		/** DateTime, kept as epoch millis. */
+		DATE,
+		BOOLEAN,
+		/** Lookup, the id of the item is read from the <name>Id property. */
+		LOOKUP,
+		/** User, the id of the user or group is read from the <name>Id property. */
+		USER,
+		/** LookupMulti, ids kept as int[]. */
+		LOOKUP_MULTI,
+		/** UserMulti, ids kept as int[]. */
+		USER_MULTI,
+		/** Anything else, kept as the string or the decoded value (maps and lists). */
+		TEXT;
+
+		boolean isMulti() {
+			return this == LOOKUP_MULTI || this == USER_MULTI;
+		}
+	}
+
+	/**
+	 * A field of the list.
+	 */
+	public static final class Column {
+		private final String name;
+		private final String propertyName;
+		private final String typeAsString;
+		private final ColumnType type;
+
+		Column(String name, String typeAsString, ColumnType type) {
+			this.name = name;
+			// The rest api prefixes the properties of fields starting with an underscore.
+			String property = name.startsWith("_") ? "OData_" + name : name;
+			this.propertyName = type == ColumnType.LOOKUP || type == ColumnType.USER || type.isMulti() ? property + "Id" : property;
+			this.typeAsString = typeAsString;
+			this.type = type;
+		}
+
+		/**
+		 * @return internal name of the field.
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return name of the property with the value in the items, like AuthorId for Author.
+		 */
+		public String getPropertyName() {
+			return propertyName;
+		}
+
+		public String getTypeAsString() {
+			return typeAsString;
+		}
+
+		public ColumnType getType() {
+			return type;
+		}
+
+		@Override
+		public String toString() {
+			return name + " (" + typeAsString + ")";
+		}
+	}
+
+	private final int version;
+	private final List<Column> columns;
+	private final Map<String, Column> byName;
+
+	private ListSchema(int version, List<Column> columns) {
+		this.version = version;
+		this.columns = Collections.unmodifiableList(columns);
+		Map<String, Column> byName = new LinkedHashMap<>();
+		for (Column column : columns) {
+			byName.put(column.getName(), column);
+			byName.putIfAbsent(column.getPropertyName(), column);
+		}
+		// Items have the ID field both as ID and Id, the one usually selected.
+		if (byName.containsKey("ID")) {
+			byName.putIfAbsent("Id", byName.get("ID"));
+		}
+		this.byName = byName;
+	}
+
+	/**
+	 * @param version - schema version of the list, see parseVersion.
+	 * @param fields - fields as returned by getListFields (d/results with InternalName and TypeAsString).
+	 * @return the schema.
+	 */
+	public static ListSchema fromFields(int version, JSONObject fields) {
+		JSONArray results = fields.getJSONObject("d").getJSONArray("results");
+		List<Column> columns = new ArrayList<>(results.length());
+		for (int i = 0; i < results.length(); i++) {
+			JSONObject field = results.getJSONObject(i);
+			String typeAsString = field.optString("TypeAsString");
+			columns.add(new Column(field.getString("InternalName"), typeAsString, toColumnType(typeAsString)));
+		}
+		return new ListSchema(version, columns);
+	}
+
+	/**
+	 * @param schemaXml - SchemaXml of the list.
+	 * @return the Version attribute of the List element, -1 if it's missing.
+	 */
+	public static int parseVersion(String schemaXml) {
+		Matcher matcher = LIST_VERSION.matcher(schemaXml);
+		return matcher.find() ? Integer.parseInt(matcher.group(1)) : -1;
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	public List<Column> getColumns() {
+		return columns;
+	}
+
+	/**
+	 * @param name - internal name of the field or name of its property (AuthorId, Id).
+	 * @return the column, null if the list hasn't got it.
+	 */
+	public Column getColumn(String name) {
+		return byName.get(name);
+	}
+
+	@Override
+	public String toString() {
+		return "ListSchema [version=" + version + ", columns=" + columns + "]";
+	}
+
+	private static ColumnType toColumnType(String typeAsString) {
+		switch (typeAsString) {
+		case "Counter":
+		case "Integer":
+			return ColumnType.INTEGER;
+		case "Number":
+		case "Currency":
+			return ColumnType.NUMBER;
+		case "DateTime":
+			return ColumnType.DATE;
+		case "Boolean":
+		case "AllDayEvent":
+		case "Attachments":
+			return ColumnType.BOOLEAN;
+		case "Lookup":
+			return ColumnType.LOOKUP;
+		case "User":
+			return ColumnType.USER;
+		case "LookupMulti":
+			return ColumnType.LOOKUP_MULTI;
+		case "UserMulti":
+			return ColumnType.USER_MULTI;
+		default:
+			return ColumnType.TEXT;
+		}
+	}
+}
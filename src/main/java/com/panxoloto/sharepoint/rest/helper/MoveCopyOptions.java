@@ -0,0 +1,256 @@
+package com.panxoloto.sharepoint.rest.helper;
+
+import java.net.URI;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Options of the server side copies and moves: MoveCopyUtil (CopyFileByPath, MoveFolderByPath...)
+ * and copy jobs (CreateCopyJobs). Instances are immutable like ODataQuery, every method returns
+ * new options.
+ *
+ * <pre>
+ * MoveCopyOptions options = MoveCopyOptions.create()
+ *         .nameConflictBehavior(MoveCopyOptions.NameConflictBehavior.REPLACE)
+ *         .ignoreVersionHistory(true);
+ * </pre>
+ */
+public final class MoveCopyOptions {
+
+	/**
+	 * What a copy job does when the target already exists.
+	 */
+	public enum NameConflictBehavior {
+		FAIL(0), REPLACE(1), KEEP_BOTH(2);
+
+		private final int value;
+
+		NameConflictBehavior(int value) {
+			this.value = value;
+		}
+	}
+
+	private boolean keepBoth;
+	private boolean resetAuthorAndCreated;
+	private boolean retainEditorAndModified;
+	private boolean bypassSharedLocks;
+	private boolean ignoreVersionHistory;
+	private boolean allowSchemaMismatch;
+	private NameConflictBehavior nameConflictBehavior = NameConflictBehavior.FAIL;
+
+	private MoveCopyOptions() {
+	}
+
+	/**
+	 * @return the defaults: existing targets fail, authors, dates and versions are kept.
+	 */
+	public static MoveCopyOptions create() {
+		return new MoveCopyOptions();
+	}
+
+	/**
+	 * @param keepBoth - true to rename the copy when the target exists (MoveCopyUtil).
+	 * @return the new options.
+	 */
+	public MoveCopyOptions keepBoth(boolean keepBoth) {
+		MoveCopyOptions options = copy();
+		options.keepBoth = keepBoth;
+		return options;
+	}
+
+	/**
+	 * @param resetAuthorAndCreated - true to set the current user and date as author and creation date of copies.
+	 * @return the new options.
+	 */
+	public MoveCopyOptions resetAuthorAndCreated(boolean resetAuthorAndCreated) {
+		MoveCopyOptions options = copy();
+		options.resetAuthorAndCreated = resetAuthorAndCreated;
+		return options;
+	}
+
+	/**
+	 * @param retainEditorAndModified - true to keep the editor and modification date on moves.
+	 * @return the new options.
+	 */
+	public MoveCopyOptions retainEditorAndModified(boolean retainEditorAndModified) {
+		MoveCopyOptions options = copy();
+		options.retainEditorAndModified = retainEditorAndModified;
+		return options;
+	}
+
+	/**
+	 * @param bypassSharedLocks - true to copy or move files open for co-authoring.
+	 * @return the new options.
+	 */
+	public MoveCopyOptions bypassSharedLocks(boolean bypassSharedLocks) {
+		MoveCopyOptions options = copy();
+		options.bypassSharedLocks = bypassSharedLocks;
+		return options;
+	}
+
+	/**
+	 * @param ignoreVersionHistory - true to copy only the current version (copy jobs).
+	 * @return the new options.
+	 */
+	public MoveCopyOptions ignoreVersionHistory(boolean ignoreVersionHistory) {
+		MoveCopyOptions options = copy();
+		options.ignoreVersionHistory = ignoreVersionHistory;
+		return options;
+	}
+
+	/**
+	 * @param allowSchemaMismatch - true to copy to a library with different columns (copy jobs).
+	 * @return the new options.
+	 */
+	public MoveCopyOptions allowSchemaMismatch(boolean allowSchemaMismatch) {
+		MoveCopyOptions options = copy();
+		options.allowSchemaMismatch = allowSchemaMismatch;
+		return options;
+	}
+
+	/**
+	 * @param nameConflictBehavior - what a copy job does when the target exists.
+	 * @return the new options.
+	 */
+	public MoveCopyOptions nameConflictBehavior(NameConflictBehavior nameConflictBehavior) {
+		if (nameConflictBehavior == null) {
+			throw new IllegalArgumentException("Name conflict behavior can't be null");
+		}
+		MoveCopyOptions options = copy();
+		options.nameConflictBehavior = nameConflictBehavior;
+		return options;
+	}
+
+	public boolean isKeepBoth() {
+		return keepBoth;
+	}
+
+	public boolean isResetAuthorAndCreated() {
+		return resetAuthorAndCreated;
+	}
+
+	public boolean isRetainEditorAndModified() {
+		return retainEditorAndModified;
+	}
+
+	public boolean isBypassSharedLocks() {
+		return bypassSharedLocks;
+	}
+
+	public boolean isIgnoreVersionHistory() {
+		return ignoreVersionHistory;
+	}
+
+	public boolean isAllowSchemaMismatch() {
+		return allowSchemaMismatch;
+	}
+
+	public NameConflictBehavior getNameConflictBehavior() {
+		return nameConflictBehavior;
+	}
+
+	/**
+	 * @param sourceUrl - absolute url of the file or folder.
+	 * @param destinationUrl - absolute url of the target.
+	 * @param overwrite - overwrite parameter of the file methods, null for the folder methods.
+	 * @return body of a MoveCopyUtil request.
+	 */
+	public String toMoveCopyPayload(String sourceUrl, String destinationUrl, Boolean overwrite) {
+		JSONObject payload = new JSONObject();
+		payload.put("srcPath", resourcePath(sourceUrl));
+		payload.put("destPath", resourcePath(destinationUrl));
+		if (overwrite != null) {
+			payload.put("overwrite", overwrite.booleanValue());
+		}
+		JSONObject options = new JSONObject();
+		options.put("__metadata", new JSONObject().put("type", "SP.MoveCopyOptions"));
+		options.put("KeepBoth", keepBoth);
+		options.put("ResetAuthorAndCreatedOnCopy", resetAuthorAndCreated);
+		options.put("RetainEditorAndModifiedOnMove", retainEditorAndModified);
+		options.put("ShouldBypassSharedLocks", bypassSharedLocks);
+		payload.put("options", options);
+		return payload.toString();
+	}
+
+	/**
+	 * @param sourceUrls - absolute urls of the files and folders copied.
+	 * @param destinationUrl - absolute url of the target folder, in this or another site.
+	 * @param move - true to delete the sources once copied.
+	 * @return body of a CreateCopyJobs request.
+	 */
+	public String toCopyJobsPayload(List<String> sourceUrls, String destinationUrl, boolean move) {
+		JSONObject payload = new JSONObject();
+		payload.put("exportObjectUris", new JSONArray(sourceUrls));
+		payload.put("destinationUri", destinationUrl);
+		JSONObject options = new JSONObject();
+		options.put("__metadata", new JSONObject().put("type", "SP.CopyMigrationOptions"));
+		options.put("IsMoveMode", move);
+		options.put("IgnoreVersionHistory", ignoreVersionHistory);
+		options.put("AllowSchemaMismatch", allowSchemaMismatch);
+		options.put("BypassSharedLock", bypassSharedLocks);
+		options.put("NameConflictBehavior", nameConflictBehavior.value);
+		payload.put("options", options);
+		return payload.toString();
+	}
+
+	/**
+	 * @param copyJobInfo - job as returned by CreateCopyJobs, with JobId, JobQueueUri and EncryptionKey.
+	 * @return body of a GetCopyJobProgress request.
+	 */
+	public static String toCopyJobProgressPayload(JSONObject copyJobInfo) {
+		JSONObject info = new JSONObject();
+		info.put("__metadata", new JSONObject().put("type", "SP.CopyMigrationInfo"));
+		info.put("JobId", copyJobInfo.get("JobId"));
+		info.put("JobQueueUri", copyJobInfo.get("JobQueueUri"));
+		info.put("EncryptionKey", copyJobInfo.get("EncryptionKey"));
+		return new JSONObject().put("copyJobInfo", info).toString();
+	}
+
+	/**
+	 * MoveCopyUtil and copy jobs need absolute urls, server relative urls are resolved against the site host.
+	 *
+	 * @param siteUrl - any url of the site, like the one of an api path.
+	 * @param url - absolute or server relative url.
+	 * @return the absolute url.
+	 */
+	public static String toAbsoluteUrl(URI siteUrl, String url) {
+		if (!url.startsWith("/")) {
+			return url;
+		}
+		return siteUrl.getScheme() + "://" + siteUrl.getRawAuthority() + url;
+	}
+
+	/**
+	 * @param url - absolute or server relative url.
+	 * @return the server relative url, the path of absolute urls.
+	 */
+	public static String toServerRelativeUrl(String url) {
+		if (url.startsWith("/")) {
+			return url;
+		}
+		int scheme = url.indexOf("://");
+		int path = scheme == -1 ? -1 : url.indexOf('/', scheme + 3);
+		if (scheme == -1) {
+			throw new IllegalArgumentException("Not an absolute nor a server relative url: " + url);
+		}
+		return path == -1 ? "/" : url.substring(path);
+	}
+
+	private static JSONObject resourcePath(String url) {
+		return new JSONObject().put("__metadata", new JSONObject().put("type", "SP.ResourcePath")).put("DecodedUrl", url);
+	}
+
+	private MoveCopyOptions copy() {
+		MoveCopyOptions options = new MoveCopyOptions();
+		options.keepBoth = keepBoth;
+		options.resetAuthorAndCreated = resetAuthorAndCreated;
+		options.retainEditorAndModified = retainEditorAndModified;
+		options.bypassSharedLocks = bypassSharedLocks;
+		options.ignoreVersionHistory = ignoreVersionHistory;
+		options.allowSchemaMismatch = allowSchemaMismatch;
+		options.nameConflictBehavior = nameConflictBehavior;
+		return options;
+	}
+}
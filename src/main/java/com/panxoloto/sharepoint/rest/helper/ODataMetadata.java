@@ -0,0 +1,149 @@
+package com.panxoloto.sharepoint.rest.helper;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Amount of OData metadata requested in the Accept header. VERBOSE adds __metadata and __deferred
+ * blocks to every entity, MINIMAL and NONE return a much smaller json without them.
+ *
+ * The clients turn MINIMAL and NONE responses into the verbose shape, so callers read d, d.results and
+ * d.__next whatever the level. Each call site knows what it requested and picks the conversion:
+ * toVerboseEntity, toVerboseCollection or toVerboseProperty. Request bodies are always sent as verbose json,
+ * so the __metadata type of the write operations keeps working.
+ */
+public enum ODataMetadata {
+
+	VERBOSE("application/json;odata=verbose"),
+	MINIMAL("application/json;odata=minimalmetadata"),
+	NONE("application/json;odata=nometadata");
+
+	private final String accept;
+
+	ODataMetadata(String accept) {
+		this.accept = accept;
+	}
+
+	/**
+	 * @return value of the Accept header.
+	 */
+	public String getAccept() {
+		return accept;
+	}
+
+	/**
+	 * Converts a minimal or no metadata entity response to the verbose shape: the entity is wrapped in d,
+	 * nested arrays in a results object and the odata.type, odata.id, odata.etag and odata.editLink
+	 * annotations are moved to __metadata. Verbose and empty responses are returned as they are.
+	 *
+	 * @param json - response of a request returning an entity, like a list, folder or file.
+	 * @return the response in the verbose shape.
+	 */
+	public static JSONObject toVerboseEntity(JSONObject json) {
+		if (json.has("d") || json.length() == 0) {
+			return json;
+		}
+		return verbose(toVerboseEntityValue(json));
+	}
+
+	/**
+	 * Converts a minimal or no metadata collection response {"value": [...], "odata.nextLink": "..."}
+	 * to the verbose shape {"d": {"results": [...], "__next": "..."}}. Verbose and empty responses are
+	 * returned as they are.
+	 *
+	 * @param json - response of a request returning a collection, like list items or the files of a folder.
+	 * @return the response in the verbose shape.
+	 */
+	public static JSONObject toVerboseCollection(JSONObject json) {
+		if (json.has("d") || json.length() == 0) {
+			return json;
+		}
+		JSONObject d = new JSONObject();
+		d.put("results", toVerbose(json.getJSONArray("value")));
+		String nextLink = json.optString("odata.nextLink", json.optString("@odata.nextLink", null));
+		if (nextLink != null) {
+			d.put("__next", nextLink);
+		}
+		return verbose(d);
+	}
+
+	/**
+	 * Converts a minimal or no metadata response of a request addressing one property, like
+	 * Folder/Exists or File/Length, to the verbose shape: a primitive value comes as {"value": x} and
+	 * becomes {"d": {"Property": x}}, collections and entities are converted like toVerboseCollection
+	 * and toVerboseEntity. Verbose and empty responses are returned as they are.
+	 *
+	 * @param json - response of the request.
+	 * @param property - name of the requested property.
+	 * @return the response in the verbose shape.
+	 */
+	public static JSONObject toVerboseProperty(JSONObject json, String property) {
+		if (json.has("d") || json.length() == 0) {
+			return json;
+		}
+		Object value = json.opt("value");
+		if (value instanceof JSONArray) {
+			return toVerboseCollection(json);
+		}
+		if (value == null || value instanceof JSONObject) {
+			return toVerboseEntity(json);
+		}
+		JSONObject d = new JSONObject();
+		d.put(property, value);
+		return verbose(d);
+	}
+
+	/**
+	 * @param key - json key.
+	 * @return true for annotations like odata.type or Author@odata.navigationLinkUrl.
+	 */
+	public static boolean isAnnotation(String key) {
+		return key.startsWith("odata.") || key.contains("@odata.");
+	}
+
+	private static JSONObject verbose(JSONObject d) {
+		JSONObject verbose = new JSONObject();
+		verbose.put("d", d);
+		return verbose;
+	}
+
+	private static JSONObject toVerboseEntityValue(JSONObject entity) {
+		JSONObject verbose = new JSONObject();
+		JSONObject metadata = new JSONObject();
+		for (String key : entity.keySet()) {
+			Object value = entity.get(key);
+			if (isAnnotation(key)) {
+				if ("odata.type".equals(key)) {
+					metadata.put("type", value);
+				} else if ("odata.id".equals(key)) {
+					metadata.put("id", value);
+				} else if ("odata.etag".equals(key)) {
+					metadata.put("etag", value);
+				} else if ("odata.editLink".equals(key)) {
+					metadata.put("uri", value);
+				}
+			} else if (value instanceof JSONObject) {
+				verbose.put(key, toVerboseEntityValue((JSONObject) value));
+			} else if (value instanceof JSONArray) {
+				JSONObject results = new JSONObject();
+				results.put("results", toVerbose((JSONArray) value));
+				verbose.put(key, results);
+			} else {
+				verbose.put(key, value);
+			}
+		}
+		if (metadata.length() > 0) {
+			verbose.put("__metadata", metadata);
+		}
+		return verbose;
+	}
+
+	private static JSONArray toVerbose(JSONArray array) {
+		JSONArray verbose = new JSONArray();
+		for (int i = 0; i < array.length(); i++) {
+			Object value = array.get(i);
+			verbose.put(value instanceof JSONObject ? toVerboseEntityValue((JSONObject) value) : value);
+		}
+		return verbose;
+	}
+}
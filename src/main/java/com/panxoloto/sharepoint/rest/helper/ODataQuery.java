@@ -0,0 +1,246 @@
+package com.panxoloto.sharepoint.rest.helper;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Query options of a rest api request ($filter, $select, $expand, $orderby, $top, $skiptoken).
+ *
+ * Instances are immutable, every method returns a new query, so a base query can be shared and
+ * refined by several scans. The encoded query string is built once and reused.
+ *
+ * <pre>
+ * ODataQuery query = ODataQuery.create()
+ *         .filter("Modified gt datetime'2021-01-01T00:00:00Z'")
+ *         .select("Id", "Title", "Author/Title")
+ *         .expand("Author")
+ *         .orderBy("Id")
+ *         .top(1000);
+ * </pre>
+ */
+public final class ODataQuery {
+
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	private final String filter;
+	private final List<String> select;
+	private final List<String> expand;
+	private final List<String> orderBy;
+	private final Integer top;
+	private final String skipToken;
+	private volatile String compiled;
+
+	private ODataQuery(String filter, List<String> select, List<String> expand, List<String> orderBy, Integer top, String skipToken) {
+		this.filter = filter;
+		this.select = select;
+		this.expand = expand;
+		this.orderBy = orderBy;
+		this.top = top;
+		this.skipToken = skipToken;
+	}
+
+	/**
+	 * @return an empty query.
+	 */
+	public static ODataQuery create() {
+		return new ODataQuery(null, Collections.emptyList(), Collections.emptyList(), Collections.emptyList(), null, null);
+	}
+
+	/**
+	 * @param expression - filter expression, if the query already has one both are combined with and.
+	 * @return the new query.
+	 */
+	public ODataQuery filter(String expression) {
+		String combined = filter == null ? expression : "(" + filter + ") and (" + expression + ")";
+		return new ODataQuery(combined, select, expand, orderBy, top, skipToken);
+	}
+
+	/**
+	 * @param expression - filter expression replacing the one of this query, null to remove it.
+	 * @return the new query.
+	 */
+	public ODataQuery withFilter(String expression) {
+		return new ODataQuery(expression, select, expand, orderBy, top, skipToken);
+	}
+
+	/**
+	 * @param field - internal name of the field.
+	 * @param value - String, Number or Boolean, strings are quoted and escaped.
+	 * @return the new query, filtering the field equal to the value.
+	 */
+	public ODataQuery filterEquals(String field, Object value) {
+		return filter(field + " eq " + literal(value));
+	}
+
+	/**
+	 * @param fields - fields returned, navigation fields like Author/Title need the expand of Author.
+	 * @return the new query.
+	 */
+	public ODataQuery select(String... fields) {
+		return new ODataQuery(filter, append(select, fields), expand, orderBy, top, skipToken);
+	}
+
+	/**
+	 * @param fields - lookup or navigation fields to expand.
+	 * @return the new query.
+	 */
+	public ODataQuery expand(String... fields) {
+		return new ODataQuery(filter, select, append(expand, fields), orderBy, top, skipToken);
+	}
+
+	/**
+	 * @param field - field to sort by ascending.
+	 * @return the new query.
+	 */
+	public ODataQuery orderBy(String field) {
+		return orderBy(field, true);
+	}
+
+	/**
+	 * @param field - field to sort by.
+	 * @param ascending - false to sort descending.
+	 * @return the new query.
+	 */
+	public ODataQuery orderBy(String field, boolean ascending) {
+		return new ODataQuery(filter, select, expand, append(orderBy, field + (ascending ? " asc" : " desc")), top, skipToken);
+	}
+
+	/**
+	 * @param top - page size, sharepoint limits it to 5000 for list items.
+	 * @return the new query.
+	 */
+	public ODataQuery top(int top) {
+		if (top <= 0) {
+			throw new IllegalArgumentException("Top must be greater than zero");
+		}
+		return new ODataQuery(filter, select, expand, orderBy, top, skipToken);
+	}
+
+	/**
+	 * @param skipToken - decoded skip token like Paged=TRUE&amp;p_ID=100.
+	 * @return the new query.
+	 */
+	public ODataQuery skipToken(String skipToken) {
+		return new ODataQuery(filter, select, expand, orderBy, top, skipToken);
+	}
+
+	public String getFilter() {
+		return filter;
+	}
+
+	public List<String> getSelect() {
+		return select;
+	}
+
+	public List<String> getExpand() {
+		return expand;
+	}
+
+	public List<String> getOrderBy() {
+		return orderBy;
+	}
+
+	public Integer getTop() {
+		return top;
+	}
+
+	public String getSkipToken() {
+		return skipToken;
+	}
+
+	/**
+	 * @return true when no option is set.
+	 */
+	public boolean isEmpty() {
+		return toQueryString().isEmpty();
+	}
+
+	/**
+	 * @return the encoded query string, without the leading ?.
+	 */
+	public String toQueryString() {
+		String query = compiled;
+		if (query == null) {
+			StringBuilder sb = new StringBuilder();
+			appendOption(sb, "$filter", filter);
+			appendOption(sb, "$select", select.isEmpty() ? null : String.join(",", select));
+			appendOption(sb, "$expand", expand.isEmpty() ? null : String.join(",", expand));
+			appendOption(sb, "$orderby", orderBy.isEmpty() ? null : String.join(",", orderBy));
+			appendOption(sb, "$top", top == null ? null : top.toString());
+			appendOption(sb, "$skiptoken", skipToken);
+			query = sb.toString();
+			compiled = query;
+		}
+		return query;
+	}
+
+	/**
+	 * @param base - uri of the resource, without query.
+	 * @return the uri with this query.
+	 */
+	public URI appendTo(URI base) {
+		String query = toQueryString();
+		if (query.isEmpty()) {
+			return base;
+		}
+		// The query is already encoded, the single argument constructor keeps it as is.
+		return URI.create(base.toASCIIString() + "?" + query);
+	}
+
+	/**
+	 * @param value - String, Number or Boolean.
+	 * @return the value as an OData literal, strings quoted with their quotes doubled.
+	 */
+	public static String literal(Object value) {
+		if (value == null) {
+			return "null";
+		}
+		if (value instanceof Number || value instanceof Boolean) {
+			return value.toString();
+		}
+		return "'" + value.toString().replace("'", "''") + "'";
+	}
+
+	@Override
+	public String toString() {
+		return toQueryString();
+	}
+
+	private static List<String> append(List<String> values, String... more) {
+		List<String> result = new ArrayList<>(values.size() + more.length);
+		result.addAll(values);
+		result.addAll(Arrays.asList(more));
+		return Collections.unmodifiableList(result);
+	}
+
+	private static void appendOption(StringBuilder sb, String name, String value) {
+		if (value == null || value.isEmpty()) {
+			return;
+		}
+		if (sb.length() > 0) {
+			sb.append('&');
+		}
+		sb.append(name).append('=');
+		encode(sb, value);
+	}
+
+	/**
+	 * Percent encodes everything but the characters OData expressions use and are safe in a query
+	 * value. Spaces are %20, not +, and &amp; = + # % are always encoded.
+	 */
+	private static void encode(StringBuilder sb, String value) {
+		for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+			char c = (char) (b & 0xFF);
+			if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+					|| "-._~'(),$/:@*!".indexOf(c) >= 0) {
+				sb.append(c);
+			} else {
+				sb.append('%').append(HEX[(b >> 4) & 0x0F]).append(HEX[b & 0x0F]);
+			}
+		}
+	}
+}
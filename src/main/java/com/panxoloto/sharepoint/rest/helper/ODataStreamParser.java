@@ -0,0 +1,262 @@
+package com.panxoloto.sharepoint.rest.helper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.springframework.web.client.ResponseExtractor;
+
+/**
+ * Decodes a page of items of the rest api straight from the response stream, without building
+ * the body as a String nor a JSONObject tree. Each item is handed to the handler as soon as it's
+ * read, so only one item is in memory at a time.
+ *
+ * Items are plain maps (LinkedHashMap, ArrayList, String, Number, Boolean, null). The
+ * __metadata and __deferred blocks and the odata annotations are skipped without being decoded,
+ * and navigation properties that only have a __deferred block are left out of the item. Pages
+ * requested with minimal or no metadata are read into the same shape as verbose ones.
+ */
+public final class ODataStreamParser {
+
+	private static final JsonFactory JSON_FACTORY = new JsonFactory().configure(JsonParser.Feature.AUTO_CLOSE_SOURCE, false);
+
+	/**
+	 * Receives the items of a page in the order they come in the response.
+	 */
+	public interface ItemHandler {
+		void item(Map<String, Object> item) throws Exception;
+	}
+
+	/**
+	 * Sends a GET request to the uri and passes the response to the extractor.
+	 */
+	public interface PageRequester {
+		String request(URI uri, ResponseExtractor<String> extractor) throws Exception;
+	}
+
+	private interface PageReader {
+		String read(InputStream body) throws Exception;
+	}
+
+	/**
+	 * Reads an item, the parser is on its START_OBJECT and must be left on its END_OBJECT.
+	 */
+	private interface ObjectReader {
+		void read(JsonParser parser) throws Exception;
+	}
+
+	private ODataStreamParser() {
+	}
+
+	/**
+	 * Reads every page following the __next links, each response is decoded while it's received.
+	 *
+	 * @param firstPage - uri of the first page.
+	 * @param requester - sends the request of each page.
+	 * @param handler - receives every item.
+	 * @return number of items read.
+	 * @throws Exception thrown by the request or the handler.
+	 */
+	public static long readAllPages(URI firstPage, PageRequester requester, ItemHandler handler) throws Exception {
+		long[] count = new long[1];
+		ItemHandler counter = item -> {
+			count[0]++;
+			handler.item(item);
+		};
+		readPages(firstPage, requester, body -> readPage(body, counter));
+		return count[0];
+	}
+
+	/**
+	 * Reads every page following the __next links into the rows, decoding only their columns.
+	 * The rows are cleared and filled again for each page, so their arrays are reused for the
+	 * whole scan.
+	 *
+	 * @param firstPage - uri of the first page.
+	 * @param requester - sends the request of each page.
+	 * @param rows - columns to decode, reused for every page.
+	 * @param handler - receives the rows of every page that isn't empty.
+	 * @return number of rows read.
+	 * @throws Exception thrown by the request or the handler.
+	 */
+	public static long readAllRows(URI firstPage, PageRequester requester, ListRows rows, ListRows.RowHandler handler) throws Exception {
+		long[] count = new long[1];
+		readPages(firstPage, requester, body -> {
+			rows.clear();
+			String nextLink = readObjects(body, rows::read);
+			if (rows.size() > 0) {
+				count[0] += rows.size();
+				handler.rows(rows);
+			}
+			return nextLink;
+		});
+		return count[0];
+	}
+
+	private static void readPages(URI firstPage, PageRequester requester, PageReader reader) throws Exception {
+		URI uri = firstPage;
+		while (uri != null) {
+			String nextLink;
+			try {
+				nextLink = requester.request(uri, response -> {
+					try {
+						return reader.read(response.getBody());
+					} catch (IOException | RuntimeException e) {
+						throw e;
+					} catch (Exception e) {
+						// The rest template only lets unchecked exceptions through untouched.
+						throw new HandlerException(e);
+					}
+				});
+			} catch (HandlerException e) {
+				throw (Exception) e.getCause();
+			}
+			// __next links are already encoded, so the URI is used as is.
+			uri = nextLink == null ? null : new URI(nextLink);
+		}
+	}
+
+	/**
+	 * Reads a page like {"d": {"results": [...], "__next": "..."}} or {"value": [...], "odata.nextLink": "..."},
+	 * the stream isn't closed.
+	 *
+	 * @param body - response body.
+	 * @param handler - receives every item.
+	 * @return the link to the next page, null if it's the last one.
+	 * @throws Exception thrown by the handler or when the body isn't valid json.
+	 */
+	public static String readPage(InputStream body, ItemHandler handler) throws Exception {
+		return readObjects(body, parser -> {
+			Map<String, Object> item = readObject(parser);
+			if (item != null) {
+				handler.item(item);
+			}
+		});
+	}
+
+	private static String readObjects(InputStream body, ObjectReader reader) throws Exception {
+		JsonParser parser = JSON_FACTORY.createJsonParser(body);
+		try {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new JsonParseException("Expected a json object", parser.getCurrentLocation());
+			}
+			String nextLink = null;
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				parser.nextToken();
+				if ("d".equals(field) && parser.getCurrentToken() == JsonToken.START_OBJECT) {
+					nextLink = readResults(parser, reader);
+				} else if ("value".equals(field) && parser.getCurrentToken() == JsonToken.START_ARRAY) {
+					// minimal or no metadata: {"value": [...], "odata.nextLink": "..."}
+					readItems(parser, reader);
+				} else if (("odata.nextLink".equals(field) || "@odata.nextLink".equals(field))
+						&& parser.getCurrentToken() == JsonToken.VALUE_STRING) {
+					nextLink = parser.getText();
+				} else {
+					parser.skipChildren();
+				}
+			}
+			return nextLink;
+		} finally {
+			parser.close();
+		}
+	}
+
+	private static String readResults(JsonParser parser, ObjectReader reader) throws Exception {
+		String nextLink = null;
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken token = parser.nextToken();
+			if ("results".equals(field) && token == JsonToken.START_ARRAY) {
+				readItems(parser, reader);
+			} else if ("__next".equals(field) && token == JsonToken.VALUE_STRING) {
+				nextLink = parser.getText();
+			} else {
+				parser.skipChildren();
+			}
+		}
+		return nextLink;
+	}
+
+	private static void readItems(JsonParser parser, ObjectReader reader) throws Exception {
+		JsonToken element;
+		while ((element = parser.nextToken()) != JsonToken.END_ARRAY) {
+			if (element == JsonToken.START_OBJECT) {
+				reader.read(parser);
+			} else {
+				parser.skipChildren();
+			}
+		}
+	}
+
+	/**
+	 * @param parser - positioned on the START_OBJECT of the object.
+	 * @return the object as a map, null when it only has a __deferred block.
+	 */
+	private static Map<String, Object> readObject(JsonParser parser) throws IOException {
+		Map<String, Object> object = new LinkedHashMap<>();
+		boolean deferred = false;
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken token = parser.nextToken();
+			if ("__metadata".equals(field) || "__deferred".equals(field) || ODataMetadata.isAnnotation(field)) {
+				deferred |= "__deferred".equals(field);
+				parser.skipChildren();
+				continue;
+			}
+			Object value = readValue(parser, token);
+			if (value instanceof List && !"results".equals(field)) {
+				// Collections come as plain arrays without metadata, they're wrapped as in verbose.
+				Map<String, Object> results = new LinkedHashMap<>();
+				results.put("results", value);
+				value = results;
+			}
+			if (value != null || token == JsonToken.VALUE_NULL) {
+				object.put(field, value);
+			}
+		}
+		return deferred && object.isEmpty() ? null : object;
+	}
+
+	static Object readValue(JsonParser parser, JsonToken token) throws IOException {
+		switch (token) {
+		case START_OBJECT:
+			return readObject(parser);
+		case START_ARRAY:
+			List<Object> array = new ArrayList<>();
+			JsonToken element;
+			while ((element = parser.nextToken()) != JsonToken.END_ARRAY) {
+				array.add(readValue(parser, element));
+			}
+			return array;
+		case VALUE_STRING:
+			return parser.getText();
+		case VALUE_NUMBER_INT:
+		case VALUE_NUMBER_FLOAT:
+			return parser.getNumberValue();
+		case VALUE_TRUE:
+			return Boolean.TRUE;
+		case VALUE_FALSE:
+			return Boolean.FALSE;
+		default:
+			return null;
+		}
+	}
+
+	private static final class HandlerException extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		HandlerException(Exception cause) {
+			super(cause);
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package com.panxoloto.sharepoint.rest.helper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+
+/**
+ * Saves properties files (change tokens, mirror hashes, download progress) so a crash or a full
+ * disk never leaves them empty or half written: the content goes to a temporary file next to the
+ * target, which is flushed to disk and then renamed over it.
+ */
+public final class PropertiesFiles {
+
+	private PropertiesFiles() {
+	}
+
+	/**
+	 * @param file - file replaced, its directory must exist.
+	 * @param properties - content.
+	 * @param comments - header comment.
+	 * @throws IOException thrown when the file can't be written, the previous content is kept.
+	 */
+	public static void store(Path file, Properties properties, String comments) throws IOException {
+		// Properties.store writes holding its own monitor, so it's serialized in memory first and
+		// a virtual thread isn't pinned while writing the file.
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		properties.store(content, comments);
+		Path target = file.toAbsolutePath();
+		Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+		try {
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				OutputStream out = Channels.newOutputStream(channel);
+				content.writeTo(out);
+				out.flush();
+				channel.force(true);
+			}
+			try {
+				Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package com.panxoloto.sharepoint.rest.helper;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRequest;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.web.client.HttpClientErrorException;
+
+/**
+ * Logs in again when sharepoint online rejects the session cookies (401/403) and replays the
+ * request once with the new cookies and digest.
+ *
+ * Threads failing with the same session share a single login: the login is only done when the
+ * Cookie header the request was sent with is still the one of the current session, otherwise the
+ * request is replayed with the session another thread already got. The rejected response is
+ * closed before logging in, so its pooled connection is available to the login. Logins triggered by 403 are limited to one per interval, so a real
+ * permission error doesn't cause a login on every call.
+ *
+ * Must be the last interceptor of the rest template, replaying a request skips the interceptors
+ * after the current one. The login requests must not go through this interceptor.
+ *
+ * It's also a ThrottlingRequestFactory.ReplayHandler, which is how the online client uses it:
+ * interceptors buffer every request body, the replay handler only gets the requests whose body
+ * the factory can send again.
+ */
+public class ReauthenticationInterceptor implements ClientHttpRequestInterceptor, ThrottlingRequestFactory.ReplayHandler {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ReauthenticationInterceptor.class);
+
+	public static final long DEFAULT_MIN_RELOGIN_INTERVAL_MILLIS = 30 * 1000;
+
+	private final AuthTokenHelperOnline tokenHelper;
+	private volatile long minReloginIntervalMillis = DEFAULT_MIN_RELOGIN_INTERVAL_MILLIS;
+	private volatile long lastRelogin;
+
+	/**
+	 * @param tokenHelper - auth helper whose session is renewed.
+	 */
+	public ReauthenticationInterceptor(AuthTokenHelperOnline tokenHelper) {
+		this.tokenHelper = tokenHelper;
+	}
+
+	/**
+	 * @param minReloginIntervalMillis - min time between logins triggered by a 403.
+	 */
+	public void setMinReloginIntervalMillis(long minReloginIntervalMillis) {
+		this.minReloginIntervalMillis = minReloginIntervalMillis;
+	}
+
+	@Override
+	public ClientHttpResponse intercept(HttpRequest request, byte[] body, ClientHttpRequestExecution execution) throws IOException {
+		ClientHttpResponse response = execution.execute(request, body);
+		if (!replay(request, response)) {
+			return response;
+		}
+		return execution.execute(request, body);
+	}
+
+	@Override
+	public boolean replay(HttpRequest request, ClientHttpResponse response) throws IOException {
+		String sentCookie = request.getHeaders().getFirst("Cookie");
+		if (sentCookie == null || !isAuthFailure(response)) {
+			return false;
+		}
+		HttpStatus status = HttpStatus.resolve(response.getRawStatusCode());
+		if (isRecentForbidden(sentCookie, status)) {
+			LOG.debug("Forbidden response just after a login, not logging in again");
+			return false;
+		}
+		// The connection goes back to the pool before logging in, the login needs one too.
+		response.close();
+		AuthTokenHelperOnline.Session session = renewSession(sentCookie, status);
+		if (session == null) {
+			throw new HttpClientErrorException(status, "Session rejected just after a login");
+		}
+		LOG.debug("Replaying {} {} with the new session", request.getMethod(), request.getURI());
+		applySession(request.getHeaders(), session);
+		return true;
+	}
+
+	/**
+	 * Not synchronized, the login is network I/O that would pin a virtual thread:
+	 * DigestSessionManager.login already shares a running login with every caller.
+	 *
+	 * @param sentCookie - Cookie header of the rejected request.
+	 * @param status - status of the rejection.
+	 * @return the session to replay the request with, null to give up.
+	 * @throws IOException
+	 */
+	private AuthTokenHelperOnline.Session renewSession(String sentCookie, HttpStatus status) throws IOException {
+		AuthTokenHelperOnline.Session renewed = renewedSession(sentCookie);
+		if (renewed != null) {
+			LOG.debug("Session already renewed by another request");
+			return renewed;
+		}
+		if (status == HttpStatus.FORBIDDEN && System.currentTimeMillis() - lastRelogin < minReloginIntervalMillis) {
+			// Another request may have logged in since the session was read.
+			renewed = renewedSession(sentCookie);
+			if (renewed == null) {
+				LOG.debug("Forbidden response just after a login, not logging in again");
+			}
+			return renewed;
+		}
+		return login(status);
+	}
+
+	/**
+	 * @param sentCookie - Cookie header of the rejected request.
+	 * @return the current session when it isn't the one the request was sent with, null otherwise.
+	 */
+	private AuthTokenHelperOnline.Session renewedSession(String sentCookie) {
+		AuthTokenHelperOnline.Session current = tokenHelper.getSessionManager().getCurrentSession();
+		return current != null && !sentCookie.equals(current.getCookieHeader()) ? current : null;
+	}
+
+	private boolean isRecentForbidden(String sentCookie, HttpStatus status) {
+		return renewedSession(sentCookie) == null && status == HttpStatus.FORBIDDEN
+				&& System.currentTimeMillis() - lastRelogin < minReloginIntervalMillis;
+	}
+
+	private AuthTokenHelperOnline.Session login(HttpStatus status) throws IOException {
+		LOG.info("Session rejected with status {}, logging in again", status);
+		try {
+			AuthTokenHelperOnline.Session session = tokenHelper.getSessionManager().login();
+			lastRelogin = System.currentTimeMillis();
+			return session;
+		} catch (IOException | RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("Unable to log in again", e);
+		}
+	}
+
+	private boolean isAuthFailure(ClientHttpResponse response) throws IOException {
+		HttpStatus status = HttpStatus.resolve(response.getRawStatusCode());
+		return status == HttpStatus.UNAUTHORIZED || status == HttpStatus.FORBIDDEN;
+	}
+
+	private void applySession(HttpHeaders headers, AuthTokenHelperOnline.Session session) {
+		headers.set("Cookie", session.getCookieHeader());
+		if (headers.containsKey("X-RequestDigest")) {
+			headers.set("X-RequestDigest", session.getFormDigestValue());
+		}
+		String authorization = headers.getFirst(HttpHeaders.AUTHORIZATION);
+		if (authorization != null && authorization.startsWith("Bearer ")) {
+			headers.set(HttpHeaders.AUTHORIZATION, "Bearer " + session.getFormDigestValue());
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package com.panxoloto.sharepoint.rest.helper;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Factory of the executors used by the clients for background work (page prefetch, parallel operations).
+ */
+public final class SharepointExecutors {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SharepointExecutors.class);
+
+	private SharepointExecutors() {
+	}
+
+	/**
+	 * @return true when the jvm supports virtual threads (java 21 or later).
+	 */
+	public static boolean isVirtualThreadSupported() {
+		try {
+			Thread.class.getMethod("ofVirtual");
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Executor starting a virtual thread per task, so thousands of blocking requests cost a few
+	 * stack frames each instead of a platform thread. The library targets java 8, so the executor
+	 * is created by reflection. On older jvms a daemon cached thread pool is returned instead.
+	 *
+	 * @param namePrefix - prefix for the thread names.
+	 * @return the executor, it must be shutdown when it's no longer used.
+	 */
+	public static ExecutorService newVirtualThreadPerTaskExecutor(String namePrefix) {
+		if (!isVirtualThreadSupported()) {
+			LOG.debug("Virtual threads not supported by this jvm, using a thread pool");
+			return newDaemonThreadPool(namePrefix);
+		}
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix + "-", 1L);
+			ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+			Method newThreadPerTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			return (ExecutorService) newThreadPerTask.invoke(null, factory);
+		} catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+			LOG.warn("Unable to create the virtual thread executor, using a thread pool", e);
+			return newDaemonThreadPool(namePrefix);
+		}
+	}
+
+	/**
+	 * Runs the tasks in the executor and waits for all of them. If a task fails the ones not
+	 * finished yet are cancelled and its exception is thrown.
+	 *
+	 * @param executor - executor running the tasks.
+	 * @param tasks - tasks to run.
+	 * @return the results in the same order as the tasks.
+	 * @throws Exception the exception of the first failed task.
+	 */
+	public static <T> List<T> invokeAll(ExecutorService executor, List<? extends Callable<T>> tasks) throws Exception {
+		return invokeAll(executor, tasks, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Runs the tasks in the executor, at most maxConcurrency at once, and waits for all of them.
+	 * A task is only submitted when a running one finishes, so the executor (a cached pool or a
+	 * virtual thread per task) never holds more than maxConcurrency of them. If a task fails no
+	 * more are submitted, the ones not finished yet are cancelled and its exception is thrown.
+	 *
+	 * @param executor - executor running the tasks.
+	 * @param tasks - tasks to run.
+	 * @param maxConcurrency - tasks running at once, usually the connections per host of the pool.
+	 * @return the results in the same order as the tasks.
+	 * @throws Exception the exception of the first failed task.
+	 */
+	public static <T> List<T> invokeAll(ExecutorService executor, List<? extends Callable<T>> tasks, int maxConcurrency) throws Exception {
+		if (maxConcurrency <= 0) {
+			throw new IllegalArgumentException("Max concurrency must be greater than zero");
+		}
+		Semaphore permits = new Semaphore(maxConcurrency);
+		AtomicBoolean failed = new AtomicBoolean();
+		List<Future<T>> futures = new ArrayList<>(tasks.size());
+		try {
+			for (Callable<T> task : tasks) {
+				permits.acquire();
+				if (failed.get()) {
+					break;
+				}
+				futures.add(executor.submit(() -> {
+					try {
+						return task.call();
+					} catch (Exception | Error e) {
+						failed.set(true);
+						throw e;
+					} finally {
+						permits.release();
+					}
+				}));
+			}
+			List<T> results = new ArrayList<>(tasks.size());
+			for (Future<T> future : futures) {
+				results.add(future.get());
+			}
+			return results;
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception) cause;
+			}
+			throw e;
+		} finally {
+			for (Future<T> future : futures) {
+				future.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * @param namePrefix - prefix for the thread names.
+	 * @return a cached thread pool with daemon threads, so it never prevents the jvm from exiting.
+	 */
+	public static ExecutorService newDaemonThreadPool(String namePrefix) {
+		return Executors.newCachedThreadPool(daemonThreadFactory(namePrefix));
+	}
+
+	/**
+	 * @param namePrefix - prefix for the thread names.
+	 * @return a single daemon thread scheduler for periodic work like session refresh.
+	 */
+	public static ScheduledExecutorService newDaemonScheduler(String namePrefix) {
+		return Executors.newSingleThreadScheduledExecutor(daemonThreadFactory(namePrefix));
+	}
+
+	/**
+	 * @param namePrefix - prefix for the thread names.
+	 * @return a thread factory creating daemon threads.
+	 */
+	public static ThreadFactory daemonThreadFactory(String namePrefix) {
+		AtomicInteger counter = new AtomicInteger();
+		return runnable -> {
+			Thread thread = new Thread(runnable, namePrefix + "-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+}
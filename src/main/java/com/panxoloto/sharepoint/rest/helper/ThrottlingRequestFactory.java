@@ -0,0 +1,505 @@
+package com.panxoloto.sharepoint.rest.helper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpRequest;
+import org.springframework.http.StreamingHttpOutputMessage;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.util.MultiValueMap;
+
+/**
+ * Request factory retrying throttled requests (429 and 503).
+ *
+ * The wait follows the Retry-After header of the response when present, otherwise it's a
+ * decorrelated jitter backoff. While a Retry-After is pending every request waits for it, not
+ * only the throttled one. When the RateLimit-Remaining header gets close to zero the requests are
+ * spread over the time left until RateLimit-Reset, to avoid being throttled.
+ *
+ * A throttled request wasn't processed, so it's retried whatever its method, as long as its body
+ * can be sent again. Small bodies are buffered for that, large streamed ones (like an
+ * InputStreamResource upload) go straight to the delegate and are never retried, so the delegate
+ * should not buffer the body either. An I/O failure may come after the server processed the
+ * request, so only requests that are safe to send twice are retried then (see isSafeToResend).
+ *
+ * It sits under the rest template interceptors, so the requests they replay are throttled too.
+ * Interceptors buffer the whole body, a ReplayHandler replays requests without that copy.
+ */
+public class ThrottlingRequestFactory implements ClientHttpRequestFactory {
+
+	private static final Logger LOG = LoggerFactory.getLogger(ThrottlingRequestFactory.class);
+
+	public static final int DEFAULT_MAX_RETRIES = 5;
+	public static final long DEFAULT_BASE_DELAY_MILLIS = 1000;
+	public static final long DEFAULT_MAX_DELAY_MILLIS = 60 * 1000;
+	public static final double DEFAULT_RATE_LIMIT_THRESHOLD = 0.1;
+	public static final long DEFAULT_MAX_BUFFERED_BODY_SIZE = 1024 * 1024;
+
+	/**
+	 * Marks a request as safe to send again, see markResendable. It's removed before the request
+	 * is sent.
+	 */
+	public static final String RESENDABLE_HEADER = "X-PLG-Resendable";
+
+	private static final Set<String> IDEMPOTENT_OVERRIDES = new HashSet<>(Arrays.asList("MERGE", "PUT", "DELETE"));
+
+	/**
+	 * Sends again a request rejected for another reason than throttling, like an expired session.
+	 * It's only called once per request and only for requests whose body can be sent again.
+	 */
+	public interface ReplayHandler {
+
+		/**
+		 * @param request - request sent, its headers can be changed for the replay.
+		 * @param response - response received, still open.
+		 * @return true to send the request again, the response must have been closed then.
+		 * @throws IOException
+		 */
+		boolean replay(HttpRequest request, ClientHttpResponse response) throws IOException;
+	}
+
+	/**
+	 * Body that can be written any number of times, like a byte array, so it's sent again
+	 * without buffering it.
+	 */
+	public interface RepeatableBody extends StreamingHttpOutputMessage.Body {
+	}
+
+	private final ClientHttpRequestFactory delegate;
+	private volatile int maxRetries = DEFAULT_MAX_RETRIES;
+	private volatile long baseDelayMillis = DEFAULT_BASE_DELAY_MILLIS;
+	private volatile long maxDelayMillis = DEFAULT_MAX_DELAY_MILLIS;
+	private volatile double rateLimitThreshold = DEFAULT_RATE_LIMIT_THRESHOLD;
+	private volatile long maxBufferedBodySize = DEFAULT_MAX_BUFFERED_BODY_SIZE;
+	private volatile ReplayHandler replayHandler;
+
+	private final AtomicLong throttledUntil = new AtomicLong();
+	private volatile RateLimit rateLimit;
+
+	private final AtomicLong throttledResponses = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+	private final AtomicLong preemptiveDelays = new AtomicLong();
+	private final AtomicLong waitNanos = new AtomicLong();
+
+	/**
+	 * @param delegate - factory creating the actual requests.
+	 */
+	public ThrottlingRequestFactory(ClientHttpRequestFactory delegate) {
+		this.delegate = delegate;
+	}
+
+	@Override
+	public ClientHttpRequest createRequest(URI uri, HttpMethod httpMethod) throws IOException {
+		return new ThrottlingRequest(uri, httpMethod);
+	}
+
+	/**
+	 * @param content - buffer with the body, not copied so it must not change until the response is read.
+	 * @param offset - start of the body in the buffer.
+	 * @param length - size of the body.
+	 * @return a body set with setBody on the requests of this factory that is sent again without buffering it.
+	 */
+	public static RepeatableBody repeatableBody(byte[] content, int offset, int length) {
+		return out -> out.write(content, offset, length);
+	}
+
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	/**
+	 * @param maxRetries - times a throttled request is sent again, 0 disables the retries.
+	 */
+	public void setMaxRetries(int maxRetries) {
+		this.maxRetries = maxRetries;
+	}
+
+	/**
+	 * @param baseDelayMillis - first backoff delay when the response has no Retry-After.
+	 */
+	public void setBaseDelayMillis(long baseDelayMillis) {
+		this.baseDelayMillis = baseDelayMillis;
+	}
+
+	/**
+	 * @param maxDelayMillis - max backoff delay when the response has no Retry-After.
+	 */
+	public void setMaxDelayMillis(long maxDelayMillis) {
+		this.maxDelayMillis = maxDelayMillis;
+	}
+
+	/**
+	 * @param rateLimitThreshold - fraction of RateLimit-Limit under which requests are slowed down, 0 disables it.
+	 */
+	public void setRateLimitThreshold(double rateLimitThreshold) {
+		this.rateLimitThreshold = rateLimitThreshold;
+	}
+
+	public long getMaxBufferedBodySize() {
+		return maxBufferedBodySize;
+	}
+
+	/**
+	 * @param maxBufferedBodySize - max Content-Length of a streamed body buffered so the request can be retried.
+	 */
+	public void setMaxBufferedBodySize(long maxBufferedBodySize) {
+		if (maxBufferedBodySize < 0 || maxBufferedBodySize > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Max buffered body size must be between 0 and " + Integer.MAX_VALUE);
+		}
+		this.maxBufferedBodySize = maxBufferedBodySize;
+	}
+
+	public ReplayHandler getReplayHandler() {
+		return replayHandler;
+	}
+
+	/**
+	 * @param replayHandler - handler replaying rejected requests, null for none.
+	 */
+	public void setReplayHandler(ReplayHandler replayHandler) {
+		this.replayHandler = replayHandler;
+	}
+
+	/**
+	 * @return number of 429/503 responses received.
+	 */
+	public long getThrottledResponses() {
+		return throttledResponses.get();
+	}
+
+	/**
+	 * @return number of requests sent again after being throttled.
+	 */
+	public long getRetries() {
+		return retries.get();
+	}
+
+	/**
+	 * @return number of requests delayed because RateLimit-Remaining was low.
+	 */
+	public long getPreemptiveDelays() {
+		return preemptiveDelays.get();
+	}
+
+	/**
+	 * @return total time requests spent waiting, for retries and preemptive delays.
+	 */
+	public long getWaitMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(waitNanos.get());
+	}
+
+	/**
+	 * Marks a POST that only reads, like RenderListDataAsStream or GetChanges, as safe to send
+	 * again after an I/O failure: sending it twice has the same effect as sending it once.
+	 * 
+	 * @param headers - headers of the request.
+	 * @return the same headers.
+	 */
+	public static MultiValueMap<String, String> markResendable(MultiValueMap<String, String> headers) {
+		headers.set(RESENDABLE_HEADER, "true");
+		return headers;
+	}
+
+	/**
+	 * @param method - method of the request.
+	 * @param headers - headers of the request.
+	 * @return true when sending the request twice has the same effect as sending it once, so it can
+	 *         be sent again after an I/O failure: the idempotent methods, POSTs tunneling MERGE, PUT
+	 *         or DELETE in X-HTTP-Method, and requests marked with RESENDABLE_HEADER.
+	 */
+	static boolean isSafeToResend(HttpMethod method, HttpHeaders headers) {
+		if (headers.containsKey(RESENDABLE_HEADER)) {
+			return true;
+		}
+		if (method == HttpMethod.POST) {
+			String override = headers.getFirst("X-HTTP-Method");
+			return override != null && IDEMPOTENT_OVERRIDES.contains(override.trim().toUpperCase(Locale.ROOT));
+		}
+		return method != HttpMethod.PATCH;
+	}
+
+	private ClientHttpResponse execute(ThrottlingRequest request) throws IOException {
+		URI uri = request.getURI();
+		HttpMethod method = request.getMethod();
+		HttpHeaders headers = request.getHeaders();
+		boolean resendable = isSafeToResend(method, headers);
+		headers.remove(RESENDABLE_HEADER);
+		StreamingHttpOutputMessage.Body body = request.prepareBody();
+		boolean repeatable = request.isRepeatable();
+
+		long previousDelay = baseDelayMillis;
+		boolean replayed = false;
+		for (int attempt = 0; ; ) {
+			waitBeforeSending();
+			ClientHttpResponse response;
+			try {
+				response = send(uri, method, headers, body);
+			} catch (InterruptedIOException e) {
+				throw e;
+			} catch (IOException e) {
+				if (!repeatable || !resendable || attempt >= maxRetries) {
+					throw e;
+				}
+				long delay = nextBackoff(previousDelay);
+				previousDelay = delay;
+				attempt++;
+				LOG.debug("{} {} failed with {}, retrying in {} ms ({}/{})", new Object[] {method, uri, e, delay, attempt, maxRetries});
+				sleep(delay);
+				retries.incrementAndGet();
+				continue;
+			}
+			updateRateLimit(response.getHeaders());
+
+			int status = response.getRawStatusCode();
+			if (status != 429 && status != 503) {
+				ReplayHandler handler = this.replayHandler;
+				if (!replayed && repeatable && handler != null && handler.replay(request, response)) {
+					replayed = true;
+					continue;
+				}
+				return response;
+			}
+			throttledResponses.incrementAndGet();
+			if (!repeatable) {
+				LOG.debug("{} {} throttled with status {}, not retried as its body can't be sent again", method, uri, status);
+				return response;
+			}
+			if (attempt >= maxRetries) {
+				LOG.warn("{} {} still throttled after {} retries", method, uri, attempt);
+				return response;
+			}
+
+			long retryAfter = parseRetryAfter(response.getHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+			long delay;
+			if (retryAfter >= 0) {
+				delay = retryAfter;
+				throttledUntil.accumulateAndGet(System.currentTimeMillis() + retryAfter, Math::max);
+			} else {
+				delay = nextBackoff(previousDelay);
+				previousDelay = delay;
+			}
+			response.close();
+			attempt++;
+			LOG.debug("{} {} throttled with status {}, retrying in {} ms ({}/{})", new Object[] {method, uri, status, delay, attempt, maxRetries});
+			sleep(delay);
+			retries.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @param previousDelay - previous wait, the base delay for the first one.
+	 * @return decorrelated jitter wait before the next attempt.
+	 */
+	private long nextBackoff(long previousDelay) {
+		return Math.min(maxDelayMillis, ThreadLocalRandom.current().nextLong(baseDelayMillis, Math.max(previousDelay * 3, baseDelayMillis + 1)));
+	}
+
+	private ClientHttpResponse send(URI uri, HttpMethod method, HttpHeaders headers, StreamingHttpOutputMessage.Body body) throws IOException {
+		ClientHttpRequest request = delegate.createRequest(uri, method);
+		request.getHeaders().putAll(headers);
+		if (body != null) {
+			if (request instanceof StreamingHttpOutputMessage) {
+				((StreamingHttpOutputMessage) request).setBody(body);
+			} else {
+				body.writeTo(request.getBody());
+			}
+		}
+		return request.execute();
+	}
+
+	private void waitBeforeSending() throws IOException {
+		long blocked = throttledUntil.get() - System.currentTimeMillis();
+		if (blocked > 0) {
+			sleep(blocked);
+		}
+		RateLimit limit = this.rateLimit;
+		if (limit == null || rateLimitThreshold <= 0) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if (now >= limit.resetAt) {
+			return;
+		}
+		// Every request takes its own unit of the budget, so concurrent requests get different
+		// send times: the last units are spread evenly until the reset, once it's used up the
+		// requests wait for the reset.
+		long reserved = limit.remaining.getAndDecrement();
+		if (reserved > limit.limit * rateLimitThreshold) {
+			return;
+		}
+		long sendAt = reserved <= 0 ? limit.resetAt : limit.resetAt - (long) (reserved * limit.millisPerRequest);
+		long delay = sendAt - now;
+		if (delay <= 0) {
+			return;
+		}
+		preemptiveDelays.incrementAndGet();
+		LOG.debug("RateLimit-Remaining is {} of {}, delaying the request {} ms", new Object[] {reserved, limit.limit, delay});
+		sleep(delay);
+	}
+
+	private void updateRateLimit(HttpHeaders headers) {
+		String remaining = headers.getFirst("RateLimit-Remaining");
+		String reset = headers.getFirst("RateLimit-Reset");
+		if (remaining == null || reset == null) {
+			return;
+		}
+		try {
+			long remainingValue = Long.parseLong(remaining.trim());
+			String limit = headers.getFirst("RateLimit-Limit");
+			long limitValue = limit != null ? Long.parseLong(limit.trim()) : Math.max(remainingValue, 1);
+			long window = TimeUnit.SECONDS.toMillis(Long.parseLong(reset.trim()));
+			this.rateLimit = new RateLimit(limitValue, remainingValue, System.currentTimeMillis() + window, (double) window / Math.max(remainingValue, 1));
+		} catch (NumberFormatException e) {
+			LOG.debug("Ignoring malformed RateLimit headers remaining {} reset {}", remaining, reset);
+		}
+	}
+
+	/**
+	 * @param value - delay in seconds or http date.
+	 * @return delay in millis, -1 if absent or malformed.
+	 */
+	static long parseRetryAfter(String value) {
+		if (value == null || value.trim().isEmpty()) {
+			return -1;
+		}
+		String trimmed = value.trim();
+		try {
+			return Math.max(0, TimeUnit.SECONDS.toMillis(Long.parseLong(trimmed)));
+		} catch (NumberFormatException e) {
+			HttpHeaders parser = new HttpHeaders();
+			parser.set(HttpHeaders.RETRY_AFTER, trimmed);
+			try {
+				return Math.max(0, parser.getFirstDate(HttpHeaders.RETRY_AFTER) - System.currentTimeMillis());
+			} catch (IllegalArgumentException notADate) {
+				return -1;
+			}
+		}
+	}
+
+	private void sleep(long millis) throws IOException {
+		long start = System.nanoTime();
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the throttling delay");
+		} finally {
+			waitNanos.addAndGet(System.nanoTime() - start);
+		}
+	}
+
+	private static final class RateLimit {
+
+		private final long limit;
+		private final AtomicLong remaining;
+		private final long resetAt;
+		private final double millisPerRequest;
+
+		RateLimit(long limit, long remaining, long resetAt, double millisPerRequest) {
+			this.limit = limit;
+			this.remaining = new AtomicLong(remaining);
+			this.resetAt = resetAt;
+			this.millisPerRequest = millisPerRequest;
+		}
+	}
+
+	/**
+	 * Keeps the body to send it on every attempt. Bodies written to getBody, marked as
+	 * RepeatableBody or with a Content-Length up to the max buffered size can be sent again, other
+	 * streamed bodies are passed through to the single attempt.
+	 */
+	private class ThrottlingRequest implements ClientHttpRequest, StreamingHttpOutputMessage {
+
+		private final URI uri;
+		private final HttpMethod method;
+		private final HttpHeaders headers = new HttpHeaders();
+		private ByteArrayOutputStream buffer;
+		private Body body;
+		private boolean repeatable = true;
+
+		ThrottlingRequest(URI uri, HttpMethod method) {
+			this.uri = uri;
+			this.method = method;
+		}
+
+		@Override
+		public HttpMethod getMethod() {
+			return method;
+		}
+
+		@Override
+		public String getMethodValue() {
+			return method.name();
+		}
+
+		@Override
+		public URI getURI() {
+			return uri;
+		}
+
+		@Override
+		public HttpHeaders getHeaders() {
+			return headers;
+		}
+
+		@Override
+		public OutputStream getBody() {
+			if (buffer == null) {
+				buffer = new ByteArrayOutputStream(1024);
+			}
+			return buffer;
+		}
+
+		@Override
+		public void setBody(Body body) {
+			this.body = body;
+		}
+
+		Body prepareBody() throws IOException {
+			if (buffer != null) {
+				if (headers.getContentLength() < 0) {
+					headers.setContentLength(buffer.size());
+				}
+				return buffer.size() > 0 ? buffer::writeTo : null;
+			}
+			if (body == null || body instanceof RepeatableBody) {
+				return body;
+			}
+			long length = headers.getContentLength();
+			if (length >= 0 && length <= maxBufferedBodySize) {
+				ByteArrayOutputStream content = new ByteArrayOutputStream((int) length);
+				body.writeTo(content);
+				// The length is the bytes written, a header computed by the caller may not match them.
+				headers.setContentLength(content.size());
+				return content::writeTo;
+			}
+			repeatable = false;
+			return body;
+		}
+
+		boolean isRepeatable() {
+			return repeatable;
+		}
+
+		@Override
+		public ClientHttpResponse execute() throws IOException {
+			return ThrottlingRequestFactory.this.execute(this);
+		}
+	}
+}
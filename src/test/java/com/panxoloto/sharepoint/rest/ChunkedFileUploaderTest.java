@@ -0,0 +1,228 @@
+package com.panxoloto.sharepoint.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.io.InputStreamResource;
+
+import com.panxoloto.sharepoint.rest.StubSharepointSite.Request;
+import com.panxoloto.sharepoint.rest.StubSharepointSite.Response;
+
+/**
+ * Chunked uploads through the on premises client against a stub site keeping the uploaded file.
+ */
+public class ChunkedFileUploaderTest {
+
+	private static final Pattern FILE_OFFSET = Pattern.compile("fileOffset=(\\d+)");
+	private static final String FILE_INFO = "{\"d\":{\"ServerRelativeUrl\":\"/sites/site/docs/file.txt\"}}";
+
+	private StubSharepointSite site;
+	private PLGSharepointOnPremisesClient client;
+	private final ByteArrayOutputStream uploaded = new ByteArrayOutputStream();
+
+	/** Call failing once, with failStatus or, when it's 0, committing the chunk and losing the response. */
+	private volatile String failOn;
+	private volatile int failStatus;
+	/** Status of every call after a lost response, 0 to answer it normally. */
+	private volatile int statusAfterLoss;
+
+	@Before
+	public void start() throws IOException {
+		site = new StubSharepointSite();
+		site.on("POST", "/Files/add", request -> {
+			uploaded.reset();
+			uploaded.write(request.getBody());
+			return Response.json(FILE_INFO);
+		});
+		site.on("POST", "/StartUpload(", request -> chunk(request, "StartUpload"));
+		site.on("POST", "/ContinueUpload(", request -> chunk(request, "ContinueUpload"));
+		site.on("POST", "/FinishUpload(", request -> chunk(request, "FinishUpload"));
+		site.on("GET", "/GetFileByServerRelativeUrl(", request -> Response.json(new JSONObject(FILE_INFO).put("d",
+				new JSONObject(FILE_INFO).getJSONObject("d").put("Length", String.valueOf(uploaded.size()))).toString()));
+		client = site.onPremisesClient();
+	}
+
+	@After
+	public void stop() throws IOException {
+		site.close();
+	}
+
+	private ChunkedFileUploader uploader() {
+		ChunkedFileUploader uploader = new ChunkedFileUploader(client, client.getFileTransport(), 4);
+		uploader.setRetryDelayMillis(10);
+		return uploader;
+	}
+
+	/**
+	 * Appends the chunk when its offset is the size uploaded so far, like the server does.
+	 */
+	private synchronized Response chunk(Request request, String call) throws IOException {
+		if (statusAfterLoss > 0 && failOn == null) {
+			return Response.status(statusAfterLoss);
+		}
+		if (call.equals(failOn) && failStatus > 0) {
+			failOn = null;
+			return Response.status(failStatus);
+		}
+		Matcher offset = FILE_OFFSET.matcher(request.getPath());
+		if (offset.find() && Long.parseLong(offset.group(1)) != uploaded.size()) {
+			return new Response(400, ("{\"error\":{\"message\":{\"value\":\"Invalid file offset " + offset.group(1)
+					+ ", the upload is at offset " + uploaded.size() + "\"}}}").getBytes(StandardCharsets.UTF_8));
+		}
+		uploaded.write(request.getBody());
+		if (call.equals(failOn)) {
+			failOn = null;
+			return null;
+		}
+		return Response.json(call.equals("FinishUpload") ? FILE_INFO
+				: "{\"d\":{\"" + call + "\":\"" + uploaded.size() + "\"}}");
+	}
+
+	private List<String> calls() {
+		return site.getRequests().stream()
+				.filter(request -> request.getMethod().equals("POST") && !request.getPath().endsWith("/contextinfo"))
+				.map(request -> request.getPath().replaceAll(".*/(\\w+)\\(.*", "$1"))
+				.collect(Collectors.toList());
+	}
+
+	private String uploaded() {
+		return new String(uploaded.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private static InputStreamResource stream(String content) {
+		return new InputStreamResource(new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	@Test
+	public void uploadsStreamsInChunks() throws Exception {
+		ChunkedFileUploader uploader = uploader();
+
+		uploader.upload("/sites/site/docs", stream("0123456789"), "file.txt");
+
+		assertEquals(Arrays.asList("add", "StartUpload", "ContinueUpload", "FinishUpload"), calls());
+		assertEquals("0123456789", uploaded());
+	}
+
+	@Test
+	public void sendsSmallStreamsInOneRequest() throws Exception {
+		ChunkedFileUploader uploader = uploader();
+
+		uploader.upload("/sites/site/docs", stream("012"), "file.txt");
+
+		assertEquals(Arrays.asList("add"), calls());
+		assertEquals("012", uploaded());
+	}
+
+	@Test
+	public void resumesWithANewStream() throws Exception {
+		ChunkedFileUploader uploader = uploader();
+		uploader.setMaxRetries(0);
+		failOn = "ContinueUpload";
+		failStatus = 500;
+		ChunkedUploadSession session = null;
+		try {
+			uploader.upload("/sites/site/docs", stream("0123456789"), "file.txt");
+			fail("expected the chunk to fail");
+		} catch (ChunkedUploadException e) {
+			session = e.getSession();
+		}
+		assertEquals(4, session.getCommittedOffset());
+		assertTrue(session.isStarted());
+
+		uploader.resume(session, stream("0123456789"));
+
+		assertEquals(Arrays.asList("add", "StartUpload", "ContinueUpload", "ContinueUpload", "FinishUpload"), calls());
+		assertEquals("0123456789", uploaded());
+	}
+
+	@Test
+	public void doesNotRetryClientErrors() throws Exception {
+		ChunkedFileUploader uploader = uploader();
+		failOn = "ContinueUpload";
+		failStatus = 404;
+
+		try {
+			uploader.upload("/sites/site/docs", stream("0123456789"), "file.txt");
+			fail("expected the chunk to fail");
+		} catch (ChunkedUploadException e) {
+			assertEquals(4, e.getSession().getCommittedOffset());
+		}
+		assertEquals(Arrays.asList("add", "StartUpload", "ContinueUpload"), calls());
+	}
+
+	@Test
+	public void takesAChunkRejectedAfterALostResponseAsCommitted() throws Exception {
+		ChunkedFileUploader uploader = uploader();
+		failOn = "ContinueUpload";
+
+		uploader.upload("/sites/site/docs", stream("0123456789"), "file.txt");
+
+		assertEquals(Arrays.asList("add", "StartUpload", "ContinueUpload", "ContinueUpload", "FinishUpload"), calls());
+		assertEquals("0123456789", uploaded());
+	}
+
+	@Test
+	public void confirmsALostLastChunkWithTheFileLength() throws Exception {
+		ChunkedFileUploader uploader = uploader();
+		failOn = "FinishUpload";
+
+		uploader.upload("/sites/site/docs", stream("0123456789"), "file.txt");
+
+		assertEquals(Arrays.asList("add", "StartUpload", "ContinueUpload", "FinishUpload", "FinishUpload"), calls());
+		assertEquals("0123456789", uploaded());
+	}
+
+	@Test
+	public void failsWhenAChunkIsRejectedForAnotherReasonAfterALostResponse() throws Exception {
+		ChunkedFileUploader uploader = uploader();
+		failOn = "ContinueUpload";
+		// Like an upload session that expired, the lost chunk isn't known to be committed.
+		statusAfterLoss = 404;
+
+		try {
+			uploader.upload("/sites/site/docs", stream("0123456789"), "file.txt");
+			fail("expected the chunk to fail");
+		} catch (ChunkedUploadException e) {
+			assertEquals(4, e.getSession().getCommittedOffset());
+		}
+		assertEquals(Arrays.asList("add", "StartUpload", "ContinueUpload", "ContinueUpload"), calls());
+	}
+
+	@Test
+	public void waitsLongerBeforeEveryRetry() throws Exception {
+		ChunkedFileUploader uploader = new ChunkedFileUploader(client, client.getFileTransport(), 4);
+		uploader.setRetryDelayMillis(100);
+		site.on("POST", "/ContinueUpload(", request -> Response.status(500));
+
+		long start = System.nanoTime();
+		try {
+			uploader.upload("/sites/site/docs", stream("0123456789"), "file.txt");
+			fail("expected the chunk to fail");
+		} catch (ChunkedUploadException e) {
+			assertEquals(4, e.getSession().getCommittedOffset());
+		}
+		// 100 ms and 200 ms before the two retries.
+		assertTrue(System.nanoTime() - start >= 300_000_000L);
+		assertEquals(3, site.getRequests("POST", "/ContinueUpload(").size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsNegativeRetries() {
+		new ChunkedFileUploader(client, client.getFileTransport(), 4).setMaxRetries(-1);
+	}
+}
@@ -0,0 +1,112 @@
+package com.panxoloto.sharepoint.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.panxoloto.sharepoint.rest.helper.HttpClientPoolConfig;
+import com.panxoloto.sharepoint.rest.helper.HttpProtocols;
+import com.panxoloto.sharepoint.rest.helper.ODataQuery;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Bursts of getListItems against a stub site, counting the connections the site sees.
+ */
+public class ConnectionReuseTest {
+
+	private static final int MAX_PER_ROUTE = 4;
+
+	private HttpServer server;
+	private PLGSharepointOnPremisesClient client;
+
+	/** Client ports of the connections accepted by the stub. */
+	private final Set<Integer> connections = ConcurrentHashMap.newKeySet();
+
+	@Before
+	public void start() throws Exception {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/", exchange -> {
+			connections.add(exchange.getRemoteAddress().getPort());
+			byte[] body = (exchange.getRequestURI().getPath().endsWith("/contextinfo")
+					? "{\"d\":{\"GetContextWebInformation\":{\"FormDigestValue\":\"digest\",\"FormDigestTimeoutSeconds\":1800}}}"
+					: "{\"d\":{\"results\":[{\"Id\":1}]}}").getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().add("Content-Type", "application/json;odata=verbose");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		server.start();
+
+		HttpClientPoolConfig config = new HttpClientPoolConfig();
+		config.setMaxPerRoute(MAX_PER_ROUTE);
+		config.setMaxIdleTimeMillis(100);
+		client = new PLGSharepointOnPremisesClient("user", "passwd", "domain", "127.0.0.1:" + server.getAddress().getPort(), "/sites/site", config);
+		client.setProtocol(HttpProtocols.HTTP);
+	}
+
+	@After
+	public void stop() throws IOException {
+		client.close();
+		server.stop(0);
+		((ExecutorService) server.getExecutor()).shutdownNow();
+	}
+
+	@Test
+	public void reusesOneConnectionForSequentialCalls() throws Exception {
+		for (int i = 0; i < 20; i++) {
+			client.getListItems("Tasks", ODataQuery.create().top(1));
+		}
+
+		assertEquals(1, connections.size());
+	}
+
+	@Test
+	public void opensNoMoreConnectionsThanThePoolAllowsForABurst() throws Exception {
+		ExecutorService workers = Executors.newFixedThreadPool(16);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int i = 0; i < 100; i++) {
+				futures.add(workers.submit(() -> client.getListItems("Tasks", ODataQuery.create().top(1))));
+			}
+			for (Future<?> future : futures) {
+				future.get(30, TimeUnit.SECONDS);
+			}
+		} finally {
+			workers.shutdownNow();
+		}
+
+		assertTrue("connections " + connections.size(), connections.size() <= MAX_PER_ROUTE);
+		assertEquals(0, client.getConnectionPoolStats().getLeased());
+	}
+
+	@Test
+	public void evictsIdleConnections() throws Exception {
+		client.getListItems("Tasks", ODataQuery.create().top(1));
+		assertEquals(1, client.getConnectionPoolStats().getAvailable());
+
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (client.getConnectionPoolStats().getAvailable() > 0 && System.nanoTime() < deadline) {
+			Thread.sleep(50);
+		}
+
+		assertEquals(0, client.getConnectionPoolStats().getAvailable());
+	}
+}
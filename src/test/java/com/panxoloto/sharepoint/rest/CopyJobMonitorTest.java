@@ -0,0 +1,170 @@
+package com.panxoloto.sharepoint.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+
+import com.panxoloto.sharepoint.rest.StubSharepointSite.Response;
+
+/**
+ * Follows copy jobs through the on premises client against a stub site answering CreateCopyJobs
+ * and GetCopyJobProgress.
+ */
+public class CopyJobMonitorTest {
+
+	private StubSharepointSite site;
+	private PLGSharepointOnPremisesClient client;
+	private CopyJobMonitor monitor;
+	private final AtomicInteger polls = new AtomicInteger();
+
+	@Before
+	public void start() throws IOException {
+		site = new StubSharepointSite();
+		site.on("POST", "/_api/site/CreateCopyJobs", request -> Response.json(new JSONObject().put("d", new JSONObject()
+				.put("CreateCopyJobs", new JSONObject().put("results", new JSONArray().put(new JSONObject()
+						.put("JobId", "job").put("JobQueueUri", "https://queue").put("EncryptionKey", "key"))))).toString()));
+		client = site.onPremisesClient();
+		client.getThrottlingRequestFactory().setBaseDelayMillis(10);
+		client.getThrottlingRequestFactory().setMaxDelayMillis(20);
+		monitor = client.getCopyJobMonitor();
+		monitor.setPollIntervalMillis(10);
+		monitor.setMaxPollIntervalMillis(20);
+	}
+
+	@After
+	public void stop() throws IOException {
+		site.close();
+	}
+
+	/**
+	 * @param responses - answers of the progress requests in order, null closes the connection,
+	 * the last one is repeated.
+	 */
+	private void progress(Response... responses) {
+		site.on("POST", "/_api/site/GetCopyJobProgress", request -> responses[Math.min(polls.getAndIncrement(), responses.length - 1)]);
+	}
+
+	private static Response running(String event) {
+		return state(4, new JSONObject().put("Event", event));
+	}
+
+	private static Response finished() {
+		return state(0, new JSONObject().put("Event", "JobEnd").put("ObjectsProcessed", 3).put("BytesProcessed", 1024));
+	}
+
+	private static Response state(int jobState, JSONObject log) {
+		// Logs come as json strings.
+		return Response.json(new JSONObject().put("d", new JSONObject().put("GetCopyJobProgress", new JSONObject()
+				.put("JobState", jobState).put("Logs", new JSONObject().put("results", new JSONArray().put(log.toString()))))).toString());
+	}
+
+	private CopyJobMonitor.CopyJobResult copy() throws Exception {
+		List<CopyJobMonitor.CopyJobResult> results = monitor.copy(Collections.singletonList("/sites/site/docs/folder"),
+				"/sites/other/docs", null).get(10, TimeUnit.SECONDS);
+		assertEquals(1, results.size());
+		return results.get(0);
+	}
+
+	@Test
+	public void completesWithTheLogsOnceTheJobFinishes() throws Exception {
+		progress(running("JobStart"), running("JobProgress"), finished());
+
+		CopyJobMonitor.CopyJobResult result = copy();
+
+		assertTrue(result.isSucceeded());
+		assertEquals(3, result.getObjectsProcessed());
+		assertEquals(1024, result.getBytesProcessed());
+		assertEquals(3, result.getLogs().size());
+		assertEquals("job", result.getJob().getJobId());
+		assertEquals(3, polls.get());
+		JSONObject sent = new JSONObject(site.getRequests("POST", "/CreateCopyJobs").get(0).getText());
+		assertEquals("http://" + site.getDomain() + "/sites/site/docs/folder", sent.getJSONArray("exportObjectUris").getString(0));
+	}
+
+	@Test
+	public void pollsAgainAfterTransientFailures() throws Exception {
+		progress(running("JobStart"), Response.status(500), null, finished());
+
+		CopyJobMonitor.CopyJobResult result = copy();
+
+		assertTrue(result.isSucceeded());
+		assertEquals(Arrays.asList("JobStart", "JobEnd"), Arrays.asList(result.getLogs().get(0).getString("Event"), result.getLogs().get(1).getString("Event")));
+		// The closed connection is sent again by the client, the progress request only reads the job.
+		assertEquals(1, client.getThrottlingRequestFactory().getRetries());
+		assertEquals(4, polls.get());
+	}
+
+	@Test
+	public void failsAfterTooManyFailuresInARow() throws Exception {
+		progress(running("JobStart"), Response.status(500));
+		monitor.setMaxPollFailures(2);
+
+		try {
+			copy();
+			fail("expected the 500");
+		} catch (ExecutionException e) {
+			assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof HttpServerErrorException);
+		}
+		// The first poll and three failures: the last one isn't polled again.
+		assertEquals(4, polls.get());
+	}
+
+	@Test
+	public void failsOnAPermanentError() throws Exception {
+		progress(Response.status(404));
+
+		try {
+			copy();
+			fail("expected the 404");
+		} catch (ExecutionException e) {
+			assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof HttpClientErrorException);
+		}
+		assertEquals(1, polls.get());
+	}
+
+	@Test
+	public void failsTheAwaitedJobsWhenTheClientIsClosed() throws Exception {
+		progress(running("JobStart"));
+		CompletableFuture<List<CopyJobMonitor.CopyJobResult>> results = monitor.copy(
+				Collections.singletonList("/sites/site/docs/folder"), "/sites/other/docs", null);
+		while (polls.get() == 0) {
+			Thread.sleep(10);
+		}
+
+		client.close();
+
+		try {
+			results.get(10, TimeUnit.SECONDS);
+			fail("expected the job to fail");
+		} catch (ExecutionException e) {
+			assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof IllegalStateException);
+		}
+		int polled = polls.get();
+		Thread.sleep(100);
+		assertEquals(polled, polls.get());
+		try {
+			monitor.await(new CopyJobMonitor.CopyJob(new JSONObject().put("JobId", "other"),
+					Collections.singletonList("/sites/site/docs/other"), "/sites/other/docs", false)).get(10, TimeUnit.SECONDS);
+			fail("expected the closed monitor to reject the job");
+		} catch (ExecutionException e) {
+			assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof IllegalStateException);
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package com.panxoloto.sharepoint.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Folder creation against a stub site with a non ASCII name, checking the body arrives whole
+ * and its Content-Length counts the UTF-8 bytes sent.
+ */
+public class CreateFolderTest {
+
+	private static final String FOLDER = "A\u00f1o ni\u00f1o";
+
+	private StubSharepointSite site;
+
+	@Before
+	public void start() throws IOException {
+		site = new StubSharepointSite();
+		site.on("POST", "/folders", request -> StubSharepointSite.Response.json(
+				"{\"d\":{\"ServerRelativeUrl\":" + JSONObject.quote(new JSONObject(request.getText()).getString("ServerRelativeUrl")) + "}}"));
+	}
+
+	@After
+	public void stop() throws IOException {
+		site.close();
+	}
+
+	private void assertCreated(JSONObject folder) {
+		List<StubSharepointSite.Request> requests = site.getRequests("POST", "/folders");
+		assertEquals(1, requests.size());
+		StubSharepointSite.Request request = requests.get(0);
+		assertEquals(String.valueOf(request.getBody().length), request.getHeader("Content-Length"));
+		assertTrue(request.getText().endsWith("}"));
+		// The online client sends the folder name, the on premises one the whole url.
+		assertTrue(new JSONObject(request.getText()).getString("ServerRelativeUrl").endsWith(FOLDER));
+		assertTrue(folder.getJSONObject("d").getString("ServerRelativeUrl").endsWith(FOLDER));
+	}
+
+	@Test
+	public void sendsANonAsciiFolderNameOnPremises() throws Exception {
+		assertCreated(site.onPremisesClient().createFolder("/sites/site/docs", FOLDER, new JSONObject()));
+	}
+
+	@Test
+	public void sendsANonAsciiFolderNameOnline() throws Exception {
+		assertCreated(site.onlineClient().createFolder("/sites/site/docs", FOLDER, new JSONObject()));
+	}
+}
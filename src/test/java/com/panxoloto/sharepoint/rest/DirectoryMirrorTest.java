@@ -0,0 +1,299 @@
+package com.panxoloto.sharepoint.rest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.panxoloto.sharepoint.rest.StubSharepointSite.Request;
+import com.panxoloto.sharepoint.rest.StubSharepointSite.Response;
+import com.panxoloto.sharepoint.rest.helper.MoveCopyOptions;
+
+/**
+ * Mirrors against a document library kept by the stub site, through both clients.
+ */
+public class DirectoryMirrorTest {
+
+	private static final String ROOT = StubSharepointSite.SITE + "/Shared Documents/mirror";
+	private static final Pattern QUOTED = Pattern.compile("\\((?:\\w+=)?'((?:[^']|'')*)'");
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private final ExecutorService executor = Executors.newFixedThreadPool(4);
+	private StubSharepointSite site;
+
+	private static class Item {
+		private final boolean folder;
+		private final byte[] content;
+		private final Instant modified;
+
+		Item(boolean folder, byte[] content, Instant modified) {
+			this.folder = folder;
+			this.content = content;
+			this.modified = modified;
+		}
+	}
+
+	/** Files and folders of the library by server relative url. */
+	private final Map<String, Item> items = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+	@Before
+	public void start() throws IOException {
+		site = new StubSharepointSite();
+		// Registered first, so the more specific folder routes below win.
+		site.on("POST", "/GetFolderByServerRelativeUrl(", request -> remove(quoted(request), true));
+		site.on("POST", "/GetFileByServerRelativePath(", request -> remove(quoted(request), false));
+		site.on("POST", "')/folders", this::createFolder);
+		site.on("POST", "/Files/add(", this::upload);
+		site.on("POST", "/SP.MoveCopyUtil.MoveFileByPath", this::move);
+		site.on("GET", "')/Folders", request -> list(quoted(request), true));
+		site.on("GET", "')/Files", request -> list(quoted(request), false));
+	}
+
+	@After
+	public void stop() throws IOException {
+		executor.shutdownNow();
+		site.close();
+	}
+
+	private static String quoted(Request request) {
+		Matcher matcher = QUOTED.matcher(request.getPath());
+		matcher.find();
+		return matcher.group(1).replace("''", "'");
+	}
+
+	private synchronized void add(String url, boolean folder, byte[] content, Instant modified) {
+		items.put(url, new Item(folder, content, modified));
+	}
+
+	private static JSONObject info(String url, Item item) {
+		JSONObject info = new JSONObject().put("ServerRelativeUrl", url).put("Name", url.substring(url.lastIndexOf('/') + 1))
+				.put("TimeLastModified", item.modified.toString());
+		return item.folder ? info : info.put("Length", String.valueOf(item.content.length)).put("ETag", "\"{1}," + item.content.length + "\"");
+	}
+
+	private synchronized Response list(String folder, boolean folders) {
+		JSONArray results = new JSONArray();
+		items.forEach((url, item) -> {
+			if (item.folder == folders && url.toLowerCase().startsWith(folder.toLowerCase() + "/")
+					&& url.indexOf('/', folder.length() + 1) < 0) {
+				results.put(info(url, item));
+			}
+		});
+		return Response.json(new JSONObject().put("d", new JSONObject().put("results", results)).toString());
+	}
+
+	private synchronized Response createFolder(Request request) {
+		String base = quoted(request);
+		String url = new JSONObject(request.getText()).getString("ServerRelativeUrl");
+		// On premises sends the full url, online the name relative to the base folder.
+		String folder = url.startsWith("/") ? url : base + "/" + url;
+		add(folder, true, new byte[0], Instant.now());
+		return Response.json(new JSONObject().put("d", info(folder, items.get(folder))).toString());
+	}
+
+	private synchronized Response upload(Request request) {
+		String url = quoted(request) + "/" + request.getPath().replaceAll(".*Files/add\\(url='(.*)',overwrite=true\\)", "$1").replace("''", "'");
+		add(url, false, request.getBody(), Instant.now());
+		return Response.json(new JSONObject().put("d", info(url, items.get(url))).toString());
+	}
+
+	private synchronized Response move(Request request) {
+		JSONObject payload = new JSONObject(request.getText());
+		String source = MoveCopyOptions.toServerRelativeUrl(payload.getJSONObject("srcPath").getString("DecodedUrl"));
+		String target = MoveCopyOptions.toServerRelativeUrl(payload.getJSONObject("destPath").getString("DecodedUrl"));
+		Item item = items.remove(source);
+		if (item == null) {
+			return Response.status(404);
+		}
+		items.put(target, item);
+		return Response.json("{\"d\":{}}");
+	}
+
+	private synchronized Response remove(String url, boolean folder) {
+		Item item = items.get(url);
+		if (item == null) {
+			return Response.status(404);
+		}
+		if (item.folder != folder) {
+			return Response.status(400);
+		}
+		items.keySet().removeIf(key -> key.equalsIgnoreCase(url) || key.toLowerCase().startsWith(url.toLowerCase() + "/"));
+		return Response.status(200);
+	}
+
+	private static byte[] bytes(String content) {
+		return content.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static String sha256(byte[] content) throws NoSuchAlgorithmException {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : MessageDigest.getInstance("SHA-256").digest(content)) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * @return manifest keeping the hash of the uploaded content of each relative path.
+	 */
+	private Path manifest(String name, String... pathsAndContents) throws IOException, NoSuchAlgorithmException {
+		Properties hashes = new Properties();
+		for (int i = 0; i < pathsAndContents.length; i += 2) {
+			hashes.setProperty(pathsAndContents[i], sha256(bytes(pathsAndContents[i + 1])));
+		}
+		Path manifest = tmp.getRoot().toPath().resolve(name);
+		try (OutputStream out = Files.newOutputStream(manifest)) {
+			hashes.store(out, null);
+		}
+		return manifest;
+	}
+
+	private static Properties load(Path manifest) throws IOException {
+		Properties hashes = new Properties();
+		try (InputStream in = Files.newInputStream(manifest)) {
+			hashes.load(in);
+		}
+		return hashes;
+	}
+
+	@Test
+	public void mirrorsThroughTheOnlineClient() throws Exception {
+		runPlan(site.onlineClient());
+	}
+
+	@Test
+	public void mirrorsThroughTheOnPremisesClient() throws Exception {
+		runPlan(site.onPremisesClient());
+	}
+
+	@Test
+	public void savesTheHashManifest() throws Exception {
+		Path local = tmp.newFolder("hashed").toPath();
+		Files.write(local.resolve("a.txt"), bytes("hello"));
+		Path manifest = tmp.getRoot().toPath().resolve("hashes.properties");
+		DirectoryMirror mirror = new DirectoryMirror(site.onPremisesClient(), () -> executor);
+		mirror.setHashManifest(manifest);
+
+		DirectoryMirror.MirrorStats stats = mirror.mirror(local, null, ROOT);
+
+		assertEquals(1, stats.getDone(DirectoryMirror.Action.Type.UPLOAD));
+		assertEquals(5, stats.getUploadedBytes());
+		assertArrayEquals(bytes("hello"), items.get(ROOT + "/a.txt").content);
+		assertTrue(new String(Files.readAllBytes(manifest), StandardCharsets.ISO_8859_1).contains("a.txt="));
+		try (java.util.stream.Stream<Path> files = Files.list(manifest.getParent())) {
+			assertFalse("temporary manifest left behind", files.anyMatch(file -> file.getFileName().toString().endsWith(".tmp")));
+		}
+	}
+
+	@Test
+	public void recordsOnlyWhatTheServerStored() throws Exception {
+		site.on("POST", "/Files/add(", request -> Response.json(
+				"{\"d\":{\"ServerRelativeUrl\":\"" + ROOT + "/a.txt\",\"Length\":\"0\"}}"));
+		Path local = tmp.newFolder("short").toPath();
+		Files.write(local.resolve("a.txt"), bytes("hello"));
+		Path manifest = tmp.getRoot().toPath().resolve("short.properties");
+		DirectoryMirror mirror = new DirectoryMirror(site.onPremisesClient(), () -> executor);
+		mirror.setHashManifest(manifest);
+
+		DirectoryMirror.MirrorStats stats = mirror.mirror(local, null, ROOT);
+
+		assertEquals(1, stats.getFailures().size());
+		assertEquals(0, stats.getUploadedBytes());
+		assertFalse(new String(Files.readAllBytes(manifest), StandardCharsets.ISO_8859_1).contains("a.txt="));
+	}
+
+	@Test
+	public void uploadsAMovedFileWhoseContentChanged() throws Exception {
+		Instant old = Instant.now().minus(1, ChronoUnit.DAYS).truncatedTo(ChronoUnit.SECONDS);
+		add(ROOT, true, new byte[0], old);
+		add(ROOT + "/old", true, new byte[0], old);
+		add(ROOT + "/old/moved.txt", false, bytes("12345"), old);
+		add(ROOT + "/old/unknown.txt", false, bytes("123"), old);
+		Path local = tmp.newFolder("changed").toPath();
+		Files.createDirectories(local.resolve("new"));
+		// Same name and size, other content.
+		Files.write(local.resolve("new/moved.txt"), bytes("54321"));
+		// No hash kept for the remote file, the contents can't be compared.
+		Files.write(local.resolve("new/unknown.txt"), bytes("123"));
+		DirectoryMirror mirror = new DirectoryMirror(site.onPremisesClient(), () -> executor);
+		mirror.setDeleteRemote(true);
+		mirror.setHashManifest(manifest("changed.properties", "old/moved.txt", "12345"));
+
+		DirectoryMirror.MirrorPlan plan = mirror.plan(local, null, ROOT);
+
+		assertTrue(plan.getActions(DirectoryMirror.Action.Type.MOVE).isEmpty());
+		assertEquals(2, plan.getActions(DirectoryMirror.Action.Type.UPLOAD).size());
+		DirectoryMirror.MirrorStats stats = mirror.execute(plan);
+		assertTrue("failures: " + stats.getFailures(), stats.getFailures().isEmpty());
+		assertArrayEquals(bytes("54321"), items.get(ROOT + "/new/moved.txt").content);
+		assertFalse(items.containsKey(ROOT + "/old/moved.txt"));
+	}
+
+	private void runPlan(PLGSharepointClient client) throws Exception {
+		Instant old = Instant.now().minus(1, ChronoUnit.DAYS).truncatedTo(ChronoUnit.SECONDS);
+		Instant future = Instant.now().plus(1, ChronoUnit.DAYS).truncatedTo(ChronoUnit.SECONDS);
+		add(ROOT, true, new byte[0], old);
+		add(ROOT + "/old", true, new byte[0], old);
+		add(ROOT + "/old/moved.txt", false, bytes("12345"), old);
+		add(ROOT + "/gone.txt", false, bytes("123"), old);
+		add(ROOT + "/bob's gone.txt", false, bytes("1234"), old);
+		add(ROOT + "/keep.txt", false, bytes("keep"), future);
+
+		Path local = tmp.newFolder("local").toPath();
+		Files.createDirectories(local.resolve("new"));
+		Files.write(local.resolve("new/moved.txt"), bytes("12345"));
+		Files.write(local.resolve("keep.txt"), bytes("keep"));
+		Files.write(local.resolve("bob's.txt"), bytes("new file"));
+
+		DirectoryMirror mirror = new DirectoryMirror(client, () -> executor);
+		mirror.setDeleteRemote(true);
+		// Moves are only detected for files whose uploaded hash is kept.
+		Path manifest = manifest("moves.properties", "old/moved.txt", "12345");
+		mirror.setHashManifest(manifest);
+		DirectoryMirror.MirrorPlan plan = mirror.plan(local, null, ROOT);
+		assertEquals(1, plan.getActions(DirectoryMirror.Action.Type.MOVE).size());
+		assertEquals(1, plan.getUnchanged());
+
+		DirectoryMirror.MirrorStats stats = mirror.execute(plan);
+
+		assertTrue("failures: " + stats.getFailures(), stats.getFailures().isEmpty());
+		assertEquals(new ArrayList<>(Arrays.asList(ROOT, ROOT + "/bob's.txt", ROOT + "/keep.txt", ROOT + "/new", ROOT + "/new/moved.txt")),
+				new ArrayList<>(items.keySet()));
+		assertArrayEquals(bytes("new file"), items.get(ROOT + "/bob's.txt").content);
+		assertArrayEquals(bytes("12345"), items.get(ROOT + "/new/moved.txt").content);
+		assertEquals(8, stats.getUploadedBytes());
+		Properties hashes = load(manifest);
+		assertEquals(sha256(bytes("12345")), hashes.getProperty("new/moved.txt"));
+		assertFalse(hashes.containsKey("old/moved.txt"));
+	}
+}
@@ -0,0 +1,98 @@
+package com.panxoloto.sharepoint.rest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.web.client.HttpClientErrorException;
+
+import com.panxoloto.sharepoint.rest.StubSharepointSite.Response;
+
+/**
+ * Streams downloads into a path or a channel against a stub site, through both clients.
+ */
+public class DownloadToTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private StubSharepointSite site;
+	/** Bigger than the copy buffers, so it takes several reads and writes. */
+	private final byte[] content = new byte[3 * 1024 * 1024 + 17];
+
+	@Before
+	public void start() throws IOException {
+		for (int i = 0; i < content.length; i++) {
+			content[i] = (byte) (i * 31);
+		}
+		site = new StubSharepointSite();
+		site.on("GET", "/GetFileByServerRelativeUrl('/sites/site/docs/file.bin')/$value", request -> new Response(200, content));
+	}
+
+	@After
+	public void stop() throws IOException {
+		site.close();
+	}
+
+	/**
+	 * @param file - url of the file as the client takes it.
+	 */
+	private void assertDownloadedToPath(PLGSharepointClient client, String file) throws Exception {
+		Path target = tmp.getRoot().toPath().resolve("file.bin");
+		// Replaced, not appended to.
+		Files.write(target, new byte[content.length + 100]);
+
+		TransferStats stats = client.downloadTo(file, target);
+
+		assertEquals(content.length, stats.getBytes());
+		assertArrayEquals(content, Files.readAllBytes(target));
+	}
+
+	@Test
+	public void downloadsToAPathOnPremises() throws Exception {
+		assertDownloadedToPath(site.onPremisesClient(), "/sites/site/docs/file.bin");
+	}
+
+	@Test
+	public void downloadsToAPathOnline() throws Exception {
+		// Sharepoint online takes the url relative to the site.
+		assertDownloadedToPath(site.onlineClient(), "docs/file.bin");
+	}
+
+	@Test
+	public void downloadsToAChannelWithoutClosingIt() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (WritableByteChannel channel = Channels.newChannel(out)) {
+			TransferStats stats = site.onPremisesClient().downloadTo("/sites/site/docs/file.bin", channel);
+
+			assertEquals(content.length, stats.getBytes());
+			assertTrue(channel.isOpen());
+		}
+		assertArrayEquals(content, out.toByteArray());
+	}
+
+	@Test
+	public void failsForAMissingFile() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			site.onPremisesClient().downloadTo("/sites/site/docs/missing.bin", Channels.newChannel(out));
+			fail("expected the 404");
+		} catch (HttpClientErrorException e) {
+			assertEquals(404, e.getRawStatusCode());
+		}
+		assertEquals(0, out.size());
+	}
+}
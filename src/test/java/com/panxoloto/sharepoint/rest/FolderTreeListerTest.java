@@ -0,0 +1,129 @@
+package com.panxoloto.sharepoint.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.panxoloto.sharepoint.rest.StubSharepointSite.Request;
+import com.panxoloto.sharepoint.rest.StubSharepointSite.Response;
+
+/**
+ * Lists folder trees through the on premises client against a stub site.
+ */
+public class FolderTreeListerTest {
+
+	private static final String RENDER = "/_api/web/lists/GetByTitle('Documents')/RenderListDataAsStream";
+
+	private StubSharepointSite site;
+	private PLGSharepointClient client;
+
+	@Before
+	public void start() throws IOException {
+		site = new StubSharepointSite();
+		client = site.onPremisesClient();
+	}
+
+	@After
+	public void stop() throws IOException {
+		site.close();
+	}
+
+	@Test
+	public void failsTheCrawlWhenTheLastFolderFails() throws Exception {
+		site.on("GET", "/Folders", request -> Response.json("{\"d\":{\"results\":[]}}"));
+		site.on("GET", "/Files", request -> Response.status(500));
+
+		// The failing folder is the last one pending, the end of the listing used to race with the error.
+		for (int i = 0; i < 20; i++) {
+			try (Stream<FolderTreeLister.Entry> entries = client.listFolderTree(null, "/sites/site/docs")) {
+				long count = entries.count();
+				fail("expected the crawl to fail, listed " + count + " entries");
+			} catch (IllegalStateException e) {
+				assertEquals("Error crawling folders", e.getMessage());
+			}
+		}
+	}
+
+	private static JSONObject row(String fileRef, boolean folder, long size) {
+		return new JSONObject().put("FileRef", fileRef).put("FileLeafRef", fileRef.substring(fileRef.lastIndexOf('/') + 1))
+				.put("FSObjType", folder ? "1" : "0").put("File_x0020_Size", folder ? "" : String.valueOf(size))
+				.put("UniqueId", "{" + fileRef.hashCode() + "}").put("owshiddenversion", "3");
+	}
+
+	/**
+	 * Rows of docs in two pages, the second one after the NextHref.
+	 */
+	private static Response rows(Request request) {
+		JSONObject page = new JSONObject();
+		if (request.getQuery() == null) {
+			page.put("Row", new JSONArray(Arrays.asList(row("/sites/site/docs/sub", true, 0), row("/sites/site/docs/a.txt", false, 10))));
+			page.put("NextHref", "?Paged=TRUE&p_ID=2");
+		} else {
+			page.put("Row", new JSONArray(Arrays.asList(row("/sites/site/docs/sub/b.txt", false, 20))));
+		}
+		return Response.json(page.toString());
+	}
+
+	/**
+	 * Folders and files of docs, with a single subfolder sub.
+	 */
+	private void crawlableTree() {
+		site.on("GET", "/Folders", request -> Response.json(request.getPath().contains("docs/sub'")
+				? "{\"d\":{\"results\":[]}}"
+				: "{\"d\":{\"results\":[{\"Name\":\"sub\",\"ServerRelativeUrl\":\"/sites/site/docs/sub\"}]}}"));
+		site.on("GET", "/Files", request -> Response.json(request.getPath().contains("docs/sub'")
+				? "{\"d\":{\"results\":[{\"Name\":\"b.txt\",\"ServerRelativeUrl\":\"/sites/site/docs/sub/b.txt\",\"Length\":\"20\"}]}}"
+				: "{\"d\":{\"results\":[{\"Name\":\"a.txt\",\"ServerRelativeUrl\":\"/sites/site/docs/a.txt\",\"Length\":\"10\"}]}}"));
+	}
+
+	private static List<String> urls(Stream<FolderTreeLister.Entry> entries) {
+		return entries.map(entry -> (entry.isFolder() ? "d " : entry.getSize() + " ") + entry.getServerRelativeUrl())
+				.sorted().collect(Collectors.toList());
+	}
+
+	@Test
+	public void listsTheTreeWithTheRecursiveAllView() throws Exception {
+		site.on("POST", RENDER, FolderTreeListerTest::rows);
+
+		List<String> urls;
+		try (Stream<FolderTreeLister.Entry> entries = client.listFolderTree("Documents", "/sites/site/docs")) {
+			urls = urls(entries);
+		}
+
+		assertEquals(Arrays.asList("10 /sites/site/docs/a.txt", "20 /sites/site/docs/sub/b.txt", "d /sites/site/docs/sub"), urls);
+		List<Request> requests = site.getRequests("POST", RENDER);
+		assertEquals(2, requests.size());
+		JSONObject parameters = new JSONObject(requests.get(0).getText()).getJSONObject("parameters");
+		assertTrue(parameters.getString("ViewXml"), parameters.getString("ViewXml").contains("Scope=\"RecursiveAll\""));
+		assertEquals("/sites/site/docs", parameters.getString("FolderServerRelativeUrl"));
+		assertEquals(0, site.getRequests("GET", "/Folders").size());
+	}
+
+	@Test
+	public void crawlsTheFoldersWhenTheViewIsRejected() throws Exception {
+		site.on("POST", RENDER, request -> Response.status(500));
+		crawlableTree();
+
+		List<String> urls;
+		try (Stream<FolderTreeLister.Entry> entries = client.listFolderTree("Documents", "/sites/site/docs")) {
+			urls = urls(entries);
+		}
+
+		assertEquals(Arrays.asList("10 /sites/site/docs/a.txt", "20 /sites/site/docs/sub/b.txt", "d /sites/site/docs/sub"), urls);
+		assertEquals(1, site.getRequests("POST", RENDER).size());
+		assertEquals(2, site.getRequests("GET", "/Folders").size());
+	}
+}
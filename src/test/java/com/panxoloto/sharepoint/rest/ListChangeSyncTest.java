@@ -0,0 +1,180 @@
+package com.panxoloto.sharepoint.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.web.client.HttpServerErrorException;
+
+import com.panxoloto.sharepoint.rest.StubSharepointSite.Request;
+import com.panxoloto.sharepoint.rest.StubSharepointSite.Response;
+
+public class ListChangeSyncTest {
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private StubSharepointSite site;
+	private PLGSharepointClient client;
+	private final ListChangeSync.MemoryTokenStore tokens = new ListChangeSync.MemoryTokenStore();
+	/** Changes of the log after each token: type, item id and token of the change. */
+	private final Map<String, JSONArray> changesAfter = new HashMap<>();
+	/** Start tokens of the GetChanges requests. */
+	private final List<String> startTokens = new ArrayList<>();
+
+	@Before
+	public void start() throws IOException {
+		site = new StubSharepointSite();
+		site.on("GET", "/lists/GetByTitle('Tasks')", request -> Response.json(
+				"{\"d\":{\"CurrentChangeToken\":{\"StringValue\":\"t0\"}}}"));
+		site.on("POST", "/lists/GetByTitle('Tasks')/GetChanges", this::getChanges);
+		site.on("GET", "/lists/GetByTitle('Tasks')/items", this::items);
+		client = site.onPremisesClient();
+	}
+
+	@After
+	public void stop() throws IOException {
+		site.close();
+	}
+
+	private synchronized Response getChanges(Request request) {
+		String token = new JSONObject(request.getText()).getJSONObject("query").getJSONObject("ChangeTokenStart").getString("StringValue");
+		startTokens.add(token);
+		JSONArray changes = changesAfter.getOrDefault(token, new JSONArray());
+		return Response.json(new JSONObject().put("d", new JSONObject().put("results", changes)).toString());
+	}
+
+	/**
+	 * Answers the items of the "ID eq n" filter.
+	 */
+	private Response items(Request request) throws IOException {
+		String filter = URLDecoder.decode(request.getQuery(), "UTF-8");
+		JSONArray results = new JSONArray();
+		for (String id : filter.replaceAll("[^0-9 ]", " ").trim().split("\\s+")) {
+			results.put(new JSONObject().put("ID", Integer.parseInt(id)).put("Title", "item " + id));
+		}
+		return Response.json(new JSONObject().put("d", new JSONObject().put("results", results)).toString());
+	}
+
+	/**
+	 * Adds a page of changes after the token, every change is type, item id and token.
+	 */
+	private void page(String after, Object... changes) {
+		JSONArray page = new JSONArray();
+		for (int i = 0; i < changes.length; i += 3) {
+			page.put(new JSONObject().put("ChangeType", changes[i]).put("ItemId", changes[i + 1])
+					.put("ChangeToken", new JSONObject().put("StringValue", changes[i + 2])));
+		}
+		changesAfter.put(after, page);
+	}
+
+	private static List<String> describe(ListChangeSync.ListChanges changes) {
+		return changes.stream().map(ListChangeSync.ItemChange::toString).collect(Collectors.toList());
+	}
+
+	@Test
+	public void firstSyncOnlyRecordsTheCurrentToken() throws Exception {
+		ListChangeSync sync = new ListChangeSync(client, tokens);
+
+		ListChangeSync.ListChanges changes = sync.getChanges("Tasks");
+
+		assertTrue(changes.getChanges().isEmpty());
+		assertNull(changes.getStartToken());
+		assertEquals("t0", changes.getEndToken());
+		assertTrue(startTokens.isEmpty());
+		sync.commit(changes);
+		assertEquals("t0", tokens.load("Tasks"));
+	}
+
+	@Test
+	public void followsTheChangeTokensAndMergesTheChangesOfAnItem() throws Exception {
+		tokens.save("Tasks", "t0");
+		// Add 1 then update it, update 2 then delete it, add 3 then delete it, delete 4 then restore it.
+		page("t0", 1, 1, "t1", 2, 1, "t2", 2, 2, "t3", 1, 3, "t4");
+		page("t4", 3, 2, "t5", 3, 3, "t6", 3, 4, "t7", 7, 4, "t8");
+		ListChangeSync sync = new ListChangeSync(client, tokens);
+
+		ListChangeSync.ListChanges changes = sync.getChanges("Tasks");
+
+		assertEquals(Arrays.asList("ADDED 1", "DELETED 2", "UPDATED 4"), describe(changes));
+		assertEquals(Arrays.asList("t0", "t4", "t8"), startTokens);
+		assertEquals("t0", changes.getStartToken());
+		assertEquals("t8", changes.getEndToken());
+		// Not saved until committed.
+		assertEquals("t0", tokens.load("Tasks"));
+		sync.commit(changes);
+		assertEquals("t8", tokens.load("Tasks"));
+	}
+
+	@Test
+	public void syncReadsTheChangedItemsAndCommits() throws Exception {
+		tokens.save("Tasks", "t0");
+		page("t0", 1, 1, "t1", 2, 5, "t2", 3, 6, "t3");
+		ListChangeSync sync = new ListChangeSync(client, tokens);
+		List<String> received = new ArrayList<>();
+
+		long count = sync.sync("Tasks", null, (change, item) -> received.add(change + " " + (item == null ? null : item.get("Title"))));
+
+		assertEquals(3, count);
+		assertEquals(Arrays.asList("DELETED 6 null", "ADDED 1 item 1", "UPDATED 5 item 5"), received);
+		assertEquals("t3", tokens.load("Tasks"));
+	}
+
+	@Test
+	public void keepsTheTokenWhenReadingTheChangesFails() throws Exception {
+		tokens.save("Tasks", "t0");
+		page("t0", 1, 1, "t1");
+		AtomicInteger requests = new AtomicInteger();
+		// The first page is read, the next one fails.
+		site.on("POST", "/lists/GetByTitle('Tasks')/GetChanges",
+				request -> requests.getAndIncrement() == 0 ? getChanges(request) : Response.status(500));
+		ListChangeSync sync = new ListChangeSync(client, tokens);
+
+		try {
+			sync.sync("Tasks", null, (change, item) -> fail("no change expected before the failure"));
+			fail("expected the 500");
+		} catch (HttpServerErrorException e) {
+			assertEquals(500, e.getRawStatusCode());
+		}
+		assertEquals("t0", tokens.load("Tasks"));
+	}
+
+	@Test
+	public void fileTokenStoreKeepsEveryListAndLeavesNoTemporaryFiles() throws Exception {
+		Path file = tmp.getRoot().toPath().resolve("tokens.properties");
+		ListChangeSync.FileTokenStore store = new ListChangeSync.FileTokenStore(file);
+		assertNull(store.load("Tasks"));
+
+		store.save("Tasks", "1;3;abc;637000000000000000;100");
+		store.save("Documents", "1;3;def;637000000000000000;200");
+		store.save("Tasks", "1;3;abc;637000000000000000;101");
+
+		ListChangeSync.FileTokenStore reopened = new ListChangeSync.FileTokenStore(file);
+		assertEquals("1;3;abc;637000000000000000;101", reopened.load("Tasks"));
+		assertEquals("1;3;def;637000000000000000;200", reopened.load("Documents"));
+		try (Stream<Path> files = Files.list(tmp.getRoot().toPath())) {
+			assertEquals(1, files.count());
+		}
+	}
+}
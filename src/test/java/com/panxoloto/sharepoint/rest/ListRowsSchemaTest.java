@@ -0,0 +1,121 @@
+package com.panxoloto.sharepoint.rest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.panxoloto.sharepoint.rest.StubSharepointSite.Request;
+import com.panxoloto.sharepoint.rest.StubSharepointSite.Response;
+import com.panxoloto.sharepoint.rest.helper.ListSchema;
+import com.panxoloto.sharepoint.rest.helper.ODataQuery;
+
+/**
+ * Reads typed list rows through the on premises client against a stub site answering the schema
+ * of the list in a $batch and a page of items.
+ */
+public class ListRowsSchemaTest {
+
+	private static final String ITEMS = "/_api/lists/GetByTitle('Tasks')/items";
+
+	private StubSharepointSite site;
+	private PLGSharepointOnPremisesClient client;
+	private volatile int version = 3;
+	private volatile String amountType = "Number";
+
+	@Before
+	public void start() throws IOException {
+		site = new StubSharepointSite();
+		site.on("POST", "/_api/$batch", this::batch);
+		site.on("GET", ITEMS, request -> Response.json(new JSONObject().put("d", new JSONObject().put("results", new JSONArray()
+				.put(new JSONObject().put("Id", 1).put("Amount", "2.5").put("Due", "2026-10-16T10:00:00Z").put("AuthorId", 7)
+						.put("TagsId", new JSONObject().put("results", new JSONArray().put(1).put(2))))
+				.put(new JSONObject().put("Id", 2).put("Amount", 4).put("Due", JSONObject.NULL).put("AuthorId", JSONObject.NULL)
+						.put("TagsId", new JSONObject().put("results", new JSONArray()))))).toString()));
+		client = site.onPremisesClient();
+	}
+
+	@After
+	public void stop() throws IOException {
+		site.close();
+	}
+
+	/**
+	 * Answers the list with its version and, when asked, its fields.
+	 */
+	private Response batch(Request request) {
+		StringBuilder body = new StringBuilder();
+		String list = new JSONObject().put("d", new JSONObject().put("SchemaXml", "<List ID=\"{1}\" Version=\"" + version + "\">")).toString();
+		body.append(part(list));
+		if (request.getText().contains("/Fields")) {
+			JSONArray fields = new JSONArray()
+					.put(field("ID", "Counter")).put(field("Amount", amountType)).put(field("Due", "DateTime"))
+					.put(field("Author", "User")).put(field("Tags", "LookupMulti"));
+			body.append(part(new JSONObject().put("d", new JSONObject().put("results", fields)).toString()));
+		}
+		body.append("--rb--\r\n");
+		return new Response(200, body.toString().getBytes(StandardCharsets.UTF_8)).header("Content-Type", "multipart/mixed; boundary=rb");
+	}
+
+	private static String part(String json) {
+		return "--rb\r\nContent-Type: application/http\r\n\r\nHTTP/1.1 200 OK\r\nContent-Type: application/json;odata=verbose\r\n\r\n"
+				+ json + "\r\n";
+	}
+
+	private static JSONObject field(String name, String type) {
+		return new JSONObject().put("InternalName", name).put("TypeAsString", type);
+	}
+
+	@Test
+	public void decodesTheRowsWithTheTypesOfTheSchema() throws Exception {
+		List<String> values = new ArrayList<>();
+
+		long read = client.forEachListRow("Tasks", ODataQuery.create().select("Id", "Amount", "Due", "AuthorId", "TagsId"), rows -> {
+			int amount = rows.columnIndex("Amount");
+			int due = rows.columnIndex("Due");
+			int author = rows.columnIndex("Author");
+			int tags = rows.columnIndex("Tags");
+			for (int row = 0; row < rows.size(); row++) {
+				values.add(rows.getInt(row, rows.columnIndex("Id")) + " " + rows.getDouble(row, amount) + " "
+						+ (rows.isNull(row, due) ? null : Instant.ofEpochMilli(rows.getDateMillis(row, due))) + " "
+						+ rows.getPersonId(row, author) + " " + rows.getLookupIds(row, tags).length);
+			}
+			assertArrayEquals(new int[] {1, 2}, rows.getLookupIds(0, tags));
+		});
+
+		assertEquals(2, read);
+		assertEquals("1 2.5 2026-10-16T10:00:00Z 7 2", values.get(0));
+		assertEquals("2 4.0 null 0 0", values.get(1));
+	}
+
+	@Test
+	public void readsTheSchemaAgainOnlyWhenTheListVersionChanges() throws Exception {
+		client.getListSchemaCache().setRevalidateMillis(0);
+		ListSchema first = client.getListSchema("Tasks");
+
+		// Same version: the schema is checked with the list only.
+		assertSame(first, client.getListSchema("Tasks"));
+		assertEquals(2, site.getRequests("POST", "/_api/$batch").size());
+
+		version = 4;
+		amountType = "Currency";
+		ListSchema changed = client.getListSchema("Tasks");
+
+		// The version check and the refresh with the fields.
+		assertEquals(4, site.getRequests("POST", "/_api/$batch").size());
+		assertEquals(4, changed.getVersion());
+		assertEquals("Currency", changed.getColumn("Amount").getTypeAsString());
+		assertEquals(ListSchema.ColumnType.NUMBER, changed.getColumn("Amount").getType());
+	}
+}
@@ -0,0 +1,164 @@
+package com.panxoloto.sharepoint.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.web.client.HttpServerErrorException;
+
+import com.panxoloto.sharepoint.rest.StubSharepointSite.Request;
+import com.panxoloto.sharepoint.rest.StubSharepointSite.Response;
+import com.panxoloto.sharepoint.rest.helper.ODataQuery;
+
+/**
+ * Scans a list of 25 items in ranges of 10 ids through the on premises client against a stub site
+ * answering the bounds and the ranges from the $orderby and $filter of the requests.
+ */
+public class ListScannerTest {
+
+	private static final String ITEMS = "/_api/lists/GetByTitle('Tasks')/items";
+	private static final Pattern RANGE = Pattern.compile("ID gt (\\d+) and ID le (\\d+)");
+
+	private StubSharepointSite site;
+	private PLGSharepointOnPremisesClient client;
+	private int itemCount = 25;
+
+	@Before
+	public void start() throws IOException {
+		site = new StubSharepointSite();
+		site.on("GET", ITEMS, this::items);
+		client = site.onPremisesClient();
+		client.getListScanner().setPartitionSize(10);
+		client.getListScanner().setConcurrency(2);
+	}
+
+	@After
+	public void stop() throws IOException {
+		site.close();
+	}
+
+	private static String query(Request request) {
+		try {
+			return request.getQuery() == null ? "" : URLDecoder.decode(request.getQuery(), "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Answers the lowest or highest id for the bounds, and the ids of the range otherwise.
+	 */
+	private Response items(Request request) {
+		String query = query(request);
+		List<Integer> ids = new ArrayList<>();
+		Matcher range = RANGE.matcher(query);
+		if (itemCount == 0) {
+			// Empty list.
+		} else if (query.contains("ID asc")) {
+			ids.add(1);
+		} else if (query.contains("ID desc")) {
+			ids.add(itemCount);
+		} else if (range.find()) {
+			for (int id = Integer.parseInt(range.group(1)) + 1; id <= Math.min(Integer.parseInt(range.group(2)), itemCount); id++) {
+				ids.add(id);
+			}
+		}
+		JSONArray results = new JSONArray();
+		for (int id : ids) {
+			results.put(new JSONObject().put("ID", id).put("Title", "item " + id));
+		}
+		String accept = request.getHeader("Accept");
+		if (accept != null && accept.contains("nometadata")) {
+			return Response.json(new JSONObject().put("value", results).toString());
+		}
+		return Response.json(new JSONObject().put("d", new JSONObject().put("results", results)).toString());
+	}
+
+	private List<String> rangesRequested() {
+		List<String> ranges = new ArrayList<>();
+		for (Request request : site.getRequests("GET", ITEMS)) {
+			Matcher range = RANGE.matcher(query(request));
+			if (range.find()) {
+				ranges.add(range.group());
+			}
+		}
+		Collections.sort(ranges);
+		return ranges;
+	}
+
+	private static List<Integer> sortedIds(Stream<Map<String, Object>> items) {
+		return items.map(item -> ((Number) item.get("ID")).intValue()).sorted().collect(Collectors.toList());
+	}
+
+	@Test
+	public void readsEveryRange() throws Exception {
+		List<Integer> ids;
+		try (Stream<Map<String, Object>> items = client.scanListItems("Tasks", null)) {
+			ids = sortedIds(items);
+		}
+
+		List<Integer> expected = new ArrayList<>();
+		for (int id = 1; id <= 25; id++) {
+			expected.add(id);
+		}
+		assertEquals(expected, ids);
+		List<String> ranges = rangesRequested();
+		assertEquals(3, ranges.size());
+		assertEquals("ID gt 0 and ID le 10", ranges.get(0));
+		assertEquals("ID gt 10 and ID le 20", ranges.get(1));
+		assertEquals("ID gt 20 and ID le 25", ranges.get(2));
+	}
+
+	@Test
+	public void keepsTheFilterOfTheQueryInEveryRange() throws Exception {
+		long count = client.scanListItems("Tasks", ODataQuery.create().filter("Title ne 'x'"), item -> { });
+
+		assertEquals(25, count);
+		for (Request request : site.getRequests("GET", ITEMS)) {
+			String query = query(request);
+			if (RANGE.matcher(query).find()) {
+				assertTrue(query, query.contains("and (Title ne 'x')"));
+			}
+		}
+	}
+
+	@Test
+	public void readsNothingFromAnEmptyList() throws Exception {
+		itemCount = 0;
+
+		try (Stream<Map<String, Object>> items = client.scanListItems("Tasks", null)) {
+			assertEquals(0, items.count());
+		}
+		// Only the lowest bound is read.
+		assertEquals(1, site.getRequests("GET", ITEMS).size());
+	}
+
+	@Test
+	public void failsWhenARangeFails() throws Exception {
+		site.on("GET", ITEMS, request -> query(request).contains("ID gt 10 and") ? Response.status(500) : items(request));
+
+		try (Stream<Map<String, Object>> items = client.scanListItems("Tasks", null)) {
+			items.count();
+			fail("expected the error of the range");
+		} catch (IllegalStateException e) {
+			assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof HttpServerErrorException);
+		}
+	}
+}
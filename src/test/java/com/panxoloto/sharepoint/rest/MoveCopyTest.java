@@ -0,0 +1,100 @@
+package com.panxoloto.sharepoint.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.web.client.HttpClientErrorException;
+
+import com.panxoloto.sharepoint.rest.StubSharepointSite.Response;
+import com.panxoloto.sharepoint.rest.helper.MoveCopyOptions;
+
+/**
+ * Moves and copies files and folders with MoveCopyUtil through the on premises clients against a
+ * stub site.
+ */
+public class MoveCopyTest {
+
+	private static final String MOVE_COPY = "/_api/SP.MoveCopyUtil.";
+
+	private StubSharepointSite site;
+	private PLGSharepointClient client;
+
+	@Before
+	public void start() throws IOException {
+		site = new StubSharepointSite();
+		site.on("POST", MOVE_COPY, request -> Response.json("{\"d\":{}}"));
+		client = site.onPremisesClient();
+	}
+
+	@After
+	public void stop() throws IOException {
+		site.close();
+	}
+
+	private JSONObject payload(String method) {
+		assertEquals(1, site.getRequests("POST", MOVE_COPY + method).size());
+		return new JSONObject(site.getRequests("POST", MOVE_COPY + method).get(0).getText());
+	}
+
+	private String absolute(String serverRelativeUrl) {
+		return "http://" + site.getDomain() + serverRelativeUrl;
+	}
+
+	@Test
+	public void copiesAFileWithAbsoluteUrls() throws Exception {
+		client.copyFileByPath("/sites/site/docs/a.txt", "/sites/site/archive/a.txt", true, MoveCopyOptions.create().keepBoth(true));
+
+		JSONObject payload = payload("CopyFileByPath");
+		assertEquals(absolute("/sites/site/docs/a.txt"), payload.getJSONObject("srcPath").getString("DecodedUrl"));
+		assertEquals(absolute("/sites/site/archive/a.txt"), payload.getJSONObject("destPath").getString("DecodedUrl"));
+		assertTrue(payload.getBoolean("overwrite"));
+		assertTrue(payload.getJSONObject("options").getBoolean("KeepBoth"));
+	}
+
+	@Test
+	public void movesAFolderToAnotherSite() throws Exception {
+		String destination = "https://other.example.com/sites/other/docs/folder";
+
+		client.moveFolderByPath("/sites/site/docs/folder", destination, null);
+
+		JSONObject payload = payload("MoveFolderByPath");
+		assertEquals(absolute("/sites/site/docs/folder"), payload.getJSONObject("srcPath").getString("DecodedUrl"));
+		assertEquals(destination, payload.getJSONObject("destPath").getString("DecodedUrl"));
+		// Folders have no overwrite, only the options.
+		assertFalse(payload.has("overwrite"));
+		assertFalse(payload.getJSONObject("options").getBoolean("KeepBoth"));
+	}
+
+	@Test
+	public void movesAFolderWithTheAsyncClient() throws Exception {
+		PLGSharepointAsyncClient asyncClient = site.onPremisesAsyncClient();
+
+		asyncClient.moveFolderByPath("/sites/site/docs/folder", "/sites/site/archive/folder", null).get(10, TimeUnit.SECONDS);
+
+		JSONObject payload = payload("MoveFolderByPath");
+		assertEquals(absolute("/sites/site/docs/folder"), payload.getJSONObject("srcPath").getString("DecodedUrl"));
+		assertEquals(absolute("/sites/site/archive/folder"), payload.getJSONObject("destPath").getString("DecodedUrl"));
+	}
+
+	@Test
+	public void failsWithoutResendingWhenTheTargetExists() throws Exception {
+		site.on("POST", MOVE_COPY, request -> Response.status(400));
+
+		try {
+			client.copyFileByPath("/sites/site/docs/a.txt", "/sites/site/archive/a.txt", false, null);
+			fail("expected the error of the copy");
+		} catch (HttpClientErrorException e) {
+			assertEquals(400, e.getRawStatusCode());
+		}
+		assertFalse(payload("CopyFileByPath").getBoolean("overwrite"));
+	}
+}
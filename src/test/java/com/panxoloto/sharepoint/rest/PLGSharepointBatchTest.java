@@ -0,0 +1,138 @@
+package com.panxoloto.sharepoint.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.client.HttpClientErrorException;
+
+public class PLGSharepointBatchTest {
+
+	private String payload;
+
+	/**
+	 * Transport with the conventions of the online client: file urls relative to the site and the
+	 * new folder sent as it is.
+	 */
+	private PLGSharepointBatch batch(String response) {
+		return new PLGSharepointBatch(new PLGSharepointBatch.BatchTransport() {
+			@Override
+			public URI resolve(String apiPath) throws URISyntaxException {
+				return new URI("https", "contoso.sharepoint.com", "/sites/site" + apiPath, null);
+			}
+
+			@Override
+			public ResponseEntity<byte[]> send(String contentType, byte[] body) throws Exception {
+				payload = URLDecoder.decode(new String(body, StandardCharsets.UTF_8).replace("+", "%2B"), "UTF-8");
+				HttpHeaders headers = new HttpHeaders();
+				headers.setContentType(MediaType.parseMediaType("multipart/mixed; boundary=rb"));
+				return new ResponseEntity<>(response.getBytes(StandardCharsets.UTF_8), headers, HttpStatus.OK);
+			}
+
+			@Override
+			public String getFileUrl(String fileServerRelativeUrl) {
+				return "/sites/site/" + fileServerRelativeUrl;
+			}
+
+			@Override
+			public String getNewFolderUrl(String baseFolderRemoteRelativeUrl, String folder) {
+				return folder;
+			}
+		});
+	}
+
+	private static String part(String statusLine) {
+		return "--rb\r\nContent-Type: application/http\r\n\r\n" + statusLine + "\r\nContent-Type: application/json\r\n\r\n{}\r\n";
+	}
+
+	private static String changeset(String... statusLines) {
+		StringBuilder changeset = new StringBuilder("--rb\r\nContent-Type: multipart/mixed; boundary=cs\r\n\r\n");
+		for (String statusLine : statusLines) {
+			changeset.append(part(statusLine).replace("--rb", "--cs"));
+		}
+		return changeset.append("--cs--\r\n").toString();
+	}
+
+	@Test
+	public void failsEveryWriteOfAFailedChangeSet() throws Exception {
+		// The change set of the two writes is answered with a single error.
+		PLGSharepointBatch batch = batch(part("HTTP/1.1 400 Bad Request") + part("HTTP/1.1 200 OK") + "--rb--\r\n");
+		CompletableFuture<BatchResponse> delete = batch.deleteFile("Shared Documents/a.txt");
+		CompletableFuture<BatchResponse> folder = batch.createFolder("/sites/site/Shared Documents", "/sites/site/Shared Documents/b", null);
+		CompletableFuture<BatchResponse> info = batch.getFileInfo("Shared Documents/c.txt");
+
+		batch.execute();
+
+		for (CompletableFuture<BatchResponse> write : Arrays.asList(delete, folder)) {
+			try {
+				write.get();
+				fail("write of the failed change set completed");
+			} catch (ExecutionException e) {
+				assertEquals(400, ((HttpClientErrorException) e.getCause()).getRawStatusCode());
+			}
+		}
+		assertEquals(200, info.get().getStatusCode());
+	}
+
+	@Test
+	public void matchesTheResponsesOfAChangeSet() throws Exception {
+		PLGSharepointBatch batch = batch(changeset("HTTP/1.1 204 No Content", "HTTP/1.1 201 Created")
+				+ part("HTTP/1.1 200 OK") + "--rb--\r\n");
+		CompletableFuture<BatchResponse> delete = batch.deleteFile("Shared Documents/a.txt");
+		CompletableFuture<BatchResponse> folder = batch.createFolder("/sites/site/Shared Documents", "/sites/site/Shared Documents/b", null);
+		CompletableFuture<BatchResponse> info = batch.getFileInfo("Shared Documents/c.txt");
+
+		batch.execute();
+
+		assertEquals(204, delete.get().getStatusCode());
+		assertEquals(201, folder.get().getStatusCode());
+		assertEquals(200, info.get().getStatusCode());
+	}
+
+	@Test
+	public void followsTheUrlConventionsOfTheClient() throws Exception {
+		PLGSharepointBatch batch = batch(part("HTTP/1.1 204 No Content") + part("HTTP/1.1 201 Created") + "--rb--\r\n");
+		batch.deleteFile("Shared Documents/a.txt");
+		batch.createFolder("/sites/site/Shared Documents", "/sites/site/Shared Documents/b", null);
+
+		batch.execute();
+
+		assertTrue(payload, payload.contains("GetFileByServerRelativeUrl('/sites/site/Shared Documents/a.txt')"));
+		String folder = payload.substring(payload.indexOf("{\"")).trim();
+		folder = folder.substring(0, folder.indexOf('\n')).trim();
+		assertEquals("/sites/site/Shared Documents/b", new JSONObject(folder).getString("ServerRelativeUrl"));
+	}
+
+	@Test
+	public void failsEveryOperationOnAMalformedStatusLine() throws Exception {
+		PLGSharepointBatch batch = batch(part("HTTP/1.1 OK") + "--rb--\r\n");
+		CompletableFuture<BatchResponse> info = batch.getFileInfo("Shared Documents/a.txt");
+
+		try {
+			batch.execute();
+			fail("malformed response parsed");
+		} catch (BatchParseException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("HTTP/1.1 OK"));
+		}
+		try {
+			info.get();
+			fail("operation completed");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof BatchParseException);
+		}
+	}
+}
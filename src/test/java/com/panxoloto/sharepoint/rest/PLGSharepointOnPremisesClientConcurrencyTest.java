@@ -0,0 +1,152 @@
+package com.panxoloto.sharepoint.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.util.StreamUtils;
+
+import com.panxoloto.sharepoint.rest.helper.HttpClientPoolConfig;
+import com.panxoloto.sharepoint.rest.helper.HttpProtocols;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * One client shared by many threads against a stub site: every request must carry its own
+ * method override, digest and body, and get its own response back.
+ */
+public class PLGSharepointOnPremisesClientConcurrencyTest {
+
+	private static final int THREADS = 16;
+	private static final int ITERATIONS = 20;
+	private static final Pattern FILE = Pattern.compile("GetFileByServerRelativeUrl\\('(.*?)'\\)(/listitemallfields)?$");
+
+	private HttpServer server;
+	private PLGSharepointOnPremisesClient client;
+
+	private final AtomicInteger digests = new AtomicInteger();
+	private final AtomicInteger requests = new AtomicInteger();
+	private final List<String> mismatches = Collections.synchronizedList(new ArrayList<>());
+
+	@Before
+	public void start() throws Exception {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(Executors.newFixedThreadPool(THREADS));
+		server.createContext("/sites/site/_api/contextinfo", exchange -> {
+			digests.incrementAndGet();
+			respond(exchange, new JSONObject().put("d", new JSONObject().put("GetContextWebInformation",
+					new JSONObject().put("FormDigestValue", "digest").put("FormDigestTimeoutSeconds", 1800))).toString());
+		});
+		server.createContext("/sites/site/_api/web", this::handle);
+		server.start();
+
+		HttpClientPoolConfig config = new HttpClientPoolConfig();
+		config.setMaxPerRoute(8);
+		client = new PLGSharepointOnPremisesClient("user", "passwd", "domain", "127.0.0.1:" + server.getAddress().getPort(), "/sites/site", config);
+		client.setProtocol(HttpProtocols.HTTP);
+	}
+
+	@After
+	public void stop() throws IOException {
+		client.close();
+		server.stop(0);
+		((ExecutorService) server.getExecutor()).shutdownNow();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+		String path = URLDecoder.decode(exchange.getRequestURI().getRawPath(), "UTF-8");
+		String method = exchange.getRequestMethod();
+		String override = exchange.getRequestHeaders().getFirst("X-HTTP-Method");
+		String body = new String(StreamUtils.copyToByteArray(exchange.getRequestBody()), StandardCharsets.UTF_8);
+		Matcher file = FILE.matcher(path);
+		if (!file.find()) {
+			mismatches.add("unexpected " + method + " " + path);
+			respond(exchange, "{}");
+			return;
+		}
+		String name = file.group(1);
+		String expected;
+		if (name.contains("/read-")) {
+			expected = "GET null";
+		} else if (name.contains("/update-")) {
+			expected = "POST MERGE";
+			if (file.group(2) == null || !body.contains("\"Title\":\"" + name + "\"")) {
+				mismatches.add("body " + body + " sent to " + path);
+			}
+		} else {
+			expected = "POST DELETE";
+		}
+		if (!expected.equals(method + " " + override)) {
+			mismatches.add(method + " " + override + " sent to " + path);
+		}
+		if (method.equals("POST") && !"digest".equals(exchange.getRequestHeaders().getFirst("X-RequestDigest"))) {
+			mismatches.add("no digest sent to " + path);
+		}
+		respond(exchange, new JSONObject().put("d", new JSONObject().put("ServerRelativeUrl", name)).toString());
+	}
+
+	private static void respond(HttpExchange exchange, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().add("Content-Type", "application/json;odata=verbose");
+		exchange.sendResponseHeaders(200, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	@Test
+	public void sharesOneClientBetweenManyThreads() throws Exception {
+		ExecutorService workers = Executors.newFixedThreadPool(THREADS);
+		CountDownLatch ready = new CountDownLatch(THREADS);
+		try {
+			List<Future<Void>> futures = new ArrayList<>();
+			for (int t = 0; t < THREADS; t++) {
+				String prefix = "/sites/site/docs/t" + t;
+				futures.add(workers.submit((Callable<Void>) () -> {
+					ready.countDown();
+					ready.await();
+					for (int i = 0; i < ITERATIONS; i++) {
+						String read = prefix + "/read-" + i + ".txt";
+						assertEquals(read, client.getFileInfo(read).getJSONObject("d").getString("ServerRelativeUrl"));
+						String update = prefix + "/update-" + i + ".txt";
+						client.updateFileMetadata(update, new JSONObject().put("Title", update));
+						assertTrue(client.deleteFile(prefix + "/delete-" + i + ".txt"));
+					}
+					return null;
+				}));
+			}
+			for (Future<Void> future : futures) {
+				future.get(60, TimeUnit.SECONDS);
+			}
+		} finally {
+			workers.shutdownNow();
+		}
+
+		assertTrue(mismatches.toString(), mismatches.isEmpty());
+		assertEquals(THREADS * ITERATIONS * 3, requests.get());
+		// The digest is shared, not fetched by every thread.
+		assertEquals(1, digests.get());
+	}
+}
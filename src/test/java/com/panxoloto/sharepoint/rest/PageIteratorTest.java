@@ -0,0 +1,119 @@
+package com.panxoloto.sharepoint.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.panxoloto.sharepoint.rest.StubSharepointSite.Request;
+import com.panxoloto.sharepoint.rest.StubSharepointSite.Response;
+
+/**
+ * Iterates list items through the on premises client against a stub site answering three pages
+ * linked by __next.
+ */
+public class PageIteratorTest {
+
+	private static final String ITEMS = "/_api/lists/GetByTitle('Tasks')/items";
+
+	private StubSharepointSite site;
+	private PLGSharepointClient client;
+
+	@Before
+	public void start() throws IOException {
+		site = new StubSharepointSite();
+		site.on("GET", ITEMS, this::page);
+		client = site.onPremisesClient();
+	}
+
+	@After
+	public void stop() throws IOException {
+		site.close();
+	}
+
+	/**
+	 * Pages of two items, the skiptoken is the last id of the previous page.
+	 */
+	private Response page(Request request) {
+		String query = request.getQuery() == null ? "" : request.getQuery();
+		int last = query.contains("p_ID%3d") ? Integer.parseInt(query.replaceAll(".*p_ID%3d(\\d+).*", "$1")) : 0;
+		JSONArray results = new JSONArray();
+		for (int id = last + 1; id <= last + 2; id++) {
+			results.put(new JSONObject().put("Id", id).put("Title", "item " + id));
+		}
+		JSONObject d = new JSONObject().put("results", results);
+		if (last + 2 < 6) {
+			d.put("__next", "http://" + site.getDomain() + StubSharepointSite.SITE + ITEMS + "?%24skiptoken=Paged%3dTRUE%26p_ID%3d" + (last + 2));
+		}
+		return Response.json(new JSONObject().put("d", d).toString());
+	}
+
+	private static List<Integer> ids(Stream<JSONObject> items) {
+		return items.map(item -> item.getInt("Id")).collect(Collectors.toList());
+	}
+
+	@Test
+	public void followsTheNextLinksInOrder() throws Exception {
+		List<Integer> ids = new ArrayList<>();
+		try (PageIterator<JSONObject> items = client.iterateListItems("Tasks", (String) null)) {
+			while (items.hasNext()) {
+				ids.add(items.next().getInt("Id"));
+			}
+		}
+
+		assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6), ids);
+		List<Request> requests = site.getRequests("GET", ITEMS);
+		assertEquals(3, requests.size());
+		assertTrue(requests.get(2).getQuery(), requests.get(2).getQuery().contains("p_ID%3d4"));
+	}
+
+	@Test
+	public void streamsTheItemsOfEveryPage() throws Exception {
+		try (Stream<JSONObject> items = client.streamListItems("Tasks", null)) {
+			assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6), ids(items));
+		}
+	}
+
+	@Test
+	public void failsWhenANextPageFails() throws Exception {
+		site.on("GET", ITEMS, request -> request.getQuery() != null && request.getQuery().contains("p_ID%3d2")
+				? Response.status(500) : page(request));
+		List<Integer> ids = new ArrayList<>();
+
+		try (PageIterator<JSONObject> items = client.iterateListItems("Tasks", (String) null)) {
+			while (items.hasNext()) {
+				ids.add(items.next().getInt("Id"));
+			}
+			fail("expected the failure of the second page");
+		} catch (IllegalStateException e) {
+			assertEquals("Error retrieving next page", e.getMessage());
+		}
+		// The items of the first page are consumed before the failure.
+		assertEquals(Arrays.asList(1, 2), ids);
+	}
+
+	@Test
+	public void closingStopsFetchingPages() throws Exception {
+		try (PageIterator<JSONObject> items = client.iterateListItems("Tasks", (String) null)) {
+			assertTrue(items.hasNext());
+			assertEquals(1, items.next().getInt("Id"));
+			items.close();
+			// Only the rest of the page being consumed, the pages fetched ahead are discarded.
+			assertEquals(2, items.next().getInt("Id"));
+			assertFalse(items.hasNext());
+		}
+	}
+}
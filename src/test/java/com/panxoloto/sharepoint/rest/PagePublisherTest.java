@@ -0,0 +1,184 @@
+package com.panxoloto.sharepoint.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.springframework.web.client.HttpServerErrorException;
+
+import com.panxoloto.sharepoint.rest.StubSharepointSite.Request;
+import com.panxoloto.sharepoint.rest.StubSharepointSite.Response;
+import com.panxoloto.sharepoint.rest.helper.ODataQuery;
+
+/**
+ * Publishes list items through the on premises async client against a stub site answering three
+ * pages of two items linked by __next.
+ */
+public class PagePublisherTest {
+
+	private static final String ITEMS = "/_api/lists/GetByTitle('Tasks')/items";
+
+	private StubSharepointSite site;
+	private PLGSharepointAsyncClient client;
+
+	/**
+	 * Records the signals, requesting only what the test asks for.
+	 */
+	private static class RecordingSubscriber implements Subscriber<JSONObject> {
+		private final List<Integer> ids = new ArrayList<>();
+		private final CountDownLatch terminated = new CountDownLatch(1);
+		private volatile Subscription subscription;
+		private volatile Throwable error;
+		private volatile boolean completed;
+
+		@Override
+		public void onSubscribe(Subscription subscription) {
+			this.subscription = subscription;
+		}
+
+		@Override
+		public void onNext(JSONObject item) {
+			synchronized (ids) {
+				ids.add(item.getInt("Id"));
+				ids.notifyAll();
+			}
+		}
+
+		@Override
+		public void onError(Throwable error) {
+			this.error = error;
+			terminated.countDown();
+		}
+
+		@Override
+		public void onComplete() {
+			completed = true;
+			terminated.countDown();
+		}
+
+		List<Integer> awaitItems(int count) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + 10000;
+			synchronized (ids) {
+				while (ids.size() < count && System.currentTimeMillis() < deadline) {
+					ids.wait(100);
+				}
+				return new ArrayList<>(ids);
+			}
+		}
+
+		void awaitTermination() throws InterruptedException {
+			assertTrue("not terminated", terminated.await(10, TimeUnit.SECONDS));
+		}
+	}
+
+	@Before
+	public void start() throws IOException {
+		site = new StubSharepointSite();
+		site.on("GET", ITEMS, this::page);
+		client = site.onPremisesAsyncClient();
+	}
+
+	@After
+	public void stop() throws IOException {
+		site.close();
+	}
+
+	/**
+	 * Pages of two items, the skiptoken is the last id of the previous page.
+	 */
+	private Response page(Request request) {
+		String query = request.getQuery() == null ? "" : request.getQuery();
+		int last = query.contains("p_ID%3d") ? Integer.parseInt(query.replaceAll(".*p_ID%3d(\\d+).*", "$1")) : 0;
+		JSONArray results = new JSONArray();
+		for (int id = last + 1; id <= last + 2; id++) {
+			results.put(new JSONObject().put("Id", id));
+		}
+		JSONObject d = new JSONObject().put("results", results);
+		if (last + 2 < 6) {
+			d.put("__next", "http://" + site.getDomain() + StubSharepointSite.SITE + ITEMS + "?%24skiptoken=Paged%3dTRUE%26p_ID%3d" + (last + 2));
+		}
+		return Response.json(new JSONObject().put("d", d).toString());
+	}
+
+	private int pageRequests() {
+		return site.getRequests("GET", ITEMS).size();
+	}
+
+	@Test
+	public void fetchesTheNextPageOnlyOnDemand() throws Exception {
+		RecordingSubscriber subscriber = new RecordingSubscriber();
+		client.getListItemsPublisher("Tasks", (String) null).subscribe(subscriber);
+		assertEquals(0, pageRequests());
+
+		subscriber.subscription.request(1);
+		assertEquals(Arrays.asList(1), subscriber.awaitItems(1));
+		// Item 2 is still held, no other page is fetched.
+		Thread.sleep(100);
+		assertEquals(1, pageRequests());
+
+		subscriber.subscription.request(2);
+		assertEquals(Arrays.asList(1, 2, 3), subscriber.awaitItems(3));
+		assertEquals(2, pageRequests());
+
+		subscriber.subscription.request(Long.MAX_VALUE);
+		subscriber.awaitTermination();
+		assertTrue(subscriber.completed);
+		assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6), subscriber.awaitItems(6));
+		assertEquals(3, pageRequests());
+	}
+
+	@Test
+	public void signalsTheErrorOfANextPage() throws Exception {
+		site.on("GET", ITEMS, request -> request.getQuery() != null && request.getQuery().contains("p_ID%3d2")
+				? Response.status(500) : page(request));
+		RecordingSubscriber subscriber = new RecordingSubscriber();
+		client.getListItemsPublisher("Tasks", (String) null).subscribe(subscriber);
+
+		subscriber.subscription.request(Long.MAX_VALUE);
+		subscriber.awaitTermination();
+
+		assertTrue(String.valueOf(subscriber.error), subscriber.error instanceof HttpServerErrorException);
+		assertEquals(Arrays.asList(1, 2), subscriber.awaitItems(2));
+	}
+
+	@Test
+	public void stopsFetchingOnCancel() throws Exception {
+		RecordingSubscriber subscriber = new RecordingSubscriber();
+		client.getListItemsPublisher("Tasks", (String) null).subscribe(subscriber);
+
+		subscriber.subscription.request(1);
+		subscriber.awaitItems(1);
+		subscriber.subscription.cancel();
+		subscriber.subscription.request(10);
+		Thread.sleep(100);
+
+		assertEquals(Arrays.asList(1), subscriber.awaitItems(1));
+		assertEquals(1, pageRequests());
+		assertNull(subscriber.error);
+	}
+
+	@Test
+	public void rejectsTopOnFolderPublishers() {
+		try {
+			client.getFolderFilesPublisher("/sites/site/docs", ODataQuery.create().top(10));
+			fail("expected top to be rejected");
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("aren't paged"));
+		}
+	}
+}
@@ -0,0 +1,204 @@
+package com.panxoloto.sharepoint.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.panxoloto.sharepoint.rest.StubSharepointSite.Response;
+import com.panxoloto.sharepoint.rest.helper.Permission;
+
+/**
+ * Reconciles folder permissions through the on premises client against a stub site answering its $batch requests.
+ */
+public class PermissionReconcilerTest {
+
+	private static final String PARENT = "/sites/site/docs/parent";
+	private static final String CHILD = PARENT + "/child";
+	private static final int ALICE = 1;
+	private static final int BOB = 2;
+	private static final int CALLER = 99;
+
+	private static final Pattern REQUEST = Pattern.compile("^(GET|POST) (\\S+) HTTP/1.1$", Pattern.MULTILINE);
+	private static final Pattern FOLDER = Pattern.compile("GetFolderByServerRelativeUrl\\('(.*?)'\\)/ListItemAllFields(.*)");
+	private static final Pattern PRINCIPAL = Pattern.compile("principalid[=(](\\d+)", Pattern.CASE_INSENSITIVE);
+	private static final Pattern ROLE = Pattern.compile("roledefid=(\\d+)", Pattern.CASE_INSENSITIVE);
+
+	/**
+	 * Folders with unique permissions (principal id to role definition ids) or inheriting them
+	 * (null), breaking the inheritance grants the caller Full Control like sharepoint does.
+	 */
+	private final Map<String, Map<Integer, Set<String>>> folders = new TreeMap<>();
+	private final List<String> writes = new ArrayList<>();
+
+	private StubSharepointSite site;
+	private PLGSharepointClient client;
+
+	@Before
+	public void start() throws IOException {
+		site = new StubSharepointSite();
+		site.on("POST", "/_api/$batch", request -> respond(request.getText()));
+		client = site.onPremisesClient();
+	}
+
+	@After
+	public void stop() throws IOException {
+		site.close();
+	}
+
+	/**
+	 * Answers every operation of the $batch request, the writes in a change set like sharepoint does.
+	 */
+	private synchronized Response respond(String payload) throws UnsupportedEncodingException {
+		StringBuilder body = new StringBuilder();
+		boolean inChangeset = false;
+		for (String part : payload.split("\r\n--")) {
+			Matcher request = REQUEST.matcher(part);
+			if (!request.find()) {
+				continue;
+			}
+			String url = URLDecoder.decode(request.group(2).replaceFirst("\\?.*", ""), "UTF-8");
+			boolean delete = part.contains("X-HTTP-Method: DELETE");
+			boolean write = !"GET".equals(request.group(1));
+			if (inChangeset && !write) {
+				body.append("--cs--\r\n");
+			} else if (!inChangeset && write) {
+				body.append("--rb\r\nContent-Type: multipart/mixed; boundary=cs\r\n\r\n");
+			}
+			inChangeset = write;
+			body.append(write ? "--cs" : "--rb")
+					.append("\r\nContent-Type: application/http\r\n\r\nHTTP/1.1 200 OK\r\nContent-Type: application/json\r\n\r\n")
+					.append(handle(request.group(1), url, delete)).append("\r\n");
+		}
+		if (inChangeset) {
+			body.append("--cs--\r\n");
+		}
+		body.append("--rb--\r\n");
+		return new Response(200, body.toString().getBytes(StandardCharsets.UTF_8)).header("Content-Type", "multipart/mixed; boundary=rb");
+	}
+
+	private String handle(String method, String url, boolean delete) {
+		Matcher folderMatcher = FOLDER.matcher(url);
+		if (!folderMatcher.find()) {
+			throw new IllegalArgumentException(url);
+		}
+		String folder = folderMatcher.group(1);
+		String action = folderMatcher.group(2);
+		if (method.equals("GET")) {
+			return read(folder).toString();
+		}
+		writes.add(folder + action + (delete ? " DELETE" : ""));
+		Map<Integer, Set<String>> roles = folders.get(folder);
+		if (action.startsWith("/breakroleinheritance")) {
+			Map<Integer, Set<String>> granted = new TreeMap<>();
+			granted.put(CALLER, new LinkedHashSet<>(Collections.singleton(Permission.Full_Control.toString())));
+			folders.put(folder, granted);
+			return "{}";
+		}
+		Matcher principal = PRINCIPAL.matcher(action);
+		principal.find();
+		int id = Integer.parseInt(principal.group(1));
+		Matcher role = ROLE.matcher(action);
+		if (delete) {
+			roles.remove(id);
+		} else if (action.contains("/addroleassignment")) {
+			role.find();
+			roles.computeIfAbsent(id, key -> new LinkedHashSet<>()).add(role.group(1));
+		} else {
+			role.find();
+			roles.get(id).remove(role.group(1));
+		}
+		return "{}";
+	}
+
+	private JSONObject read(String folder) {
+		Map<Integer, Set<String>> roles = effective(folder);
+		JSONArray assignments = new JSONArray();
+		for (Map.Entry<Integer, Set<String>> entry : roles.entrySet()) {
+			JSONArray bindings = new JSONArray();
+			for (String roleDefId : entry.getValue()) {
+				bindings.put(new JSONObject().put("Id", Integer.parseInt(roleDefId)).put("Hidden", false));
+			}
+			assignments.put(new JSONObject().put("PrincipalId", entry.getKey())
+					.put("Member", new JSONObject().put("Id", entry.getKey()).put("PrincipalType", 1)
+							.put("Email", "user" + entry.getKey() + "@contoso.com").put("LoginName", "i:0#.f|membership|user" + entry.getKey()))
+					.put("RoleDefinitionBindings", new JSONObject().put("results", bindings)));
+		}
+		return new JSONObject().put("d", new JSONObject().put("HasUniqueRoleAssignments", folders.get(folder) != null)
+				.put("RoleAssignments", new JSONObject().put("results", assignments)));
+	}
+
+	private Map<Integer, Set<String>> effective(String folder) {
+		String path = folder;
+		while (folders.get(path) == null) {
+			path = path.substring(0, path.lastIndexOf('/'));
+		}
+		return folders.get(path);
+	}
+
+	private static Map<Integer, Set<String>> roles(Object... idsAndPermissions) {
+		Map<Integer, Set<String>> roles = new TreeMap<>();
+		for (int i = 0; i < idsAndPermissions.length; i += 2) {
+			roles.put((Integer) idsAndPermissions[i], new LinkedHashSet<>(Collections.singleton(idsAndPermissions[i + 1].toString())));
+		}
+		return roles;
+	}
+
+	@Test
+	public void comparesInheritingSubfoldersWithTheNewPermissionsOfTheirParent() throws Exception {
+		folders.put("/sites/site/docs", roles(ALICE, Permission.Read));
+		folders.put(PARENT, roles(ALICE, Permission.Read));
+		folders.put(CHILD, null);
+		// Subfolder first, the parents are reconciled before it anyway.
+		Map<String, Map<String, Permission>> desired = new LinkedHashMap<>();
+		desired.put(CHILD, Collections.singletonMap("user1@contoso.com", Permission.Read));
+		desired.put(PARENT, Collections.singletonMap("user1@contoso.com", Permission.Edit));
+
+		PermissionReconciler.ReconcileResult result = new PermissionReconciler(client).reconcile(desired);
+
+		assertTrue(result.getFailures().isEmpty());
+		assertEquals(roles(ALICE, Permission.Edit), folders.get(PARENT));
+		assertEquals(roles(ALICE, Permission.Read), folders.get(CHILD));
+		assertEquals(1, result.getInheritanceBroken());
+	}
+
+	@Test
+	public void removesTheFullControlGrantedByBreakingTheInheritance() throws Exception {
+		folders.put(PARENT, roles(ALICE, Permission.Read, BOB, Permission.Read));
+		folders.put(CHILD, null);
+		PermissionReconciler reconciler = new PermissionReconciler(client);
+		reconciler.setRemoveUnlisted(false);
+
+		reconciler.reconcile(CHILD, Collections.singletonMap("user1@contoso.com", Permission.Edit));
+
+		assertEquals(roles(ALICE, Permission.Edit), folders.get(CHILD));
+		assertFalse(folders.get(CHILD).containsKey(CALLER));
+		// The caller keeps Full Control until the desired roles are in place.
+		assertEquals(CHILD + "/roleAssignments/getbyprincipalid(" + CALLER + ") DELETE", writes.get(writes.size() - 1));
+
+		// Nothing left to change on the next run.
+		writes.clear();
+		reconciler.reconcile(CHILD, Collections.singletonMap("user1@contoso.com", Permission.Edit));
+		assertTrue(writes.toString(), writes.isEmpty());
+	}
+}
@@ -0,0 +1,156 @@
+package com.panxoloto.sharepoint.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpClientErrorException;
+
+import com.panxoloto.sharepoint.rest.StubSharepointSite.Response;
+
+/**
+ * Resolves principals through the on premises client against a stub site answering its $batch requests.
+ */
+public class PrincipalCacheTest {
+
+	private static final Pattern REQUEST = Pattern.compile("^(GET|POST) (\\S+) HTTP/1.1$", Pattern.MULTILINE);
+
+	/** Requests of every batch, method and decoded url. */
+	private final List<String> requests = new ArrayList<>();
+
+	private StubSharepointSite site;
+	private PLGSharepointClient client;
+
+	@Before
+	public void start() throws IOException {
+		site = new StubSharepointSite();
+		site.on("POST", "/_api/$batch", request -> respond(request.getText()));
+		client = site.onPremisesClient();
+	}
+
+	@After
+	public void stop() throws IOException {
+		site.close();
+	}
+
+	private PrincipalCache cache() {
+		PrincipalCache cache = new PrincipalCache(client);
+		cache.setPreloadOnFirstUse(false);
+		return cache;
+	}
+
+	/**
+	 * Answers every operation of the $batch request, the writes in a change set like sharepoint does.
+	 */
+	private synchronized Response respond(String payload) throws UnsupportedEncodingException {
+		StringBuilder body = new StringBuilder();
+		boolean inChangeset = false;
+		for (String part : payload.split("\r\n--")) {
+			Matcher request = REQUEST.matcher(part);
+			if (!request.find()) {
+				continue;
+			}
+			String url = URLDecoder.decode(request.group(2), "UTF-8");
+			requests.add(request.group(1) + " " + url);
+			boolean write = !"GET".equals(request.group(1));
+			if (inChangeset && !write) {
+				body.append("--cs--\r\n");
+			} else if (!inChangeset && write) {
+				body.append("--rb\r\nContent-Type: multipart/mixed; boundary=cs\r\n\r\n");
+			}
+			inChangeset = write;
+			body.append(write ? "--cs" : "--rb").append("\r\nContent-Type: application/http\r\n\r\n");
+			if (url.endsWith("/ensureuser") && part.contains("unknown@contoso.com")) {
+				// What sharepoint answers for a login it can't resolve.
+				body.append("HTTP/1.1 500 Internal Server Error\r\nContent-Type: application/json\r\n\r\n")
+						.append("{\"error\":{\"message\":{\"value\":\"The specified user could not be found.\"}}}");
+			} else if (url.endsWith("/ensureuser") && part.contains("throttled@contoso.com")) {
+				body.append("HTTP/1.1 429 Too Many Requests\r\nRetry-After: 1\r\nContent-Type: application/json\r\n\r\n{}");
+			} else if (url.contains("getByEmail('unknown@contoso.com')")) {
+				body.append("HTTP/1.1 404 Not Found\r\nContent-Type: application/json\r\n\r\n{}");
+			} else {
+				body.append("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\n\r\n")
+						.append(new JSONObject().put("d", new JSONObject().put("Id", 7).put("Email", "alice@contoso.com")
+								.put("LoginName", "i:0#.f|membership|alice@contoso.com").put("PrincipalType", 1)));
+			}
+			body.append("\r\n");
+		}
+		if (inChangeset) {
+			body.append("--cs--\r\n");
+		}
+		body.append("--rb--\r\n");
+		return new Response(200, body.toString().getBytes(StandardCharsets.UTF_8)).header("Content-Type", "multipart/mixed; boundary=rb");
+	}
+
+	@Test
+	public void treatsAFailedEnsureuserAsNotFound() throws Exception {
+		PrincipalCache cache = cache();
+
+		assertEquals(Collections.singletonMap("alice@contoso.com", 7),
+				cache.resolveAll(Arrays.asList("alice@contoso.com", "unknown@contoso.com")));
+		try {
+			cache.getIds(Collections.singletonList("unknown@contoso.com"));
+			fail("expected the 404");
+		} catch (HttpClientErrorException e) {
+			assertEquals(HttpStatus.NOT_FOUND, e.getStatusCode());
+		}
+		// Remembered as not found, no second lookup.
+		assertEquals(requests.toString(), 2, requests.size());
+	}
+
+	@Test
+	public void throwsFailedLookupsWithoutCachingThem() throws Exception {
+		PrincipalCache cache = cache();
+
+		for (int i = 0; i < 2; i++) {
+			try {
+				cache.getIds(Arrays.asList("alice@contoso.com", "throttled@contoso.com"));
+				fail("expected the 429");
+			} catch (HttpClientErrorException e) {
+				assertEquals(HttpStatus.TOO_MANY_REQUESTS, e.getStatusCode());
+			}
+		}
+		// Alice is cached, the throttled lookup is sent again.
+		assertEquals(requests.toString(), 3, requests.size());
+		assertTrue(requests.get(2), requests.get(2).endsWith("/ensureuser"));
+		assertEquals(Collections.singletonMap("alice@contoso.com", 7), cache.resolveAll(Collections.singletonList("alice@contoso.com")));
+	}
+
+	@Test
+	public void resolvesExistingPrincipalsWithoutAddingUsers() throws Exception {
+		PrincipalCache cache = cache();
+
+		assertEquals(Collections.singletonList(7), cache.getExistingIds(Collections.singletonList("alice@contoso.com")));
+		assertTrue(cache.resolveExisting(Collections.singletonList("i:0#.f|membership|bob@contoso.com")).containsKey("i:0#.f|membership|bob@contoso.com"));
+		assertTrue(cache.resolveExisting(Collections.singletonList("unknown@contoso.com")).isEmpty());
+
+		for (String request : requests) {
+			assertFalse(request, request.contains("ensureuser"));
+		}
+		assertTrue(requests.get(0), requests.get(0).endsWith("/sites/site/_api/web/SiteUsers/getByEmail('alice@contoso.com')"));
+		assertTrue(requests.get(1), requests.get(1).endsWith("/sites/site/_api/web/SiteUsers/getByLoginName('i:0#.f|membership|bob@contoso.com')"));
+
+		// Not in the site yet, ensureuser may still add it.
+		requests.clear();
+		cache.resolveAll(Collections.singletonList("unknown@contoso.com"));
+		assertEquals(1, requests.size());
+		assertTrue(requests.get(0), requests.get(0).endsWith("/ensureuser"));
+	}
+}
@@ -0,0 +1,149 @@
+package com.panxoloto.sharepoint.rest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.panxoloto.sharepoint.rest.StubSharepointSite.Request;
+import com.panxoloto.sharepoint.rest.StubSharepointSite.Response;
+import com.panxoloto.sharepoint.rest.helper.CamlQuery;
+
+/**
+ * Reads list rows through RenderListDataAsStream with the on premises client against a stub site
+ * answering three pages of two rows linked by NextHref.
+ */
+public class RenderListDataTest {
+
+	private static final String RENDER = "/_api/web/lists/GetByTitle('Tasks')/RenderListDataAsStream";
+
+	private StubSharepointSite site;
+	private PLGSharepointClient client;
+	private final CamlQuery query = CamlQuery.create().viewFields("ID", "Title").rowLimit(2);
+
+	@Before
+	public void start() throws IOException {
+		site = new StubSharepointSite();
+		site.on("POST", RENDER, this::page);
+		client = site.onPremisesClient();
+	}
+
+	@After
+	public void stop() throws IOException {
+		site.close();
+	}
+
+	/**
+	 * Pages of two rows, the NextHref has the last id of the page.
+	 */
+	private JSONObject rows(Request request) {
+		String query = request.getQuery() == null ? "" : request.getQuery();
+		int last = query.contains("p_ID=") ? Integer.parseInt(query.replaceAll(".*p_ID=(\\d+).*", "$1")) : 0;
+		JSONArray rows = new JSONArray();
+		for (int id = last + 1; id <= last + 2; id++) {
+			rows.put(new JSONObject().put("ID", String.valueOf(id)).put("Title", "item " + id));
+		}
+		JSONObject json = new JSONObject().put("Row", rows).put("FirstRow", last + 1);
+		if (last + 2 < 6) {
+			json.put("NextHref", "?Paged=TRUE&p_ID=" + (last + 2) + "&PageFirstRow=" + (last + 3));
+		}
+		return json;
+	}
+
+	private Response page(Request request) {
+		return Response.json(rows(request).toString());
+	}
+
+	private static List<Integer> ids(Stream<JSONObject> rows) {
+		return rows.map(row -> row.getInt("ID")).collect(Collectors.toList());
+	}
+
+	@Test
+	public void postsTheViewAndReturnsThePage() throws Exception {
+		JSONObject page = client.renderListData("Tasks", query, "/sites/site/Lists/Tasks/sub", null);
+
+		assertEquals(2, page.getJSONArray("Row").length());
+		assertEquals("?Paged=TRUE&p_ID=2&PageFirstRow=3", page.getString("NextHref"));
+		JSONObject parameters = new JSONObject(site.getRequests("POST", RENDER).get(0).getText()).getJSONObject("parameters");
+		assertEquals(query.toViewXml(), parameters.getString("ViewXml"));
+		assertEquals("/sites/site/Lists/Tasks/sub", parameters.getString("FolderServerRelativeUrl"));
+	}
+
+	@Test
+	public void readsTheRowsFromTheOdataEnvelope() throws Exception {
+		site.on("POST", RENDER, request -> Response.json(new JSONObject().put("d", new JSONObject()
+				.put("RenderListDataAsStream", rows(request).toString())).toString()));
+
+		JSONObject page = client.renderListData("Tasks", query, null, null);
+
+		assertEquals(2, page.getJSONArray("Row").length());
+		assertNull(new JSONObject(site.getRequests("POST", RENDER).get(0).getText()).getJSONObject("parameters").opt("FolderServerRelativeUrl"));
+	}
+
+	@Test
+	public void followsTheNextHrefsInOrder() throws Exception {
+		List<Integer> ids = new ArrayList<>();
+		try (PageIterator<JSONObject> rows = client.iterateRenderListData("Tasks", query, null)) {
+			while (rows.hasNext()) {
+				ids.add(rows.next().getInt("ID"));
+			}
+		}
+
+		assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6), ids);
+		List<Request> requests = site.getRequests("POST", RENDER);
+		assertEquals(3, requests.size());
+		assertEquals("Paged=TRUE&p_ID=4&PageFirstRow=5", requests.get(2).getQuery());
+		// Every page is requested with the same view.
+		assertEquals(requests.get(0).getText(), requests.get(2).getText());
+	}
+
+	@Test
+	public void streamsTheRowsOfEveryPage() throws Exception {
+		try (Stream<JSONObject> rows = client.streamRenderListData("Tasks", query, null)) {
+			assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6), ids(rows));
+		}
+	}
+
+	@Test
+	public void resendsAPageAfterAnIOFailure() throws Exception {
+		AtomicInteger calls = new AtomicInteger();
+		// Closes the connection of the first request without a response.
+		site.on("POST", RENDER, request -> calls.getAndIncrement() == 0 ? null : page(request));
+
+		JSONObject page = client.renderListData("Tasks", query, null, null);
+
+		assertEquals(2, page.getJSONArray("Row").length());
+		assertEquals(2, site.getRequests("POST", RENDER).size());
+	}
+
+	@Test
+	public void failsWhenANextPageFails() throws Exception {
+		site.on("POST", RENDER, request -> request.getQuery() != null && request.getQuery().contains("p_ID=2")
+				? Response.status(500) : page(request));
+		List<Integer> ids = new ArrayList<>();
+
+		try (PageIterator<JSONObject> rows = client.iterateRenderListData("Tasks", query, null)) {
+			while (rows.hasNext()) {
+				ids.add(rows.next().getInt("ID"));
+			}
+			fail("expected the failure of the second page");
+		} catch (IllegalStateException e) {
+			assertEquals("Error retrieving next page", e.getMessage());
+		}
+		assertEquals(Arrays.asList(1, 2), ids);
+	}
+}
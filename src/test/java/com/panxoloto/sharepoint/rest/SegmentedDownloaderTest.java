@@ -0,0 +1,153 @@
+package com.panxoloto.sharepoint.rest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.panxoloto.sharepoint.rest.StubSharepointSite.Request;
+import com.panxoloto.sharepoint.rest.StubSharepointSite.Response;
+
+/**
+ * Segmented downloads through the on premises client against a stub site honoring Range and If-Range.
+ */
+public class SegmentedDownloaderTest {
+
+	private Path dir;
+	private Path target;
+	private StubSharepointSite site;
+	private PLGSharepointOnPremisesClient client;
+
+	private volatile byte[] content = bytes('a');
+	private volatile String eTag = "\"{1},1\"";
+	/** Ranges from this offset on fail, to leave a download half done. */
+	private volatile long failFrom = Long.MAX_VALUE;
+	private final AtomicLong rangeBytes = new AtomicLong();
+	private volatile boolean downloadedWhole;
+	/** Replaces the file right after its info is read, before the ranges are requested. */
+	private volatile boolean changeAfterInfo;
+
+	@Before
+	public void start() throws IOException {
+		dir = Files.createTempDirectory("segments");
+		target = dir.resolve("file.bin");
+		site = new StubSharepointSite();
+		site.on("GET", "/GetFileByServerRelativeUrl(", request -> {
+			Response info = Response.json(new JSONObject().put("d", new JSONObject().put("Length", content.length).put("ETag", eTag)).toString());
+			if (changeAfterInfo) {
+				content = bytes('c');
+				eTag = "\"{1},3\"";
+			}
+			return info;
+		});
+		site.on("GET", "')/$value", this::content);
+		client = site.onPremisesClient();
+	}
+
+	@After
+	public void stop() throws IOException {
+		site.close();
+		Files.deleteIfExists(SegmentedDownloader.progressFile(target));
+		Files.deleteIfExists(target);
+		Files.deleteIfExists(dir);
+	}
+
+	private static byte[] bytes(char c) {
+		byte[] bytes = new byte[100];
+		Arrays.fill(bytes, (byte) c);
+		return bytes;
+	}
+
+	/**
+	 * What the server does with If-Range: the range only while the ETag matches, else the whole file.
+	 */
+	private Response content(Request request) {
+		String range = request.getHeader("Range");
+		if (range == null) {
+			downloadedWhole = true;
+			return new Response(200, content);
+		}
+		String[] bounds = range.substring("bytes=".length()).split("-");
+		int first = Integer.parseInt(bounds[0]);
+		int last = Integer.parseInt(bounds[1]);
+		if (first >= failFrom) {
+			return Response.status(500);
+		}
+		if (!eTag.equals(request.getHeader("If-Range"))) {
+			return new Response(200, content);
+		}
+		rangeBytes.addAndGet(last - first + 1);
+		return new Response(206, Arrays.copyOfRange(content, first, last + 1))
+				.header("Content-Range", "bytes " + first + "-" + last + "/" + content.length);
+	}
+
+	private SegmentedDownloader downloader() {
+		SegmentedDownloader downloader = new SegmentedDownloader(client, client.getFileTransport(), () -> (Executor) Runnable::run);
+		downloader.setMinSegmentSize(25);
+		downloader.setMaxRetries(0);
+		return downloader;
+	}
+
+	private void downloadHalf() throws Exception {
+		failFrom = 50;
+		try {
+			downloader().download("/sites/site/docs/file.bin", target);
+			fail("download didn't fail");
+		} catch (IOException e) {
+			assertTrue(Files.exists(SegmentedDownloader.progressFile(target)));
+			// Saved through a temporary file renamed over the sidecar.
+			try (Stream<Path> files = Files.list(target.getParent())) {
+				assertFalse("temporary progress file left behind", files.anyMatch(file -> file.getFileName().toString().endsWith(".tmp")));
+			}
+		}
+		failFrom = Long.MAX_VALUE;
+		rangeBytes.set(0);
+	}
+
+	@Test
+	public void resumesTheSameFile() throws Exception {
+		downloadHalf();
+
+		downloader().download("/sites/site/docs/file.bin", target);
+
+		assertEquals(50, rangeBytes.get());
+		assertArrayEquals(content, Files.readAllBytes(target));
+		assertFalse(Files.exists(SegmentedDownloader.progressFile(target)));
+	}
+
+	@Test
+	public void startsAgainWhenTheFileChangedWithTheSameLength() throws Exception {
+		downloadHalf();
+		content = bytes('b');
+		eTag = "\"{1},2\"";
+
+		downloader().download("/sites/site/docs/file.bin", target);
+
+		assertEquals(100, rangeBytes.get());
+		assertArrayEquals(bytes('b'), Files.readAllBytes(target));
+	}
+
+	@Test
+	public void downloadsTheWholeFileWhenItChangesDuringTheDownload() throws Exception {
+		changeAfterInfo = true;
+
+		downloader().download("/sites/site/docs/file.bin", target);
+
+		assertTrue(downloadedWhole);
+		assertArrayEquals(bytes('c'), Files.readAllBytes(target));
+	}
+}
@@ -0,0 +1,260 @@
+package com.panxoloto.sharepoint.rest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+import org.springframework.util.StreamUtils;
+
+import com.panxoloto.sharepoint.rest.helper.HttpClientPoolConfig;
+import com.panxoloto.sharepoint.rest.helper.HttpProtocols;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Sharepoint site on a local http server for the tests, answering the login of both clients
+ * and the routes each test registers. Every request is recorded with its body as received.
+ */
+public class StubSharepointSite implements Closeable {
+
+	public static final String SITE = "/sites/site";
+
+	/**
+	 * Request as the site received it.
+	 */
+	public static class Request {
+		private final String method;
+		private final String path;
+		private final String query;
+		private final Headers headers;
+		private final byte[] body;
+
+		Request(String method, String path, String query, Headers headers, byte[] body) {
+			this.method = method;
+			this.path = path;
+			this.query = query;
+			this.headers = headers;
+			this.body = body;
+		}
+
+		public String getMethod() {
+			return method;
+		}
+
+		/**
+		 * @return decoded path of the request.
+		 */
+		public String getPath() {
+			return path;
+		}
+
+		/**
+		 * @return query of the request, null for none.
+		 */
+		public String getQuery() {
+			return query;
+		}
+
+		public String getHeader(String name) {
+			return headers.getFirst(name);
+		}
+
+		public byte[] getBody() {
+			return body;
+		}
+
+		public String getText() {
+			return new String(body, StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public String toString() {
+			return method + " " + path + (query == null ? "" : "?" + query);
+		}
+	}
+
+	/**
+	 * Response of a route.
+	 */
+	public static class Response {
+		private final int status;
+		private final Headers headers = new Headers();
+		private final byte[] body;
+
+		public Response(int status, byte[] body) {
+			this.status = status;
+			this.body = body;
+		}
+
+		public static Response json(String json) {
+			return new Response(200, json.getBytes(StandardCharsets.UTF_8)).header("Content-Type", "application/json;odata=verbose");
+		}
+
+		public static Response status(int status) {
+			return new Response(status, new byte[0]);
+		}
+
+		public Response header(String name, String value) {
+			headers.add(name, value);
+			return this;
+		}
+	}
+
+	@FunctionalInterface
+	public interface Route {
+
+		/**
+		 * @return response to send, null to close the connection without one.
+		 */
+		Response handle(Request request) throws IOException;
+	}
+
+	private static class Entry {
+		private final String method;
+		private final String pathPart;
+		private final Route route;
+
+		Entry(String method, String pathPart, Route route) {
+			this.method = method;
+			this.pathPart = pathPart;
+			this.route = route;
+		}
+	}
+
+	private final HttpServer server;
+	private final List<Entry> routes = new CopyOnWriteArrayList<>();
+	private final List<Request> requests = new CopyOnWriteArrayList<>();
+	private final List<Closeable> clients = new ArrayList<>();
+
+	public StubSharepointSite() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/", this::handle);
+		// Login of the online client: security token, sign in cookies and, as on premises, the digest.
+		on("POST", "/extSTS.srf", request -> new Response(200,
+				"<S:Envelope><wsse:BinarySecurityToken Id=\"Compact0\">token</wsse:BinarySecurityToken></S:Envelope>".getBytes(StandardCharsets.UTF_8)));
+		on("POST", "/_forms/default.aspx", request -> Response.status(200).header("Set-Cookie", "FedAuth=cookie; path=/"));
+		on("POST", "/_api/contextinfo", request -> Response.json(
+				"{\"d\":{\"GetContextWebInformation\":{\"FormDigestValue\":\"digest\",\"FormDigestTimeoutSeconds\":1800}}}"));
+		server.start();
+	}
+
+	/**
+	 * Answers the requests of the method with a path containing pathPart, the last route
+	 * registered for a request wins.
+	 *
+	 * @param method - http method of the requests.
+	 * @param pathPart - part of the decoded path, like /Files/add.
+	 * @param route - response to the requests.
+	 * @return this site.
+	 */
+	public StubSharepointSite on(String method, String pathPart, Route route) {
+		routes.add(0, new Entry(method, pathPart, route));
+		return this;
+	}
+
+	/**
+	 * @return host and port of the site.
+	 */
+	public String getDomain() {
+		return "127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	public List<Request> getRequests() {
+		return new ArrayList<>(requests);
+	}
+
+	/**
+	 * @return requests of the method with a path containing pathPart.
+	 */
+	public List<Request> getRequests(String method, String pathPart) {
+		return requests.stream()
+				.filter(request -> request.getMethod().equals(method) && request.getPath().contains(pathPart))
+				.collect(Collectors.toList());
+	}
+
+	public PLGSharepointOnPremisesClient onPremisesClient() {
+		return onPremisesClient(new HttpClientPoolConfig());
+	}
+
+	public PLGSharepointOnPremisesClient onPremisesClient(HttpClientPoolConfig config) {
+		PLGSharepointOnPremisesClient client = new PLGSharepointOnPremisesClient("user", "passwd", "domain", getDomain(), SITE, config);
+		client.setProtocol(HttpProtocols.HTTP);
+		clients.add(client);
+		return client;
+	}
+
+	public PLGSharepointOnPremisesAsyncClient onPremisesAsyncClient() throws IOException {
+		PLGSharepointOnPremisesAsyncClient client = new PLGSharepointOnPremisesAsyncClient("user", "passwd", "domain", getDomain(), SITE);
+		client.setProtocol(HttpProtocols.HTTP);
+		clients.add(client);
+		return client;
+	}
+
+	public PLGSharepointClientOnline onlineClient() {
+		PLGSharepointClientOnline client = new PLGSharepointClientOnline("user", "passwd", getDomain(), SITE,
+				new HttpClientPoolConfig(), HttpProtocols.HTTP, "http://" + getDomain() + "/extSTS.srf");
+		clients.add(client);
+		return client;
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		byte[] body;
+		try (InputStream in = exchange.getRequestBody()) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			StreamUtils.copy(in, out);
+			body = out.toByteArray();
+		}
+		Request request = new Request(exchange.getRequestMethod(), exchange.getRequestURI().getPath(),
+				exchange.getRequestURI().getRawQuery(), exchange.getRequestHeaders(), body);
+		requests.add(request);
+		Response response = Response.status(404);
+		for (Entry entry : routes) {
+			if (entry.method.equals(request.getMethod()) && request.getPath().contains(entry.pathPart)) {
+				try {
+					response = entry.route.handle(request);
+				} catch (IOException | RuntimeException e) {
+					response = new Response(500, String.valueOf(e).getBytes(StandardCharsets.UTF_8));
+				}
+				break;
+			}
+		}
+		if (response == null) {
+			// Closes the connection, like a response lost after the request was processed.
+			throw new IOException("No response for " + request);
+		}
+		for (Map.Entry<String, List<String>> header : response.headers.entrySet()) {
+			exchange.getResponseHeaders().put(header.getKey(), header.getValue());
+		}
+		if (response.body.length == 0) {
+			exchange.sendResponseHeaders(response.status, -1);
+			exchange.close();
+			return;
+		}
+		exchange.sendResponseHeaders(response.status, response.body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(response.body);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		for (Closeable client : clients) {
+			client.close();
+		}
+		server.stop(0);
+		((ExecutorService) server.getExecutor()).shutdownNow();
+	}
+}
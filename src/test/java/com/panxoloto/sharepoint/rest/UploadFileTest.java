@@ -0,0 +1,98 @@
+package com.panxoloto.sharepoint.rest;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.io.ByteArrayResource;
+
+/**
+ * Uploads under the chunked upload threshold against a stub site, checking the bytes it receives and the metadata merge that follows.
+ */
+public class UploadFileTest {
+
+	private StubSharepointSite site;
+	private final byte[] content = new byte[1000];
+
+	@Before
+	public void start() throws IOException {
+		Arrays.fill(content, (byte) 'a');
+		site = new StubSharepointSite();
+		site.on("POST", "/Files/add", request -> StubSharepointSite.Response.json(
+				"{\"d\":{\"ServerRelativeUrl\":\"/sites/site/docs/file.txt\",\"Length\":" + request.getBody().length + "}}"));
+		site.on("POST", "/listitemallfields", request -> StubSharepointSite.Response.status(204));
+	}
+
+	@After
+	public void stop() throws IOException {
+		site.close();
+	}
+
+	private void assertUploaded(JSONObject fileInfo) {
+		List<StubSharepointSite.Request> uploads = site.getRequests("POST", "/Files/add");
+		assertEquals(1, uploads.size());
+		assertArrayEquals(content, uploads.get(0).getBody());
+		assertEquals(String.valueOf(content.length), uploads.get(0).getHeader("Content-Length"));
+		assertEquals(content.length, fileInfo.getJSONObject("d").getInt("Length"));
+	}
+
+	private void assertMerged(String field, String value) {
+		List<StubSharepointSite.Request> merges = site.getRequests("POST", "/listitemallfields");
+		assertEquals(1, merges.size());
+		assertEquals("MERGE", merges.get(0).getHeader("X-HTTP-Method"));
+		assertTrue(merges.get(0).getPath().contains("GetFileByServerRelativeUrl('/sites/site/docs/file.txt')"));
+		JSONObject metadata = new JSONObject(merges.get(0).getText());
+		assertEquals(value, metadata.getString(field));
+		assertEquals("SP.ListItem", metadata.getJSONObject("__metadata").getString("type"));
+	}
+
+	@Test
+	public void sendsTheContentOfASmallFileOnPremises() throws Exception {
+		PLGSharepointClient client = site.onPremisesClient();
+
+		assertUploaded(client.uploadFile("/sites/site/docs", new ByteArrayResource(content), "file.txt", new JSONObject()));
+	}
+
+	@Test
+	public void sendsTheContentOfASmallFileOnline() throws Exception {
+		PLGSharepointClient client = site.onlineClient();
+
+		assertUploaded(client.uploadFile("/sites/site/docs", new ByteArrayResource(content), "file.txt", new JSONObject()));
+	}
+
+	@Test
+	public void skipsTheMergeWithoutMetadataOnPremises() throws Exception {
+		site.onPremisesClient().uploadFile("/sites/site/docs", new ByteArrayResource(content), "file.txt", new JSONObject());
+
+		assertEquals(0, site.getRequests("POST", "/listitemallfields").size());
+	}
+
+	@Test
+	public void skipsTheMergeWithoutMetadataOnline() throws Exception {
+		site.onlineClient().uploadFile("/sites/site/docs", new ByteArrayResource(content), "file.txt", new JSONObject());
+
+		assertEquals(0, site.getRequests("POST", "/listitemallfields").size());
+	}
+
+	@Test
+	public void mergesTheMetadataOfTheUploadedFileOnPremises() throws Exception {
+		site.onPremisesClient().uploadFile("/sites/site/docs", new ByteArrayResource(content), "file.txt", new JSONObject().put("Title", "Report"));
+
+		assertMerged("Title", "Report");
+	}
+
+	@Test
+	public void mergesTheMetadataOfTheUploadedFileOnline() throws Exception {
+		site.onlineClient().uploadFile("/sites/site/docs", new ByteArrayResource(content), "file.txt", new JSONObject().put("Title", "Report"));
+
+		assertMerged("Title", "Report");
+	}
+}
@@ -0,0 +1,87 @@
+package com.panxoloto.sharepoint.rest.helper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.client.methods.HttpGet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+public class AsyncHttpExecutorTest {
+
+	private HttpServer server;
+	private AsyncHttpExecutor executor;
+
+	private final AtomicInteger running = new AtomicInteger();
+	private final AtomicInteger maxRunning = new AtomicInteger();
+
+	@Before
+	public void start() throws Exception {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/", exchange -> {
+			maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+			try {
+				Thread.sleep(20);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			running.decrementAndGet();
+			byte[] body = "{}".getBytes();
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		server.start();
+		HttpClientPoolConfig config = new HttpClientPoolConfig();
+		config.setMaxPerRoute(2);
+		executor = new AsyncHttpExecutor(config, null, false, 100, AsyncHttpExecutor.DEFAULT_IO_THREADS);
+	}
+
+	@After
+	public void stop() throws IOException {
+		executor.close();
+		server.stop(0);
+		((ExecutorService) server.getExecutor()).shutdownNow();
+	}
+
+	private HttpGet get() {
+		return new HttpGet("http://127.0.0.1:" + server.getAddress().getPort() + "/api");
+	}
+
+	@Test
+	public void sendsNoMoreRequestsThanConnectionsPerHost() throws Exception {
+		assertEquals(2, executor.getMaxInFlight());
+		List<CompletableFuture<?>> futures = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			futures.add(executor.execute(get()));
+		}
+
+		CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+
+		assertTrue("max running " + maxRunning.get(), maxRunning.get() <= 2);
+	}
+
+	@Test
+	public void runsDependentStagesOffTheIoThreads() throws Exception {
+		String thread = executor.execute(get()).thenApply(response -> Thread.currentThread().getName()).get(10, TimeUnit.SECONDS);
+
+		assertFalse(thread, thread.startsWith("plg-sharepoint-io"));
+	}
+}
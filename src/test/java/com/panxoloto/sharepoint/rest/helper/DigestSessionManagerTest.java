@@ -0,0 +1,77 @@
+package com.panxoloto.sharepoint.rest.helper;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class DigestSessionManagerTest {
+
+	private static class Session implements DigestSessionManager.ExpiringSession {
+		private final long digestExpiration;
+		private final long loginExpiration;
+
+		Session(long digestExpiration, long loginExpiration) {
+			this.digestExpiration = digestExpiration;
+			this.loginExpiration = loginExpiration;
+		}
+
+		@Override
+		public long getDigestExpiration() {
+			return digestExpiration;
+		}
+
+		@Override
+		public long getLoginExpiration() {
+			return loginExpiration;
+		}
+	}
+
+	private final AtomicInteger logins = new AtomicInteger();
+	private final AtomicInteger digests = new AtomicInteger();
+	/** Time left of the login returned by the next login. */
+	private long loginMillis;
+
+	private DigestSessionManager<Session> manager() {
+		return new DigestSessionManager<>(new DigestSessionManager.SessionSource<Session>() {
+			@Override
+			public Session login() {
+				logins.incrementAndGet();
+				long now = System.currentTimeMillis();
+				// The digest is already expired, so every getSession refreshes it.
+				return new Session(now, now + loginMillis);
+			}
+
+			@Override
+			public Session refreshDigest(Session current) {
+				digests.incrementAndGet();
+				return new Session(System.currentTimeMillis(), current.getLoginExpiration());
+			}
+		}, null);
+	}
+
+	@Test
+	public void refreshesOnlyTheDigestWhileTheLoginIsValid() throws Exception {
+		loginMillis = 3600 * 1000;
+		DigestSessionManager<Session> manager = manager();
+		manager.login();
+
+		manager.getSession();
+
+		assertEquals(1, logins.get());
+		assertEquals(1, digests.get());
+	}
+
+	@Test
+	public void logsInWhenTheLoginExpiresWithinTheRefreshAheadTime() throws Exception {
+		loginMillis = 30 * 1000;
+		DigestSessionManager<Session> manager = manager();
+		manager.login();
+
+		manager.getSession();
+
+		assertEquals(2, logins.get());
+		assertEquals(0, digests.get());
+	}
+}
@@ -0,0 +1,176 @@
+package com.panxoloto.sharepoint.rest.helper;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.util.Arrays;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.client.AbstractClientHttpResponse;
+
+public class ListRowsTest {
+
+	private static final ListSchema SCHEMA = ListSchema.fromFields(1, new JSONObject().put("d", new JSONObject().put("results", new JSONArray()
+			.put(field("ID", "Counter"))
+			.put(field("Title", "Text"))
+			.put(field("Amount", "Number"))
+			.put(field("Due", "DateTime"))
+			.put(field("Done", "Boolean"))
+			.put(field("Author", "User"))
+			.put(field("Tags", "LookupMulti")))));
+
+	private static JSONObject field(String name, String type) {
+		return new JSONObject().put("InternalName", name).put("TypeAsString", type);
+	}
+
+	/**
+	 * Verbose item, written by hand to keep the order of the properties: the lookup comes after its
+	 * id, deferred when it isn't expanded.
+	 */
+	private static String item(int id) {
+		return "{\"__metadata\":{\"type\":\"SP.Data.TasksListItem\",\"uri\":\"https://contoso/_api/items(" + id + ")\"},"
+				+ "\"ID\":" + id + ",\"Id\":" + id + ",\"Title\":\"Task " + id + "\",\"Amount\":" + id * 1.5 + ","
+				+ "\"Due\":\"2026-10-16T10:00:00Z\",\"Done\":" + (id % 2 == 0) + ",\"AuthorId\":7,"
+				+ "\"Author\":{\"__deferred\":{\"uri\":\"https://contoso/_api/items(" + id + ")/Author\"}},"
+				+ "\"TagsId\":{\"results\":[1,2]},\"Modified\":\"2026-10-16T10:00:00Z\"}";
+	}
+
+	private static byte[] page(int items) {
+		StringBuilder page = new StringBuilder("{\"d\":{\"results\":[");
+		for (int i = 1; i <= items; i++) {
+			page.append(i > 1 ? "," : "").append(item(i));
+		}
+		return page.append("]}}").toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static long readAll(byte[] body, ListRows rows, ListRows.RowHandler handler) throws Exception {
+		return ODataStreamParser.readAllRows(URI.create("https://contoso/_api/items"), (uri, extractor) -> extractor.extractData(
+				new AbstractClientHttpResponse() {
+					@Override
+					public int getRawStatusCode() {
+						return 200;
+					}
+
+					@Override
+					public String getStatusText() {
+						return "OK";
+					}
+
+					@Override
+					public void close() {
+					}
+
+					@Override
+					public InputStream getBody() {
+						return new ByteArrayInputStream(body);
+					}
+
+					@Override
+					public HttpHeaders getHeaders() {
+						return new HttpHeaders();
+					}
+				}), rows, handler);
+	}
+
+	@Test
+	public void decodesTheSelectedColumns() throws Exception {
+		ListRows rows = new ListRows(SCHEMA, Arrays.asList("Id", "Title", "Amount", "Due", "Done", "AuthorId", "TagsId"));
+
+		long read = readAll(page(3), rows, page -> {
+			int author = page.columnIndex("Author");
+			assertEquals(3, page.size());
+			assertEquals(2, page.getInt(1, page.columnIndex("Id")));
+			assertEquals("Task 2", page.getString(1, page.columnIndex("Title")));
+			assertEquals(3.0, page.getDouble(1, page.columnIndex("Amount")), 0);
+			assertEquals(Instant.parse("2026-10-16T10:00:00Z").toEpochMilli(), page.getDateMillis(1, page.columnIndex("Due")));
+			assertTrue(page.getBoolean(1, page.columnIndex("Done")));
+			assertArrayEquals(new int[] {1, 2}, page.getLookupIds(1, page.columnIndex("Tags")));
+			// The deferred Author after AuthorId doesn't empty the person id.
+			assertFalse(page.isNull(1, author));
+			assertEquals(7, page.getPersonId(1, author));
+		});
+
+		assertEquals(3, read);
+	}
+
+	@Test
+	public void convertsTheValuesOfTheOtherMetadataLevels() throws Exception {
+		// Numbers as strings, dates with an offset or as /Date()/, an expanded lookup and plain arrays.
+		byte[] body = ("{\"value\":[{\"ID\":\"5\",\"Title\":null,\"Amount\":\"2.5\",\"Due\":\"2026-10-16T12:00:00+02:00\","
+				+ "\"Done\":0,\"Author\":{\"Id\":9,\"Title\":\"Ana\"},\"TagsId\":[3,4]},"
+				+ "{\"ID\":6,\"Amount\":7,\"Due\":\"/Date(1792144800000)/\",\"Done\":true,\"AuthorId\":null,\"TagsId\":{\"results\":[]}}]}")
+				.getBytes(StandardCharsets.UTF_8);
+		ListRows rows = new ListRows(SCHEMA, null);
+
+		readAll(body, rows, page -> {
+			int id = page.columnIndex("ID");
+			int title = page.columnIndex("Title");
+			int amount = page.columnIndex("Amount");
+			int due = page.columnIndex("Due");
+			int author = page.columnIndex("AuthorId");
+			int tags = page.columnIndex("TagsId");
+			assertEquals(5, page.getInt(0, id));
+			assertEquals(2.5, page.getDouble(0, amount), 0);
+			assertEquals(7.0, page.getDouble(1, amount), 0);
+			// The integer column read as a double.
+			assertEquals(6.0, page.getDouble(1, id), 0);
+			assertEquals(Instant.parse("2026-10-16T10:00:00Z").toEpochMilli(), page.getDateMillis(0, due));
+			assertEquals(1792144800000L, page.getDateMillis(1, due));
+			assertEquals(Instant.ofEpochMilli(1792144800000L), page.getValue(1, due));
+			assertFalse(page.getBoolean(0, page.columnIndex("Done")));
+			assertTrue(page.getBoolean(1, page.columnIndex("Done")));
+			assertEquals(9, page.getPersonId(0, author));
+			assertEquals(9, page.getLookupId(0, author));
+			assertArrayEquals(new int[] {3, 4}, page.getLookupIds(0, tags));
+			assertArrayEquals(new int[0], page.getLookupIds(1, tags));
+			// Empty values read as 0 and null, told apart with isNull.
+			assertTrue(page.isNull(0, title));
+			assertNull(page.getString(0, title));
+			assertTrue(page.isNull(1, author));
+			assertEquals(0, page.getPersonId(1, author));
+			assertNull(page.getValue(1, author));
+		});
+	}
+
+	@Test
+	public void parsesDatesLikeTheJavaTimeApi() {
+		for (String date : Arrays.asList("2026-10-16T10:00:00Z", "2024-02-29T23:59:59Z", "1965-05-01T00:00:00Z",
+				"2000-01-01T00:00:00.123Z", "2026-10-16T10:00:00-05:30")) {
+			char[] text = ("\"" + date + "\"").toCharArray();
+			assertEquals(date, OffsetDateTime.parse(date).toInstant().toEpochMilli(),
+					ListRows.parseDateMillis(text, 1, date.length()));
+		}
+		// Dates without offset are in utc.
+		String local = "2026-10-16T10:00:00";
+		assertEquals(Instant.parse(local + "Z").toEpochMilli(), ListRows.parseDateMillis(local.toCharArray(), 0, local.length()));
+	}
+
+	@Test
+	public void ignoresNamesTheSchemaHasntGot() throws Exception {
+		ListRows rows = new ListRows(SCHEMA, Arrays.asList("Title", "Author/Title", "Missing"));
+
+		assertEquals(1, rows.getColumnCount());
+		assertEquals(-1, rows.columnIndex("Missing"));
+		readAll(page(1), rows, page -> {
+			try {
+				page.getDateMillis(0, page.columnIndex("Title"));
+				fail("read a text column as a date");
+			} catch (IllegalArgumentException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains("Title (Text)"));
+			}
+		});
+	}
+}
@@ -0,0 +1,47 @@
+package com.panxoloto.sharepoint.rest.helper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class ODataMetadataTest {
+
+	@Test
+	public void convertsACollectionWithItsNextLink() {
+		JSONObject page = ODataMetadata.toVerboseCollection(new JSONObject("{\"odata.metadata\":\"https://contoso/_api/$metadata\","
+				+ "\"value\":[{\"odata.type\":\"SP.Data.TasksListItem\",\"Id\":1,\"TagsId\":[1,2]}],\"odata.nextLink\":\"https://contoso/next\"}"));
+
+		JSONObject d = page.getJSONObject("d");
+		assertEquals("https://contoso/next", d.getString("__next"));
+		JSONObject item = d.getJSONArray("results").getJSONObject(0);
+		assertEquals("SP.Data.TasksListItem", item.getJSONObject("__metadata").getString("type"));
+		assertEquals(2, item.getJSONObject("TagsId").getJSONArray("results").length());
+	}
+
+	@Test
+	public void keepsTheValueFieldOfAnEntity() {
+		JSONObject entity = ODataMetadata.toVerboseEntity(new JSONObject("{\"odata.type\":\"SP.FieldStringValues\",\"value\":\"x\"}"));
+
+		assertEquals("x", entity.getJSONObject("d").getString("value"));
+	}
+
+	@Test
+	public void namesAPrimitivePropertyAfterTheRequestedOne() {
+		JSONObject exists = ODataMetadata.toVerboseProperty(new JSONObject("{\"odata.metadata\":\"https://contoso/_api/$metadata#Edm.Boolean\","
+				+ "\"value\":true}"), "Exists");
+
+		assertTrue(exists.getJSONObject("d").getBoolean("Exists"));
+		assertFalse(exists.getJSONObject("d").has("value"));
+	}
+
+	@Test
+	public void returnsVerboseResponsesAsTheyAre() {
+		JSONObject verbose = new JSONObject("{\"d\":{\"Exists\":true}}");
+
+		assertTrue(verbose == ODataMetadata.toVerboseProperty(verbose, "Exists"));
+		assertTrue(verbose == ODataMetadata.toVerboseCollection(verbose));
+	}
+}
@@ -0,0 +1,100 @@
+package com.panxoloto.sharepoint.rest.helper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.net.URLDecoder;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ODataQueryTest {
+
+	/**
+	 * @return the decoded options of the query string, split only on the encoded separators.
+	 */
+	private static Map<String, String> options(ODataQuery query) throws Exception {
+		Map<String, String> options = new LinkedHashMap<>();
+		for (String option : query.toQueryString().split("&")) {
+			int equals = option.indexOf('=');
+			// URLDecoder takes + as a space, the query must not have any.
+			assertTrue(option, option.indexOf('+') < 0);
+			options.put(option.substring(0, equals), URLDecoder.decode(option.substring(equals + 1), "UTF-8"));
+		}
+		return options;
+	}
+
+	@Test
+	public void encodesSpacesAsPercent20() {
+		ODataQuery query = ODataQuery.create().filter("Title eq 'a b'").orderBy("Modified", false);
+
+		assertEquals("$filter=Title%20eq%20'a%20b'&$orderby=Modified%20desc", query.toQueryString());
+	}
+
+	@Test
+	public void encodesTheQuerySeparatorsInValues() throws Exception {
+		String value = "a&b=c+d#e%f";
+		ODataQuery query = ODataQuery.create().filterEquals("Title", value).top(10);
+
+		String encoded = query.toQueryString();
+		assertEquals("$filter=Title%20eq%20'a%26b%3Dc%2Bd%23e%25f'&$top=10", encoded);
+		assertEquals("Title eq 'a&b=c+d#e%f'", options(query).get("$filter"));
+		// The uri keeps the encoding, the separators of the value don't split the query.
+		URI uri = query.appendTo(URI.create("https://contoso/_api/web/lists/GetByTitle('Tasks')/items"));
+		assertEquals(encoded, uri.getRawQuery());
+		assertNull(uri.getRawFragment());
+	}
+
+	@Test
+	public void encodesNonAsciiValuesAsUtf8() throws Exception {
+		ODataQuery query = ODataQuery.create().filterEquals("Title", "A\u00f1o \u20ac");
+
+		assertEquals("$filter=Title%20eq%20'A%C3%B1o%20%E2%82%AC'", query.toQueryString());
+		assertEquals("Title eq 'A\u00f1o \u20ac'", options(query).get("$filter"));
+	}
+
+	@Test
+	public void roundTripsTheSkipToken() throws Exception {
+		ODataQuery query = ODataQuery.create().top(100).skipToken("Paged=TRUE&p_ID=100");
+
+		assertEquals("$top=100&$skiptoken=Paged%3DTRUE%26p_ID%3D100", query.toQueryString());
+		assertEquals("Paged=TRUE&p_ID=100", options(query).get("$skiptoken"));
+		URI uri = query.appendTo(URI.create("https://contoso/_api/items"));
+		assertEquals("$top=100&$skiptoken=Paged=TRUE&p_ID=100", uri.getQuery());
+	}
+
+	@Test
+	public void doublesTheQuotesOfStringLiterals() throws Exception {
+		ODataQuery query = ODataQuery.create().filterEquals("Title", "O'Brien's");
+
+		assertEquals("Title eq 'O''Brien''s'", options(query).get("$filter"));
+		assertEquals("5", ODataQuery.literal(5));
+		assertEquals("true", ODataQuery.literal(true));
+		assertEquals("null", ODataQuery.literal(null));
+	}
+
+	@Test
+	public void combinesFiltersWithAnd() throws Exception {
+		ODataQuery base = ODataQuery.create().filter("Status eq 'Open'");
+		ODataQuery query = base.filter("ID gt 10 or ID lt 5").filterEquals("AuthorId", 7);
+
+		assertEquals("((Status eq 'Open') and (ID gt 10 or ID lt 5)) and (AuthorId eq 7)", query.getFilter());
+		assertEquals(query.getFilter(), options(query).get("$filter"));
+		// The base query isn't changed.
+		assertEquals("Status eq 'Open'", base.getFilter());
+		assertEquals("ID le 3", query.withFilter("ID le 3").getFilter());
+	}
+
+	@Test
+	public void keepsTheCharactersOfTheExpressions() {
+		ODataQuery query = ODataQuery.create().select("Id", "Author/Title").expand("Author")
+				.filter("Modified gt datetime'2021-01-01T00:00:00Z'");
+
+		assertEquals("$filter=Modified%20gt%20datetime'2021-01-01T00:00:00Z'&$select=Id,Author/Title&$expand=Author",
+				query.toQueryString());
+		assertTrue(ODataQuery.create().isEmpty());
+	}
+}
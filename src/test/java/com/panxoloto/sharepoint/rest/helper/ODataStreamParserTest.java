@@ -0,0 +1,85 @@
+package com.panxoloto.sharepoint.rest.helper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONObject;
+import org.junit.Assume;
+import org.junit.Test;
+
+public class ODataStreamParserTest {
+
+	private static String item(int id) {
+		return "{\"__metadata\":{\"id\":\"Web/Lists(guid'1')/Items(" + id + ")\",\"uri\":\"https://contoso/_api/items(" + id + ")\",\"etag\":\"\\\"1\\\"\",\"type\":\"SP.Data.TasksListItem\"},"
+				+ "\"FirstUniqueAncestorSecurableObject\":{\"__deferred\":{\"uri\":\"https://contoso/_api/items(" + id + ")/FirstUniqueAncestorSecurableObject\"}},"
+				+ "\"RoleAssignments\":{\"__deferred\":{\"uri\":\"https://contoso/_api/items(" + id + ")/RoleAssignments\"}},"
+				+ "\"AttachmentFiles\":{\"__deferred\":{\"uri\":\"https://contoso/_api/items(" + id + ")/AttachmentFiles\"}},"
+				+ "\"Id\":" + id + ",\"Title\":\"Task " + id + "\",\"Amount\":" + id * 1.5 + ",\"Modified\":\"2026-10-16T10:00:00Z\","
+				+ "\"TagsId\":{\"__metadata\":{\"type\":\"Collection(Edm.Int32)\"},\"results\":[1,2]}}";
+	}
+
+	private static byte[] page(int items, String next) {
+		StringBuilder page = new StringBuilder("{\"d\":{\"results\":[");
+		for (int i = 1; i <= items; i++) {
+			page.append(i > 1 ? "," : "").append(item(i));
+		}
+		page.append("]");
+		if (next != null) {
+			page.append(",\"__next\":\"").append(next).append("\"");
+		}
+		return page.append("}}").toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void skipsMetadataAndDeferredBlocks() throws Exception {
+		List<Map<String, Object>> items = new ArrayList<>();
+
+		String next = ODataStreamParser.readPage(new ByteArrayInputStream(page(2, "https://contoso/_api/items?$skiptoken=2")), items::add);
+
+		assertEquals("https://contoso/_api/items?$skiptoken=2", next);
+		assertEquals(2, items.size());
+		Map<String, Object> item = items.get(1);
+		assertEquals(2, ((Number) item.get("Id")).intValue());
+		assertEquals("Task 2", item.get("Title"));
+		assertFalse(item.containsKey("__metadata"));
+		assertFalse(item.containsKey("RoleAssignments"));
+		assertTrue(((Map<?, ?>) item.get("TagsId")).containsKey("results"));
+		assertNull(((Map<?, ?>) item.get("TagsId")).get("__metadata"));
+	}
+
+	@Test
+	public void allocatesFarLessThanParsingThePageIntoJson() throws Exception {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean
+				&& ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported());
+		com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+		byte[] body = page(2000, null);
+		String text = new String(body, StandardCharsets.UTF_8);
+		ODataStreamParser.ItemHandler handler = item -> {
+		};
+		for (int i = 0; i < 5; i++) {
+			ODataStreamParser.readPage(new ByteArrayInputStream(body), handler);
+			new JSONObject(text);
+		}
+
+		long thread = Thread.currentThread().getId();
+		long before = allocations.getThreadAllocatedBytes(thread);
+		ODataStreamParser.readPage(new ByteArrayInputStream(body), handler);
+		long streamed = allocations.getThreadAllocatedBytes(thread) - before;
+		before = allocations.getThreadAllocatedBytes(thread);
+		new JSONObject(text);
+		long parsed = allocations.getThreadAllocatedBytes(thread) - before;
+
+		// The body string itself isn't counted for the json tree, it's the response the client reads anyway.
+		assertTrue("streamed " + streamed + " bytes, json " + parsed, streamed * 2 < parsed);
+	}
+}
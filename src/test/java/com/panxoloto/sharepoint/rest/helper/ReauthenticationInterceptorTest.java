@@ -0,0 +1,144 @@
+package com.panxoloto.sharepoint.rest.helper;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.RequestEntity;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.client.RestTemplate;
+
+import com.sun.net.httpserver.HttpServer;
+
+public class ReauthenticationInterceptorTest {
+
+	private HttpServer server;
+	private HttpClientHelper httpClientHelper;
+	private FakeTokenHelper tokenHelper;
+	private ReauthenticationInterceptor interceptor;
+
+	/** Number of the login whose cookie the stub accepts. */
+	private final AtomicInteger validLogin = new AtomicInteger();
+	private final AtomicInteger apiRequests = new AtomicInteger();
+
+	/**
+	 * Logs in through the same connection pool as the api requests, like the online client.
+	 */
+	private class FakeTokenHelper extends AuthTokenHelperOnline {
+
+		private final RestTemplate loginTemplate = new RestTemplate(httpClientHelper.newRequestFactory());
+		private final AtomicInteger logins = new AtomicInteger();
+
+		FakeTokenHelper() {
+			super(null, "user", "passwd", "contoso.sharepoint.com", "/sites/site");
+		}
+
+		@Override
+		public Session login() throws Exception {
+			String cookie = loginTemplate.getForObject(uri("/login"), String.class);
+			logins.incrementAndGet();
+			return new Session(Collections.singletonList(cookie), Long.MAX_VALUE, "digest-" + cookie, Long.MAX_VALUE);
+		}
+	}
+
+	@Before
+	public void start() throws Exception {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/login", exchange -> respond(exchange, 200, "c" + validLogin.incrementAndGet()));
+		server.createContext("/api", exchange -> {
+			apiRequests.incrementAndGet();
+			String cookie = exchange.getRequestHeaders().getFirst("Cookie");
+			respond(exchange, ("c" + validLogin.get()).equals(cookie) ? 200 : 401, "{}");
+		});
+		server.start();
+
+		HttpClientPoolConfig config = new HttpClientPoolConfig();
+		// A single connection: the login can only get one if the rejected response released it.
+		config.setMaxPerRoute(1);
+		config.setConnectionRequestTimeoutMillis(2000);
+		httpClientHelper = new HttpClientHelper(config, null, false);
+		tokenHelper = new FakeTokenHelper();
+		tokenHelper.getSessionManager().login();
+		interceptor = new ReauthenticationInterceptor(tokenHelper);
+	}
+
+	@After
+	public void stop() throws IOException {
+		tokenHelper.getSessionManager().close();
+		httpClientHelper.close();
+		server.stop(0);
+		((ExecutorService) server.getExecutor()).shutdownNow();
+	}
+
+	private static void respond(com.sun.net.httpserver.HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes();
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	private URI uri(String path) {
+		return URI.create("http://127.0.0.1:" + server.getAddress().getPort() + path);
+	}
+
+	private ResponseEntity<String> post(RestTemplate restTemplate, String cookie) {
+		HttpHeaders headers = new HttpHeaders();
+		headers.set("Cookie", cookie);
+		headers.set("X-RequestDigest", "digest-" + cookie);
+		return restTemplate.exchange(new RequestEntity<>("{\"a\":1}", headers, HttpMethod.POST, uri("/api")), String.class);
+	}
+
+	@Test
+	public void logsInAgainWithTheRejectedConnectionReleased() {
+		httpClientHelper.getRequestFactory().setReplayHandler(interceptor);
+		RestTemplate restTemplate = new RestTemplate(httpClientHelper.getRequestFactory());
+		// The server forgets the session.
+		validLogin.incrementAndGet();
+
+		ResponseEntity<String> response = post(restTemplate, "c1");
+
+		assertEquals(200, response.getStatusCodeValue());
+		assertEquals(2, tokenHelper.logins.get());
+		assertEquals("c3", tokenHelper.getSessionManager().getCurrentSession().getCookieHeader());
+	}
+
+	@Test
+	public void replaysWithTheSessionRenewedAfterTheRequestWasBuilt() throws Exception {
+		httpClientHelper.getRequestFactory().setReplayHandler(interceptor);
+		RestTemplate restTemplate = new RestTemplate(httpClientHelper.getRequestFactory());
+		// Headers built with c1, another request renewed the session to c2 before this one was sent.
+		tokenHelper.getSessionManager().login();
+
+		ResponseEntity<String> response = post(restTemplate, "c1");
+
+		assertEquals(200, response.getStatusCodeValue());
+		assertEquals("no second login", 2, tokenHelper.logins.get());
+		assertEquals(2, apiRequests.get());
+	}
+
+	@Test
+	public void interceptorReplaysWithTheSessionRenewedAfterTheRequestWasBuilt() throws Exception {
+		RestTemplate restTemplate = new RestTemplate(httpClientHelper.getRequestFactory());
+		restTemplate.getInterceptors().add(interceptor);
+		tokenHelper.getSessionManager().login();
+
+		ResponseEntity<String> response = post(restTemplate, "c1");
+
+		assertEquals(200, response.getStatusCodeValue());
+		assertEquals("no second login", 2, tokenHelper.logins.get());
+	}
+}
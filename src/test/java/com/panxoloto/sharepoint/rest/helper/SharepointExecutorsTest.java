@@ -0,0 +1,66 @@
+package com.panxoloto.sharepoint.rest.helper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class SharepointExecutorsTest {
+
+	private final ExecutorService executor = SharepointExecutors.newDaemonThreadPool("test");
+
+	@After
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void runsAtMostMaxConcurrencyTasksAtOnce() throws Exception {
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger maxRunning = new AtomicInteger();
+		List<Callable<Integer>> tasks = new ArrayList<>();
+		for (int i = 0; i < 50; i++) {
+			int index = i;
+			tasks.add(() -> {
+				maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+				Thread.sleep(5);
+				running.decrementAndGet();
+				return index;
+			});
+		}
+
+		List<Integer> results = SharepointExecutors.invokeAll(executor, tasks, 4);
+
+		assertEquals(50, results.size());
+		assertEquals(Integer.valueOf(49), results.get(49));
+		assertTrue("max running " + maxRunning.get(), maxRunning.get() <= 4);
+	}
+
+	@Test
+	public void stopsSubmittingAfterAFailure() throws Exception {
+		AtomicInteger started = new AtomicInteger();
+		List<Callable<Void>> tasks = new ArrayList<>();
+		for (int i = 0; i < 50; i++) {
+			tasks.add(() -> {
+				started.incrementAndGet();
+				throw new IllegalStateException("failed");
+			});
+		}
+
+		try {
+			SharepointExecutors.invokeAll(executor, tasks, 1);
+			fail("expected the failure");
+		} catch (IllegalStateException e) {
+			assertEquals("failed", e.getMessage());
+		}
+		assertEquals(1, started.get());
+	}
+}
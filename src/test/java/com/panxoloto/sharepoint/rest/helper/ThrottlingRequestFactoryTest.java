@@ -0,0 +1,274 @@
+package com.panxoloto.sharepoint.rest.helper;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.RequestEntity;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.StreamingHttpOutputMessage;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestTemplate;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+public class ThrottlingRequestFactoryTest {
+
+	private HttpServer server;
+	private HttpClientHelper httpClientHelper;
+	private ThrottlingRequestFactory factory;
+	private RestTemplate restTemplate;
+
+	/** Responses of the stub, the last one is repeated. */
+	private final List<Response> responses = Collections.synchronizedList(new ArrayList<>());
+	private final List<Received> received = Collections.synchronizedList(new ArrayList<>());
+	/** Requests the stub drops without a response, after reading them. */
+	private final AtomicInteger dropped = new AtomicInteger();
+
+	private static class Response {
+		private final int status;
+		private final String[] headers;
+
+		Response(int status, String... headers) {
+			this.status = status;
+			this.headers = headers;
+		}
+	}
+
+	private static class Received {
+		private final String method;
+		private final HttpHeaders headers = new HttpHeaders();
+		private final byte[] body;
+		private final long at = System.nanoTime();
+
+		Received(HttpExchange exchange) throws IOException {
+			this.method = exchange.getRequestMethod();
+			exchange.getRequestHeaders().forEach(headers::put);
+			this.body = StreamUtils.copyToByteArray(exchange.getRequestBody());
+		}
+	}
+
+	@Before
+	public void start() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		AtomicInteger count = new AtomicInteger();
+		server.createContext("/", exchange -> {
+			received.add(new Received(exchange));
+			if (dropped.getAndDecrement() > 0) {
+				throw new IOException("dropped");
+			}
+			int index = count.getAndIncrement();
+			Response response;
+			synchronized (responses) {
+				response = responses.isEmpty() ? new Response(200) : responses.get(Math.min(index, responses.size() - 1));
+			}
+			for (int i = 0; i < response.headers.length; i += 2) {
+				exchange.getResponseHeaders().add(response.headers[i], response.headers[i + 1]);
+			}
+			byte[] body = "{}".getBytes();
+			exchange.sendResponseHeaders(response.status, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		server.start();
+		httpClientHelper = new HttpClientHelper(new HttpClientPoolConfig(), null, false);
+		factory = httpClientHelper.getRequestFactory();
+		factory.setBaseDelayMillis(10);
+		factory.setMaxDelayMillis(20);
+		restTemplate = new RestTemplate(factory);
+	}
+
+	@After
+	public void stop() throws IOException {
+		httpClientHelper.close();
+		server.stop(0);
+		((ExecutorService) server.getExecutor()).shutdownNow();
+	}
+
+	private URI uri(String path) {
+		return URI.create("http://127.0.0.1:" + server.getAddress().getPort() + path);
+	}
+
+	@Test
+	public void retriesIdempotentRequests() {
+		responses.add(new Response(429, "Retry-After", "0"));
+		responses.add(new Response(200));
+
+		ResponseEntity<String> response = restTemplate.getForEntity(uri("/items"), String.class);
+
+		assertEquals(HttpStatus.OK, response.getStatusCode());
+		assertEquals(2, received.size());
+		assertEquals(1, factory.getRetries());
+	}
+
+	@Test
+	public void retriesThrottledPosts() {
+		responses.add(new Response(429, "Retry-After", "0"));
+		responses.add(new Response(200));
+
+		ResponseEntity<String> response = restTemplate.postForEntity(uri("/_api/web/GetFolderByServerRelativeUrl('docs')/Files/add(url='a.txt',overwrite=true)"), "content", String.class);
+
+		assertEquals(HttpStatus.OK, response.getStatusCode());
+		assertEquals(2, received.size());
+		for (Received request : received) {
+			assertEquals("content", new String(request.body));
+		}
+		assertEquals(1, factory.getRetries());
+	}
+
+	@Test
+	public void doesNotResendPostsAfterAnIOFailure() {
+		dropped.set(1);
+
+		try {
+			restTemplate.postForEntity(uri("/files/add"), "content", String.class);
+			fail("expected the I/O failure");
+		} catch (ResourceAccessException e) {
+			assertEquals(1, received.size());
+		}
+		assertEquals(0, factory.getRetries());
+
+		HttpHeaders headers = new HttpHeaders();
+		ThrottlingRequestFactory.markResendable(headers);
+		dropped.set(1);
+		received.clear();
+
+		restTemplate.exchange(new RequestEntity<>("{\"query\":{}}", headers, HttpMethod.POST, uri("/getchanges")), String.class);
+
+		assertEquals(2, received.size());
+		assertEquals(1, factory.getRetries());
+	}
+
+	@Test
+	public void retriesResendablePostsAndMergeOverrides() {
+		responses.add(new Response(429, "Retry-After", "0"));
+		responses.add(new Response(200));
+		HttpHeaders headers = new HttpHeaders();
+		ThrottlingRequestFactory.markResendable(headers);
+
+		restTemplate.exchange(new RequestEntity<>("{\"query\":{}}", headers, HttpMethod.POST, uri("/getchanges")), String.class);
+
+		assertEquals(2, received.size());
+		for (Received request : received) {
+			assertNull(request.headers.getFirst(ThrottlingRequestFactory.RESENDABLE_HEADER));
+			assertEquals("{\"query\":{}}", new String(request.body));
+		}
+
+		HttpHeaders merge = new HttpHeaders();
+		merge.add("X-HTTP-Method", "MERGE");
+		assertTrue(ThrottlingRequestFactory.isSafeToResend(HttpMethod.POST, merge));
+		assertTrue(ThrottlingRequestFactory.isSafeToResend(HttpMethod.DELETE, new HttpHeaders()));
+	}
+
+	@Test
+	public void sendsTheLengthOfTheEncodedBody() {
+		String payload = "{\"ServerRelativeUrl\":\"/docs/A\u00f1o ni\u00f1o\"}";
+		HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(MediaType.APPLICATION_JSON);
+		// Length in a single byte charset, shorter than the UTF-8 body written.
+		headers.setContentLength(payload.getBytes(StandardCharsets.ISO_8859_1).length);
+
+		restTemplate.exchange(new RequestEntity<>(payload, headers, HttpMethod.POST, uri("/folders")), String.class);
+
+		assertEquals(1, received.size());
+		byte[] expected = payload.getBytes(StandardCharsets.UTF_8);
+		assertArrayEquals(expected, received.get(0).body);
+		assertEquals(expected.length, received.get(0).headers.getContentLength());
+	}
+
+	@Test
+	public void streamsLargeBodiesWithoutBufferingThem() {
+		responses.add(new Response(429, "Retry-After", "0"));
+		byte[] content = new byte[3 * 1024 * 1024];
+		for (int i = 0; i < content.length; i++) {
+			content[i] = (byte) i;
+		}
+		HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+
+		try {
+			restTemplate.exchange(new RequestEntity<>(new InputStreamResource(new ByteArrayInputStream(content)), headers, HttpMethod.PUT, uri("/upload")), String.class);
+			fail("expected the 429");
+		} catch (HttpClientErrorException e) {
+			assertEquals(429, e.getRawStatusCode());
+		}
+		// An input stream can't be sent twice, even with an idempotent method.
+		assertEquals(1, received.size());
+		assertEquals("chunked", received.get(0).headers.getFirst("Transfer-Encoding"));
+		assertArrayEquals(content, received.get(0).body);
+	}
+
+	@Test
+	public void resendsRepeatableBodies() {
+		responses.add(new Response(429, "Retry-After", "0"));
+		responses.add(new Response(200));
+		byte[] buffer = "xxchunkxx".getBytes();
+
+		restTemplate.execute(uri("/chunk"), HttpMethod.PUT, request -> {
+			request.getHeaders().setContentLength(5);
+			((StreamingHttpOutputMessage) request).setBody(ThrottlingRequestFactory.repeatableBody(buffer, 2, 5));
+		}, response -> null);
+
+		assertEquals(2, received.size());
+		assertEquals("chunk", new String(received.get(1).body));
+	}
+
+	@Test
+	public void spreadsTheRemainingBudgetOverConcurrentRequests() throws Exception {
+		// 4 requests left of 100 for 2 seconds: one every 500 ms.
+		responses.add(new Response(200, "RateLimit-Limit", "100", "RateLimit-Remaining", "4", "RateLimit-Reset", "2"));
+		responses.add(new Response(200));
+		restTemplate.getForEntity(uri("/first"), String.class);
+		received.clear();
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int i = 0; i < 4; i++) {
+				futures.add(executor.submit(() -> restTemplate.getForEntity(uri("/next"), String.class)));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		assertEquals(3, factory.getPreemptiveDelays());
+		List<Long> times = new ArrayList<>();
+		for (Received request : received) {
+			times.add(request.at);
+		}
+		Collections.sort(times);
+		assertTrue("requests sent together", times.get(3) - times.get(0) >= 1000_000_000L);
+	}
+}